@@ -0,0 +1,102 @@
+package gr.uoa.di.dsg.treap;
+
+import edu.stanford.identiscape.util.DigestProvider;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Seal and proof throughput of each DigestProvider, on KEYS keys with VALUE_SIZE byte values in memory.
+ * A seal closes a snapshot of UPDATES_PER_SEAL updates; a proof is isMember() and validate() of a random key
+ * in the last closed snapshot.
+ * The provider is chosen once per process, so every algorithm runs in forks of its own; run with
+ * java -cp ... org.openjdk.jmh.Main DigestBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class DigestBenchmark {
+	private static final int KEYS = 20000;
+	private static final int VALUE_SIZE = 100;
+	private static final int UPDATES_PER_SEAL = 2000;
+
+	@Param({"SHA-1", "SHA-256", "SHA-512/256"})
+	public String algorithm;
+
+	private Tree tree;
+	private byte[][] keys;
+	private final Random random = new Random(5);
+	private long snapshotId;
+	private byte[] rootAuthenticator;
+
+	private byte[] value() {
+		byte[] value = new byte[VALUE_SIZE];
+		random.nextBytes(value);
+		return value;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		//before Node, and so the default provider, is first used in this fork
+		System.setProperty(DigestProvider.PROPERTY, algorithm);
+		if( ! Node.DIGEST.getAlgorithm().equals(algorithm) )
+			throw new IllegalStateException("Digest " + Node.DIGEST.getAlgorithm() + " is already in use, run each algorithm in a fork of its own");
+		tree = new Tree(new NodeStorageManagerMemory(1 << 20), new AuthenticatorCacheManagerDepthBased(1));
+		keys = new byte[KEYS][];
+		for( int i = 0; i < KEYS; i++ ) {
+			keys[i] = ("k" + i).getBytes();
+			tree.insert(keys[i], value());
+		}
+		tree.closeSnapshot();
+		lastSnapshot();
+	}
+
+	private void lastSnapshot() throws Exception {
+		snapshotId = tree.getLastClosedSnapshotId();
+		rootAuthenticator = tree.getRootAuthenticator(snapshotId);
+	}
+
+	/**
+	 * The updates of the snapshot a seal closes, made before it is timed
+	 */
+	@State(Scope.Benchmark)
+	public static class Updates {
+		@Setup(Level.Invocation)
+		public void update(DigestBenchmark benchmark) throws Exception {
+			for( int i = 0; i < UPDATES_PER_SEAL; i++ )
+				benchmark.tree.update(benchmark.keys[benchmark.random.nextInt(KEYS)], benchmark.value());
+		}
+	}
+
+	@Benchmark
+	public byte[] seal(Updates updates) throws Exception {
+		byte[] ret = tree.closeSnapshot();
+		lastSnapshot();
+		return ret;
+	}
+
+	@Benchmark
+	public boolean proof() throws Exception {
+		byte[] key = keys[random.nextInt(KEYS)];
+		boolean valid = tree.isMember(snapshotId, key).validate(rootAuthenticator, key);
+		if( ! valid )
+			throw new IllegalStateException("Proof of a member does not validate");
+		return valid;
+	}
+}
@@ -0,0 +1,101 @@
+package gr.uoa.di.dsg.treap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One isMemberAll() proof of a batch of keys against one isMember() proof per key, on KEYS keys in memory: the time to
+ * produce the proofs, and to validate them, for batches of random keys, half of which are members.
+ * The bytes each way takes for the batch are printed once per trial. Run with
+ * java -cp ... org.openjdk.jmh.Main MultiProofBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class MultiProofBenchmark {
+	private static final int KEYS = 100000;
+	private static final int VALUE_SIZE = 100;
+
+	@Param({"10", "100", "1000"})
+	public int batch;
+
+	private Tree tree;
+	private long snapshotId;
+	private byte[] rootAuthenticator;
+	private List<byte[]> keys;
+	private MultiExistenceProof multiProof;
+	private ExistenceProof[] singleProofs;
+
+	private static byte[] key(int i) {
+		return String.format("key%08d", i).getBytes();
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Random random = new Random(5);
+		tree = new Tree(new NodeStorageManagerMemory(1 << 20), new AuthenticatorCacheManagerAlways());
+		byte[] value = new byte[VALUE_SIZE];
+		for( int i = 0; i < KEYS; i++ ) {
+			random.nextBytes(value);
+			tree.insert(key(2 * i), value);
+		}
+		tree.closeSnapshot();
+		snapshotId = tree.getLastClosedSnapshotId();
+		rootAuthenticator = tree.getRootAuthenticator(snapshotId);
+		keys = new ArrayList<>();
+		for( int i = 0; i < batch; i++ )
+			keys.add(key(random.nextInt(2 * KEYS)));
+		multiProof = multiProof();
+		singleProofs = singleProofs();
+		int singleBytes = 0;
+		for( ExistenceProof proof : singleProofs )
+			singleBytes += proof.getSize();
+		System.out.format("%n%d keys: multiproof %d bytes, single proofs %d bytes%n", batch, multiProof.getSize(), singleBytes);
+	}
+
+	@Benchmark
+	public MultiExistenceProof multiProof() throws Exception {
+		return tree.isMemberAll(snapshotId, keys);
+	}
+
+	@Benchmark
+	public ExistenceProof[] singleProofs() throws Exception {
+		ExistenceProof[] proofs = new ExistenceProof[keys.size()];
+		for( int i = 0; i < proofs.length; i++ )
+			proofs[i] = tree.isMember(snapshotId, keys.get(i));
+		return proofs;
+	}
+
+	@Benchmark
+	public boolean validateMultiProof() {
+		if( ! multiProof.validate(rootAuthenticator, keys) )
+			throw new IllegalStateException("Multiproof does not validate");
+		return true;
+	}
+
+	@Benchmark
+	public boolean validateSingleProofs() {
+		for( int i = 0; i < singleProofs.length; i++ )
+			if( ! singleProofs[i].validate(rootAuthenticator, keys.get(i)) )
+				throw new IllegalStateException("Proof does not validate");
+		return true;
+	}
+}
@@ -0,0 +1,107 @@
+package gr.uoa.di.dsg.treap;
+
+import edu.stanford.identiscape.mappedMemory.MappedMemory;
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+import gr.uoa.di.dsg.vsrm.RecordManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The loads that reshape node buffers most, on a tree of PREFILL keys rebuilt for every iteration, in memory or
+ * stored through a RecordManager: insert-heavy, inserting INSERTS_PER_SNAPSHOT fresh keys per snapshot, so that new
+ * nodes are built and their parents get new child versions, and snapshot-heavy, updating one of HOT_KEYS keys and
+ * closing a snapshot each time, so that versions pile up in the same few nodes until they are copied.
+ * Times are per insert and per update respectively; run with
+ * java -cp ... org.openjdk.jmh.Main NodeBufferBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class NodeBufferBenchmark {
+	private static final int PREFILL = 10000;
+	private static final int VALUE_SIZE = 100;
+	private static final int INSERTS_PER_SNAPSHOT = 1000;
+	private static final int HOT_KEYS = 16;
+
+	@Param({"memory", "vsrm"})
+	public String storage;
+
+	private File dir;
+	private Tree tree;
+	private Random random;
+	private byte[] value = new byte[VALUE_SIZE];
+	private int keys;
+
+	private static byte[] key(int i) {
+		//scrambled, so that fresh keys land all over the tree
+		return String.format("key%08x", i * 0x9E3779B1).getBytes();
+	}
+
+	@Setup(Level.Iteration)
+	public void setUp() throws Exception {
+		NodeStorageManager nodes;
+		if( storage.equals("memory") )
+			nodes = new NodeStorageManagerMemory(64 * 1024);
+		else {
+			dir = Files.createTempDirectory("nodebuffer").toFile();
+			RecordManager rm = new RecordManager(new MappedFileManager(dir + "/tree.dat", 1024, 64 * 1024, 64 * 64 * 1024, MappedFileManager.WritePolicy.ON_CLOSE), 100);
+			nodes = new NodeStorageManagerVSRM(rm, new MappedMemory(dir + "/snapshots.dat", 10));
+		}
+		tree = new Tree(nodes, new AuthenticatorCacheManagerAlways());
+		random = new Random(11);
+		for( keys = 0; keys < PREFILL; keys++ ) {
+			random.nextBytes(value);
+			tree.insert(key(keys), value);
+		}
+		tree.closeSnapshot();
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws Exception {
+		tree.close();
+		if( dir != null ) {
+			for( File f : dir.listFiles() )
+				f.delete();
+			dir.delete();
+			dir = null;
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INSERTS_PER_SNAPSHOT)
+	public byte[] insertHeavy() throws Exception {
+		for( int i = 0; i < INSERTS_PER_SNAPSHOT; i++ ) {
+			random.nextBytes(value);
+			tree.insert(key(keys++), value);
+		}
+		return tree.closeSnapshot();
+	}
+
+	@Benchmark
+	public byte[] snapshotHeavy() throws Exception {
+		random.nextBytes(value);
+		tree.update(key(random.nextInt(HOT_KEYS)), value);
+		return tree.closeSnapshot();
+	}
+}
@@ -0,0 +1,114 @@
+package gr.uoa.di.dsg.treap;
+
+import edu.stanford.identiscape.mappedMemory.MappedMemory;
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+import gr.uoa.di.dsg.vsrm.RecordManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of get, isMember and insert on KEYS keys stored through a RecordManager, without a node cache (cacheSize 0)
+ * and with the default one. Reads are of random keys of the last closed snapshot; inserts are of fresh keys, with a
+ * snapshot closed every INSERTS_PER_SNAPSHOT of them. The hit rate of the cache is printed after every iteration.
+ * Run with
+ * java -cp ... org.openjdk.jmh.Main NodeCacheBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class NodeCacheBenchmark {
+	private static final int KEYS = 100000;
+	private static final int VALUE_SIZE = 100;
+	private static final int INSERTS_PER_SNAPSHOT = 1000;
+
+	@Param({"0", "33554432"})
+	public long cacheSize;
+
+	private File dir;
+	private NodeStorageManagerVSRM storage;
+	private Tree tree;
+	private long snapshotId;
+	private byte[][] keys;
+	private byte[] value = new byte[VALUE_SIZE];
+	private int inserted;
+	private final Random random = new Random(12);
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("nodecache").toFile();
+		RecordManager rm = new RecordManager(new MappedFileManager(dir + "/tree.dat", 1024, 64 * 1024, 64 * 64 * 1024, MappedFileManager.WritePolicy.ON_CLOSE), 100);
+		storage = new NodeStorageManagerVSRM(rm, new MappedMemory(dir + "/snapshots.dat", 10), cacheSize);
+		tree = new Tree(storage, new AuthenticatorCacheManagerAlways());
+		keys = new byte[KEYS][];
+		for( int i = 0; i < KEYS; i++ ) {
+			keys[i] = String.format("key%09d", i * 7919L % 100000007L).getBytes();
+			random.nextBytes(value);
+			tree.insert(keys[i], value);
+			if( i % INSERTS_PER_SNAPSHOT == INSERTS_PER_SNAPSHOT - 1 )
+				tree.closeSnapshot();
+		}
+		tree.closeSnapshot();
+		snapshotId = tree.getLastClosedSnapshotId();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		tree.close();
+		for( File f : dir.listFiles() )
+			f.delete();
+		dir.delete();
+	}
+
+	@Setup(Level.Iteration)
+	public void resetStatistics() {
+		if( storage.getCache() != null )
+			storage.getCache().resetStatistics();
+	}
+
+	@TearDown(Level.Iteration)
+	public void printHitRate() {
+		if( storage.getCache() != null )
+			System.out.format(" (hit rate %.3f)", storage.getCache().getHitRate());
+	}
+
+	@Benchmark
+	public byte[] get() throws Exception {
+		return tree.get(snapshotId, keys[random.nextInt(KEYS)]);
+	}
+
+	@Benchmark
+	public ExistenceProof isMember() throws Exception {
+		return tree.isMember(snapshotId, keys[random.nextInt(KEYS)]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(INSERTS_PER_SNAPSHOT)
+	public byte[] insert() throws Exception {
+		for( int i = 0; i < INSERTS_PER_SNAPSHOT; i++ ) {
+			random.nextBytes(value);
+			tree.insert(String.format("new%09d", inserted++).getBytes(), value);
+		}
+		return tree.closeSnapshot();
+	}
+}
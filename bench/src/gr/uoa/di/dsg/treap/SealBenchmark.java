@@ -0,0 +1,88 @@
+package gr.uoa.di.dsg.treap;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Seal latency against the parallelism of the pool closeSnapshot(ForkJoinPool) runs on, 0 standing for the sequential
+ * closeSnapshot(), on KEYS keys with VALUE_SIZE byte values in memory. A seal closes a snapshot of UPDATES_PER_SEAL
+ * updates of random keys, so that most of the authenticators it computes are of fresh nodes.
+ * Parallelism above the number of cores only adds the cost of forking; run with
+ * java -cp ... org.openjdk.jmh.Main SealBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 10, time = 2)
+public class SealBenchmark {
+	private static final int KEYS = 100000;
+	private static final int VALUE_SIZE = 100;
+	private static final int UPDATES_PER_SEAL = 20000;
+
+	@Param({"0", "1", "2", "4", "8"})
+	public int parallelism;
+
+	private Tree tree;
+	private ForkJoinPool pool;
+	private byte[][] keys;
+	private final Random random = new Random(8);
+
+	private byte[] value() {
+		byte[] value = new byte[VALUE_SIZE];
+		random.nextBytes(value);
+		return value;
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		pool = parallelism == 0 ? null : new ForkJoinPool(parallelism);
+		tree = new Tree(new NodeStorageManagerMemory(1 << 20), new AuthenticatorCacheManagerAlways());
+		keys = new byte[KEYS][];
+		for( int i = 0; i < KEYS; i++ ) {
+			keys[i] = String.format("key%08d", i).getBytes();
+			tree.insert(keys[i], value());
+		}
+		tree.closeSnapshot();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		tree.close();
+		if( pool != null )
+			pool.shutdown();
+	}
+
+	/**
+	 * The updates of the snapshot a seal closes, made before it is timed
+	 */
+	@State(Scope.Benchmark)
+	public static class Updates {
+		@Setup(Level.Invocation)
+		public void update(SealBenchmark benchmark) throws Exception {
+			for( int i = 0; i < UPDATES_PER_SEAL; i++ )
+				benchmark.tree.update(benchmark.keys[benchmark.random.nextInt(KEYS)], benchmark.value());
+		}
+	}
+
+	@Benchmark
+	public byte[] seal(Updates updates) throws Exception {
+		return pool == null ? tree.closeSnapshot() : tree.closeSnapshot(pool);
+	}
+}
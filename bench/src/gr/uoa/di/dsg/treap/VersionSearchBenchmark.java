@@ -0,0 +1,84 @@
+package gr.uoa.di.dsg.treap;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Historical reads on nodes with long version chains: KEYS keys, each updated in every one of SNAPSHOTS snapshots,
+ * in memory with nodes large enough never to be copied, so that every node holds SNAPSHOTS values and authenticators.
+ * Reads are of the oldest, the middle or the newest snapshot, the oldest versions lying at the far end of each
+ * version array. Run with
+ * java -cp ... org.openjdk.jmh.Main VersionSearchBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class VersionSearchBenchmark {
+	private static final int KEYS = 256;
+	private static final int SNAPSHOTS = 1000;
+	private static final int VALUE_SIZE = 8;
+
+	@Param({"oldest", "middle", "newest"})
+	public String snapshot;
+
+	private Tree tree;
+	private long snapshotId;
+	private byte[][] keys;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		Random random = new Random(10);
+		tree = new Tree(new NodeStorageManagerMemory(1 << 24), new AuthenticatorCacheManagerAlways());
+		keys = new byte[KEYS][];
+		byte[] value = new byte[VALUE_SIZE];
+		for( int i = 0; i < KEYS; i++ ) {
+			keys[i] = String.format("key%08d", i).getBytes();
+			random.nextBytes(value);
+			tree.insert(keys[i], value);
+		}
+		tree.closeSnapshot();
+		for( int s = 1; s < SNAPSHOTS; s++ ) {
+			for( byte[] key : keys ) {
+				random.nextBytes(value);
+				tree.update(key, value);
+			}
+			tree.closeSnapshot();
+		}
+		if( tree.getNodeCopies() != 0 )
+			throw new IllegalStateException(tree.getNodeCopies() + " nodes copied, version chains cut short");
+		long last = tree.getLastClosedSnapshotId();
+		snapshotId = snapshot.equals("oldest") ? last - SNAPSHOTS + 1 : snapshot.equals("middle") ? last - SNAPSHOTS / 2 : last;
+	}
+
+	private byte[] nextKey() {
+		next = (next + 1) % KEYS;
+		return keys[next];
+	}
+
+	@Benchmark
+	public byte[] get() throws Exception {
+		return tree.get(snapshotId, nextKey());
+	}
+
+	@Benchmark
+	public ExistenceProof isMember() throws Exception {
+		return tree.isMember(snapshotId, nextKey());
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The search for a block of an add, by FreeListManager.findBlock() and by first-fit, a walk of the chain on disk as
+ * before size classes, on the same free list: RECORDS records of 20-220 bytes in 4 KB blocks, a quarter of them
+ * deleted at random, and requests of 300-1200 bytes. Nothing is changed, so every call sees the same list.
+ * Run with java -cp ... org.openjdk.jmh.Main FreeListBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class FreeListBenchmark {
+    private static final int BLOCK_SIZE = 4096;
+    private static final int THRESHOLD = 256;
+    private static final int RECORDS = 500000;
+
+    private File dir;
+    private RecordManager rm;
+    private FreeListManager freeList;
+    private final Random random = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("freelist").toFile();
+        String fileName = new File(dir, "records.dat").getPath();
+        rm = new RecordManager(new MappedFileManager(fileName, 1024, BLOCK_SIZE, 64 * BLOCK_SIZE, MappedFileManager.WritePolicy.ON_CLOSE), THRESHOLD);
+        List<Long> recNos = new ArrayList<>();
+        for( long recNo = 0; recNo < RECORDS; recNo++ ) {
+            rm.add(recNo, new byte[20 + random.nextInt(200)]);
+            recNos.add(recNo);
+        }
+        Collections.shuffle(recNos, random);
+        for( long recNo : recNos.subList(0, RECORDS / 4) )
+            rm.delete(recNo);
+        //reads the chain the record manager wrote
+        freeList = new FreeListManager(rm);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        rm.close();
+        for( File f : dir.listFiles() )
+            f.delete();
+        dir.delete();
+    }
+
+    private int needed() {
+        return 300 + random.nextInt(900) + DataBlock.ENTRY_SIZE;
+    }
+
+    @Benchmark
+    public int sizeClasses() throws IOException {
+        return freeList.findBlock(needed());
+    }
+
+    @Benchmark
+    public int firstFit() throws IOException {
+        int needed = needed();
+        for( int blockNo = rm.header.getFirstFreeBlock(); blockNo > 0; ) {
+            DataBlock block = new DataBlock(rm.readBlock(blockNo));
+            int free = block.getGrossFreeSpace();
+            int next = block.getNextFreeBlock();
+            rm.release(block);
+            if( free > needed )
+                return blockNo;
+            blockNo = next;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import gr.uoa.di.dsg.FileManager.FileManager;
+import gr.uoa.di.dsg.FileManager.IFileManager;
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Opening a record file, a get of a random record and a statistics dump, which go through the index, on a file of
+ * RECORDS records of 1-200 bytes in 4 KB blocks, through either file manager.
+ * Run with java -cp ... org.openjdk.jmh.Main IndexBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+public class IndexBenchmark {
+    private static final int HEADER_SIZE = 128;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int RECORDS = 1000000;
+
+    @Param({"FileManager", "MappedFileManager"})
+    public String fileManager;
+
+    private File dir;
+    private String fileName;
+    private RecordManager rm;
+    private final Random random = new Random(1);
+
+    private RecordManager open() throws IOException {
+        IFileManager fm;
+        if( fileManager.equals("FileManager") )
+            fm = new FileManager(fileName, HEADER_SIZE, BLOCK_SIZE, false);
+        else
+            fm = new MappedFileManager(fileName, HEADER_SIZE, BLOCK_SIZE, 64 * BLOCK_SIZE, MappedFileManager.WritePolicy.ON_CLOSE);
+        return new RecordManager(fm, 100);
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("index").toFile();
+        fileName = new File(dir, "records.dat").getPath();
+        rm = open();
+        for( long recNo = 0; recNo < RECORDS; recNo++ )
+            rm.add(recNo, new byte[1 + random.nextInt(200)]);
+        rm.close();
+        rm = open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        rm.close();
+        for( File f : dir.listFiles() )
+            f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public long openFile() throws IOException {
+        RecordManager opened = open();
+        long ret = opened.getLargestRecordSize();
+        opened.close();
+        return ret;
+    }
+
+    @Benchmark
+    public byte[] get() throws IOException {
+        return rm.get(random.nextInt(RECORDS));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object statisticsDump() throws IOException {
+        return rm.getStatisticsDump();
+    }
+}
@@ -5,6 +5,7 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.io.Serializable;
+import java.security.MessageDigest;
 import java.util.Arrays;
 
 import edu.stanford.identiscape.util.ByteArrayRegion;
@@ -16,8 +17,8 @@ import edu.stanford.identiscape.util.DigestAlgorithm;
  * This is a precedence proof of two elements in an authenticated skip list.
  */
 public class PrecedenceProof implements Serializable {
-	/** The size of all labels. 20 bytes for SHA1 */
-	public static final int LABELSIZE = 20;
+	/** The size of all labels, that of the digest algorithm (20 bytes for SHA1) */
+	public static final int LABELSIZE = DigestAlgorithm.LENGTH;
 
 	/** The raw bytes of the precedence proof */
 	private byte[] bytes_;
@@ -336,21 +337,22 @@ public class PrecedenceProof implements Serializable {
 	 */
 	private byte[] mungeLink(byte[] initialValue, long index, int level,
 			MungeResult result, int sensitive) {
-		DigestAlgorithm.ALGORITHM.reset();
+		MessageDigest md = DigestAlgorithm.algorithm();
+		md.reset();
 
 		// The initial authenticator
-		DigestAlgorithm.ALGORITHM.update(initialValue);
+		md.update(initialValue);
 
 		// The level of the link
-		DigestAlgorithm.ALGORITHM.update(Bytes.intToBytesInPlace(level));
+		md.update(Bytes.intToBytesInPlace(level));
 
 		// The data of the destination
-		DigestAlgorithm.ALGORITHM.update(bytes_, result.pointer, sensitive);
+		md.update(bytes_, result.pointer, sensitive);
 		result.pointer += sensitive;
 
 		// The index of the destination
-		DigestAlgorithm.ALGORITHM.update(Bytes.longToBytesInPlace(index));
-		byte[] levelLink = DigestAlgorithm.ALGORITHM.digest();
+		md.update(Bytes.longToBytesInPlace(index));
+		byte[] levelLink = md.digest();
 
 		// Now put together all level links to produce the super
 		// link, if applicable. Otherwise return the result already
@@ -360,22 +362,22 @@ public class PrecedenceProof implements Serializable {
 		int extraLinks = trailingZeroes(index);
 
 		if (extraLinks > 0) {
-			DigestAlgorithm.ALGORITHM.reset();
+			md.reset();
 
 			for (int i = 0; i <= extraLinks; i++) {
 				// For all levels but the link level, push the link value
 				// into the hash function. When the time comes for the
 				// link level, push the value we calculated above.
 				if (i != level) {
-					DigestAlgorithm.ALGORITHM.update(bytes_, result.pointer,
+					md.update(bytes_, result.pointer,
 							LABELSIZE);
 					result.pointer += LABELSIZE;
 				} else {
-					DigestAlgorithm.ALGORITHM.update(levelLink);
+					md.update(levelLink);
 				}
 			}
 
-			byte[] digest = DigestAlgorithm.ALGORITHM.digest();
+			byte[] digest = md.digest();
 			return digest;
 		} else {
 			return levelLink;
@@ -3,6 +3,7 @@ package edu.stanford.identiscape.skiplists.disk;
 import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.Random;
 
@@ -10,6 +11,7 @@ import edu.stanford.identiscape.mappedMemory.IMappedMemory;
 import edu.stanford.identiscape.mappedMemory.MappedMemory;
 import edu.stanford.identiscape.util.Bytes;
 import edu.stanford.identiscape.util.DigestAlgorithm;
+import edu.stanford.identiscape.util.DigestProvider;
 
 /**
  * This is an implementation of the authenticated skip list interface, using a
@@ -23,8 +25,8 @@ public class SkipList {
 	// Constants
 	// //////////////////////////////////////////////////////////
 
-	/** The size of all labels. 20 bytes for SHA1 */
-	public static final int LABELSIZE = 20;
+	/** The size of all labels, that of the digest algorithm (20 bytes for SHA1) */
+	public static final int LABELSIZE = DigestAlgorithm.LENGTH;
 
 	// Constants: Metadata offsets and lengths
 	// //////////////////////////////////////////////////////////
@@ -35,6 +37,13 @@ public class SkipList {
 	/** The length of the sensitive data size field (int) */
 	private static final int SENSITIVE_LENGTH = 4;
 
+	/**
+	 * The shift of the digest provider identifier within the sensitive data
+	 * size field, whose top byte it takes. Lists stored before it was recorded
+	 * hold 0 there, and are all SHA-1.
+	 */
+	private static final int DIGEST_SHIFT = 24;
+
 	/** The offset of the insensitive data size */
 	private static final int INSENSITIVE_OFFSET = SENSITIVE_OFFSET
 			+ SENSITIVE_LENGTH;
@@ -63,6 +72,9 @@ public class SkipList {
 	/** The size of the insensitive data portion */
 	private int insensitive_;
 
+	/** The digest algorithm the list was built with */
+	private DigestProvider digest_;
+
 	/**
 	 * Create a new, empty skip list given an initial value, the sizes of the
 	 * sensitive and insensitive data values and a fresh memory manager.
@@ -85,6 +97,10 @@ public class SkipList {
 			throw new RuntimeException("At least a single byte "
 					+ "of sensitive data is " + "required");
 		}
+		if (sensitiveSize >= 1 << DIGEST_SHIFT) {
+			throw new RuntimeException("Sensitive data size "
+					+ sensitiveSize + " is too large");
+		}
 		sensitive_ = sensitiveSize;
 
 		if (insensitiveSize < 0) {
@@ -98,6 +114,7 @@ public class SkipList {
 					+ "skip list on a " + "used memory manager");
 		}
 		memoryManager_ = manager;
+		digest_ = DigestAlgorithm.PROVIDER;
 
 		// Check the initial value
 		if (initialBytes == null) {
@@ -105,7 +122,8 @@ public class SkipList {
 		}
 
 		// Store the metadata and the initial authenticator
-		intToMemory(sensitive_, SENSITIVE_OFFSET);
+		intToMemory(digest_.getId() << DIGEST_SHIFT | sensitive_,
+				SENSITIVE_OFFSET);
 		intToMemory(insensitive_, INSENSITIVE_OFFSET);
 		copyToMemory(initialBytes, 0, LABELSIZE, DATA);
 
@@ -128,9 +146,13 @@ public class SkipList {
 	public SkipList(long nextIndex, IMappedMemory manager) {
 		memoryManager_ = manager;
 
-		// Read in the data sizes
-		sensitive_ = intFromMemory(SENSITIVE_OFFSET);
+		// Read in the data sizes and the digest algorithm
+		int sensitive = intFromMemory(SENSITIVE_OFFSET);
+		sensitive_ = sensitive & ((1 << DIGEST_SHIFT) - 1);
 		insensitive_ = intFromMemory(INSENSITIVE_OFFSET);
+		int digestId = sensitive >>> DIGEST_SHIFT;
+		digest_ = digestId == 0 ? DigestProvider.SHA1 : DigestProvider
+				.forId(digestId);
 
 		// Initialize the next field
 		next_ = nextIndex;
@@ -191,7 +213,8 @@ public class SkipList {
 
 		// Use the auxilliary instance of the algorithm to calculate
 		// the top value
-		DigestAlgorithm.ALGORITHM2.reset();
+		MessageDigest top = DigestAlgorithm.algorithm2();
+		top.reset();
 		long offset = 1L;
 		byte[] link = null;
 		for (int i = 0; i <= extraPointers; i++, offset *= 2L) {
@@ -212,7 +235,7 @@ public class SkipList {
 
 			// Update the auxilliary algorithm that calculates the
 			// top value
-			DigestAlgorithm.ALGORITHM2.update(link);
+			top.update(link);
 
 			// Lay down the pointer value
 			copyToMemory(link, 0, LABELSIZE, nextPointer_);
@@ -223,7 +246,7 @@ public class SkipList {
 
 		// Calculate the top label if necessary and lay it out
 		if (extraPointers > 0) {
-			link = DigestAlgorithm.ALGORITHM2.digest();
+			link = top.digest();
 			copyToMemory(link, 0, LABELSIZE, nextPointer_);
 			nextPointer_ += LABELSIZE;
 		}
@@ -383,6 +406,11 @@ public class SkipList {
 		return memoryManager_.size();
 	}
 
+	/** Return the digest algorithm I was built with */
+	public DigestProvider getDigest() {
+		return digest_;
+	}
+
 	// Convenience methods: To/From memory
 	// //////////////////////////////////////////////////////////
 
@@ -642,22 +670,23 @@ public class SkipList {
 			int datumStart, long index) {
 		// Submit the source, the level, the datum and the index.
 		// Return the result.
-		DigestAlgorithm.ALGORITHM.reset();
+		MessageDigest md = DigestAlgorithm.algorithm();
+		md.reset();
 
 		// Source label. Write into the digest byte eater the
 		// source label.
-		writeFromMemory(source, LABELSIZE, DigestAlgorithm.EATER);
+		writeFromMemory(source, LABELSIZE, DigestAlgorithm.eater());
 
 		// The level of the link
-		DigestAlgorithm.ALGORITHM.update(Bytes.intToBytesInPlace(level));
+		md.update(Bytes.intToBytesInPlace(level));
 
 		// The sensitive data of the destination
-		DigestAlgorithm.ALGORITHM.update(datumMemory, datumStart, sensitive_);
+		md.update(datumMemory, datumStart, sensitive_);
 
 		// The index of the destination
-		DigestAlgorithm.ALGORITHM.update(Bytes.longToBytesInPlace(index));
+		md.update(Bytes.longToBytesInPlace(index));
 
-		return DigestAlgorithm.ALGORITHM.digest();
+		return md.digest();
 	}
 
 	/**
@@ -734,11 +763,11 @@ public class SkipList {
 				100);
 
 		// Create the skip list from scratch. Sensitive data are
-		// SHA1 labels and there are no insensitive data.
-		SkipList skipList = new SkipList(NILLABEL, 20, 20, manager);
+		// labels and there are no insensitive data.
+		SkipList skipList = new SkipList(NILLABEL, LABELSIZE, 20, manager);
 
 		Random random = new Random(0);
-		byte[] value = new byte[20];
+		byte[] value = new byte[LABELSIZE];
 		long beforeCommit;
 		long afterCommit;
 		long commits = 0L;
@@ -1007,12 +1036,12 @@ public class SkipList {
 		IMappedMemory skipMemoryManager = new MappedMemory(sFile, 100);
 
 		// Start up the skip list
-		SkipList skiplist = new SkipList(NILLABEL, 20, // SHA1 labels as
+		SkipList skiplist = new SkipList(NILLABEL, LABELSIZE, // labels as
 				// sensitive data
 				0,// no insensitive data
 				skipMemoryManager);
 
-		byte[] value = new byte[20];
+		byte[] value = new byte[LABELSIZE];
 		Random rand = new Random(0);
 		long index;
 		long skip;
@@ -68,11 +68,11 @@ import java.io.ByteArrayOutputStream;
  */
 public class Bytes {
 
-	/** The local int helper */
-	private static byte[] intHelper_ = new byte[4];
+	/** The local int helper, one per calling thread */
+	private static ThreadLocalBuffer intHelper_ = new ThreadLocalBuffer(4);
 
-	/** The local long helper */
-	private static byte[] longHelper_ = new byte[8];
+	/** The local long helper, one per calling thread */
+	private static ThreadLocalBuffer longHelper_ = new ThreadLocalBuffer(8);
 
 	/**
 	 * Build an int from first 4 bytes of the array.
@@ -147,9 +147,10 @@ public class Bytes {
 	/**
 	 * Returns a 4-byte array built from an int. The array will be reused, so it
 	 * will only remain consistent until the next invocation of the method
+	 * from the same thread
 	 */
 	public static byte[] intToBytesInPlace(int n) {
-		return intToBytes(n, intHelper_, 0);
+		return intToBytes(n, (byte[]) intHelper_.get(), 0);
 	}
 
 	/**
@@ -216,9 +217,10 @@ public class Bytes {
 	/**
 	 * Returns an 8-byte array built from a long. The array will be reused, so
 	 * it will only remain consistent until the next invocation of the method
+	 * from the same thread
 	 */
 	public static byte[] longToBytesInPlace(long n) {
-		return longToBytes(n, longHelper_);
+		return longToBytes(n, (byte[]) longHelper_.get());
 	}
 
 	/**
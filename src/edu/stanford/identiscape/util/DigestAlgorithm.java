@@ -3,49 +3,45 @@ package edu.stanford.identiscape.util;
 import java.io.DataOutput;
 import java.io.IOException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 
 /**
  * This is a convenience function encapsulating the functionality of retrieving
- * the message digest algorithm. It just gets an instance of the particular
- * digest algorithm and keeps it around for users
+ * the message digest algorithm. It hands out the instances of the default
+ * {@link DigestProvider} that belong to the calling thread
  */
 public class DigestAlgorithm {
 	/** The message digest algorithm used by everyone */
-	private static final String DIGEST_ALGORITHM_NAME = "SHA-1";
-	public static final MessageDigest ALGORITHM;
+	public static final DigestProvider PROVIDER = DigestProvider.getDefault();
 
-	/**
-	 * The auxilliary instance of the algorithm for concurrent computations
-	 */
-	public static final MessageDigest ALGORITHM2;
+	/** The size of the digests produced by the algorithm */
+	public static final int LENGTH = PROVIDER.getDigestLength();
 
-	/** Initialize the message digest algorithm */
-	static {
-		// Main
-		MessageDigest md = null;
-		try {
-			md = MessageDigest.getInstance(DIGEST_ALGORITHM_NAME);
-		} catch (NoSuchAlgorithmException nsae) {
-			System.err.println("Couldn't initialize " + DIGEST_ALGORITHM_NAME);
-			System.exit(-1);
-		}
-		ALGORITHM = md;
-
-		// Auxilliary
-		try {
-			md = MessageDigest.getInstance(DIGEST_ALGORITHM_NAME);
-		} catch (NoSuchAlgorithmException nsae) {
-			System.err.println("Couldn't initialize " + DIGEST_ALGORITHM_NAME);
-			System.exit(-1);
-		}
-		ALGORITHM2 = md;
-	}
+	/** The byte eaters of each thread, over its main instance */
+	private static final ThreadLocal<DataOutput> EATER = ThreadLocal
+			.withInitial(() -> new DigestByteEater(PROVIDER.get()));
 
 	/** Don't create instances of this object */
 	private DigestAlgorithm() {
 	}
 
+	/** The main instance of the algorithm for the calling thread */
+	public static MessageDigest algorithm() {
+		return PROVIDER.get();
+	}
+
+	/**
+	 * The auxilliary instance of the algorithm for concurrent computations of
+	 * the calling thread
+	 */
+	public static MessageDigest algorithm2() {
+		return PROVIDER.getAuxilliary();
+	}
+
+	/** The byte eater for the main instance of the calling thread */
+	public static DataOutput eater() {
+		return EATER.get();
+	}
+
 	/**
 	 * A byte eater into a message digest. It only accepts writes of byte
 	 * arrays.
@@ -64,11 +60,4 @@ public class DigestAlgorithm {
 			md_.update(b, off, len);
 		}
 	}
-
-	/** The byte eater for the first message digest algorithm */
-	public static final DataOutput EATER = new DigestByteEater(ALGORITHM);
-
-	/** The byte eater for the second message digest algorithm */
-	public static final DataOutput EATER2 = new DigestByteEater(ALGORITHM2);
-
 }
@@ -0,0 +1,106 @@
+package edu.stanford.identiscape.util;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The message digest algorithms that authenticated structures can be built
+ * with. Each provider hands out digest instances that belong to the calling
+ * thread, so hashing never needs to be serialized across threads.
+ * <P>
+ * Every structure is built with a single provider, the default one, which is
+ * chosen once per process through the system property named by
+ * {@link #PROPERTY} and defaults to SHA-1. Stores record the identifier of the
+ * provider they were created with, and refuse to open under a different one.
+ */
+public enum DigestProvider {
+	SHA1(1, "SHA-1"),
+	SHA256(2, "SHA-256"),
+	SHA512_256(3, "SHA-512/256");
+
+	/** The system property that selects the default provider, by algorithm name */
+	public static final String PROPERTY = "identiscape.digest";
+
+	/** The identifier recorded in file headers */
+	private final int id_;
+
+	/** The JCA name of the algorithm */
+	private final String algorithm_;
+
+	/** The size of the digests produced */
+	private final int length_;
+
+	/** The main instance of each thread */
+	private final ThreadLocal<MessageDigest> main_;
+
+	/** The auxilliary instance of each thread, for nested computations */
+	private final ThreadLocal<MessageDigest> auxilliary_;
+
+	private DigestProvider(int id, String algorithm) {
+		id_ = id;
+		algorithm_ = algorithm;
+		main_ = ThreadLocal.withInitial(this::newInstance);
+		auxilliary_ = ThreadLocal.withInitial(this::newInstance);
+		length_ = main_.get().getDigestLength();
+	}
+
+	/** Create a fresh, unshared instance of the algorithm */
+	public MessageDigest newInstance() {
+		try {
+			return MessageDigest.getInstance(algorithm_);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new RuntimeException("Couldn't initialize " + algorithm_, ex);
+		}
+	}
+
+	/** The main instance of the algorithm for the calling thread */
+	public MessageDigest get() {
+		return main_.get();
+	}
+
+	/**
+	 * The auxilliary instance of the algorithm for the calling thread, for
+	 * computations that go on while the main one is in use
+	 */
+	public MessageDigest getAuxilliary() {
+		return auxilliary_.get();
+	}
+
+	public int getId() {
+		return id_;
+	}
+
+	public String getAlgorithm() {
+		return algorithm_;
+	}
+
+	public int getDigestLength() {
+		return length_;
+	}
+
+	/** Find the provider with the given header identifier */
+	public static DigestProvider forId(int id) {
+		for (DigestProvider provider : values())
+			if (provider.id_ == id)
+				return provider;
+		throw new IllegalArgumentException("Unknown digest provider id " + id);
+	}
+
+	/** Find the provider of the given algorithm, e.g. SHA-256 */
+	public static DigestProvider forAlgorithm(String algorithm) {
+		for (DigestProvider provider : values())
+			if (provider.algorithm_.equalsIgnoreCase(algorithm))
+				return provider;
+		throw new IllegalArgumentException("Unknown digest algorithm " + algorithm);
+	}
+
+	/** The provider every structure of this process is built with */
+	public static DigestProvider getDefault() {
+		return Default.PROVIDER;
+	}
+
+	/** Resolved on first use, after all constants are constructed */
+	private static class Default {
+		private static final DigestProvider PROVIDER = forAlgorithm(System.getProperty(PROPERTY, SHA1.algorithm_));
+	}
+}
@@ -28,4 +28,11 @@ public class FileBlock {
     public ByteBuffer getBuffer() {
         return buffer;
     }
+    
+    /**
+     * Moves a block still in use to a new mapping of the file
+     */
+    void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
 }
@@ -231,6 +231,11 @@ public class FileManager implements IFileManager {
 //        System.out.format("end batch %s: inUse=%d(%s), cached=%d%n", batchName, blocksInUse.size(), sb.toString(), freeBlocksByBlockNo.size());
     }
     
+    @Override
+    public void sync() throws IOException {
+        fc.force(false);
+    }
+    
     @Override
     public long getFileSize() throws IOException {
     	return fc.size();
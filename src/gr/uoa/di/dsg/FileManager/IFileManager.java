@@ -39,7 +39,12 @@ public interface IFileManager {
 
     void beginBatch(String name);
 
-    void endBatch();
+    void endBatch() throws IOException;
+
+    /**
+     * Waits until the batches completed so far are durable, as far as the file manager makes them durable before close
+     */
+    void sync() throws IOException;
     
     long getFileSize() throws IOException;
 
@@ -0,0 +1,51 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.FileManager;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A write-ahead log of the header and block images that batches of a MappedFileManager wrote, in groups of batches
+ * that become durable as a whole; see MappedFileManager.WritePolicy.REDO_LOG
+ *
+ * @author nikos
+ */
+public interface IRedoLog extends Closeable {
+    /**
+     * Hands over a group of batches without waiting for it to be written
+     * @param header the image of the file header, or null if the group did not change it
+     * @param blockNos the blocks the group wrote, with their images at the same index of images
+     */
+    void append(byte[] header, int[] blockNos, byte[][] images) throws IOException;
+
+    /**
+     * @return true when every group appended is durable and the log waits for the next one
+     */
+    boolean isIdle();
+
+    /**
+     * Waits until every group appended is durable
+     */
+    void sync() throws IOException;
+
+    /**
+     * Waits until every group appended is durable and written to the file itself, so that the file alone holds them
+     */
+    void checkpoint() throws IOException;
+
+    /**
+     * Asks for a checkpoint of every group appended so far, without waiting for it
+     * @return the sequence number of the last group it covers, for isCheckpointed()
+     */
+    long requestCheckpoint() throws IOException;
+
+    /**
+     * @return true when the groups up to sequence, as returned by requestCheckpoint(), are written to the file itself
+     */
+    boolean isCheckpointed(long sequence);
+}
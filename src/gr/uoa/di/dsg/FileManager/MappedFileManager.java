@@ -9,17 +9,49 @@ package gr.uoa.di.dsg.FileManager;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
 
 /**
+ * Accesses the blocks of a file through memory mappings of it.
+ *
+ * With WritePolicy.ON_BATCH_END the blocks written are marked, and when the outermost batch ends, or a write outside any
+ * batch, each run of adjacent marked blocks within a mapping is forced as one range, followed by the header if it was
+ * written; ON_WRITE forces just the block written. Ranges are forced with MappedByteBuffer.force(index, length) where
+ * the runtime has it (Java 13 on); before that the whole mapping of a run is forced instead, once per batch.
+ *
+ * With WritePolicy.REDO_LOG the file is mapped privately, so changes reach it only through the redo log: at the end of
+ * a batch the blocks it wrote are marked, and once GROUP_COMMIT_NANOS have passed, or GROUP_COMMIT_BYTES of blocks are
+ * marked, and the log is idle, the marked blocks of all batches since the last group are copied and appended as the next
+ * group; many batches thus share a single copy of each block and a single sync, and sync() appends the rest at once. The header is a copy in
+ * memory. The file is written by the checkpoints of the log. After REMAP_BYTES of blocks have been changed a checkpoint
+ * is requested, without waiting for it; at the end of the first batch after it completes, or at sync(), the mapping is
+ * replaced by a fresh one of the checkpointed file, to release the private copies of the pages. The blocks in use are
+ * moved to it, and the blocks written since the checkpoint was requested are copied to it. Mappings are then extentSize each, so that
+ * extending the file never maps changed pages anew.
  *
  * @author nikos
  */
 public class MappedFileManager implements IFileManager {
     private static final int TARGET_INDIVIDUAL_MAPPING_SIZE = Integer.MAX_VALUE - 4095; //1048579; //4096; //2^30, i.e. 1 GiB
+    /**
+     * Bytes of blocks changed in a private mapping after which it is replaced, with REDO_LOG
+     */
+    public static final long REMAP_BYTES = 256L * 1024 * 1024;
+    /**
+     * Time, and bytes of blocks written, after the last group at which the batches since are appended to the log as the next one
+     */
+    public static final long GROUP_COMMIT_NANOS = 10L * 1000 * 1000;
+    public static final long GROUP_COMMIT_BYTES = 16L * 1024 * 1024;
     private final int individualMappingSize; //4096; //Integer.MAX_VALUE - 4095; //2^30, i.e. 1 GiB
     private final int extentSize; 
     
@@ -34,20 +66,61 @@ public class MappedFileManager implements IFileManager {
     public enum WritePolicy {
         ON_WRITE,
         ON_BATCH_END,
-        ON_CLOSE
+        ON_CLOSE,
+        REDO_LOG
     }
     
     private final WritePolicy writePolicy;
+    private final FileChannel.MapMode mapMode;
+    /**
+     * MappedByteBuffer.force(int, int), or null on runtimes without it
+     */
+    private static final MethodHandle FORCE_RANGE = findForceRange();
 //    private final byte[] emptyBlock;
+    
+    private int batchDepth = 0;
+    private boolean headerWritten = false;
+    private final BitSet writtenBlocks = new BitSet(); //since the last group with REDO_LOG, the last force with ON_BATCH_END
+
+    //with REDO_LOG only
+    private final IRedoLog redoLog;
+    private ByteBuffer headerCopy;
+    private long lastGroupTime = System.nanoTime();
+    private final BitSet changedBlocks = new BitSet(); //since the file was mapped
+    private long changedBytes = 0;
+    private boolean remapPending = false; //a checkpoint was requested for a remap
+    private long remapSequence; //the last group that checkpoint covers
+    private final BitSet remapBlocks = new BitSet(); //in the groups appended since it was requested
+    private final Set<FileBlock> blocksInUse = Collections.newSetFromMap(new IdentityHashMap<FileBlock, Boolean>());
 
     public MappedFileManager(String fileName, int headerSize, int blockSize, int extentSize, WritePolicy writePolicy) throws FileNotFoundException, IOException {
+        this(fileName, headerSize, blockSize, extentSize, writePolicy, null);
+    }
+    
+    /**
+     * Opens a file with WritePolicy.REDO_LOG, whose log must have recovered the file already
+     */
+    public MappedFileManager(String fileName, int headerSize, int blockSize, int extentSize, IRedoLog redoLog) throws FileNotFoundException, IOException {
+        this(fileName, headerSize, blockSize, extentSize, WritePolicy.REDO_LOG, redoLog);
+    }
+    
+    private MappedFileManager(String fileName, int headerSize, int blockSize, int extentSize, WritePolicy writePolicy, IRedoLog redoLog) throws FileNotFoundException, IOException {
         this.headerSize = headerSize;
         this.blockSize = blockSize;
-        this.extentSize = extentSize;
         this.writePolicy = writePolicy;
+        this.redoLog = redoLog;
+        if( (writePolicy == WritePolicy.REDO_LOG) != (redoLog != null) )
+            throw new IllegalArgumentException("A redo log is required by, and only by, WritePolicy.REDO_LOG");
+        mapMode = redoLog == null ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.PRIVATE;
 
         //ensure a block is addressed in a single memory mapped buffer
-        individualMappingSize = TARGET_INDIVIDUAL_MAPPING_SIZE - TARGET_INDIVIDUAL_MAPPING_SIZE % blockSize;
+        if( redoLog == null ) {
+            individualMappingSize = TARGET_INDIVIDUAL_MAPPING_SIZE - TARGET_INDIVIDUAL_MAPPING_SIZE % blockSize;
+            this.extentSize = extentSize;
+        } else {
+            individualMappingSize = extentSize - extentSize % blockSize;
+            this.extentSize = individualMappingSize;
+        }
 //        System.out.format("Ind map size=%d%n", individualMappingSize);
         if( blockSize > individualMappingSize )
             throw new IllegalArgumentException(String.format("Block size of %d is larger than individual mapping size of %d", blockSize, individualMappingSize));
@@ -55,20 +128,43 @@ public class MappedFileManager implements IFileManager {
         RandomAccessFile aFile;
         aFile = new RandomAccessFile(fileName, "rw");
         fc = aFile.getChannel();
-        headerBuffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, headerSize); //this will extend the file to at least headerSize size
+        if( redoLog == null ) {
+            headerBuffer = fc.map(FileChannel.MapMode.READ_WRITE, 0, headerSize); //this will extend the file to at least headerSize size
+        } else {
+            //whole mappings only, as mapping a private one again would lose its changes
+            long dataSize = Math.max(0, fc.size() - headerSize);
+            long mappedSize = (dataSize + individualMappingSize - 1) / individualMappingSize * individualMappingSize;
+            if( fc.size() < headerSize + mappedSize )
+                aFile.setLength(headerSize + mappedSize);
+            headerCopy = ByteBuffer.allocate(headerSize);
+            fc.read(headerCopy, 0);
+        }
         alreadyMapped = headerSize;
-        
-        //map as much of the file as possible
+        mapFile();
+//        emptyBlock = new byte[blockSize];
+    }
+    
+    private static MethodHandle findForceRange() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(MappedByteBuffer.class, "force", MethodType.methodType(MappedByteBuffer.class, int.class, int.class));
+        } catch (NoSuchMethodException | IllegalAccessException ex) {
+            return null;
+        }
+    }
+    
+    /**
+     * Maps as much of the file as possible
+     */
+    private void mapFile() throws IOException {
         long toMap = fc.size() - alreadyMapped;
-        for(int i=0; toMap > 0; i++) {
+        for(int i=buffers.size(); toMap > 0; i++) {
             //System.out.format("map %d %d%n", i, alreadyMapped);
             long mapStart = (long) headerSize + (long) i * (long) individualMappingSize;
             int thisChunk = toMap > individualMappingSize ? individualMappingSize : (int) toMap;
-            buffers.add(fc.map(FileChannel.MapMode.READ_WRITE, mapStart, thisChunk));
+            buffers.add(fc.map(mapMode, mapStart, thisChunk));
             toMap -= thisChunk;
             alreadyMapped += thisChunk;
         }
-//        emptyBlock = new byte[blockSize];
     }
     
     @Override
@@ -83,11 +179,20 @@ public class MappedFileManager implements IFileManager {
 
     @Override
     public boolean isEmpty() throws IOException {
+        if( redoLog != null ) {
+            //blocks may have been mapped before a crash, but the file is initialized by its first checkpoint
+            for( int i = 0; i < headerSize; i++ )
+                if( headerCopy.get(i) != 0 )
+                    return false;
+            return true;
+        }
         return fc.size() <= headerSize;
     }
 
     @Override
     public ByteBuffer getHeaderBuffer() throws IOException {
+        if( redoLog != null )
+            return headerCopy;
 //        extend(headerSize-1);
 //        
 //        if( headerBuffer == null )
@@ -103,7 +208,9 @@ public class MappedFileManager implements IFileManager {
 
     @Override
     public void writeHeader() throws IOException {
-        //nop
+        headerWritten = true;
+        if( writePolicy == WritePolicy.ON_WRITE || (writePolicy == WritePolicy.ON_BATCH_END && batchDepth == 0) )
+            forceWritten();
     }
 
     @Override
@@ -113,11 +220,16 @@ public class MappedFileManager implements IFileManager {
         extend((long) headerSize + (long) (blockNo + 1) * blockSize - 1);
         ByteBuffer buffer = slice(blockNo);
         //buffer.put(emptyBlock);  //this is not needed as extents are initialized to 0 in file mappings
-        return new FileBlock(blockNo, buffer);
+        return use(new FileBlock(blockNo, buffer));
     }
 
     @Override
     public void close() throws IOException {
+        if( redoLog != null ) {
+            if( batchDepth == 0 )
+                appendGroup();
+            redoLog.close();
+        }
         buffers.clear();
         fc.close();
         fc = null;
@@ -125,12 +237,19 @@ public class MappedFileManager implements IFileManager {
 
     @Override
     public FileBlock readBlock(int blockNo) throws IOException {
-        return new FileBlock(blockNo, slice(blockNo));
+        return use(new FileBlock(blockNo, slice(blockNo)));
+    }
+    
+    private FileBlock use(FileBlock block) {
+        if( redoLog != null )
+            blocksInUse.add(block);
+        return block;
     }
 
     @Override
     public void releaseBlock(FileBlock block) {
-        //nop
+        if( redoLog != null )
+            blocksInUse.remove(block);
     }
     
     private void flush() {
@@ -139,21 +258,177 @@ public class MappedFileManager implements IFileManager {
 
     @Override
     public void writeBlock(FileBlock block) throws IOException {
+        int blockNo = block.getBlockNo();
         if( writePolicy == WritePolicy.ON_WRITE ) {
-            long relativeFilePos = (long) block.getBlockNo() * (long) blockSize;
-            int bufferIndex = (int) (relativeFilePos / (long) individualMappingSize);
-            buffers.get(bufferIndex).force();
+            forceBlocks(blockNo, blockNo + 1, -1);
+        } else if( writePolicy == WritePolicy.ON_BATCH_END ) {
+            writtenBlocks.set(blockNo);
+            if( batchDepth == 0 )
+                forceWritten();
+        } else if( writePolicy == WritePolicy.REDO_LOG ) {
+            writtenBlocks.set(blockNo);
+            if( ! changedBlocks.get(blockNo) ) {
+                changedBlocks.set(blockNo);
+                changedBytes += blockSize;
+            }
         }
     }
 
     @Override
     public void beginBatch(String name) {
-        //nop
+        batchDepth++;
     }
 
     @Override
-    public void endBatch() {
-        //nop
+    public void endBatch() throws IOException {
+        batchDepth--;
+        if( batchDepth > 0 )
+            return;
+        if( writePolicy == WritePolicy.ON_BATCH_END )
+            forceWritten();
+        if( redoLog == null )
+            return;
+        if( remapPending && redoLog.isCheckpointed(remapSequence) )
+            remap();
+        long now = System.nanoTime();
+        if( (now - lastGroupTime >= GROUP_COMMIT_NANOS || (long) writtenBlocks.cardinality() * blockSize >= GROUP_COMMIT_BYTES) && redoLog.isIdle() )
+            appendGroup();
+        if( changedBytes >= REMAP_BYTES && ! remapPending ) {
+            appendGroup();
+            remapSequence = redoLog.requestCheckpoint();
+            remapPending = true;
+        }
+    }
+    
+    @Override
+    public void sync() throws IOException {
+        if( redoLog == null )
+            return; //blocks are forced by ON_WRITE as they are written, by ON_BATCH_END as batches end and by ON_CLOSE at close
+        if( batchDepth > 0 )
+            throw new IllegalStateException("Cannot sync in the middle of a batch");
+        appendGroup();
+        if( remapPending ) {
+            //the checkpoint is under way, and covers what sync() waits for
+            redoLog.checkpoint();
+            remapBlocks.clear();
+            remap();
+        } else {
+            redoLog.sync();
+        }
+    }
+    
+    /**
+     * Forces the runs of blocks written since the last force, each within a mapping as one range, and then the header
+     */
+    private void forceWritten() throws IOException {
+        int lastForcedBuffer = -1;
+        for( int first = writtenBlocks.nextSetBit(0); first >= 0; ) {
+            int end = writtenBlocks.nextClearBit(first);
+            lastForcedBuffer = forceBlocks(first, end, lastForcedBuffer);
+            first = writtenBlocks.nextSetBit(end);
+        }
+        writtenBlocks.clear();
+        if( headerWritten ) {
+            forceHeader();
+            headerWritten = false;
+        }
+    }
+    
+    /**
+     * Forces the run of blocks [first, end), each part of it within a mapping as one range
+     * @param lastForcedBuffer the mapping forced last, which is not forced whole again where ranges cannot be forced
+     * @return the mapping forced last
+     */
+    int forceBlocks(int first, int end, int lastForcedBuffer) throws IOException {
+        long start = (long) first * blockSize, stop = (long) end * blockSize;
+        while( start < stop ) {
+            int bufferIndex = (int) (start / individualMappingSize);
+            int index = (int) (start % individualMappingSize);
+            int length = (int) Math.min(stop - start, individualMappingSize - index);
+            if( FORCE_RANGE != null )
+                force(buffers.get(bufferIndex), index, length);
+            else if( bufferIndex != lastForcedBuffer )
+                buffers.get(bufferIndex).force();
+            lastForcedBuffer = bufferIndex;
+            start += length;
+        }
+        return lastForcedBuffer;
+    }
+    
+    void forceHeader() {
+        headerBuffer.force();
+    }
+    
+    private static void force(MappedByteBuffer buffer, int index, int length) throws IOException {
+        if( FORCE_RANGE == null ) {
+            buffer.force();
+            return;
+        }
+        try {
+            FORCE_RANGE.invoke(buffer, index, length);
+        } catch (RuntimeException | Error ex) {
+            throw ex;
+        } catch (Throwable ex) {
+            throw new IOException(ex);
+        }
+    }
+    
+    /**
+     * Hands the images of the header and blocks written since the last group to the log
+     */
+    private void appendGroup() throws IOException {
+        if( writtenBlocks.isEmpty() && ! headerWritten )
+            return;
+        byte[] header = null;
+        if( headerWritten ) {
+            header = new byte[headerSize];
+            ByteBuffer source = headerCopy.duplicate();
+            source.clear();
+            source.get(header);
+        }
+        int[] blockNos = new int[writtenBlocks.cardinality()];
+        byte[][] images = new byte[blockNos.length][];
+        for( int i = 0, blockNo = writtenBlocks.nextSetBit(0); blockNo >= 0; i++, blockNo = writtenBlocks.nextSetBit(blockNo + 1) ) {
+            blockNos[i] = blockNo;
+            images[i] = new byte[blockSize];
+            slice(blockNo).get(images[i]);
+        }
+        redoLog.append(header, blockNos, images);
+        if( remapPending )
+            remapBlocks.or(writtenBlocks);
+        writtenBlocks.clear();
+        headerWritten = false;
+        lastGroupTime = System.nanoTime();
+    }
+    
+    /**
+     * Replaces the private mappings with fresh ones of the file, once the log has written to it the groups up to
+     * remapSequence. The blocks of later groups, and those written since the last group, are not in the file yet, so
+     * they are copied over from the old mappings
+     */
+    private void remap() throws IOException {
+        BitSet copied = (BitSet) remapBlocks.clone();
+        copied.or(writtenBlocks);
+        int[] blockNos = new int[copied.cardinality()];
+        byte[][] images = new byte[blockNos.length][];
+        for( int i = 0, blockNo = copied.nextSetBit(0); blockNo >= 0; i++, blockNo = copied.nextSetBit(blockNo + 1) ) {
+            blockNos[i] = blockNo;
+            images[i] = new byte[blockSize];
+            slice(blockNo).get(images[i]);
+        }
+        buffers.clear();
+        alreadyMapped = headerSize;
+        mapFile();
+        for( FileBlock block : blocksInUse )
+            block.setBuffer(slice(block.getBlockNo()));
+        changedBlocks.clear();
+        for( int i = 0; i < blockNos.length; i++ ) {
+            slice(blockNos[i]).put(images[i]);
+            changedBlocks.set(blockNos[i]);
+        }
+        changedBytes = (long) blockNos.length * blockSize;
+        remapBlocks.clear();
+        remapPending = false;
     }
 
     @Override
@@ -197,7 +472,7 @@ public class MappedFileManager implements IFileManager {
                     int thisChunk = todo > individualMappingSize ? individualMappingSize : (int) todo;
                     
                     //TODO: Delete the current mapping first?
-                    buffers.set(lastBufferIndex, fc.map(FileChannel.MapMode.READ_WRITE, mapStart, thisChunk));
+                    buffers.set(lastBufferIndex, fc.map(mapMode, mapStart, thisChunk));
                     int diff = thisChunk - thisMappingSize;
                     missing -= diff;
                     alreadyMapped += diff;
@@ -207,7 +482,7 @@ public class MappedFileManager implements IFileManager {
                 lastBufferIndex++;
                 long mapStart = (long) headerSize + (long) lastBufferIndex * (long) individualMappingSize;
                 int thisChunk = missing > individualMappingSize ? individualMappingSize : (int) missing;
-                buffers.add(fc.map(FileChannel.MapMode.READ_WRITE, mapStart, thisChunk));
+                buffers.add(fc.map(mapMode, mapStart, thisChunk));
                 missing -= thisChunk;
                 alreadyMapped += thisChunk;
             }
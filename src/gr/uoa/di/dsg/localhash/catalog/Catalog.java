@@ -33,6 +33,7 @@ import gr.uoa.di.dsg.treap.NodeStorageManagerVSRM;
 import gr.uoa.di.dsg.treap.SnapshotExtractorFunctions;
 import gr.uoa.di.dsg.treap.Tree;
 import gr.uoa.di.dsg.vsrm.RecordManager;
+import gr.uoa.di.dsg.vsrm.RedoLog;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -77,6 +78,13 @@ public class Catalog implements MessageProcessor {
 	private static final ICheckSealThreashold checkSealThreshold = new CheckSealThresholdSimple();
 	private static final IPerformVerify performVerify = new PerformVerifySimple();
 	private static final IChooseRecoverVersion chooseRecoverVersion = new ChooseRecoverVersionSimple();
+	/**
+	 * System property with the MappedFileManager.WritePolicy of the tree record files, ON_CLOSE by default. A crash can
+	 * leave a batch of ON_CLOSE half written; REDO_LOG leaves a consistent file after a crash, at the cost of slower
+	 * snapshots, of the images the log keeps in memory and of the private copies of the pages changed between remaps.
+	 */
+	public static final String WRITE_POLICY_PROPERTY = "localhash.catalog.writePolicy";
+	private static final MappedFileManager.WritePolicy writePolicy = MappedFileManager.WritePolicy.valueOf(System.getProperty(WRITE_POLICY_PROPERTY, MappedFileManager.WritePolicy.ON_CLOSE.name()));
 	
 	/*Constants*/
 	private static final String DATUM_ENCODING = "US-ASCII";
@@ -154,6 +162,7 @@ public class Catalog implements MessageProcessor {
 	
 	private static void deleteFiles(String treeFileName, String skipFileName) {
 		delete(new File(treeFileName));
+		delete(new File(treeFileName + RedoLog.SUFFIX));
 		delete(new File(skipFileName));
 	}
 	
@@ -170,6 +179,7 @@ public class Catalog implements MessageProcessor {
 		File sf = new File(skipFileName);
 		if( (! (bf.exists() && sf.exists())) ) {
 			delete(bf);
+			delete(new File(treeFileName + RedoLog.SUFFIX));
 			delete(sf);
 			return true;
 		} else
@@ -179,7 +189,17 @@ public class Catalog implements MessageProcessor {
     private NodeStorageManagerVSRM getSM(String rmFilename, String skipListFilename) throws Exception {
 		//instantiate a VSRM
 		IFileManager fm;
-		fm = new MappedFileManager(rmFilename, 1024, 64 * 1024, 64 * 64 *1024, MappedFileManager.WritePolicy.ON_CLOSE);
+		if( writePolicy == MappedFileManager.WritePolicy.REDO_LOG ) {
+			fm = new MappedFileManager(rmFilename, 1024, 64 * 1024, 64 * 64 *1024, new RedoLog(rmFilename, 1024, 64 * 1024));
+		} else {
+			//a log left by a run with REDO_LOG is replayed first
+			File log = new File(rmFilename + RedoLog.SUFFIX);
+			if( log.exists() ) {
+				new RedoLog(rmFilename, 1024, 64 * 1024).close();
+				delete(log);
+			}
+			fm = new MappedFileManager(rmFilename, 1024, 64 * 1024, 64 * 64 *1024, writePolicy);
+		}
 		RecordManager rm = new RecordManager(fm, 100);
 		
 		MappedMemory mm = new MappedMemory(skipListFilename, 10);
@@ -875,7 +895,7 @@ public class Catalog implements MessageProcessor {
 	private TreeExtractBlockInfo getChunk(String filename, long chunk) throws IOException {
 		try (FileInputStream fis = new FileInputStream(filename)) {
 			fis.skip(chunk * CHUNK_SIZE);
-			final int toRead = fis.available() % CHUNK_SIZE;
+			final int toRead = Math.min(fis.available(), CHUNK_SIZE);
 			if (toRead == 0)
 				return null;
 			else {
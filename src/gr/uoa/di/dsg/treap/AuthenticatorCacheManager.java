@@ -11,8 +11,32 @@ public abstract class AuthenticatorCacheManager {
 	public abstract boolean always();
 	public abstract int entrySize();
 	public abstract byte[] getCurrentAuthenticator(Node node, TreePath path) throws IOException;
-	public abstract void cacheAuthenticator(Node node, long snapshotId, byte[] auth, TreePath path) throws IOException;
+	/**
+	 * Caches the authenticator of a node that was just calculated from the authenticators of its children, left and right
+	 */
+	public abstract void cacheAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right, TreePath path) throws IOException;
 	public abstract byte[] getAuthenticator(Node node, long snapshotId) throws IOException;
+	/**
+	 * Stores the authenticator of a freshly created node that has no authenticator entries yet and is known to have room for one.
+	 * Used when the authenticator is computed outside of Tree.closeSnapshot(), where no TreePath is available.
+	 */
+	public abstract void initialAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right) throws IOException;
+	
+	/**
+	 * @return the authenticator of a child of the node in the current snapshot, if the node keeps it and it is still valid.
+	 * Otherwise null, and the child has to be visited
+	 */
+	public byte[] getCurrentChildAuthenticator(Node node, boolean left) {
+		return null;
+	}
+	
+	/**
+	 * @return the authenticator of a child of the node as of snapshotId, if the node keeps it. Otherwise null, and the child has to be visited
+	 */
+	public byte[] getChildAuthenticator(Node node, long snapshotId, boolean left) {
+		return null;
+	}
+	
 	public abstract void cleanupAfter(Node node, long snapshotId);
 	public abstract String toString(Node node, long snapshotId); 
 }
@@ -24,7 +24,7 @@ public class AuthenticatorCacheManagerAlways extends AuthenticatorCacheManager {
 	}
 	
 	@Override
-	public void cacheAuthenticator(Node node, long snapshotId, byte[] auth, TreePath path) throws IOException {
+	public void cacheAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right, TreePath path) throws IOException {
 		Node targetNode;
 		boolean copied = false;
 		if (node.canExpandBy(ENTRY_SIZE))
@@ -36,8 +36,7 @@ public class AuthenticatorCacheManagerAlways extends AuthenticatorCacheManager {
 		}
 		//we need to insert a new entry
 		int pos = targetNode.getFirstAuthenticatorPos();
-		byte[] extra = new byte[Node.SIZE_OF_SNAPSHOT_ID + Node.SIZE_OF_AUTHENTICATOR_DIGEST];
-		targetNode.backingBuffer.insert(pos, extra);
+		targetNode.backingBuffer.insert(pos, Node.SIZE_OF_SNAPSHOT_ID + Node.SIZE_OF_AUTHENTICATOR_DIGEST);
 		targetNode.setCountAuthenticator(targetNode.getCountAuthenticator() + 1);
 		targetNode.backingBuffer.putLong(pos, snapshotId);
 		targetNode.backingBuffer.put(pos + Node.SIZE_OF_SNAPSHOT_ID, auth);
@@ -47,16 +46,23 @@ public class AuthenticatorCacheManagerAlways extends AuthenticatorCacheManager {
 	}
 	
 	@Override
-	public byte[] getAuthenticator(Node node, long snapshotId) {
-		int count = node.getCountAuthenticator();
+	public void initialAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right) throws IOException {
 		int pos = node.getFirstAuthenticatorPos();
-		for(int i = 0; i < count; i++)
-			if( node.backingBuffer.getLong(pos) <= snapshotId ) {
-				byte[] auth = new byte[Node.SIZE_OF_AUTHENTICATOR_DIGEST]; 
-				node.backingBuffer.get(pos + Node.SIZE_OF_SNAPSHOT_ID, auth);
-				return auth;
-			} else
-				pos += Node.SIZE_OF_SNAPSHOT_ID + Node.SIZE_OF_AUTHENTICATOR_DIGEST; // move to the next 
+		node.backingBuffer.insert(pos, ENTRY_SIZE);
+		node.setCountAuthenticator(1);
+		node.backingBuffer.putLong(pos, snapshotId);
+		node.backingBuffer.put(pos + Node.SIZE_OF_SNAPSHOT_ID, auth);
+		node.markDirty(false);
+	}
+	
+	@Override
+	public byte[] getAuthenticator(Node node, long snapshotId) {
+		int pos = node.findVersion(node.getFirstAuthenticatorPos(), node.getCountAuthenticator(), ENTRY_SIZE, snapshotId);
+		if( pos >= 0 ) {
+			byte[] auth = new byte[Node.SIZE_OF_AUTHENTICATOR_DIGEST]; 
+			node.backingBuffer.get(pos + Node.SIZE_OF_SNAPSHOT_ID, auth);
+			return auth;
+		}
 		throw new RuntimeException("Node.getAuthenticator(snapshotId) could not locate any authenticator in current Node");
 	}
 
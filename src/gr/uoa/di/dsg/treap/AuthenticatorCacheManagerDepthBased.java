@@ -60,7 +60,7 @@ public class AuthenticatorCacheManagerDepthBased extends
 	}
 
 	@Override
-	public void cacheAuthenticator(Node node, long snapshotId, byte[] auth, TreePath path) throws IOException {
+	public void cacheAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right, TreePath path) throws IOException {
 		// Should we cache?
 		boolean store = shouldCache(snapshotId, path.depth());
 		int pos = node.getFirstAuthenticatorPos();
@@ -84,8 +84,7 @@ public class AuthenticatorCacheManagerDepthBased extends
 				ca = targetNode.getCountAuthenticator();
 			}
 			// we need to insert a new entry
-			byte[] extra = new byte[ENTRY_SIZE];
-			targetNode.backingBuffer.insert(pos, extra);
+			targetNode.backingBuffer.insert(pos, ENTRY_SIZE);
 			targetNode.setCountAuthenticator(ca + 1);
 			targetNode.backingBuffer.putLong(pos, snapshotId); // valid from this snapshot
 			targetNode.backingBuffer.putLong(pos + Node.SIZE_OF_SNAPSHOT_ID, Node.OPEN_VALIDITY); // until it is specifically invalidated
@@ -102,16 +101,30 @@ public class AuthenticatorCacheManagerDepthBased extends
 		}
 	}
 
+	/**
+	 * The depth of a bulk loaded node is not known when its authenticator is computed, so it is always cached.
+	 * Subsequent seals apply the depth policy as usual.
+	 */
+	@Override
+	public void initialAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right) throws IOException {
+		int pos = node.getFirstAuthenticatorPos();
+		node.backingBuffer.insert(pos, ENTRY_SIZE);
+		node.setCountAuthenticator(1);
+		node.backingBuffer.putLong(pos, snapshotId); // valid from this snapshot
+		node.backingBuffer.putLong(pos + Node.SIZE_OF_SNAPSHOT_ID, Node.OPEN_VALIDITY); // until it is specifically invalidated
+		node.backingBuffer.put(pos + 2 * Node.SIZE_OF_SNAPSHOT_ID, auth);
+		node.markDirty(false);
+	}
+
 	@Override
 	public byte[] getAuthenticator(Node node, long snapshotId)
 			throws IOException {
-		int count = node.getCountAuthenticator();
-		int pos = node.getFirstAuthenticatorPos();
-		for (int i = 0; i < count; i++) {
-			long from = node.backingBuffer.getLong(pos);
+		// entries are reverse sorted by their first snapshot, so the only candidate is the most recent one starting at or before snapshotId
+		int pos = node.findVersion(node.getFirstAuthenticatorPos(), node.getCountAuthenticator(), ENTRY_SIZE, snapshotId);
+		if (pos >= 0) {
 			long to = node.backingBuffer
 					.getLong(pos + Node.SIZE_OF_SNAPSHOT_ID);
-			if (snapshotId >= from && (snapshotId <= to || to == Node.OPEN_VALIDITY)) {
+			if (snapshotId <= to || to == Node.OPEN_VALIDITY) {
 				// bingo
 				byte[] auth = new byte[Node.SIZE_OF_AUTHENTICATOR_DIGEST];
 				node.backingBuffer
@@ -0,0 +1,119 @@
+package gr.uoa.di.dsg.treap;
+
+import java.io.IOException;
+
+import edu.stanford.identiscape.util.Bytes;
+
+/**
+ * Keeps, in every node, the authenticators of its two children for each snapshot in which the node was sealed.
+ *
+ * A proof then reads the authenticators of the siblings of its search path from the nodes on the path,
+ * and a seal reads from a modified node the authenticators of its children that were not modified, without visiting them.
+ * The authenticator of the node itself is not stored, it is one hash away from the entry: H(left, key, H(payload), right).
+ * Nodes record which of their children changed in the current snapshot, so that stale entries are never used.
+ */
+public class AuthenticatorCacheManagerInline extends AuthenticatorCacheManager {
+	// Format is: snapshotId, left child authenticator, right child authenticator
+	private static final int ENTRY_SIZE = Node.SIZE_OF_SNAPSHOT_ID + 2 * Node.SIZE_OF_AUTHENTICATOR_DIGEST;
+	private static final int LEFT_OFFSET = Node.SIZE_OF_SNAPSHOT_ID;
+	private static final int RIGHT_OFFSET = LEFT_OFFSET + Node.SIZE_OF_AUTHENTICATOR_DIGEST;
+
+	@Override
+	public boolean always() {
+		return true;
+	}
+
+	@Override
+	public int entrySize() {
+		return ENTRY_SIZE;
+	}
+
+	private static byte[] readChild(Node node, int pos, boolean left) {
+		byte[] auth = new byte[Node.SIZE_OF_AUTHENTICATOR_DIGEST];
+		node.backingBuffer.get(pos + (left ? LEFT_OFFSET : RIGHT_OFFSET), auth);
+		return auth;
+	}
+
+	@Override
+	public byte[] getCurrentAuthenticator(Node node, TreePath path) throws IOException {
+		if( node.getCountAuthenticator() == 0 )
+			throw new RuntimeException(String.format("Node %d has no authenticator entries", node.getId()));
+		int pos = node.getFirstAuthenticatorPos();
+		return node.calculateAuthenticator(node.tree.getCurrentSnapshotId(), readChild(node, pos, true), readChild(node, pos, false));
+	}
+
+	@Override
+	public byte[] getCurrentChildAuthenticator(Node node, boolean left) {
+		if( node.getCountAuthenticator() == 0 || node.isChildChanged(left) )
+			return null;
+		return readChild(node, node.getFirstAuthenticatorPos(), left);
+	}
+
+	@Override
+	public byte[] getChildAuthenticator(Node node, long snapshotId, boolean left) {
+		int pos = node.findVersion(node.getFirstAuthenticatorPos(), node.getCountAuthenticator(), ENTRY_SIZE, snapshotId);
+		return pos >= 0 ? readChild(node, pos, left) : null;
+	}
+
+	@Override
+	public void cacheAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right, TreePath path) throws IOException {
+		Node targetNode;
+		boolean copied = false;
+		if (node.canExpandBy(ENTRY_SIZE))
+			targetNode = node;
+		else {
+			long newNodeId = node.copyNode(node.getLeft(), node.getRight(), node.getVersionedValue(), path); //this one cleanses 'node' and removes it from path
+			targetNode = node.tree.fetchNode(newNodeId);
+			copied = true;
+		}
+		storeEntry(targetNode, snapshotId, left, right);
+		if (copied)
+			targetNode = node.tree.releaseNode(targetNode);
+	}
+
+	@Override
+	public void initialAuthenticator(Node node, long snapshotId, byte[] auth, byte[] left, byte[] right) throws IOException {
+		storeEntry(node, snapshotId, left, right);
+	}
+
+	private static void storeEntry(Node node, long snapshotId, byte[] left, byte[] right) throws IOException {
+		int pos = node.getFirstAuthenticatorPos();
+		node.backingBuffer.insert(pos, ENTRY_SIZE);
+		node.setCountAuthenticator(node.getCountAuthenticator() + 1);
+		node.backingBuffer.putLong(pos, snapshotId);
+		node.backingBuffer.put(pos + LEFT_OFFSET, left);
+		node.backingBuffer.put(pos + RIGHT_OFFSET, right);
+		node.markDirty(false);
+	}
+
+	@Override
+	public byte[] getAuthenticator(Node node, long snapshotId) throws IOException {
+		int pos = node.findVersion(node.getFirstAuthenticatorPos(), node.getCountAuthenticator(), ENTRY_SIZE, snapshotId);
+		if( pos >= 0 )
+			return node.calculateAuthenticator(snapshotId, readChild(node, pos, true), readChild(node, pos, false));
+		throw new RuntimeException("Node.getAuthenticator(snapshotId) could not locate any authenticator in current Node");
+	}
+
+	@Override
+	public void cleanupAfter(Node node, long snapshotId) {
+		int pos = node.getFirstAuthenticatorPos();
+		if( node.getCountAuthenticator() > 0 && node.backingBuffer.getLong(pos) == snapshotId ) {
+			node.backingBuffer.delete(pos, ENTRY_SIZE);
+			node.setCountAuthenticator(node.getCountAuthenticator() - 1);
+		}
+	}
+
+	@Override
+	public String toString(Node node, long snapshotId) {
+		StringBuilder sb = new StringBuilder();
+		int count = node.getCountAuthenticator();
+		int pos = node.getFirstAuthenticatorPos();
+		for(int i=0; i<count;i++) {
+			long sid = node.backingBuffer.getLong(pos);
+			if (snapshotId == -1L || sid <= snapshotId )
+				sb.append(String.format("A[%d]=S%d:L=%s R=%s%n", i, sid, Bytes.toString(readChild(node, pos, true)), Bytes.toString(readChild(node, pos, false))));
+			pos += ENTRY_SIZE; // move to the next
+		}
+		return sb.toString();
+	}
+}
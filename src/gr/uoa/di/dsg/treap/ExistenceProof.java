@@ -7,35 +7,28 @@ import edu.stanford.identiscape.util.ByteArrayRegion;
 import edu.stanford.identiscape.util.Bytes;
 
 public class ExistenceProof {
-	private static ExistenceProof proof;
-	protected static void reset() {
-		proof = new ExistenceProof();
-	}
+	private boolean found;
+	private ArrayList<byte[]> keys = new ArrayList<>();
+	private ArrayList<byte[]> payloads = new ArrayList<>();
+	private ArrayList<byte[]> childAuthenticators = new ArrayList<>();
 	
-	protected static void decide(boolean value) {
-		proof.found = value;
+	/**
+	 * Each search builds its own proof, so that searches may run concurrently
+	 */
+	protected ExistenceProof() {
 	}
 	
-	protected static void feed(Node node, long snapshotId) {
-		proof.keys.add(node.getKey());
-		proof.payloads.add(node.getPayload(snapshotId));
+	protected void decide(boolean value) {
+		found = value;
 	}
 	
-	protected static void feed(byte[] authenticator) {
-		proof.childAuthenticators.add(authenticator);
+	protected void feed(Node node, long snapshotId) {
+		keys.add(node.getKey());
+		payloads.add(node.getPayload(snapshotId));
 	}
 	
-	protected static ExistenceProof conclude() {
-		return proof;
-	}
-	
-	private boolean found;
-	private ArrayList<byte[]> keys = new ArrayList<>();
-	private ArrayList<byte[]> payloads = new ArrayList<>();
-	private ArrayList<byte[]> childAuthenticators = new ArrayList<>();
-	
-	
-	private ExistenceProof() {
+	protected void feed(byte[] authenticator) {
+		childAuthenticators.add(authenticator);
 	}
 	
 	public boolean isMember() {
@@ -90,6 +83,18 @@ public class ExistenceProof {
 		return Bytes.compare(currentAuthenticator, 0, targetAuthenticator, 0, currentAuthenticator.length) == 0;
 	}
 
+	/**
+	 * @return the number of bytes needed to transfer this proof: keys, payloads and authenticators
+	 */
+	public int getSize() {
+		int ret = 0;
+		for( byte[] key : keys )
+			ret += key.length;
+		for( byte[] payload : payloads )
+			ret += payload.length;
+		return ret + childAuthenticators.size() * Node.SIZE_OF_AUTHENTICATOR_DIGEST;
+	}
+	
 	public NodePayload getPayloadOfKey() {
 		return Node.decodePayload(payloads.get(payloads.size()-1));
 	}
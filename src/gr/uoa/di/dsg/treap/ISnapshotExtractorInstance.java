@@ -1,7 +1,20 @@
 package gr.uoa.di.dsg.treap;
 
+import java.io.IOException;
+
 public interface ISnapshotExtractorInstance {
 	void process(Node n);
 	void end();
-	void finishOutput();
+	/**
+	 * Waits until all output of the snapshot is written
+	 * @throws IOException the error that stopped the output, if any
+	 */
+	void finishOutput() throws IOException;
+	
+	/**
+	 * @return the error that stopped the output, if one has happened so far, null otherwise
+	 */
+	default IOException getError() {
+		return null;
+	}
 }
@@ -0,0 +1,101 @@
+package gr.uoa.di.dsg.treap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.TreeMap;
+
+/**
+ * Existence (or non existence) proof for many keys of the same snapshot at once.
+ *
+ * The proof is the union of the search paths of all keys, so ancestors shared between searches are stored and hashed once.
+ * A pruned subtree is either empty or cannot contain any of the keys, which the validator checks from the keys of its ancestors.
+ * Therefore, a key that does not appear in a validated proof is proven not to be a member.
+ */
+public class MultiExistenceProof extends PartialTreeProof {
+	private byte[][] sortedKeys;
+	private TreeMap<byte[], NodePayload> found;
+	private TreeMap<byte[], NodePayload> members;
+
+	protected MultiExistenceProof() {
+	}
+
+	/**
+	 * @return the distinct keys of the collection in ascending order
+	 */
+	protected static byte[][] sortKeys(Collection<byte[]> keys) {
+		byte[][] sorted = keys.toArray(new byte[keys.size()][]);
+		Arrays.sort(sorted, KEY_ORDER);
+		int count = 0;
+		for( int i = 0; i < sorted.length; i++ )
+			if( count == 0 || compare(sorted[count - 1], sorted[i]) != 0 )
+				sorted[count++] = sorted[i];
+		return Arrays.copyOf(sorted, count);
+	}
+
+	/**
+	 * Recomputes the root authenticator from the proof and checks that the search path of every key is included.
+	 * On success, isMember() and getPayloadOfKey() can be consulted for any of these keys
+	 * @param targetAuthenticator the root authenticator of the snapshot, as obtained from a trusted source
+	 * @param keys the keys this proof is expected to cover
+	 */
+	public boolean validate(byte[] targetAuthenticator, Collection<byte[]> keys) {
+		sortedKeys = sortKeys(keys);
+		found = new TreeMap<>(KEY_ORDER);
+		members = null;
+		if( ! validateTree(targetAuthenticator) )
+			return false;
+		members = found;
+		return true;
+	}
+
+	/**
+	 * @return true if there is a requested key strictly between lower and upper (null meaning unbounded)
+	 */
+	protected static boolean containsKeyBetween(byte[][] sortedKeys, byte[] lower, byte[] upper) {
+		//locate the first key above lower
+		int low = 0, high = sortedKeys.length;
+		if( lower != null )
+			while( low < high ) {
+				int mid = (low + high) >>> 1;
+				if( compare(sortedKeys[mid], lower) <= 0 )
+					low = mid + 1;
+				else
+					high = mid;
+			}
+		return low < sortedKeys.length && (upper == null || compare(sortedKeys[low], upper) < 0);
+	}
+
+	@Override
+	protected boolean canPrune(byte[] lower, byte[] upper) {
+		return ! containsKeyBetween(sortedKeys, lower, upper);
+	}
+
+	@Override
+	protected void visit(byte[] key, byte[] payload) {
+		if( Arrays.binarySearch(sortedKeys, key, KEY_ORDER) >= 0 )
+			found.put(key, Node.decodePayload(payload));
+	}
+
+	/**
+	 * @return whether the key is a member of the snapshot. Only meaningful for keys covered by a successful validate()
+	 */
+	public boolean isMember(byte[] key) {
+		if( members == null )
+			throw new IllegalStateException("Proof has not been validated");
+		return members.containsKey(key);
+	}
+
+	/**
+	 * @return the payload of the key, or null if it is not a member. Only meaningful for keys covered by a successful validate()
+	 */
+	public NodePayload getPayloadOfKey(byte[] key) {
+		if( members == null )
+			throw new IllegalStateException("Proof has not been validated");
+		return members.get(key);
+	}
+
+	@Override
+	public String toString() {
+		return "Multi existence proof: " + super.toString();
+	}
+}
@@ -1,19 +1,21 @@
 package gr.uoa.di.dsg.treap;
 
 import edu.stanford.identiscape.util.ByteArrayRegion;
+import edu.stanford.identiscape.util.DigestProvider;
 import gr.uoa.di.dsg.util.MemoryBuffer;
 
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 
 public class Node {
-	private static final String PRIORITY_DIGEST_ALGORITHM = "SHA-1";
-	private static final String AUTHENTICATOR_DIGEST_ALGORITHM = "SHA-1";
+	/**
+	 * The digest algorithm of priorities, authenticators and value payloads, the process default
+	 */
+	public static final DigestProvider DIGEST = DigestProvider.getDefault();
 	public static final byte[] AUTHENTICATOR_OF_TERMINAL_NODE;
 	/*
 	 * Simple fat node is logically structured like this:
@@ -26,7 +28,7 @@ public class Node {
 	 * 		Map<SnapshotId -> Authenticator> authenticator
 	 * And physically like this (all arrays are reverse sorted, i.e. the first element is the most recent one)
 	 * 		UShort keyLength, countLeft, countRight, countValue, countAuthenticator
-	 * 		20 bytes priority
+	 * 		priority, a digest of the key
 	 * 		byte modified
 	 * 		byte[] key
 	 * 		[ long snapshotId, long nodeId] left
@@ -36,26 +38,15 @@ public class Node {
 	 */
 	
 	public static final long OPEN_VALIDITY = 0L;
-	private static final MessageDigest priorityDigest;
-	public static final int SIZE_OF_PRIORITY_DIGEST;
-	protected static final MessageDigest authenticatorDigest;
-	public static final int SIZE_OF_AUTHENTICATOR_DIGEST;
-	protected static final MessageDigest valueDigest;
+	/*
+	 * digests are kept per thread by the provider, so that reads of closed snapshots (and their proofs) can proceed concurrently.
+	 * Priorities and authenticators use the main instance and value payloads the auxilliary one
+	 */
+	public static final int SIZE_OF_PRIORITY_DIGEST = DIGEST.getDigestLength();
+	public static final int SIZE_OF_AUTHENTICATOR_DIGEST = DIGEST.getDigestLength();
 	static {
-		try {
-			priorityDigest = MessageDigest.getInstance(PRIORITY_DIGEST_ALGORITHM);
-			SIZE_OF_PRIORITY_DIGEST = priorityDigest.getDigestLength();
-			
-			authenticatorDigest = MessageDigest.getInstance(AUTHENTICATOR_DIGEST_ALGORITHM);
-			SIZE_OF_AUTHENTICATOR_DIGEST = authenticatorDigest.getDigestLength();
-			valueDigest = MessageDigest.getInstance(AUTHENTICATOR_DIGEST_ALGORITHM);
-			
-			AUTHENTICATOR_OF_TERMINAL_NODE = new byte[SIZE_OF_AUTHENTICATOR_DIGEST];
-			Arrays.fill(AUTHENTICATOR_OF_TERMINAL_NODE, (byte) 0);
-			
-		} catch (NoSuchAlgorithmException ex) {
-			throw new RuntimeException("Error in static initializer for Node MessageDigest", ex);
-		}
+		AUTHENTICATOR_OF_TERMINAL_NODE = new byte[SIZE_OF_AUTHENTICATOR_DIGEST];
+		Arrays.fill(AUTHENTICATOR_OF_TERMINAL_NODE, (byte) 0);
 	}
 	
 	public static final int SIZE_OF_BYTE = Byte.SIZE / Byte.SIZE; //Harmony in all its glory :-)
@@ -81,6 +72,19 @@ public class Node {
 	public static final int MODIFIED_SIZE = SIZE_OF_BYTE;
 	
 	public static final int FIXED_SIZE = MODIFIED_START + MODIFIED_SIZE;
+	/*
+	 * bits of the modified byte: the node itself needs a new authenticator, and which of its children changed below it.
+	 * Nodes stored before the children were tracked only ever hold 0 or MODIFIED_SELF
+	 */
+	private static final byte MODIFIED_SELF = 1;
+	private static final byte MODIFIED_LEFT = 2;
+	private static final byte MODIFIED_RIGHT = 4;
+	/*
+	 * layout bit of the modified byte, never cleared: every value entry of the node is followed by the digest of its payload.
+	 * Nodes stored without it keep the plain entries and have their payloads hashed whenever an authenticator is calculated
+	 */
+	private static final byte VALUE_DIGESTS = 8;
+	public static final int SIZE_OF_VALUE_DIGEST = DIGEST.getDigestLength();
 	public static final int KEY_START = FIXED_SIZE;
 	
 	private long myId;
@@ -92,7 +96,8 @@ public class Node {
 		return key.length + value.length + FIXED_SIZE + 
 				SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID + //snapshot and left pointer
 				SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID + //snapshot and right pointer
-				SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID + SIZE_OF_SHORT; //snapshot and value length
+				SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID + SIZE_OF_SHORT + //snapshot and value length
+				SIZE_OF_VALUE_DIGEST; //digest of the value payload
 	}
 
 	protected Node(Tree tree, AuthenticatorCacheManager acm, long id, MemoryBuffer buffer, ByteArrayRegion key, VersionedValue vvalue, long left, long right) throws IOException {
@@ -106,9 +111,8 @@ public class Node {
 		backingBuffer.putUShort(KEY_LENGTH_START, key.length);
 		backingBuffer.put(KEY_START, key);
 		
-		priorityDigest.reset();
-		priorityDigest.update(key.buffer, key.start, key.length);
-		backingBuffer.put(PRIORITY_START, priorityDigest.digest());
+		backingBuffer.put(PRIORITY_START, calculatePriority(key));
+		backingBuffer.putByte(MODIFIED_START, VALUE_DIGESTS);
 		
 		setCountLeft(1);
 		setCountRight(1);
@@ -127,6 +131,7 @@ public class Node {
 		backingBuffer.putLong(pos, vvalue.snapshotId);
 		backingBuffer.putUShort(pos + SIZE_OF_SNAPSHOT_ID, vvalue.value.length);
 		backingBuffer.put(pos + SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT, vvalue.value);
+		storeValueDigest(pos);
 		
 		markDirty();
 	}
@@ -138,6 +143,13 @@ public class Node {
 		this.backingBuffer = buffer;
 	}
 
+	protected static byte[] calculatePriority(ByteArrayRegion key) {
+		MessageDigest digest = DIGEST.get();
+		digest.reset();
+		digest.update(key.buffer, key.start, key.length);
+		return digest.digest();
+	}
+	
 	protected MemoryBuffer getBuffer() {
 		return backingBuffer;
 	}
@@ -153,6 +165,24 @@ public class Node {
 		return backingBuffer.getLong(pos);
 	}
 	
+	/**
+	 * @return true if none of the pointer, value or authenticator arrays of this node got a version after fromSnapshot and up to toSnapshot.
+	 * When the authenticator manager seals every modified node, this also means that nothing below the node changed in between
+	 */
+	public boolean isUnchangedBetween(long fromSnapshot, long toSnapshot) {
+		int pos = findValueVersion(toSnapshot);
+		if( pos >= 0 && backingBuffer.getLong(pos) > fromSnapshot )
+			return false;
+		return ! isChangedBetween(getFirstLeftPos(), getCountLeft(), SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID, fromSnapshot, toSnapshot)
+				&& ! isChangedBetween(getFirstRightPos(), getCountRight(), SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID, fromSnapshot, toSnapshot)
+				&& ! isChangedBetween(getFirstAuthenticatorPos(), getCountAuthenticator(), acm.entrySize(), fromSnapshot, toSnapshot);
+	}
+	
+	private boolean isChangedBetween(int first, int count, int stride, long fromSnapshot, long toSnapshot) {
+		int pos = findVersion(first, count, stride, toSnapshot);
+		return pos >= 0 && backingBuffer.getLong(pos) > fromSnapshot;
+	}
+	
 	private final int getFirstLeftPos() {
 		return KEY_START + getKeyLength();
 	}
@@ -216,13 +246,9 @@ public class Node {
 	 * @return
 	 */
 	public long getLeft(long snapshotId) {
-		int count = getCountLeft();
-		int pos = getFirstLeftPos();
-		for(int i = 0; i < count; i++)
-			if( backingBuffer.getLong(pos) <= snapshotId )
-				return  backingBuffer.getLong(pos + SIZE_OF_SNAPSHOT_ID);
-			else
-				pos += SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID; // move to the next
+		int pos = findVersion(getFirstLeftPos(), getCountLeft(), SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID, snapshotId);
+		if( pos >= 0 )
+			return backingBuffer.getLong(pos + SIZE_OF_SNAPSHOT_ID);
 		throw new IllegalArgumentException(String.format("Could not locate left pointer for at %d for snapshot %d", myId, snapshotId));
 	}
 	
@@ -266,7 +292,7 @@ public class Node {
 		}
 		pos = getFirstValuePos();
 		if (backingBuffer.getLong(pos) == snapshotId ) {
-			backingBuffer.delete(pos, SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT + backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID));
+			backingBuffer.delete(pos, valueEntrySize(backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID)));
 			setCountValue(getCountValue() - 1);
 		}
 		acm.cleanupAfter(this, snapshotId);
@@ -313,8 +339,7 @@ public class Node {
 		if( snapshotId != backingBuffer.getLong(pos) ) {
 			//we need to insert a new entry
 			if (canExpandBy(SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID)) {
-				byte[] extra = new byte[SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID];
-				backingBuffer.insert(pos, extra);
+				backingBuffer.insert(pos, SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID);
 				setCountLeft(getCountLeft() + 1);
 				backingBuffer.putLong(pos, snapshotId);
 				backingBuffer.putLong(pos + SIZE_OF_SNAPSHOT_ID, nodeId);
@@ -339,13 +364,9 @@ public class Node {
 	 * @return
 	 */
 	public long getRight(long snapshotId) {
-		int count = getCountRight();
-		int pos = getFirstRightPos();
-		for(int i = 0; i < count; i++)
-			if( backingBuffer.getLong(pos) <= snapshotId )
-				return  backingBuffer.getLong(pos + SIZE_OF_SNAPSHOT_ID);
-			else
-				pos += SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID; // move to the next
+		int pos = findVersion(getFirstRightPos(), getCountRight(), SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID, snapshotId);
+		if( pos >= 0 )
+			return backingBuffer.getLong(pos + SIZE_OF_SNAPSHOT_ID);
 		throw new IllegalArgumentException(String.format("Could not locate right pointer for at %d for snapshot %d", myId, snapshotId));
 	}
 	
@@ -355,8 +376,7 @@ public class Node {
 		if( snapshotId != backingBuffer.getLong(pos) ) {
 			//we need to insert a new entry
 			if (canExpandBy(SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID)) {
-				byte[] extra = new byte[SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID];
-				backingBuffer.insert(pos, extra);
+				backingBuffer.insert(pos, SIZE_OF_SNAPSHOT_ID + SIZE_OF_NODE_ID);
 				setCountRight(getCountRight() + 1);
 				backingBuffer.putLong(pos, snapshotId);
 				backingBuffer.putLong(pos + SIZE_OF_SNAPSHOT_ID, nodeId);
@@ -370,7 +390,7 @@ public class Node {
 		}
 	}
 	
-	private ByteArrayRegion getKeyRegion() {
+	protected ByteArrayRegion getKeyRegion() {
 		return backingBuffer.extract(KEY_START, getKeyLength());
 	}
 
@@ -416,19 +436,81 @@ public class Node {
 	 * @return
 	 */
 	public byte[] getValue(long snapshotId) {
+		int pos = findValueVersion(snapshotId);
+		if( pos >= 0 ) {
+			pos += SIZE_OF_SNAPSHOT_ID;
+			int length = backingBuffer.getUShort(pos);
+			pos += SIZE_OF_SHORT;
+			byte[] ret = new byte[length]; 
+			backingBuffer.get(pos, ret);
+			return ret;
+		}
+		throw new IllegalArgumentException(String.format("Could not locate value for at %d for snapshot %d", myId, snapshotId));
+	}
+	
+	/**
+	 * Locates the entry of a reverse sorted, fixed stride version array that is in effect at the specified snapshot,
+	 * that is the first (most recent) one whose snapshotId is not after it.
+	 * The most recent entry is checked first, as it serves all reads of the current snapshot; older ones are binary searched
+	 * @param first position of the first (most recent) entry; every entry starts with its snapshotId
+	 * @return the position of the entry, or -1 if all entries are more recent than snapshotId
+	 */
+	protected final int findVersion(int first, int count, int stride, long snapshotId) {
+		if( count == 0 )
+			return -1;
+		if( backingBuffer.getLong(first) <= snapshotId )
+			return first;
+		int low = 1, high = count;
+		while( low < high ) {
+			int mid = (low + high) >>> 1;
+			if( backingBuffer.getLong(first + mid * stride) <= snapshotId )
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low < count ? first + low * stride : -1;
+	}
+	
+	/*
+	 * Offsets of the value entries from the first one. Values have variable length, so the offsets are collected
+	 * in a single pass over the lengths and reused for binary searching until the value array changes
+	 * (it is the last array of the node, so any change shows in its count or its total size)
+	 */
+	private int[] valueOffsets;
+	private int valueOffsetsCount;
+	private int valueOffsetsSize;
+	
+	/**
+	 * Same as findVersion(), for the value array
+	 */
+	private int findValueVersion(long snapshotId) {
 		int count = getCountValue();
-		int pos = getFirstValuePos();
-		for(int i = 0; i < count; i++)
-			if( backingBuffer.getLong(pos) <= snapshotId ) {
-				pos += SIZE_OF_SNAPSHOT_ID;
-				int length = backingBuffer.getUShort(pos);
-				pos += SIZE_OF_SHORT;
-				byte[] ret = new byte[length]; 
-				backingBuffer.get(pos, ret);
-				return ret;
-			} else
-				pos += SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT + backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID); // move to the next
-		throw new IllegalArgumentException(String.format("Could not locate right pointer for at %d for snapshot %d", myId, snapshotId));
+		int first = getFirstValuePos();
+		if( count == 0 )
+			return -1;
+		if( backingBuffer.getLong(first) <= snapshotId )
+			return first;
+		int size = backingBuffer.size() - first;
+		if( valueOffsets == null || valueOffsetsCount != count || valueOffsetsSize != size ) {
+			if( valueOffsets == null || valueOffsets.length < count )
+				valueOffsets = new int[count];
+			int offset = 0;
+			for( int i = 0; i < count; i++ ) {
+				valueOffsets[i] = offset;
+				offset += valueEntrySize(backingBuffer.getUShort(first + offset + SIZE_OF_SNAPSHOT_ID));
+			}
+			valueOffsetsCount = count;
+			valueOffsetsSize = size;
+		}
+		int low = 1, high = count;
+		while( low < high ) {
+			int mid = (low + high) >>> 1;
+			if( backingBuffer.getLong(first + valueOffsets[mid]) <= snapshotId )
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low < count ? first + valueOffsets[low] : -1;
 	}
 	
 	protected static NodePayload decodePayload(byte[] payload) {
@@ -446,19 +528,59 @@ public class Node {
 	 * @param snapshotId
 	 * @return
 	 */
-	private ByteArrayRegion getRawPayload(long snapshotId) {
-		int count = getCountValue();
-		int pos = getFirstValuePos();
-		for(int i = 0; i < count; i++) {
-			int length = backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID) + SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT;
-			if( backingBuffer.getLong(pos) <= snapshotId )
-				return backingBuffer.extract(pos, length);
-			else
-				pos += length;
-		}
+	protected ByteArrayRegion getRawPayload(long snapshotId) {
+		int pos = findValueVersion(snapshotId);
+		if( pos >= 0 )
+			return backingBuffer.extract(pos, backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID) + SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT);
 		throw new RuntimeException("Node.getRawPayload(snapshotId) could not locate any value in current Node");
 	}
 	
+	/**
+	 * Historic search for the digest of the payload as it was defined for the specified snapshot
+	 */
+	protected byte[] getValueDigest(long snapshotId) {
+		int pos = findValueVersion(snapshotId);
+		if( pos >= 0 )
+			return getValueDigestAt(pos);
+		throw new RuntimeException("Node.getValueDigest(snapshotId) could not locate any value in current Node");
+	}
+	
+	/**
+	 * @return the digest of the payload of the value entry at pos, read from the entry if it holds one, hashed otherwise
+	 */
+	private byte[] getValueDigestAt(int pos) {
+		int payloadLength = SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT + backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID);
+		if( hasValueDigests() ) {
+			byte[] ret = new byte[SIZE_OF_VALUE_DIGEST];
+			backingBuffer.get(pos + payloadLength, ret);
+			return ret;
+		}
+		ByteArrayRegion payload = backingBuffer.extract(pos, payloadLength);
+		return calculateValueDigest(payload.buffer, payload.start, payload.length);
+	}
+	
+	/**
+	 * Hashes the payload of the value entry at pos into its trailing digest, if this node keeps them
+	 */
+	private void storeValueDigest(int pos) {
+		if( ! hasValueDigests() )
+			return;
+		int payloadLength = SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT + backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID);
+		ByteArrayRegion payload = backingBuffer.extract(pos, payloadLength);
+		backingBuffer.put(pos + payloadLength, calculateValueDigest(payload.buffer, payload.start, payload.length));
+	}
+	
+	private boolean hasValueDigests() {
+		return (backingBuffer.getByte(MODIFIED_START) & VALUE_DIGESTS) != 0;
+	}
+	
+	/**
+	 * @return the size of a value entry holding a value of the given length, digest included
+	 */
+	private int valueEntrySize(int valueLength) {
+		return SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT + valueLength + (hasValueDigests() ? SIZE_OF_VALUE_DIGEST : 0);
+	}
+	
 	/**
 	 * Historic search for the "payload" as it was defined for the specified snapshot 
 	 * The payload is the tuple <snapshotId, value_length, value_bytes>
@@ -497,33 +619,34 @@ public class Node {
 			if ( diff == 0 ) {
 				//no size difference, simply replace the value in place
 				backingBuffer.put(currentStart, value);
+				storeValueDigest(pos);
 				markDirty();
 			} else {
 				if( diff > 0 ) { // new value smaller that older one
 					backingBuffer.put(currentStart, value);
 					backingBuffer.delete(currentStart + value.length, diff);
 					backingBuffer.putUShort(pos + SIZE_OF_SNAPSHOT_ID, value.length);
+					storeValueDigest(pos);
 					markDirty();
 				} else { //new value larger than older one
 					if (canExpandBy(0 - diff)) {
-						byte[] copy = new byte[value.length];
-						System.arraycopy(value, 0, copy, 0, value.length);
-						backingBuffer.replace(currentStart, currentLength, copy);
+						backingBuffer.replace(currentStart, currentLength, value);
     					backingBuffer.putUShort(pos + SIZE_OF_SNAPSHOT_ID, value.length);
+						storeValueDigest(pos);
 						markDirty();
 					} else
 						copyNode(getLeft(), getRight(), new VersionedValue(snapshotId, value), path);
 				}
 			}
 		} else {
-			if (canExpandBy(SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT + value.length)) {
+			if (canExpandBy(valueEntrySize(value.length))) {
 				//need to create a new one, so insert it at the head of the list
-				byte[] extra = new byte[SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT + value.length];
-				backingBuffer.insert(pos, extra);
+				backingBuffer.insert(pos, valueEntrySize(value.length));
 				setCountValue(getCountValue() + 1);
 				backingBuffer.putLong(pos, snapshotId);
 				backingBuffer.putUShort(pos + SIZE_OF_SNAPSHOT_ID, value.length);
 				backingBuffer.put(pos + SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT, value);
+				storeValueDigest(pos);
 				markDirty();
 			} else
 				copyNode(getLeft(), getRight(), new VersionedValue(snapshotId, value), path);
@@ -537,11 +660,22 @@ public class Node {
 	}
 	
 	protected boolean getModified() {
-		return backingBuffer.getByte(MODIFIED_START) == (byte) 1;
+		return (backingBuffer.getByte(MODIFIED_START) & MODIFIED_SELF) != 0;
 	}
 	
 	private void setModified(boolean v) {
-		backingBuffer.putByte(MODIFIED_START, (byte) (v ? 1 : 0));
+		byte flags = backingBuffer.getByte(MODIFIED_START);
+		backingBuffer.putByte(MODIFIED_START, v ? (byte) (flags | MODIFIED_SELF) : (byte) (flags & VALUE_DIGESTS));
+	}
+	
+	/**
+	 * @return true if the child on the given side may have a different authenticator than when this node was last sealed,
+	 * either because the pointer to it changed or because a node below it was modified in the current snapshot
+	 */
+	protected boolean isChildChanged(boolean left) {
+		if( (backingBuffer.getByte(MODIFIED_START) & (left ? MODIFIED_LEFT : MODIFIED_RIGHT)) != 0 )
+			return true;
+		return backingBuffer.getLong(left ? getFirstLeftPos() : getFirstRightPos()) == tree.getCurrentSnapshotId();
 	}
 	
 	protected void markDirty() throws IOException {
@@ -554,13 +688,16 @@ public class Node {
 	}
 	
 	/**
-	 * This one is optimized to not cause a disk write if node is already marked as modified
-	 * @param modified
+	 * Marks the node as modified because a node below it, on the given side, was.
+	 * This one is optimized to not cause a disk write if node is already marked as such
+	 * @param leftChild
 	 * @throws IOException
 	 */
-	protected void markModified() throws IOException {
-		if(! getModified() ) {
-			setModified(true);
+	protected void markModified(boolean leftChild) throws IOException {
+		byte flags = backingBuffer.getByte(MODIFIED_START);
+		byte marked = (byte) (flags | MODIFIED_SELF | (leftChild ? MODIFIED_LEFT : MODIFIED_RIGHT));
+		if( marked != flags ) {
+			backingBuffer.putByte(MODIFIED_START, marked);
 			tree.markDirty(this);
 		}
 	}
@@ -577,40 +714,57 @@ public class Node {
 		return backingBuffer.compare(PRIORITY_START, PRIORITY_SIZE, other.getPriority(), 0, PRIORITY_SIZE);
 	}
 
+	public int comparePriority(byte[] otherPriority) {
+		return backingBuffer.compare(PRIORITY_START, PRIORITY_SIZE, otherPriority, 0, PRIORITY_SIZE);
+	}
+
 	public byte[] getCurrentAuthenticator(TreePath path, Consumer<Node> changesRecorder) throws IOException {
 		if( getModified() ) {
-			byte[] mine = produceCurrentAuthenticator(path, changesRecorder);
+			byte[][] children = new byte[2][];
+			byte[] mine = produceCurrentAuthenticator(path, changesRecorder, children);
 			long idOfLast = path.last().follow();
 			if ( idOfLast == myId ) {
 				//I am still ... me. That is, I was not copied for whatever reason.
-				acm.cacheAuthenticator(this, tree.getCurrentSnapshotId(), mine, path); // will also clear modified flag(if actually cached)
+				acm.cacheAuthenticator(this, tree.getCurrentSnapshotId(), mine, children[0], children[1], path); // will also clear modified flag(if actually cached)
 			} else {
 				//Ooops, identity crisis. Looks like I was copied. Now, store the authenticator to my new self
 				//*TRACE*/System.out.format("***@getCurrentAuth: I was copied!!! Was %d, new me=%d%n", myId, idOfLast);
 				Node myNewSelf = tree.fetchNode(idOfLast);
-				acm.cacheAuthenticator(myNewSelf, tree.getCurrentSnapshotId(), mine, path); // will also clear modified flag(if actually cached)
+				acm.cacheAuthenticator(myNewSelf, tree.getCurrentSnapshotId(), mine, children[0], children[1], path); // will also clear modified flag(if actually cached)
 				myNewSelf = tree.releaseNode(myNewSelf);
 			}
 			return mine;
 		} else {
-			return acm.getCurrentAuthenticator(this, path);
+			byte[] known = tree.getPrecomputedAuthenticator(myId);
+			return known != null ? known : acm.getCurrentAuthenticator(this, path);
 		}
 	}
 	
 	protected byte[] produceCurrentAuthenticator(TreePath path, Consumer<Node> changesRecorder) throws IOException {
+		return produceCurrentAuthenticator(path, changesRecorder, new byte[2][]);
+	}
+	
+	/**
+	 * Calculates the authenticator of the current version of this node, visiting the children whose authenticator is not known.
+	 * The authenticators of the left and right child are returned in children[0] and children[1]
+	 */
+	protected byte[] produceCurrentAuthenticator(TreePath path, Consumer<Node> changesRecorder, byte[][] children) throws IOException {
 //		System.out.format("at %d back from left.produceAuthenticator() pre=(left=%d, right=%d) post=(last=%d left=%d right=%d)%n", 
 //		myId, nleft, nright, path.last().follow(), getLeft(), getRight());
 		//*TRACE*/long leftPtr = getLeft();
 		//*TRACE*/long rightPtr = getRight();
 
 		byte[] leftPart, rightPart;
-		ByteArrayRegion payload;
+		byte[] payloadDigest;
 		
 		Node node = this;
 
-		path.add(node.getLeftEdge());
-		leftPart = tree.produceAuthenticator(path, changesRecorder);
-		path.removeLast();
+		leftPart = acm.getCurrentChildAuthenticator(node, true);
+		if( leftPart == null ) {
+			path.add(node.getLeftEdge());
+			leftPart = tree.produceAuthenticator(path, changesRecorder);
+			path.removeLast();
+		}
 		
 		long idOfLast = path.last().follow();
 		if ( idOfLast != myId ) {
@@ -620,21 +774,37 @@ public class Node {
 			//*TRACE*/		myId, leftPtr, rightPtr, idOfLast, node.getLeft(), node.getRight());
 		}
 		
-		path.add(node.getRightEdge());
-		rightPart = tree.produceAuthenticator(path, changesRecorder);
-		path.removeLast();
-		
-		//payload is: 
+		rightPart = acm.getCurrentChildAuthenticator(node, false);
+		if( rightPart == null ) {
+			path.add(node.getRightEdge());
+			rightPart = tree.produceAuthenticator(path, changesRecorder);
+			path.removeLast();
+		}
+		children[0] = leftPart;
+		children[1] = rightPart;
+
+		long idAfterRight = path.last().follow();
+		if ( idAfterRight != idOfLast ) {
+			//copied while on the right side. The copy we hold has been cleansed of its current value, read it from the newest self
+			if ( idOfLast != myId )
+				node = tree.releaseNode(node);
+			node = tree.fetchNode(idAfterRight);
+			idOfLast = idAfterRight;
+		}
+
+		//payload is:
 		//the snapshotId, the value length and the value bytes.
 		//later on, all these things will be fed into the proof and can be recovered from there
-		int pos = node.getFirstValuePos();
-		payload = node.backingBuffer.extract(pos, node.backingBuffer.getUShort(pos + SIZE_OF_SNAPSHOT_ID) + SIZE_OF_SNAPSHOT_ID + SIZE_OF_SHORT);
+		payloadDigest = node.getValueDigestAt(node.getFirstValuePos());
 		changesRecorder.accept(this);
 		if ( idOfLast != myId )
 			node = tree.releaseNode(node);
 		
+		byte[] known = tree.getPrecomputedAuthenticator(myId); //a parallel close has already hashed this node
+		if( known != null )
+			return known;
 		ByteArrayRegion key = backingBuffer.extract(KEY_START, getKeyLength()); //this we can read from the old node, still the same
-		return calculateAuthenticator(key, payload, leftPart, rightPart);
+		return calculateAuthenticatorFromDigest(key, payloadDigest, leftPart, rightPart);
 	}
 	
 	protected byte[] producePastAuthenticator(long snapshotId) throws IOException {
@@ -644,27 +814,58 @@ public class Node {
 		//payload is: 
 		//the snapshotId, the value length and the value bytes.
 		//later on, all these things will be fed into the proof and can be recovered from there
-		
-		ByteArrayRegion payload = getRawPayload(snapshotId);
-		return calculateAuthenticator(key, payload, left, right);
+		return calculateAuthenticatorFromDigest(key, getValueDigest(snapshotId), left, right);
+	}
+	
+	/**
+	 * Calculates the authenticator of the current version of this node directly from the authenticators of its children,
+	 * for callers that already hold them (e.g. bulk loading) and need no recursion through the tree 
+	 */
+	protected byte[] calculateCurrentAuthenticator(byte[] left, byte[] right) {
+		return calculateAuthenticator(tree.getCurrentSnapshotId(), left, right);
+	}
+	
+	/**
+	 * Calculates the authenticator of this node as of snapshotId from the authenticators of its children at the time
+	 */
+	protected byte[] calculateAuthenticator(long snapshotId, byte[] left, byte[] right) {
+		return calculateAuthenticatorFromDigest(getKeyRegion(), getValueDigest(snapshotId), left, right);
 	}
 	
 	public byte[] getAuthenticator(long snapshotId) throws IOException {
 		return acm.getAuthenticator(this, snapshotId);
 	}
 	
+	/**
+	 * @return the authenticator of the left or right child as of snapshotId, if this node keeps it, null otherwise
+	 */
+	public byte[] getChildAuthenticator(long snapshotId, boolean left) {
+		return acm.getChildAuthenticator(this, snapshotId, left);
+	}
+	
 	protected static byte[] calculateAuthenticator(ByteArrayRegion key, ByteArrayRegion payload, byte[] left, byte[] right) {
-		authenticatorDigest.reset();
-		authenticatorDigest.update(left);
-		
-		authenticatorDigest.update(key.buffer, key.start, key.length);
-		//feed the payload to the value digest
-		valueDigest.reset();
-		valueDigest.update(payload.buffer, payload.start, payload.length);
-		//and now feed the hash of the full value buffer to the authenticator digest algorithm
-		authenticatorDigest.update(valueDigest.digest());
-		authenticatorDigest.update(right);
-		return authenticatorDigest.digest();
+		return calculateAuthenticatorFromDigest(key, calculateValueDigest(payload.buffer, payload.start, payload.length), left, right);
+	}
+	
+	/**
+	 * Same as calculateAuthenticator(), for callers that already hold the digest of the payload
+	 */
+	protected static byte[] calculateAuthenticatorFromDigest(ByteArrayRegion key, byte[] payloadDigest, byte[] left, byte[] right) {
+		MessageDigest authDigest = DIGEST.get();
+		authDigest.reset();
+		authDigest.update(left);
+		authDigest.update(key.buffer, key.start, key.length);
+		//the hash of the full value buffer goes in place of the value itself
+		authDigest.update(payloadDigest);
+		authDigest.update(right);
+		return authDigest.digest();
+	}
+	
+	private static byte[] calculateValueDigest(byte[] buffer, int start, int length) {
+		MessageDigest payloadDigest = DIGEST.getAuxilliary();
+		payloadDigest.reset();
+		payloadDigest.update(buffer, start, length);
+		return payloadDigest.digest();
 	}
 	
 	private class EdgeClass implements TreeEdge {
@@ -705,12 +906,20 @@ public class Node {
 		}
 	}
 	
+	//edges hold no state besides their host and side, so each node hands out the same two
+	private EdgeClass leftEdge;
+	private EdgeClass rightEdge;
+	
 	public EdgeClass getLeftEdge() {
-		return new EdgeClass(this, true);
+		if( leftEdge == null )
+			leftEdge = new EdgeClass(this, true);
+		return leftEdge;
 	}
 	
 	public EdgeClass getRightEdge() {
-		return new EdgeClass(this, false);
+		if( rightEdge == null )
+			rightEdge = new EdgeClass(this, false);
+		return rightEdge;
 	}
 	
 	public static String dumpShorten(String v) {
@@ -744,6 +953,8 @@ public class Node {
 			byte[] bvalue = new byte[len];
 			backingBuffer.get(pos, bvalue);
 			pos += len;
+			if (hasValueDigests())
+				pos += SIZE_OF_VALUE_DIGEST;
 			String sValue;
 			try {sValue = new String(bvalue, "UTF-8"); }
 			catch (UnsupportedEncodingException ex) {sValue = "ERROR";}
@@ -0,0 +1,263 @@
+package gr.uoa.di.dsg.treap;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Byte-budgeted cache of stored node images, shared by all threads using a storage manager, that survives across operations.
+ *
+ * Eviction is a segmented LRU: images enter a probation segment and are promoted to the protected segment when hit again,
+ * so a scan, which touches every node once, only cycles through probation and leaves the hot nodes alone.
+ * The top levels of the most recently closed snapshots are pinned and never evicted; their bytes still count against the budget.
+ * Cached images are never modified, callers must copy them before parsing them into nodes that may change.
+ */
+public class NodeCache {
+	/**
+	 * Estimated heap used by an entry besides the image itself: array header, boxed id and hash map entry
+	 */
+	public static final int ENTRY_OVERHEAD = 96;
+	/**
+	 * Number of most recently closed snapshots whose top levels are pinned
+	 */
+	public static final int PINNED_SNAPSHOTS = 2;
+	private static final int PROTECTED_PERCENT = 80;
+
+	private final long capacity;
+	private final long protectedCapacity;
+	private final LinkedHashMap<Long, byte[]> probation = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<Long, byte[]> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+	private final HashMap<Long, byte[]> pinned = new HashMap<>();
+	private long probationBytes = 0;
+	private long protectedBytes = 0;
+	private long pinnedBytes = 0;
+
+	private final ArrayDeque<long[]> pinnedSnapshots = new ArrayDeque<>();
+	private final HashSet<Long> pinnedIds = new HashSet<>();
+
+	//bumped on every write, so that images read from storage concurrently with a write are not cached after it
+	private long generation = 0;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public NodeCache(long capacity) {
+		if( capacity <= 0 )
+			throw new IllegalArgumentException(String.format("Cache capacity must be positive, got %d", capacity));
+		this.capacity = capacity;
+		this.protectedCapacity = capacity / 100 * PROTECTED_PERCENT;
+	}
+
+	private static long cost(byte[] image) {
+		return image.length + ENTRY_OVERHEAD;
+	}
+
+	/**
+	 * @return the cached image of the node, which must not be modified, or null if it is not cached
+	 */
+	public synchronized byte[] get(long id) {
+		byte[] image = pinned.get(id);
+		if( image == null )
+			image = protectedSegment.get(id);
+		if( image == null ) {
+			image = probation.remove(id);
+			if( image != null ) {
+				probationBytes -= cost(image);
+				addProtected(id, image);
+			}
+		}
+		if( image == null )
+			misses++;
+		else
+			hits++;
+		return image;
+	}
+
+	/**
+	 * @return the current generation, to be passed to offer() along with an image read from storage afterwards
+	 */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Caches an image read from storage, unless a write has happened since the generation was taken, as the image may then be stale
+	 */
+	public synchronized void offer(long id, byte[] image, long readGeneration) {
+		if( readGeneration != generation || contains(id) )
+			return;
+		add(id, image);
+	}
+
+	/**
+	 * Caches an image that has just been written to storage, replacing any previous image of the node
+	 */
+	public synchronized void put(long id, byte[] image) {
+		generation++;
+		byte[] previous = pinned.get(id);
+		if( previous != null ) {
+			pinned.put(id, image);
+			pinnedBytes += image.length - previous.length;
+			evict();
+			return;
+		}
+		previous = protectedSegment.get(id);
+		if( previous != null ) {
+			protectedSegment.put(id, image);
+			protectedBytes += image.length - previous.length;
+			demote();
+			evict();
+			return;
+		}
+		previous = probation.remove(id);
+		if( previous != null )
+			probationBytes -= cost(previous);
+		add(id, image);
+	}
+
+	/**
+	 * Pins the given nodes, the top levels of a newly closed snapshot, and unpins those of snapshots older than the last PINNED_SNAPSHOTS
+	 */
+	public synchronized void pin(long[] ids) {
+		pinnedSnapshots.addLast(ids);
+		while( pinnedSnapshots.size() > PINNED_SNAPSHOTS )
+			pinnedSnapshots.removeFirst();
+		pinnedIds.clear();
+		for( long[] snapshotIds : pinnedSnapshots )
+			for( long id : snapshotIds )
+				pinnedIds.add(id);
+
+		//release images that are no longer pinned into the protected segment
+		Iterator<Map.Entry<Long, byte[]>> it = pinned.entrySet().iterator();
+		while( it.hasNext() ) {
+			Map.Entry<Long, byte[]> entry = it.next();
+			if( ! pinnedIds.contains(entry.getKey()) ) {
+				it.remove();
+				pinnedBytes -= cost(entry.getValue());
+				protectedSegment.put(entry.getKey(), entry.getValue());
+				protectedBytes += cost(entry.getValue());
+			}
+		}
+		//and move the newly pinned ones out of the LRU segments
+		for( long id : pinnedIds ) {
+			byte[] image = protectedSegment.remove(id);
+			if( image != null )
+				protectedBytes -= cost(image);
+			else {
+				image = probation.remove(id);
+				if( image != null )
+					probationBytes -= cost(image);
+			}
+			if( image != null ) {
+				pinned.put(id, image);
+				pinnedBytes += cost(image);
+			}
+		}
+		demote();
+		evict();
+	}
+
+	private boolean contains(long id) {
+		return pinned.containsKey(id) || protectedSegment.containsKey(id) || probation.containsKey(id);
+	}
+
+	private void add(long id, byte[] image) {
+		if( pinnedIds.contains(id) ) {
+			pinned.put(id, image);
+			pinnedBytes += cost(image);
+		} else {
+			probation.put(id, image);
+			probationBytes += cost(image);
+		}
+		evict();
+	}
+
+	private void addProtected(long id, byte[] image) {
+		protectedSegment.put(id, image);
+		protectedBytes += cost(image);
+		demote();
+	}
+
+	/**
+	 * Moves the least recently used protected images back to probation, to keep the protected segment within its share
+	 */
+	private void demote() {
+		Iterator<Map.Entry<Long, byte[]>> it = protectedSegment.entrySet().iterator();
+		while( protectedBytes > protectedCapacity && it.hasNext() ) {
+			Map.Entry<Long, byte[]> entry = it.next();
+			it.remove();
+			protectedBytes -= cost(entry.getValue());
+			probation.put(entry.getKey(), entry.getValue());
+			probationBytes += cost(entry.getValue());
+		}
+	}
+
+	private void evict() {
+		evictFrom(probation.entrySet().iterator(), true);
+		evictFrom(protectedSegment.entrySet().iterator(), false);
+	}
+
+	private void evictFrom(Iterator<Map.Entry<Long, byte[]>> it, boolean isProbation) {
+		while( getSize() > capacity && it.hasNext() ) {
+			long freed = cost(it.next().getValue());
+			it.remove();
+			if( isProbation )
+				probationBytes -= freed;
+			else
+				protectedBytes -= freed;
+			evictions++;
+		}
+	}
+
+	/**
+	 * @return the estimated heap used by the cached images, pinned ones included
+	 */
+	public synchronized long getSize() {
+		return probationBytes + protectedBytes + pinnedBytes;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getPinnedSize() {
+		return pinnedBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return probation.size() + protectedSegment.size() + pinned.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized double getHitRate() {
+		long lookups = hits + misses;
+		return lookups == 0 ? 0.0 : (double) hits / lookups;
+	}
+
+	public synchronized void resetStatistics() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("NodeCache entries=%d size=%d/%d pinned=%d hits=%d misses=%d hitRate=%.3f evictions=%d",
+				getEntryCount(), getSize(), capacity, pinnedBytes, hits, misses, getHitRate(), evictions);
+	}
+}
@@ -2,12 +2,19 @@ package gr.uoa.di.dsg.treap;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.TreeMap;
 
 import edu.stanford.identiscape.util.ByteArrayRegion;
 import gr.uoa.di.dsg.util.MemoryBuffer;
 
 public abstract class NodeStorageManager implements Closeable {
+	/**
+	 * Levels of a closed snapshot's tree, counting its root, that are pinned in the node cache
+	 */
+	public static final int PINNED_LEVELS = 6;
+
 	private class CacheElement {
 		int refCount;
 		Node node;
@@ -21,31 +28,53 @@ public abstract class NodeStorageManager implements Closeable {
 		}
 	}
 	/*
-	 * loaded currently does not cache anything outside the scope of the current operation (beginWork/commitWork)
-	 * A good enhancement would be to actually cache hot nodes up to a specific bound.
-	 * However, due to the very variable size of each node, this needs a great deal of attention so that we don't hog JVM heap with our cache
+	 * loaded holds the parsed nodes of the current operation (beginWork/endWork) only.
+	 * Each thread has its own loaded map, so that readers of closed snapshots do not interfere with each other.
+	 * Implementations must then allow obtain() and the snapshot lookups to be called concurrently.
+	 * Across operations, nodes are kept as immutable images in the optional, byte-budgeted cache that all threads share.
 	 */
-	private TreeMap<Long, CacheElement> loaded = new TreeMap<>();
+	private ThreadLocal<TreeMap<Long, CacheElement>> loaded = ThreadLocal.withInitial(TreeMap::new);
+	/*
+	 * while a batch is in progress, clean nodes stay in loaded after their last release
+	 * so that consecutive operations of the batch share the (re)parsed upper levels of the tree
+	 */
+	private ThreadLocal<Boolean> retainClean = ThreadLocal.withInitial(() -> Boolean.FALSE);
+	private NodeCache nodeCache = null;
+
+	/**
+	 * Enables caching of node images across operations, within a budget of cacheSize bytes. A size of 0 disables the cache
+	 */
+	protected void setCacheSize(long cacheSize) {
+		nodeCache = cacheSize > 0 ? new NodeCache(cacheSize) : null;
+	}
+
+	/**
+	 * @return the node cache, to consult its statistics, or null if caching is disabled
+	 */
+	public NodeCache getCache() {
+		return nodeCache;
+	}
 
 	public void markDirty(Node node) throws IOException {
-		loaded.get(node.getId()).dirty = true;
+		loaded.get().get(node.getId()).dirty = true;
 	}
 
 	public Node create(Tree tree, ByteArrayRegion key, VersionedValue vvalue, long left, long right) throws IOException {
 		byte[] raw = new byte[Node.estimateNewNodeSize(key, vvalue.value)];
 		long id = nextId();
 		CacheElement e = new CacheElement(null, true);
-		loaded.put(id, e); //create an entry for it, so markDirty() in constructor works 
+		loaded.get().put(id, e); //create an entry for it, so markDirty() in constructor works 
 		Node node = new Node(tree, tree.getACM(), id, new MemoryBuffer(raw), key, vvalue, left, right);
 		e.node =  node; //and update the cache element with the proper object
 		return node;
 	}
 	
 	public Node fetch(long lid, Tree tree, AuthenticatorCacheManager acm) throws IOException {
-		CacheElement e = loaded.get(lid);
+		TreeMap<Long, CacheElement> cache = loaded.get();
+		CacheElement e = cache.get(lid);
 		if( e == null ) {
-			e = new CacheElement(new Node(tree, acm, lid, new MemoryBuffer(obtain(lid))), false);
-			loaded.put(lid, e);
+			e = new CacheElement(new Node(tree, acm, lid, new MemoryBuffer(load(lid))), false);
+			cache.put(lid, e);
 		} else {
 			e.refCount += 1;
 		}
@@ -53,11 +82,78 @@ public abstract class NodeStorageManager implements Closeable {
 	}
 	
 	public void release(Node node) {
-		CacheElement e = loaded.get(node.getId());
+		TreeMap<Long, CacheElement> cache = loaded.get();
+		CacheElement e = cache.get(node.getId());
 		e.refCount -= 1;
 		if( e.refCount <= 0 )
-			if( ! e.dirty )
-				loaded.remove(node.getId());
+			if( ! e.dirty && ! retainClean.get() )
+				cache.remove(node.getId());
+	}
+
+	/**
+	 * @return a private copy of the stored image of the node, from the node cache if possible
+	 */
+	private byte[] load(long lid) throws IOException {
+		if( nodeCache == null )
+			return obtain(lid);
+		byte[] image = nodeCache.get(lid);
+		if( image != null )
+			return Arrays.copyOf(image, image.length);
+		long generation = nodeCache.getGeneration();
+		image = obtain(lid);
+		nodeCache.offer(lid, Arrays.copyOf(image, image.length), generation);
+		return image;
+	}
+
+	private void store(long id, CacheElement e) throws IOException {
+		update(id, e.node.backingBuffer, e.isNew);
+		if( nodeCache != null )
+			nodeCache.put(id, e.node.backingBuffer.toByteArray());
+	}
+
+	/**
+	 * Pins the top PINNED_LEVELS levels of a closed snapshot in the node cache, in place of those of older snapshots.
+	 * Called after the snapshot is closed, outside any unit of work
+	 */
+	public void pinTopLevels(Tree tree, long snapshotId, long root) throws IOException {
+		if( nodeCache == null )
+			return;
+		ArrayList<Long> level = new ArrayList<>();
+		ArrayList<Long> next = new ArrayList<>();
+		ArrayList<Long> ids = new ArrayList<>();
+		if( root != Tree.TERMINAL_NODE_ID )
+			level.add(root);
+		for( int depth = 0; depth < PINNED_LEVELS && ! level.isEmpty(); depth++ ) {
+			for( long id : level ) {
+				ids.add(id);
+				Node node = fetch(id, tree, tree.getACM());
+				long left = node.getLeft(snapshotId);
+				long right = node.getRight(snapshotId);
+				release(node);
+				if( left != Tree.TERMINAL_NODE_ID )
+					next.add(left);
+				if( right != Tree.TERMINAL_NODE_ID )
+					next.add(right);
+			}
+			ArrayList<Long> swap = level;
+			level = next;
+			next = swap;
+			next.clear();
+		}
+		long[] pinned = new long[ids.size()];
+		for( int i = 0; i < pinned.length; i++ )
+			pinned[i] = ids.get(i);
+		nodeCache.pin(pinned);
+	}
+
+	/**
+	 * Writes a node back immediately and drops it from the nodes of the current operation, instead of waiting for endWork().
+	 * Intended for nodes that are complete when created and will not be visited again in the current unit of work.
+	 */
+	public void flush(Node node) throws IOException {
+		CacheElement e = loaded.get().remove(node.getId());
+		if( e.dirty )
+			store(node.getId(), e);
 	}
 
 	protected abstract void update(long id, MemoryBuffer buffer, boolean isNew) throws IOException;
@@ -68,9 +164,36 @@ public abstract class NodeStorageManager implements Closeable {
 	 */
 	public abstract long getRoot();
 	public abstract long getRoot(long snapshotId);
+	/**
+	 * May be called from any thread. Snapshots below the returned id are closed and all of their nodes can be obtained
+	 */
 	public abstract long getCurrentSnapshotId();
 	public abstract long getTimestampOfSnapshot(long snapshotId);
+	/**
+	 * Records the root of the current snapshot and moves on to the next one.
+	 * Called once all nodes of the snapshot have been written; the new current snapshot id must become visible to other threads
+	 * only after the root is recorded
+	 */
 	public abstract byte[] closeSnapshot(long rootNode, byte[] rootAuthenticator) throws IOException;
+	
+	/**
+	 * Ends the unit of work of the snapshot, writing its nodes back, and closes the snapshot.
+	 * Stores that group their writes override it to write the nodes and the root of the snapshot as one group
+	 */
+	public byte[] endWorkAndCloseSnapshot(long rootNode, byte[] rootAuthenticator) throws IOException {
+		endWork();
+		return closeSnapshot(rootNode, rootAuthenticator);
+	}
+	
+	/**
+	 * Called before the first dirty node of a unit of work is written back, and endWriteBack() after the last,
+	 * so that the store can write them as one group
+	 */
+	protected void beginWriteBack() throws IOException {
+	}
+	
+	protected void endWriteBack() throws IOException {
+	}
 	public abstract long nextId();
 	public abstract void setRoot(long newRoot) throws IOException;
 	public abstract void close() throws IOException;
@@ -81,12 +204,43 @@ public abstract class NodeStorageManager implements Closeable {
 	public void beginWork() {
 	}
 	
+	/**
+	 * Begins a unit of work spanning many tree operations. All nodes loaded during the batch remain cached
+	 * until endWork(), where each dirty node is written back exactly once.
+	 * Memory use grows with the number of distinct nodes touched, so callers should bound their batches.
+	 */
+	public void beginBatch() {
+		retainClean.set(Boolean.TRUE);
+		beginWork();
+	}
+	
 	public void endWork() throws IOException {
-		for( long id : loaded.keySet() ) {
-			CacheElement e = loaded.get(id);
-			if( e.dirty )
-				update(id, e.node.backingBuffer, e.isNew);
+		retainClean.set(Boolean.FALSE);
+		TreeMap<Long, CacheElement> cache = loaded.get();
+		boolean writing = false;
+		try {
+			for( long id : cache.keySet() ) {
+				CacheElement e = cache.get(id);
+				if( e.dirty ) {
+					if( ! writing ) {
+						beginWriteBack();
+						writing = true;
+					}
+					store(id, e);
+				}
+			}
+		} finally {
+			if( writing )
+				endWriteBack();
 		}
-		loaded.clear();
+		cache.clear();
+	}
+	
+	/**
+	 * Ends a unit of work that failed, dropping the nodes it loaded, dirty or not, instead of writing them back
+	 */
+	public void abortWork() {
+		retainClean.set(Boolean.FALSE);
+		loaded.get().clear();
 	}
 }
@@ -5,6 +5,10 @@ import gr.uoa.di.dsg.util.MemoryBuffer;
 import java.io.IOException;
 import java.util.ArrayList;
 
+/*
+ * Readers of closed snapshots may run concurrently with the writer, so the lists are only accessed while holding the manager
+ * and readers get their own copy of a node, as the writer's copy of the same buffer is modified in place
+ */
 public class NodeStorageManagerMemory extends NodeStorageManager {
 	
 	ArrayList<byte[]> rawBuffers = new ArrayList<>();
@@ -14,6 +18,7 @@ public class NodeStorageManagerMemory extends NodeStorageManager {
 	private int idCounter = 0;
 	
 	private long currentRoot = Tree.TERMINAL_NODE_ID;
+	private volatile long currentSnapshotId = 1L;
 	
 	public NodeStorageManagerMemory() {
 	}
@@ -23,14 +28,14 @@ public class NodeStorageManagerMemory extends NodeStorageManager {
 	}
 
 	public long getCurrentSnapshotId() {
-		return snapshotRootNode.size() + 1;
+		return currentSnapshotId;
 	}
 	
-	public long getRoot(long snapshotId) {
+	public synchronized long getRoot(long snapshotId) {
 		return snapshotRootNode.get((int)snapshotId - 1);
 	}
 
-	public long getTimestampOfSnapshot(long snapshotId) {
+	public synchronized long getTimestampOfSnapshot(long snapshotId) {
 		return snpashotTimestamp.get((int)snapshotId - 1);
 	}
 
@@ -41,9 +46,10 @@ public class NodeStorageManagerMemory extends NodeStorageManager {
 		return currentRoot;
 	}
 
-	public byte[] closeSnapshot(long rootNode, byte[] rootAuthenticator) {
+	public synchronized byte[] closeSnapshot(long rootNode, byte[] rootAuthenticator) {
 		snapshotRootNode.add(rootNode);
 		snpashotTimestamp.add(System.currentTimeMillis());
+		currentSnapshotId = snapshotRootNode.size() + 1;
 		return null;
 	}
 
@@ -52,17 +58,15 @@ public class NodeStorageManagerMemory extends NodeStorageManager {
 		return idCounter++;
 	}
 
-	protected void update(long id, MemoryBuffer buffer, boolean isNew) {
+	protected synchronized void update(long id, MemoryBuffer buffer, boolean isNew) {
 		if( isNew )
 			while (rawBuffers.size() <= id)
 				rawBuffers.add(null);
-		byte[] raw = new byte[buffer.size()];
-		buffer.write(raw);
-		rawBuffers.set((int) id, raw);
+		rawBuffers.set((int) id, buffer.toByteArray());
 	}
 
-	protected byte[] obtain(long lid) {
-		return rawBuffers.get((int) lid);
+	protected synchronized byte[] obtain(long lid) {
+		return rawBuffers.get((int) lid).clone();
 	}
 
 	public void setRoot(long newRoot) {
@@ -5,16 +5,22 @@ import java.io.IOException;
 import edu.stanford.identiscape.mappedMemory.MappedMemory;
 import edu.stanford.identiscape.skiplists.disk.SkipList;
 import edu.stanford.identiscape.util.Bytes;
+import edu.stanford.identiscape.util.DigestProvider;
 import gr.uoa.di.dsg.util.MemoryBuffer;
 import gr.uoa.di.dsg.vsrm.RecordManager;
 
 /*
- * Stores the root record of the current snapshot as record 0
+ * Stores the root record of the current snapshot as record 0, along with the digest algorithm the store was built with
  * Stores nodes at records in the file
- * Stores root snapshots and timestamps as entries in an AASL
+ * Stores root snapshots and timestamps as entries in an AASL, which records the digest algorithm too
+ * Neither the record manager nor the skip list are thread safe, so accesses to each are serialized on it
  */
 public class NodeStorageManagerVSRM extends NodeStorageManager {
 	private static final long HEADER_RECORD_NUMBER = 0L;
+	/**
+	 * Default byte budget of the node cache
+	 */
+	public static final long DEFAULT_CACHE_SIZE = 32L * 1024 * 1024;
 
 	private class Header {
 		public static final int SIZE_OF_LONG = Long.SIZE / Byte.SIZE;
@@ -25,7 +31,9 @@ public class NodeStorageManagerVSRM extends NodeStorageManager {
 		public static final int CURRENT_ROOT_SIZE = SIZE_OF_NODE_ID;
 		public static final int CURRENT_SNAPSHOT_ID_START = CURRENT_ROOT_START + CURRENT_ROOT_SIZE;
 		public static final int CURRENT_SNAPSHOT_ID_SIZE = SIZE_OF_SNAPSHOT_ID;
-		public static final int RECORD_SIZE = CURRENT_SNAPSHOT_ID_START + CURRENT_SNAPSHOT_ID_SIZE;
+		public static final int DIGEST_START = CURRENT_SNAPSHOT_ID_START + CURRENT_SNAPSHOT_ID_SIZE;
+		public static final int DIGEST_SIZE = 1;
+		public static final int RECORD_SIZE = DIGEST_START + DIGEST_SIZE;
 		
 		byte[] raw;
 
@@ -37,6 +45,14 @@ public class NodeStorageManagerVSRM extends NodeStorageManager {
 			this.raw = new byte[RECORD_SIZE];
 			setCurrentRoot(Tree.TERMINAL_NODE_ID);
 			setCurrentSnapshotId(1L);
+			raw[DIGEST_START] = (byte) Node.DIGEST.getId();
+		}
+		
+		/**
+		 * @return the digest algorithm of the store; stores written before it was recorded are all SHA-1
+		 */
+		DigestProvider getDigest() {
+			return raw.length < RECORD_SIZE ? DigestProvider.SHA1 : DigestProvider.forId(raw[DIGEST_START]);
 		}
 		
 		long getCurrentSnapshotId() {
@@ -58,6 +74,8 @@ public class NodeStorageManagerVSRM extends NodeStorageManager {
 	}
 	
 	Header header;
+	//mirror of the header field, published to readers of closed snapshots only once the snapshot is complete
+	private volatile long currentSnapshotId;
 	private RecordManager rm;
 	private long lastRecord;
 	private SkipList skipList;
@@ -65,38 +83,61 @@ public class NodeStorageManagerVSRM extends NodeStorageManager {
 	private int insensitiveSize = Node.SIZE_OF_NODE_ID;
 	
 	public NodeStorageManagerVSRM(RecordManager rm, MappedMemory mm) throws IOException {
+		this(rm, mm, DEFAULT_CACHE_SIZE);
+	}
+	
+	/**
+	 * @param cacheSize byte budget of the node cache shared across operations, 0 to disable it
+	 */
+	public NodeStorageManagerVSRM(RecordManager rm, MappedMemory mm, long cacheSize) throws IOException {
 		super();
+		setCacheSize(cacheSize);
 		this.rm = rm;
 		lastRecord = rm.getLastRecNo();
 		header = new Header();
 		if( lastRecord != -1L ) {
 			header.readFrom( rm.get(HEADER_RECORD_NUMBER) );
-			this.skipList = new SkipList(header.getCurrentSnapshotId(), mm); 
+			checkDigest("Store", header.getDigest());
+			this.skipList = new SkipList(header.getCurrentSnapshotId(), mm);
+			checkDigest("Snapshot list", skipList.getDigest());
 		} else {
 			header.initialize();
 			rm.add(HEADER_RECORD_NUMBER, header.raw);
 			lastRecord = HEADER_RECORD_NUMBER;
 			this.skipList = new SkipList(SkipList.NILLABEL, sensitiveSize, insensitiveSize, mm); 
 		}
+		currentSnapshotId = header.getCurrentSnapshotId();
 	}
 	
+	private static void checkDigest(String what, DigestProvider digest) throws IOException {
+		if( digest != Node.DIGEST )
+			throw new IOException(String.format("%s was built with %s digests but %s is in use, set -D%s=%s to open it",
+					what, digest.getAlgorithm(), Node.DIGEST.getAlgorithm(), DigestProvider.PROPERTY, digest.getAlgorithm()));
+	}
+
 	private void writeHeader() throws IOException {
-		rm.update(HEADER_RECORD_NUMBER, header.raw);
+		synchronized( rm ) {
+			rm.update(HEADER_RECORD_NUMBER, header.raw);
+		}
 	}
 
 	public long getCurrentSnapshotId() {
-		return header.getCurrentSnapshotId();
+		return currentSnapshotId;
 	}
 	
 	public long getRoot(long snapshotId) {
 		byte[] insensitive = new byte[insensitiveSize];
-		skipList.insensitive(snapshotId, insensitive, 0);
+		synchronized( skipList ) {
+			skipList.insensitive(snapshotId, insensitive, 0);
+		}
 		return Bytes.toLong(insensitive, 0);
 	}
 
 	public long getTimestampOfSnapshot(long snapshotId) {
 		byte[] sensitive = new byte[sensitiveSize];
-		skipList.sensitive(snapshotId, sensitive, 0);
+		synchronized( skipList ) {
+			skipList.sensitive(snapshotId, sensitive, 0);
+		}
 		return Bytes.toLong(sensitive, 0);
 	}
 
@@ -114,17 +155,73 @@ public class NodeStorageManagerVSRM extends NodeStorageManager {
 	}
 	
 	public byte[] closeSnapshot(long rootNode, byte[] rootAuthenticator) throws IOException {
+		byte[] stateAuth = recordSnapshot(rootNode, rootAuthenticator);
+		publishSnapshot();
+		return stateAuth;
+	}
+	
+	/**
+	 * Writes the nodes of the snapshot back and its root, in one batch of the record manager
+	 */
+	@Override
+	public byte[] endWorkAndCloseSnapshot(long rootNode, byte[] rootAuthenticator) throws IOException {
+		byte[] stateAuth;
+		beginWriteBack();
+		try {
+			endWork();
+			stateAuth = recordSnapshot(rootNode, rootAuthenticator);
+		} finally {
+			endWriteBack();
+		}
+		publishSnapshot();
+		return stateAuth;
+	}
+	
+	/**
+	 * Appends the root to the skip list and moves the header to the next snapshot
+	 */
+	private byte[] recordSnapshot(long rootNode, byte[] rootAuthenticator) throws IOException {
 		byte[] sensitive = new byte[sensitiveSize];
 		byte[] insensitive = new byte[insensitiveSize];
 		Bytes.longToBytes(System.currentTimeMillis(), sensitive, 0);
 		System.arraycopy(rootAuthenticator, 0, sensitive, Node.SIZE_OF_LONG, rootAuthenticator.length);
 		Bytes.longToBytes(rootNode, insensitive, 0);
-		byte[] stateAuth = skipList.append(sensitive, 0, insensitive, 0);
-		skipList.commit();
+		byte[] stateAuth;
+		synchronized( skipList ) {
+			stateAuth = skipList.append(sensitive, 0, insensitive, 0);
+			skipList.commit();
+		}
 		header.setCurrentSnapshotId(header.getCurrentSnapshotId() + 1L);
 		writeHeader();
 		return stateAuth;
 	}
+	
+	/**
+	 * Syncs the record manager, outside any batch, and only then makes the snapshot visible to readers
+	 */
+	private void publishSnapshot() throws IOException {
+		synchronized( rm ) {
+			rm.sync();
+		}
+		currentSnapshotId = header.getCurrentSnapshotId();
+	}
+	
+	/**
+	 * Only the writer opens batches that span calls to the record manager; each call of a reader is a batch of its own
+	 */
+	@Override
+	protected void beginWriteBack() {
+		synchronized( rm ) {
+			rm.beginBatch("writeBack");
+		}
+	}
+	
+	@Override
+	protected void endWriteBack() throws IOException {
+		synchronized( rm ) {
+			rm.endBatch();
+		}
+	}
 
 	public long nextId() {
 		lastRecord++;
@@ -133,15 +230,19 @@ public class NodeStorageManagerVSRM extends NodeStorageManager {
 
 	@Override
 	protected void update(long id, MemoryBuffer buffer, boolean isNew) throws IOException {
-		if( isNew )
-			rm.add(id, buffer);
-		else
-			rm.update(id, buffer);
+		synchronized( rm ) {
+			if( isNew )
+				rm.add(id, buffer);
+			else
+				rm.update(id, buffer);
+		}
 	}
 
 	@Override
 	protected byte[] obtain(long lid) throws IOException {
-		return rm.get(lid);
+		synchronized( rm ) {
+			return rm.get(lid);
+		}
 	}
 	
 	@Override
@@ -0,0 +1,149 @@
+package gr.uoa.di.dsg.treap;
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+
+import edu.stanford.identiscape.util.ByteArrayRegion;
+import edu.stanford.identiscape.util.Bytes;
+import gr.uoa.di.dsg.util.MemoryBuffer;
+
+/**
+ * Common part of the proofs that carry a connected part of a snapshot's tree, starting from its root.
+ *
+ * The part is stored in pre-order. Each element is either a node (its key and payload, followed by its left and right subtrees)
+ * or the authenticator of a pruned subtree. Every node is stored once, no matter how many of the searches that produced the
+ * proof went through it, and validation calculates each node authenticator exactly once.
+ * Descendants decide which non-empty subtrees may be pruned, and collect the nodes they are interested in.
+ */
+public abstract class PartialTreeProof {
+	protected static final Comparator<byte[]> KEY_ORDER = (byte[] first, byte[] second) -> compare(first, second);
+
+	private BitSet shape = new BitSet(); // in pre-order, set for a node, clear for a pruned subtree
+	private int shapeSize = 0;
+	private ArrayList<byte[]> keys = new ArrayList<>();
+	private ArrayList<byte[]> payloads = new ArrayList<>();
+	private ArrayList<byte[]> authenticators = new ArrayList<>();
+
+	protected void feed(Node node, long snapshotId) {
+		shape.set(shapeSize++);
+		keys.add(node.getKey());
+		payloads.add(node.getPayload(snapshotId));
+	}
+
+	protected void feed(byte[] authenticator) {
+		shape.clear(shapeSize++);
+		authenticators.add(authenticator);
+	}
+
+	/**
+	 * @return true if a pruned, non-empty subtree whose keys all fall strictly between lower and upper (null meaning unbounded)
+	 * cannot hide anything this proof is supposed to cover
+	 */
+	protected abstract boolean canPrune(byte[] lower, byte[] upper);
+
+	/**
+	 * Called for every node of the proof, in ascending key order, while validating
+	 */
+	protected abstract void visit(byte[] key, byte[] payload);
+
+	private class Cursor {
+		int element = 0;
+		int node = 0;
+		int authenticator = 0;
+	}
+
+	/**
+	 * Recomputes the root authenticator from the proof, checking the order of the keys and that every pruned subtree was allowed to be
+	 * @return true if the proof is well formed and leads to targetAuthenticator
+	 */
+	protected boolean validateTree(byte[] targetAuthenticator) {
+		Cursor cursor = new Cursor();
+		byte[] root = rebuild(cursor, null, null);
+		if( root == null )
+			return false;
+		//everything should have been consumed
+		if( cursor.element != shapeSize || cursor.node != keys.size() || cursor.authenticator != authenticators.size() )
+			return false;
+		return Bytes.compare(root, 0, targetAuthenticator, 0, root.length) == 0;
+	}
+
+	/**
+	 * Rebuilds the authenticator of the subtree at the cursor, whose keys must all fall strictly between lower and upper
+	 * @return the authenticator, or null if the proof is malformed or incomplete
+	 */
+	private byte[] rebuild(Cursor cursor, byte[] lower, byte[] upper) {
+		if( cursor.element >= shapeSize )
+			return null;
+		if( ! shape.get(cursor.element++) ) {
+			if( cursor.authenticator >= authenticators.size() )
+				return null;
+			byte[] auth = authenticators.get(cursor.authenticator++);
+			//an empty subtree is always acceptable
+			if( Bytes.areEqual(auth, Node.AUTHENTICATOR_OF_TERMINAL_NODE) || canPrune(lower, upper) )
+				return auth;
+			return null;
+		}
+		if( cursor.node >= keys.size() )
+			return null;
+		byte[] key = keys.get(cursor.node);
+		byte[] payload = payloads.get(cursor.node);
+		cursor.node++;
+		if( (lower != null && compare(key, lower) <= 0) || (upper != null && compare(key, upper) >= 0) )
+			return null; //out of order
+
+		byte[] left = rebuild(cursor, lower, key);
+		if( left == null )
+			return null;
+		visit(key, payload);
+		byte[] right = rebuild(cursor, key, upper);
+		if( right == null )
+			return null;
+		return Node.calculateAuthenticator(new ByteArrayRegion(key), new ByteArrayRegion(payload), left, right);
+	}
+
+	protected static int compare(byte[] first, byte[] second) {
+		return MemoryBuffer.compare(first, 0, first.length, second, 0, second.length);
+	}
+
+	public int getNodeCount() {
+		return keys.size();
+	}
+
+	public int getAuthenticatorCount() {
+		return authenticators.size();
+	}
+
+	/**
+	 * @return the number of bytes needed to transfer this proof: keys, payloads, authenticators and one bit per element for its shape
+	 */
+	public int getSize() {
+		int ret = (shapeSize + 7) / 8;
+		for( byte[] key : keys )
+			ret += key.length;
+		for( byte[] payload : payloads )
+			ret += payload.length;
+		return ret + authenticators.size() * Node.SIZE_OF_AUTHENTICATOR_DIGEST;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("nodes=%d auths=%d%n", keys.size(), authenticators.size()));
+		int k = 0, a = 0;
+		for( int i = 0; i < shapeSize; i++ ) {
+			if( shape.get(i) ) {
+				String sKey;
+				try {sKey = new String(keys.get(k), "UTF-8"); }
+				catch (UnsupportedEncodingException ex) {sKey = "ERROR";}
+				sb.append(String.format("[%d] key=%s value=%s%n", i, sKey, Node.payloadToString(payloads.get(k))));
+				k++;
+			} else {
+				sb.append(String.format("[%d] auth=%s%n", i, Bytes.toString(authenticators.get(a))));
+				a++;
+			}
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,65 @@
+package gr.uoa.di.dsg.treap;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Proof that a set of entries is the complete contents of a key range [fromKey, toKey) in a snapshot.
+ *
+ * The proof is the part of the snapshot's tree that a range search touches: the two boundary paths and everything between them.
+ * A pruned subtree is either empty or lies entirely outside the range, which the validator checks from the keys of its ancestors.
+ * Both the proof size and the validation cost grow with the size of the result plus the tree depth.
+ */
+public class RangeProof extends PartialTreeProof {
+	private byte[] fromKey;
+	private byte[] toKey;
+	private ArrayList<Map.Entry<byte[], NodePayload>> found;
+	private ArrayList<Map.Entry<byte[], NodePayload>> entries;
+
+	protected RangeProof() {
+	}
+
+	/**
+	 * Recomputes the root authenticator from the proof and checks that no in-range key could have been left out.
+	 * On success, the entries of the range become available through getEntries()
+	 * @param targetAuthenticator the root authenticator of the snapshot, as obtained from a trusted source
+	 * @param fromKey inclusive lower bound, or null if unbounded
+	 * @param toKey exclusive upper bound, or null if unbounded
+	 */
+	public boolean validate(byte[] targetAuthenticator, byte[] fromKey, byte[] toKey) {
+		this.fromKey = fromKey;
+		this.toKey = toKey;
+		this.found = new ArrayList<>();
+		entries = null;
+		if( ! validateTree(targetAuthenticator) )
+			return false;
+		entries = found;
+		return true;
+	}
+
+	@Override
+	protected boolean canPrune(byte[] lower, byte[] upper) {
+		return (upper != null && fromKey != null && compare(upper, fromKey) <= 0) ||
+				(lower != null && toKey != null && compare(lower, toKey) >= 0);
+	}
+
+	@Override
+	protected void visit(byte[] key, byte[] payload) {
+		if( (fromKey == null || compare(key, fromKey) >= 0) && (toKey == null || compare(key, toKey) < 0) )
+			found.add(new AbstractMap.SimpleImmutableEntry<>(key, Node.decodePayload(payload)));
+	}
+
+	/**
+	 * @return the entries of the range in ascending key order, or null if the proof has not been (successfully) validated
+	 */
+	public List<Map.Entry<byte[], NodePayload>> getEntries() {
+		return entries;
+	}
+
+	@Override
+	public String toString() {
+		return "Range proof: " + super.toString();
+	}
+}
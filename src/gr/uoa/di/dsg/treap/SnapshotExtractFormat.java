@@ -0,0 +1,395 @@
+package gr.uoa.di.dsg.treap;
+
+import gr.uoa.di.dsg.util.Crc32c;
+import gr.uoa.di.dsg.util.LzBlockCodec;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Layout of snapshot extracts, the files that carry the changes of a snapshot to the other replicas.
+ *
+ * An extract starts with MAGIC and its version, followed by blocks and by an empty block that marks its end, so that
+ * a truncated file is detected. Each block is framed as [method 1][raw length 4][stored length 4][CRC32C of the raw bytes 4]
+ * [stored bytes], the stored bytes being either LZ compressed or, when that would not save space, the raw bytes themselves.
+ * The raw bytes are records of [shared key prefix &lt;&lt; 1 | append][key suffix length][key suffix][value length][value],
+ * lengths being unsigned varints; keys are front coded against the previous record of the same block only,
+ * so that every block decodes on its own.
+ *
+ * Extracts of version 0 are the bare [action 1][key length 4][key][value length 4][value] records, without a header;
+ * they are still read.
+ */
+public class SnapshotExtractFormat {
+	public static final byte[] MAGIC = { 'S', 'D', 'X' };
+	public static final int VERSION = 1;
+	/**
+	 * Raw bytes after which a block is closed; a single record may take it past this size
+	 */
+	public static final int BLOCK_SIZE = 64 * 1024;
+	/**
+	 * Largest raw block a reader accepts, as a bound on what a corrupt length may make it allocate
+	 */
+	public static final int MAX_BLOCK_SIZE = 16 * 1024 * 1024;
+	private static final int FRAME_HEADER_SIZE = 1 + 4 + 4 + 4;
+	private static final int METHOD_STORED = 0;
+	private static final int METHOD_LZ = 1;
+	private static final int MAX_VARINT_SIZE = 5;
+
+	private SnapshotExtractFormat() {
+	}
+
+	/**
+	 * The bytes every extract of the current version starts with
+	 */
+	public static ByteBuffer header() {
+		byte[] header = Arrays.copyOf(MAGIC, MAGIC.length + 1);
+		header[MAGIC.length] = (byte) VERSION;
+		return ByteBuffer.wrap(header);
+	}
+
+	private static int putVarint(byte[] data, int pos, int value) {
+		while( (value & ~0x7F) != 0 ) {
+			data[pos++] = (byte) (value & 0x7F | 0x80);
+			value >>>= 7;
+		}
+		data[pos++] = (byte) value;
+		return pos;
+	}
+
+	/**
+	 * The raw records of a block under construction. Blocks are reused through clear()
+	 */
+	public static class Block {
+		private byte[] data = new byte[BLOCK_SIZE + BLOCK_SIZE / 16];
+		private int size = 0;
+		private byte[] lastKey = new byte[64];
+		private int lastKeyLength = 0;
+
+		public void add(NodeChanges nc) {
+			add(nc.isAppend, nc.key, nc.value);
+		}
+
+		public void add(boolean isAppend, byte[] key, byte[] value) {
+			int shared = 0;
+			int maxShared = Math.min(lastKeyLength, key.length);
+			while( shared < maxShared && lastKey[shared] == key[shared] )
+				shared++;
+			int suffix = key.length - shared;
+			int needed = size + 3 * MAX_VARINT_SIZE + suffix + value.length;
+			if( needed > data.length )
+				data = Arrays.copyOf(data, Math.max(needed, data.length * 2));
+			size = putVarint(data, size, shared << 1 | (isAppend ? 1 : 0));
+			size = putVarint(data, size, suffix);
+			System.arraycopy(key, shared, data, size, suffix);
+			size += suffix;
+			size = putVarint(data, size, value.length);
+			System.arraycopy(value, 0, data, size, value.length);
+			size += value.length;
+			if( key.length > lastKey.length )
+				lastKey = Arrays.copyOf(lastKey, Math.max(key.length, lastKey.length * 2));
+			System.arraycopy(key, shared, lastKey, shared, suffix);
+			lastKeyLength = key.length;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public boolean isEmpty() {
+			return size == 0;
+		}
+
+		public boolean isFull() {
+			return size >= BLOCK_SIZE;
+		}
+
+		/**
+		 * @return whether the block kept its initial capacity and is worth keeping for reuse
+		 */
+		public boolean isReusable() {
+			return data.length <= BLOCK_SIZE + BLOCK_SIZE / 16;
+		}
+
+		public void clear() {
+			size = 0;
+			lastKeyLength = 0;
+		}
+	}
+
+	/**
+	 * Compresses and frames blocks. Holds the compressor state, so instances must not be shared between threads
+	 */
+	public static class BlockFramer {
+		private final LzBlockCodec codec = new LzBlockCodec();
+		private final Crc32c crc = new Crc32c();
+		private byte[] frame = new byte[FRAME_HEADER_SIZE + LzBlockCodec.maxCompressedLength(BLOCK_SIZE + BLOCK_SIZE / 16)];
+		private long rawBytes = 0;
+		private long storedBytes = 0;
+
+		/**
+		 * @return the framed block, valid until the next call
+		 */
+		public ByteBuffer frame(Block block) {
+			return frame(block.data, block.size);
+		}
+
+		/**
+		 * @return the block that marks the end of an extract, valid until the next call
+		 */
+		public ByteBuffer end() {
+			return frame(frame, 0);
+		}
+
+		private ByteBuffer frame(byte[] data, int size) {
+			int needed = FRAME_HEADER_SIZE + LzBlockCodec.maxCompressedLength(size);
+			if( needed > frame.length )
+				frame = new byte[needed];
+			int stored = size == 0 ? 0 : codec.compress(data, 0, size, frame, FRAME_HEADER_SIZE);
+			int method = METHOD_LZ;
+			if( stored >= size ) {
+				method = METHOD_STORED;
+				stored = size;
+				System.arraycopy(data, 0, frame, FRAME_HEADER_SIZE, stored);
+			}
+			crc.reset();
+			crc.update(data, 0, size);
+			ByteBuffer framed = ByteBuffer.wrap(frame, 0, FRAME_HEADER_SIZE + stored);
+			framed.put((byte) method);
+			framed.putInt(size);
+			framed.putInt(stored);
+			framed.putInt((int) crc.getValue());
+			framed.position(0);
+			rawBytes += size;
+			storedBytes += stored;
+			return framed;
+		}
+
+		public long getRawBytes() {
+			return rawBytes;
+		}
+
+		public long getStoredBytes() {
+			return storedBytes;
+		}
+	}
+
+	/**
+	 * Reads the records of an extract of either version one at a time, block by block.
+	 * The key and value of the current record are valid until the next call to next()
+	 */
+	public static class Reader implements Closeable {
+		private final DataInputStream in;
+		private final String name;
+		private final int version;
+		private long blocksRead = 0;
+		private long currentBlock = 0;
+		private byte[] raw = new byte[BLOCK_SIZE + BLOCK_SIZE / 16];
+		private byte[] stored = new byte[LzBlockCodec.maxCompressedLength(raw.length)];
+		private int rawSize = 0;
+		private int pos = 0;
+		private boolean ended = false;
+		private final Crc32c crc = new Crc32c();
+
+		private boolean isAppend;
+		private byte[] key = new byte[64];
+		private int keyLength = 0;
+		private byte[] value = raw;
+		private int valueOffset = 0;
+		private int valueLength = 0;
+
+		/**
+		 * @param name the name of the extract, for error messages
+		 */
+		public Reader(InputStream in, String name) throws IOException {
+			this.in = new DataInputStream(in);
+			this.name = name;
+			this.in.mark(MAGIC.length + 1);
+			byte[] header = new byte[MAGIC.length + 1];
+			int read = 0;
+			for( int n; read < header.length && (n = this.in.read(header, read, header.length - read)) > 0; )
+				read += n;
+			if( read == header.length && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC) ) {
+				version = header[MAGIC.length] & 0xFF;
+				if( version != VERSION )
+					throw new IOException(String.format("Extract %s has version %d, this reader supports up to %d", name, version, VERSION));
+			} else if( read == 0 || header[0] == 0 || header[0] == 1 ) {
+				version = 0;
+				if( ! this.in.markSupported() )
+					throw new IOException(String.format("Extract %s has no header and its stream cannot be rewound to read it as version 0", name));
+				this.in.reset();
+			} else {
+				throw new IOException(String.format("%s is not a snapshot extract", name));
+			}
+		}
+
+		public int getVersion() {
+			return version;
+		}
+
+		/**
+		 * Moves to the next record
+		 * @return false at the end of the extract
+		 */
+		public boolean next() throws IOException {
+			try {
+				return version == 0 ? nextUnframed() : nextFramed();
+			} catch (EOFException ex) {
+				throw new IOException(version == 0 ? String.format("Extract %s ends in the middle of a record", name)
+						: String.format("Extract %s ends in the middle of block %d", name, currentBlock), ex);
+			}
+		}
+
+		private boolean nextUnframed() throws IOException {
+			int action = in.read();
+			if( action < 0 )
+				return false;
+			isAppend = action == 1;
+			keyLength = readLength();
+			if( keyLength > key.length )
+				key = new byte[keyLength];
+			in.readFully(key, 0, keyLength);
+			valueLength = readLength();
+			if( valueLength > raw.length )
+				raw = new byte[valueLength];
+			value = raw;
+			valueOffset = 0;
+			in.readFully(raw, 0, valueLength);
+			return true;
+		}
+
+		private int readLength() throws IOException {
+			int length = in.readInt();
+			if( length < 0 || length > MAX_BLOCK_SIZE )
+				throw new IOException(String.format("Extract %s holds a record of %d bytes", name, length));
+			return length;
+		}
+
+		private boolean nextFramed() throws IOException {
+			while( pos == rawSize ) {
+				if( ended || ! readBlock() )
+					return false;
+			}
+			int head = getVarint();
+			int shared = head >>> 1;
+			isAppend = (head & 1) != 0;
+			int suffix = getVarint();
+			if( shared > keyLength || suffix > rawSize - pos )
+				throw corrupt("a key that does not fit");
+			if( shared + suffix > key.length )
+				key = Arrays.copyOf(key, Math.max(shared + suffix, key.length * 2));
+			System.arraycopy(raw, pos, key, shared, suffix);
+			pos += suffix;
+			keyLength = shared + suffix;
+			valueLength = getVarint();
+			if( valueLength > rawSize - pos )
+				throw corrupt("a value that does not fit");
+			value = raw;
+			valueOffset = pos;
+			pos += valueLength;
+			return true;
+		}
+
+		/**
+		 * @return false if the block read is the end marker
+		 */
+		private boolean readBlock() throws IOException {
+			currentBlock = blocksRead;
+			int method = in.read();
+			if( method < 0 )
+				throw new IOException(String.format("Extract %s is truncated, it ends without its end marker after %d blocks", name, blocksRead));
+			int rawLength = in.readInt();
+			int storedLength = in.readInt();
+			int checksum = in.readInt();
+			if( rawLength < 0 || rawLength > MAX_BLOCK_SIZE )
+				throw corrupt(String.format("a length of %d", rawLength));
+			if( method == METHOD_STORED ? storedLength != rawLength : method != METHOD_LZ || storedLength < 0 || storedLength > LzBlockCodec.maxCompressedLength(rawLength) )
+				throw corrupt(String.format("method %d storing %d bytes in %d", method, rawLength, storedLength));
+			if( rawLength > raw.length ) {
+				raw = new byte[rawLength];
+				stored = new byte[LzBlockCodec.maxCompressedLength(rawLength)];
+			}
+			if( method == METHOD_STORED ) {
+				in.readFully(raw, 0, rawLength);
+			} else {
+				in.readFully(stored, 0, storedLength);
+				try {
+					LzBlockCodec.decompress(stored, 0, storedLength, raw, 0, rawLength);
+				} catch (DataFormatException ex) {
+					throw new IOException(String.format("Extract %s has a corrupt block %d", name, currentBlock), ex);
+				}
+			}
+			crc.reset();
+			crc.update(raw, 0, rawLength);
+			if( (int) crc.getValue() != checksum )
+				throw new IOException(String.format("Extract %s fails the checksum of block %d", name, currentBlock));
+			rawSize = rawLength;
+			pos = 0;
+			keyLength = 0;
+			blocksRead += 1;
+			if( rawLength == 0 )
+				ended = true;
+			return ! ended;
+		}
+
+		private int getVarint() throws IOException {
+			int value = 0;
+			for( int shift = 0; shift < 7 * MAX_VARINT_SIZE; shift += 7 ) {
+				if( pos == rawSize )
+					throw corrupt("a record cut short");
+				byte b = raw[pos++];
+				value |= (b & 0x7F) << shift;
+				if( b >= 0 ) {
+					if( value < 0 )
+						break;
+					return value;
+				}
+			}
+			throw corrupt("an invalid length");
+		}
+
+		private IOException corrupt(String what) {
+			return new IOException(String.format("Extract %s has %s in block %d", name, what, currentBlock));
+		}
+
+		public boolean isAppend() {
+			return isAppend;
+		}
+
+		/**
+		 * The key of the current record is key()[0, keyLength())
+		 */
+		public byte[] key() {
+			return key;
+		}
+
+		public int keyLength() {
+			return keyLength;
+		}
+
+		/**
+		 * The value of the current record is value()[valueOffset(), valueOffset() + valueLength())
+		 */
+		public byte[] value() {
+			return value;
+		}
+
+		public int valueOffset() {
+			return valueOffset;
+		}
+
+		public int valueLength() {
+			return valueLength;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
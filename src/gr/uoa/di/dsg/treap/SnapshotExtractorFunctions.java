@@ -1,74 +1,181 @@
 package gr.uoa.di.dsg.treap;
 
+import edu.stanford.identiscape.util.ByteArrayRegion;
+import edu.stanford.identiscape.util.Bytes;
 import gr.uoa.di.dsg.util.MemoryBuffer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 public class SnapshotExtractorFunctions {
 
-	public static void apply(Tree tree, String filename) throws Exception {
-		try (FileInputStream fis = new FileInputStream(filename)) {
-			byte[] actionArray = new byte[1];
-			byte[] lenArray = new byte[4];
-			MemoryBuffer mbLen = new MemoryBuffer(lenArray);
+	/**
+	 * Records buffered by apply() before they are fed to the tree; a batch also ends at APPLY_BATCH_BYTES of keys and values
+	 */
+	public static final int APPLY_BATCH_RECORDS = 64 * 1024;
+	public static final int APPLY_BATCH_BYTES = 16 * 1024 * 1024;
+	private static final int APPLY_READ_BUFFER = 1024 * 1024;
 
-			while (fis.available() > 0) {
-				fis.read(actionArray);
-				fis.read(lenArray);
-				byte[] key = new byte[mbLen.getInt(0)];
-				fis.read(key);
-				fis.read(lenArray);
-				byte[] value = new byte[mbLen.getInt(0)];
-				fis.read(value);
-				
-				switch (actionArray[0]) {
-				case 1: //append
-					tree.insert(key, value);
-					break;
-				default:
-					tree.update(key, value);
-				}
+	/**
+	 * Replays an extract, of any version of SnapshotExtractFormat, on the tree. The file is read block by block
+	 * through a large buffer, records are decoded into a single growing array per batch, and each batch is sorted by key and applied, appends and
+	 * updates alike, in one unit of work with one descent per record, so that every node touched is written once per batch.
+	 * Appends of keys the tree already holds (e.g. nodes copied in the extracted snapshot) update them instead, while an
+	 * update of a key the tree lacks means it has diverged from the extracted one and fails its batch with an IllegalArgumentException
+	 */
+	public static void apply(Tree tree, String filename) throws Exception {
+		try (SnapshotExtractFormat.Reader in = new SnapshotExtractFormat.Reader(new BufferedInputStream(new FileInputStream(filename), APPLY_READ_BUFFER), filename)) {
+			ApplyBatch batch = new ApplyBatch();
+			while( in.next() ) {
+				batch.add(in);
+				if( batch.count == APPLY_BATCH_RECORDS || batch.size >= APPLY_BATCH_BYTES )
+					batch.applyTo(tree);
 			}
-		} catch (Exception e) {
-			throw e;
+			batch.applyTo(tree);
 		}
 	}
 	
+	/**
+	 * Records of an extract laid out back to back as [action, key length, value length, key, value] in one array
+	 */
+	private static class ApplyBatch implements Tree.BatchRecords {
+		private static final int HEADER = 1 + 4 + 4;
+		byte[] data = new byte[64 * 1024];
+		int size = 0;
+		int[] offsets = new int[1024];
+		int count = 0;
+		
+		void add(SnapshotExtractFormat.Reader in) {
+			int keyLength = in.keyLength();
+			int valueLength = in.valueLength();
+			ensureCapacity(HEADER + keyLength + valueLength);
+			System.arraycopy(in.key(), 0, data, size + HEADER, keyLength);
+			System.arraycopy(in.value(), in.valueOffset(), data, size + HEADER + keyLength, valueLength);
+			data[size] = in.isAppend() ? (byte) 1 : (byte) 0;
+			Bytes.intToBytes(keyLength, data, size + 1);
+			Bytes.intToBytes(valueLength, data, size + 5);
+			if( count == offsets.length )
+				offsets = Arrays.copyOf(offsets, count * 2);
+			offsets[count++] = size;
+			size += HEADER + keyLength + valueLength;
+		}
+		
+		private void ensureCapacity(int recordSize) {
+			if( size + recordSize > data.length )
+				data = Arrays.copyOf(data, Math.max(size + recordSize, data.length * 2));
+		}
+		
+		private int keyLength(int offset) {
+			return Bytes.toInt(data, offset + 1);
+		}
+		
+		private int compareKeys(int a, int b) {
+			return MemoryBuffer.compare(data, a + HEADER, keyLength(a), data, b + HEADER, keyLength(b));
+		}
+		
+		void applyTo(Tree tree) throws IOException {
+			if( count == 0 )
+				return;
+			//the sort is stable, so when a key repeats its last record is the one kept
+			sort(offsets, new int[count], 0, count);
+			int kept = 0;
+			for( int i = 0; i < count; i++ )
+				if( i + 1 == count || compareKeys(offsets[i], offsets[i + 1]) != 0 )
+					offsets[kept++] = offsets[i];
+			count = kept;
+			tree.applyAll(this);
+			size = 0;
+			count = 0;
+		}
+		
+		/**
+		 * Merge sort of the record offsets in [from, to) by key, on the primitives
+		 */
+		private void sort(int[] a, int[] work, int from, int to) {
+			if( to - from < 2 )
+				return;
+			int mid = (from + to) >>> 1;
+			sort(a, work, from, mid);
+			sort(a, work, mid, to);
+			if( compareKeys(a[mid - 1], a[mid]) <= 0 )
+				return;
+			System.arraycopy(a, from, work, from, to - from);
+			int l = from, r = mid;
+			for( int i = from; i < to; i++ )
+				a[i] = r == to || (l < mid && compareKeys(work[l], work[r]) <= 0) ? work[l++] : work[r++];
+		}
+		
+		@Override
+		public int count() {
+			return count;
+		}
+		
+		@Override
+		public boolean get(int i, ByteArrayRegion key, ByteArrayRegion value) {
+			int offset = offsets[i];
+			int keyLength = keyLength(offset);
+			key.set(data, offset + HEADER, keyLength);
+			value.set(data, offset + HEADER + keyLength, Bytes.toInt(data, offset + 5));
+			return data[offset] == 1;
+		}
+	}
+	
+	/**
+	 * Output of an extract written on the calling thread, in the current version of SnapshotExtractFormat
+	 */
 	public static class SnapshotExtractorState {
-		byte[] actionArray = new byte[1];
-		MemoryBuffer mbAction = new MemoryBuffer(actionArray);
-		byte[] lenArray = new byte[4];
-		MemoryBuffer mbLen = new MemoryBuffer(lenArray);
+		private final OutputStream fos;
+		private final SnapshotExtractFormat.Block block = new SnapshotExtractFormat.Block();
+		private final SnapshotExtractFormat.BlockFramer framer = new SnapshotExtractFormat.BlockFramer();
 		
-		FileOutputStream fos;
 		public SnapshotExtractorState(String filename) throws IOException {
 			File f = new File(filename);
 			if (f.exists() )
 				f.delete();
 			f.createNewFile();
-			fos = new FileOutputStream(f);						
+			fos = new BufferedOutputStream(new FileOutputStream(f), 64 * 1024);
+			write(SnapshotExtractFormat.header());
 		}
 		
+		private void write(ByteBuffer bytes) throws IOException {
+			fos.write(bytes.array(), bytes.position(), bytes.remaining());
+		}
+		
+		/**
+		 * Writes the last block and the end marker, then closes the file
+		 */
+		public void finish() throws IOException {
+			try {
+				if( ! block.isEmpty() )
+					write(framer.frame(block));
+				write(framer.end());
+			} finally {
+				fos.close();
+			}
+		}
+		
+		/**
+		 * Closes the file as it is, without an end marker, so that it is never applied
+		 */
 		public void discard() throws IOException {
 			fos.close();
 		}
 	}
 	
 	public static void writeNodeChangesToFile(NodeChanges nc, SnapshotExtractorState state) throws IOException {
-		//append it to file
-		state.mbAction.putByte(0, nc.isAppend ? (byte) 1 : (byte) 0);
-		state.fos.write(state.actionArray);
-		state.mbLen.putInt(0, nc.key.length);
-		state.fos.write(state.lenArray);
-		state.fos.write(nc.key);
-		state.mbLen.putInt(0, nc.value.length);
-		state.fos.write(state.lenArray);
-		state.fos.write(nc.value);
-		
+		state.block.add(nc);
+		if( state.block.isFull() ) {
+			state.write(state.framer.frame(state.block));
+			state.block.clear();
+		}
 	}
 	
 	public static String fileNameOfExtract(String treeFileName, long snapshotId) {
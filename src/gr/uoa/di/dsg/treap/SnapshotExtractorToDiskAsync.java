@@ -1,87 +1,278 @@
 package gr.uoa.di.dsg.treap;
 
-import gr.uoa.di.dsg.treap.SnapshotExtractorFunctions.SnapshotExtractorState;
-
-import java.util.concurrent.ArrayBlockingQueue;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Writes the changes of each snapshot to its extract file in the background, in the current version of SnapshotExtractFormat.
+ *
+ * Changes are encoded, on the sealing thread, straight into the raw blocks of the extract; full blocks are compressed and
+ * written through a FileChannel by a task of a bounded executor shared by all extractors, one task per snapshot at a time
+ * so that the file stays in order.
+ * process() never blocks, as it runs deep in the recursion of the seal: the bytes not yet written are bounded instead
+ * when the next snapshot begins, which waits until the backlog of the extractor drops below MAX_PENDING_BYTES.
+ * An error, of I/O or any other, stops the output of its snapshot and is reported by getError() and finishOutput(); so is
+ * a write the executor rejects.
+ */
 public class SnapshotExtractorToDiskAsync implements ISnapshotExtractor {
+	/**
+	 * Bytes encoded but not yet written, across all snapshots of an extractor, above which begin() waits
+	 */
+	public static final long MAX_PENDING_BYTES = 64L * 1024 * 1024;
+	private static final int WRITER_THREADS = 2;
+	private static final int MAX_POOLED_BLOCKS = 64;
+
+	private static final ExecutorService sharedWriters;
+	static {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(WRITER_THREADS, WRITER_THREADS, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			Thread t = new Thread(r, "snapshot-extractor");
+			t.setDaemon(true);
+			return t;
+		});
+		pool.allowCoreThreadTimeOut(true);
+		sharedWriters = pool;
+	}
+	//written blocks are kept for later snapshots, instead of allocating a large array per block
+	private static final ConcurrentLinkedQueue<SnapshotExtractFormat.Block> freeBlocks = new ConcurrentLinkedQueue<>();
+	private static final ThreadLocal<SnapshotExtractFormat.BlockFramer> framers = ThreadLocal.withInitial(SnapshotExtractFormat.BlockFramer::new);
+
 	protected String baseFileName;
-	
+	private final Executor writers;
+	private long pendingBytes = 0;
+
 	public SnapshotExtractorToDiskAsync(String baseFileName) {
+		this(baseFileName, sharedWriters);
+	}
+
+	/**
+	 * @param writers the executor running the writes, which must not run them on the calling thread
+	 */
+	public SnapshotExtractorToDiskAsync(String baseFileName, Executor writers) {
 		this.baseFileName = baseFileName;
+		this.writers = writers;
+	}
+
+	private static SnapshotExtractFormat.Block allocateBlock() {
+		SnapshotExtractFormat.Block block = freeBlocks.poll();
+		return block != null ? block : new SnapshotExtractFormat.Block();
+	}
+
+	private static void recycleBlock(SnapshotExtractFormat.Block block) {
+		block.clear();
+		if( block.isReusable() && freeBlocks.size() < MAX_POOLED_BLOCKS )
+			freeBlocks.offer(block);
+	}
+
+	private synchronized void addPending(long bytes) {
+		pendingBytes += bytes;
+		if( bytes < 0 )
+			notifyAll();
+	}
+
+	private synchronized void awaitBacklog() throws InterruptedException {
+		while( pendingBytes > MAX_PENDING_BYTES )
+			wait();
 	}
 
 	private class MyInstance implements ISnapshotExtractorInstance {
-		private long currentSnapshotId;
-		private ArrayBlockingQueue<NodeChanges> queue = new ArrayBlockingQueue<NodeChanges>(256*1024);;
-		private Thread consumer;
-		private String filename;
-		
+		private final long currentSnapshotId;
+		private final String filename;
+		private SnapshotExtractFormat.Block current = allocateBlock();
+		//guarded by this: blocks handed to the writer, in order, and its state
+		private final ArrayDeque<SnapshotExtractFormat.Block> full = new ArrayDeque<>();
+		private boolean writing = false;
+		private boolean ended = false;
+		private boolean finished = false;
+		private IOException error = null;
+		private FileChannel channel = null; //used only by the running write task
+
 		public MyInstance(long currentSnapshotId) {
 			this.currentSnapshotId = currentSnapshotId;
 			filename = SnapshotExtractorFunctions.fileNameOfExtract(baseFileName, currentSnapshotId);
-			consumer = new Thread(() -> {consume();});
-			consumer.start();
 		}
-		
+
 		@Override
-		public void end() {
-			try {
-				queue.put(new NodeChanges(true,null,null));
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+		public void process(Node n) {
+			NodeChanges nc = n.getNodeChanges(currentSnapshotId);
+			if( nc == null )
+				return;
+			current.add(nc);
+			if( current.isFull() ) {
+				handOff(current);
+				current = allocateBlock();
 			}
 		}
-		
+
 		@Override
-		public void process(Node n) {
-			NodeChanges nc = n.getNodeChanges(currentSnapshotId);
-			if (nc != null) {
+		public void end() {
+			if( current.isEmpty() )
+				recycleBlock(current);
+			else
+				handOff(current);
+			current = null;
+			synchronized( this ) {
+				ended = true;
+				scheduleWriter();
+			}
+		}
+
+		private void handOff(SnapshotExtractFormat.Block block) {
+			addPending(block.size());
+			synchronized( this ) {
+				full.addLast(block);
+				scheduleWriter();
+			}
+		}
+
+		//called holding the lock
+		private void scheduleWriter() {
+			if( ! writing ) {
+				writing = true;
 				try {
-					queue.put(nc);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-					//TODO: and, now what? This may very well happen in a call through the lambda, very deep in the recursion... 
+					writers.execute(this::write);
+				} catch (RejectedExecutionException ex) {
+					writing = false;
+					fail(ex);
+					abandon();
 				}
 			}
 		}
-		
-		@Override
-		public void finishOutput() {
+
+		/**
+		 * Drops the blocks handed over, as no writer is running to write them, and finishes the output if it has ended.
+		 * Called holding the lock, after a failure
+		 */
+		private void abandon() {
+			for( SnapshotExtractFormat.Block block = full.pollFirst(); block != null; block = full.pollFirst() ) {
+				addPending(-block.size());
+				recycleBlock(block);
+			}
+			if( ended )
+				finish();
+		}
+
+		//called holding the lock
+		private void finish() {
 			try {
-				consumer.join();
-			} catch (InterruptedException e) {
-				e.printStackTrace();
+				if( channel != null )
+					channel.close();
+			} catch (IOException ex) {
+				fail(ex);
 			}
+			channel = null;
+			finished = true;
+			writing = false;
+			notifyAll();
 		}
 
 		/**
-		 * Runs at a secondary thread and consumes NodeChanges objects, outputting them to disk
+		 * Runs at a writer thread until there is nothing left to write; the file is created on the first run, and ended and closed on the last
 		 */
-		private void consume() {
+		private void write() {
 			try {
-				SnapshotExtractorState state = new SnapshotExtractorState(filename);
-
-				while(true) {
-					NodeChanges nc = queue.take();
-					if( nc.isAppend == true && nc.key == null && nc.value == null ) {
-						//this is the end signal
-						state.discard();
+				SnapshotExtractFormat.BlockFramer framer = framers.get();
+				while( true ) {
+					SnapshotExtractFormat.Block block;
+					boolean last;
+					synchronized( this ) {
+						block = full.pollFirst();
+						last = ended && full.isEmpty();
+						if( block == null && ! last ) {
+							writing = false;
+							return;
+						}
+					}
+					if( block != null ) {
+						int length = block.size();
+						try {
+							if( getError() == null )
+								writeFully(framer.frame(block));
+						} catch (Throwable ex) {
+							fail(ex);
+						}
+						recycleBlock(block);
+						addPending(-length);
+					}
+					if( last ) {
+						try {
+							if( getError() == null )
+								writeFully(framer.end());
+						} catch (Throwable ex) {
+							fail(ex);
+						}
+						synchronized( this ) {
+							finish();
+						}
 						return;
-					} else {
-						SnapshotExtractorFunctions.writeNodeChangesToFile(nc, state);
 					}
 				}
-			} catch (Exception ex) {
-				ex.printStackTrace();
-				System.exit(1);
+			} catch (Throwable ex) {
+				//outside the writes of blocks: the task stops, and a later one, if any, finishes the output
+				fail(ex);
+				synchronized( this ) {
+					writing = false;
+					abandon();
+				}
 			}
 		}
-		
+
+		private void writeFully(ByteBuffer bytes) throws IOException {
+			if( channel == null ) {
+				channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+				ByteBuffer header = SnapshotExtractFormat.header();
+				while( header.hasRemaining() )
+					channel.write(header);
+			}
+			while( bytes.hasRemaining() )
+				channel.write(bytes);
+		}
+
+		private synchronized void fail(Throwable ex) {
+			if( error == null )
+				error = new IOException(String.format("Could not write the extract of snapshot %d to %s", currentSnapshotId, filename), ex);
+		}
+
+		@Override
+		public synchronized IOException getError() {
+			return error;
+		}
+
+		@Override
+		public void finishOutput() throws IOException {
+			synchronized( this ) {
+				try {
+					while( ! finished )
+						wait();
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException(String.format("Interrupted while writing the extract of snapshot %d", currentSnapshotId), ex);
+				}
+			}
+			if( getError() != null )
+				throw getError();
+		}
 	}
-	
+
+	/**
+	 * Waits, at the start of a seal rather than inside it, until the changes of earlier snapshots are mostly written
+	 */
 	public ISnapshotExtractorInstance begin(long snapshotId) {
+		try {
+			awaitBacklog();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
 		return new MyInstance(snapshotId);
 	}
 }
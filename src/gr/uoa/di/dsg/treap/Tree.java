@@ -4,11 +4,24 @@ import java.io.Closeable;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.function.Consumer;
 
 import edu.stanford.identiscape.util.ByteArrayRegion;
 import edu.stanford.identiscape.util.Bytes;
+import gr.uoa.di.dsg.util.MemoryBuffer;
 import gr.uoa.di.dsg.treap.SnapshotExtractorFunctions.SnapshotExtractorState;
 
 public class Tree implements Closeable {
@@ -22,13 +35,21 @@ public class Tree implements Closeable {
 	private int nodeCopies = 0;
 	private ByteArrayRegion workKey = new ByteArrayRegion(null, 0, 0);
 	private ByteArrayRegion workValue = new ByteArrayRegion(null, 0, 0);
+	//path and loaded nodes of the write operation in progress, reused by all of them
+	private final RootEdge rootEdge;
+	private final TreePath workPath;
+	private final ArrayList<Node> workNodes = new ArrayList<>();
 	private HashMap<Long, ISnapshotExtractorInstance> pendingSnapshotExtractorInstances = new HashMap<>();
+	//authenticators of the current snapshot calculated ahead of a parallel close, by node id. null otherwise
+	private ConcurrentHashMap<Long, byte[]> precomputedAuthenticators = null;
 	
 	public Tree(NodeStorageManager storage, AuthenticatorCacheManager acm) {
 		this.storage = storage;
 		this.acm = acm;
 		this.se = null; //new SnapshotExtractorDebug();
 		this.maxNodeSize = storage.getMaxNodeSize();
+		this.rootEdge = new RootEdge(storage);
+		this.workPath = new TreePath(rootEdge);
 	}
 	
 	public Tree(NodeStorageManager storage, AuthenticatorCacheManager acm, ISnapshotExtractor se) {
@@ -36,14 +57,26 @@ public class Tree implements Closeable {
 		this.acm = acm;
 		this.se = se;
 		this.maxNodeSize = storage.getMaxNodeSize();
+		this.rootEdge = new RootEdge(storage);
+		this.workPath = new TreePath(rootEdge);
 	}
 	
 	@Override
 	public void close() throws IOException {
-		for(ISnapshotExtractorInstance i: pendingSnapshotExtractorInstances.values())
-			i.finishOutput();
+		//the store is closed even if an extract failed, the first failure is reported afterwards
+		IOException failure = null;
+		for(ISnapshotExtractorInstance i: pendingSnapshotExtractorInstances.values()) {
+			try {
+				i.finishOutput();
+			} catch (IOException ex) {
+				if( failure == null )
+					failure = ex;
+			}
+		}
 		pendingSnapshotExtractorInstances.clear();
 		this.storage.close();
+		if( failure != null )
+			throw failure;
 	}
 	
 	public NodeStorageManager getStorageManager() {
@@ -93,55 +126,142 @@ public class Tree implements Closeable {
 	
 	public void insert(ByteArrayRegion key, ByteArrayRegion value) throws Exception {
 		storage.beginWork();
-		rinsert(key, value, new TreePath(new RootEdge(storage)));
+		boolean inserted = insertEntry(key, value);
 		storage.endWork();
+		if( ! inserted )
+			throw new IllegalArgumentException("Entry already in dictionary");
+	}
+	
+	/**
+	 * Inserts a batch of new entries in a single unit of work.
+	 * Entries must be sorted in ascending key order, so that neighbouring keys descend through the same
+	 * (already cached) upper levels of the tree. Every node touched by the batch is written back once, at its end.
+	 * The order of the whole batch is checked before the tree is changed. A batch that fails part way, on a key that is
+	 * already in the tree or on an error, changes nothing: the nodes it loaded are dropped, as none is written before its
+	 * end, and the root it started from is restored.
+	 * @param entries key/value pairs, sorted by key, none of which may already exist in the tree
+	 */
+	public void insertAll(Iterator<? extends Map.Entry<byte[], byte[]>> entries) throws Exception {
+		ArrayList<Map.Entry<byte[], byte[]>> batch = sortedBatch(entries);
+		long root = storage.getRoot();
+		storage.beginBatch();
+		boolean completed = false;
+		try {
+			for( Map.Entry<byte[], byte[]> entry : batch ) {
+				workKey.set(entry.getKey());
+				workValue.set(entry.getValue());
+				if( ! insertEntry(workKey, workValue) )
+					throw new IllegalArgumentException("Entry already in dictionary");
+			}
+			completed = true;
+		} finally {
+			endBatch(completed, root);
+		}
 	}
 	
-	private void rinsert(ByteArrayRegion key, ByteArrayRegion value, TreePath path) throws Exception {
-		TreeEdge edge = path.last();
-		Node current;
-		long next = edge.follow();
-		if( next == TERMINAL_NODE_ID ) {
-			Node newNode = createNode(key, new VersionedValue(getCurrentSnapshotId(), value), TERMINAL_NODE_ID, TERMINAL_NODE_ID);
-			edge.replace(newNode.getId(), path);
-			newNode = releaseNode(newNode);
+	/**
+	 * @return the entries of a batch, once checked to be in ascending key order
+	 */
+	private static ArrayList<Map.Entry<byte[], byte[]>> sortedBatch(Iterator<? extends Map.Entry<byte[], byte[]>> entries) {
+		ArrayList<Map.Entry<byte[], byte[]>> batch = new ArrayList<>();
+		byte[] previous = null;
+		while( entries.hasNext() ) {
+			Map.Entry<byte[], byte[]> entry = entries.next();
+			previous = checkBatchOrder(previous, entry.getKey());
+			batch.add(entry);
+		}
+		return batch;
+	}
+	
+	private static byte[] checkBatchOrder(byte[] previous, byte[] key) {
+		if( previous != null && MemoryBuffer.compare(previous, 0, previous.length, key, 0, key.length) >= 0 )
+			throw new IllegalArgumentException("Batch entries are not sorted by key");
+		return key;
+	}
+	
+	private void endBatch(boolean completed, long root) throws IOException {
+		if( completed ) {
+			storage.endWork();
 		} else {
-			current = fetchNode(next);
+			storage.abortWork();
+			storage.setRoot(root);
+		}
+	}
+	
+	/**
+	 * @return false, changing nothing, if the key is already in the tree
+	 */
+	private boolean insertEntry(ByteArrayRegion key, ByteArrayRegion value) throws IOException {
+		return putEntry(key, value, true, false);
+	}
+	
+	/**
+	 * Descends to the node of the key or to its empty spot, recording the path and keeping the nodes along it loaded.
+	 * A node found is given the new value in place (if replace) and the path above it is marked as modified, all in the
+	 * same descent; a new node (if insert) is rotated into place on the way back up.
+	 * Only the new node can violate the heap order, so each level compares its priority (calculated once) with the
+	 * node above it until the first one that does not need a rotation; the rest of the path is only marked as modified
+	 * @return false, changing nothing, if the key is in the tree and not to be replaced, or missing and not to be inserted
+	 */
+	private boolean putEntry(ByteArrayRegion key, ByteArrayRegion value, boolean insert, boolean replace) throws IOException {
+		TreePath path = workPath;
+		ArrayList<Node> nodes = workNodes;
+		path.reset(rootEdge);
+		long next = rootEdge.follow();
+		while( next != TERMINAL_NODE_ID ) {
+			Node current = fetchNode(next);
 			int currentVSkey = current.compareKey(key);
-			if( currentVSkey > 0 ) { //key < current.key, go left
-				path.add(current.getLeftEdge()); //augment path with the edge I am following to descend
-				rinsert(key, value, path);
-				path.removeLast();
-				next = path.last().follow();
-				if (next != current.getId()) {
-					current = releaseNode(current); //release our loaded node because it was modified (copied over) in the recursive call
-					current = fetchNode(next);
+			if( currentVSkey == 0 ) {
+				if( replace )
+					current.setValue(value.toArray(), path);
+				current = releaseNode(current);
+				for( int i = nodes.size() - 1; i >= 0; i-- ) {
+					Node node = nodes.get(i);
+					if( replace )
+						node.markModified(node.compareKey(key) > 0);
+					node = releaseNode(node);
 				}
-				Node nextForRotate = fetchNode(current.getLeft());
-				if ( current.comparePriority(nextForRotate) < 0 )
+				nodes.clear();
+				return replace;
+			}
+			nodes.add(current);
+			TreeEdge edge = currentVSkey > 0 ? current.getLeftEdge() : current.getRightEdge(); //key < current.key goes left
+			path.add(edge); //augment path with the edge I am following to descend
+			next = edge.follow();
+		}
+		if( ! insert ) {
+			for( Node node : nodes )
+				releaseNode(node);
+			nodes.clear();
+			return false;
+		}
+		Node newNode = createNode(key, new VersionedValue(getCurrentSnapshotId(), value), TERMINAL_NODE_ID, TERMINAL_NODE_ID);
+		path.last().replace(newNode.getId(), path);
+		byte[] priority = newNode.getPriority();
+		newNode = releaseNode(newNode);
+		
+		boolean rising = true; //the new node is the child of the current node, on the path
+		for( int i = nodes.size() - 1; i >= 0; i-- ) {
+			Node current = nodes.get(i);
+			path.removeLast();
+			next = path.last().follow();
+			if( next != current.getId() ) {
+				current = releaseNode(current); //release our loaded node because it was modified (copied over) further down
+				current = fetchNode(next);
+			}
+			if( rising && current.comparePriority(priority) < 0 ) {
+				if( current.compareKey(key) > 0 )
 					rotateRight(path); //rotate will mark the node dirty in any case, no need to repeat it
 				else
-					current.markModified(); //mark it as modified for authenticator recalculation
-				nextForRotate = releaseNode(nextForRotate);
-			} else if ( currentVSkey < 0 ) { //newNode.key > current.key
-				path.add(current.getRightEdge()); //augment path with the edge I am following to descend
-				rinsert(key, value, path);
-				path.removeLast();
-				next = path.last().follow();
-				if (next != current.getId()) {
-					current = releaseNode(current); //release our loaded node because it was modified (copied over) in the recursive call
-					current = fetchNode(next);
-				}
-				Node nextForRotate = fetchNode(current.getRight());
-				if ( current.comparePriority(nextForRotate) < 0 )
-					rotateLeft(path); //rotate will mark the node dirty in any case, no need to repeat it
-				else
-					current.markModified(); //mark it modified for authenticator recalc
-				nextForRotate = releaseNode(nextForRotate);
-			} else
-				throw new IllegalArgumentException("Entry already in dictionary");
+					rotateLeft(path);
+			} else {
+				rising = false;
+				current.markModified(current.compareKey(key) > 0); //mark it as modified for authenticator recalculation
+			}
 			current = releaseNode(current);
 		}
+		nodes.clear();
+		return true;
 	}
 	
 	private void rotateRight(TreePath path) throws IOException {
@@ -216,9 +336,18 @@ public class Tree implements Closeable {
 		return ret;
 	}
 	
+	/**
+	 * Retrieves the value of the key in a closed snapshot.
+	 * Reads of closed snapshots (this and isMember) may be called from many threads at once,
+	 * provided that no write operation (insert, update, closeSnapshot etc.) runs at the same time
+	 */
 	public byte[] get(long snapshotId, byte[] key) throws IOException {
+		return get(snapshotId, storage.getRoot(snapshotId), key);
+	}
+	
+	byte[] get(long snapshotId, long root, byte[] key) throws IOException {
 		storage.beginWork();
-		byte[] ret = rsearchHistorical(snapshotId, key, storage.getRoot(snapshotId));
+		byte[] ret = rsearchHistorical(snapshotId, key, root);
 		storage.endWork();
 		return ret;
 	}
@@ -246,89 +375,354 @@ public class Tree implements Closeable {
 		return ret;
 	}
 	
+	/**
+	 * Streams all entries of a closed snapshot whose keys fall in [fromKey, toKey), in ascending key order.
+	 * The walk is lazy and in-order, with an explicit stack holding only the pending ancestors (their key, value
+	 * and right child), so no node stays loaded between calls and the caller may stop at any point.
+	 * @param fromKey inclusive lower bound, or null to start from the smallest key
+	 * @param toKey exclusive upper bound, or null to run up to the largest key
+	 */
+	public Iterator<Map.Entry<byte[], byte[]>> scan(long snapshotId, byte[] fromKey, byte[] toKey) throws IOException {
+		if( snapshotId < 1L || snapshotId > getLastClosedSnapshotId() )
+			throw new IllegalArgumentException(String.format("Snapshot %d is not closed", snapshotId));
+		return scan(snapshotId, storage.getRoot(snapshotId), fromKey, toKey);
+	}
+	
+	Iterator<Map.Entry<byte[], byte[]>> scan(long snapshotId, long root, byte[] fromKey, byte[] toKey) throws IOException {
+		return new RangeIterator(snapshotId, root, fromKey, toKey);
+	}
+	
+	private class RangeIterator implements Iterator<Map.Entry<byte[], byte[]>> {
+		private class Pending {
+			byte[] key;
+			byte[] value;
+			long right;
+			Pending(byte[] key, byte[] value, long right) {
+				this.key = key;
+				this.value = value;
+				this.right = right;
+			}
+		}
+		private final long snapshotId;
+		private final byte[] fromKey;
+		private final byte[] toKey;
+		private final ArrayDeque<Pending> stack = new ArrayDeque<>();
+		
+		RangeIterator(long snapshotId, long root, byte[] fromKey, byte[] toKey) throws IOException {
+			this.snapshotId = snapshotId;
+			this.fromKey = fromKey;
+			this.toKey = toKey;
+			descend(root);
+		}
+		
+		/**
+		 * Walks down the leftmost in-range path of the subtree, stacking every in-range node met on the way
+		 */
+		private void descend(long nodeId) throws IOException {
+			storage.beginWork();
+			while( nodeId != TERMINAL_NODE_ID ) {
+				Node node = fetchNode(nodeId);
+				if( fromKey != null && node.compareKey(fromKey) < 0 ) {
+					//this node and its left subtree are below the range
+					nodeId = node.getRight(snapshotId);
+				} else {
+					//push only if inside the range, as the right subtree of a node beyond the range is beyond it as well
+					if( toKey == null || node.compareKey(toKey) < 0 )
+						stack.push(new Pending(node.getKey(), node.getValue(snapshotId), node.getRight(snapshotId)));
+					nodeId = node.getLeft(snapshotId);
+				}
+				node = releaseNode(node);
+			}
+			storage.endWork();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return ! stack.isEmpty();
+		}
+		
+		@Override
+		public Map.Entry<byte[], byte[]> next() {
+			if( stack.isEmpty() )
+				throw new NoSuchElementException();
+			Pending p = stack.pop();
+			try {
+				descend(p.right);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			return new AbstractMap.SimpleImmutableEntry<>(p.key, p.value);
+		}
+	}
+	
 	public ExistenceProof isMember(long snapshotId, byte[] key) throws IOException {
-		workKey.set(key);
-		return isMember(snapshotId, workKey);
+		return isMember(snapshotId, new ByteArrayRegion(key));
 	}
 	
+	/**
+	 * Produces a proof of membership (or non membership) of the key in a closed snapshot.
+	 * Like get(snapshotId, key), it may run concurrently with other reads of closed snapshots
+	 */
 	public ExistenceProof isMember(long snapshotId, ByteArrayRegion key) throws IOException {
+		return isMember(snapshotId, storage.getRoot(snapshotId), key);
+	}
+	
+	ExistenceProof isMember(long snapshotId, long root, ByteArrayRegion key) throws IOException {
 		storage.beginWork();
 
-		ExistenceProof.reset();
-		long root = storage.getRoot(snapshotId);
+		ExistenceProof proof = new ExistenceProof();
 		if( root == TERMINAL_NODE_ID )
-			ExistenceProof.decide(false); // will result in a completely empty proof
+			proof.decide(false); // will result in a completely empty proof
 		else
-			risMember(snapshotId, key, root);
+			risMember(proof, snapshotId, key, root);
 		storage.endWork();
-		return ExistenceProof.conclude();
+		return proof;
 	}
 	
-	private void risMember(long snapshotId, ByteArrayRegion key, long nodeId) throws IOException {
-		if( nodeId == TERMINAL_NODE_ID ) {
-			ExistenceProof.feed(Node.AUTHENTICATOR_OF_TERMINAL_NODE); //this is required to derive the root authenticator, proving all is well in the not found case
-			ExistenceProof.decide(false);
-		} else {
+	private void risMember(ExistenceProof proof, long snapshotId, ByteArrayRegion key, long nodeId) throws IOException {
+		while( nodeId != TERMINAL_NODE_ID ) {
 			Node node = fetchNode(nodeId);
-			ExistenceProof.feed(node, snapshotId);
+			proof.feed(node, snapshotId);
 			int result = node.compareKey(key);
 			long left = node.getLeft(snapshotId);
 			long right = node.getRight(snapshotId);
-			node = releaseNode(node);
 			if( result == 0 ) {
 				if( debugIsMember )
 					System.out.format("Membership recurse into %d(%d,%d) found%n", nodeId, left, right);
 				//bingo, found!
-				ExistenceProof.feed(getAuthenticator(snapshotId, left));
-				ExistenceProof.feed(getAuthenticator(snapshotId, right));
-				ExistenceProof.decide(true);
-			} else {
-				if( result > 0 ) { // key < node, going left
-					if( debugIsMember )
-						System.out.format("Membership recurse into %d(%d,%d) going left%n", nodeId, left, right);
-					ExistenceProof.feed(getAuthenticator(snapshotId, right));
-					risMember(snapshotId, key, left);
-				} else { // key > node, going right
-					if( debugIsMember )
-						System.out.format("Membership recurse into %d(%d,%d) going right%n", nodeId, left, right);
-					ExistenceProof.feed(getAuthenticator(snapshotId, left));
-					risMember(snapshotId, key, right);
-				}
+				proof.feed(getChildAuthenticator(snapshotId, node, true));
+				proof.feed(getChildAuthenticator(snapshotId, node, false));
+				node = releaseNode(node);
+				proof.decide(true);
+				return;
+			}
+			if( result > 0 ) { // key < node, going left
+				if( debugIsMember )
+					System.out.format("Membership recurse into %d(%d,%d) going left%n", nodeId, left, right);
+				proof.feed(getChildAuthenticator(snapshotId, node, false));
+				nodeId = left;
+			} else { // key > node, going right
+				if( debugIsMember )
+					System.out.format("Membership recurse into %d(%d,%d) going right%n", nodeId, left, right);
+				proof.feed(getChildAuthenticator(snapshotId, node, true));
+				nodeId = right;
 			}
+			node = releaseNode(node);
 		}
+		proof.feed(Node.AUTHENTICATOR_OF_TERMINAL_NODE); //this is required to derive the root authenticator, proving all is well in the not found case
+		proof.decide(false);
 	}
 	
-	public byte[] update(byte[] key, byte[] value) throws IOException {
+	/**
+	 * Produces a single proof of membership (or non membership) for all the keys, in the specified snapshot.
+	 * The search paths of the keys are merged, so nodes shared between them are fetched and included once.
+	 */
+	public MultiExistenceProof isMemberAll(long snapshotId, Collection<byte[]> keys) throws IOException {
+		return isMemberAll(snapshotId, storage.getRoot(snapshotId), keys);
+	}
+	
+	MultiExistenceProof isMemberAll(long snapshotId, long root, Collection<byte[]> keys) throws IOException {
+		byte[][] sortedKeys = MultiExistenceProof.sortKeys(keys);
 		storage.beginWork();
-		byte[] ret = rupdate(key, value, new TreePath(new RootEdge(storage)));
+		MultiExistenceProof proof = new MultiExistenceProof();
+		risMemberAll(snapshotId, sortedKeys, 0, sortedKeys.length, root, proof);
 		storage.endWork();
-		return ret;
+		return proof;
 	}
 	
-	private byte[] rupdate(byte[] key, byte[] value, TreePath path) throws IOException {
-		long nodeId = path.last().follow();
+	/**
+	 * Searches for sortedKeys[from, to) in the subtree rooted at nodeId
+	 */
+	private void risMemberAll(long snapshotId, byte[][] sortedKeys, int from, int to, long nodeId, MultiExistenceProof proof) throws IOException {
+		if( nodeId == TERMINAL_NODE_ID ) {
+			proof.feed(Node.AUTHENTICATOR_OF_TERMINAL_NODE);
+			return;
+		}
 		Node node = fetchNode(nodeId);
-		if( node == null )
-			return null;
-		int i = node.compareKey(key);
-		if( i == 0 ) {
-			byte[] ret = node.getValue();
-			node.setValue(value, path);
-			return ret;
+		proof.feed(node, snapshotId);
+		//split the keys into the ones going left, the one found here (if any) and the ones going right
+		int leftTo = from, high = to;
+		while( leftTo < high ) {
+			int mid = (leftTo + high) >>> 1;
+			if( node.compareKey(sortedKeys[mid]) > 0 )
+				leftTo = mid + 1;
+			else
+				high = mid;
 		}
-		byte[] ret;
-		if( i > 0 ) {
-			path.add(node.getLeftEdge());
-			ret = rupdate(key, value, path);
-			path.removeLast();
-		} else {
-			path.add(node.getRightEdge());
-			ret = rupdate(key, value, path);
-			path.removeLast();
+		int rightFrom = leftTo;
+		if( rightFrom < to && node.compareKey(sortedKeys[rightFrom]) == 0 )
+			rightFrom++;
+		long left = node.getLeft(snapshotId);
+		long right = node.getRight(snapshotId);
+		byte[] leftAuthenticator = leftTo > from ? null : getChildAuthenticator(snapshotId, node, true);
+		byte[] rightAuthenticator = to > rightFrom ? null : getChildAuthenticator(snapshotId, node, false);
+		node = releaseNode(node);
+		if( leftAuthenticator == null )
+			risMemberAll(snapshotId, sortedKeys, from, leftTo, left, proof);
+		else
+			proof.feed(leftAuthenticator);
+		if( rightAuthenticator == null )
+			risMemberAll(snapshotId, sortedKeys, rightFrom, to, right, proof);
+		else
+			proof.feed(rightAuthenticator);
+	}
+	
+	/**
+	 * Produces a proof that covers the complete contents of the key range [fromKey, toKey) in the specified snapshot.
+	 * Subtrees that lie entirely outside the range are represented by their authenticator alone.
+	 * @param fromKey inclusive lower bound, or null if unbounded
+	 * @param toKey exclusive upper bound, or null if unbounded
+	 */
+	public RangeProof getRangeProof(long snapshotId, byte[] fromKey, byte[] toKey) throws IOException {
+		return getRangeProof(snapshotId, storage.getRoot(snapshotId), fromKey, toKey);
+	}
+	
+	RangeProof getRangeProof(long snapshotId, long root, byte[] fromKey, byte[] toKey) throws IOException {
+		storage.beginWork();
+		RangeProof proof = new RangeProof();
+		rgetRangeProof(snapshotId, fromKey, toKey, root, proof);
+		storage.endWork();
+		return proof;
+	}
+	
+	private void rgetRangeProof(long snapshotId, byte[] fromKey, byte[] toKey, long nodeId, RangeProof proof) throws IOException {
+		if( nodeId == TERMINAL_NODE_ID ) {
+			proof.feed(Node.AUTHENTICATOR_OF_TERMINAL_NODE);
+			return;
 		}
-		if( ret != null )
-			node.markModified(); //make sure all the nodes on the path to the root are marked dirty on update of a child
+		Node node = fetchNode(nodeId);
+		proof.feed(node, snapshotId);
+		//the left subtree holds smaller keys, it is needed only if the range starts below this key. Symmetrically for the right one
+		boolean expandLeft = fromKey == null || node.compareKey(fromKey) > 0;
+		boolean expandRight = toKey == null || node.compareKey(toKey) < 0;
+		long left = node.getLeft(snapshotId);
+		long right = node.getRight(snapshotId);
+		byte[] leftAuthenticator = expandLeft ? null : getChildAuthenticator(snapshotId, node, true);
+		byte[] rightAuthenticator = expandRight ? null : getChildAuthenticator(snapshotId, node, false);
 		node = releaseNode(node);
+		if( expandLeft )
+			rgetRangeProof(snapshotId, fromKey, toKey, left, proof);
+		else
+			proof.feed(leftAuthenticator);
+		if( expandRight )
+			rgetRangeProof(snapshotId, fromKey, toKey, right, proof);
+		else
+			proof.feed(rightAuthenticator);
+	}
+	
+	public byte[] update(byte[] key, byte[] value) throws IOException {
+		storage.beginWork();
+		byte[] ret = updateEntry(key, value);
+		storage.endWork();
+		return ret;
+	}
+	
+	/**
+	 * Updates a batch of existing entries in a single unit of work.
+	 * Entries must be sorted in ascending key order; see insertAll() for the rationale and for what a failed batch changes.
+	 * @param entries key/value pairs, sorted by key, all of which must already exist in the tree
+	 * @throws IllegalArgumentException if a key is not in the tree
+	 */
+	public void updateAll(Iterator<? extends Map.Entry<byte[], byte[]>> entries) throws IOException {
+		ArrayList<Map.Entry<byte[], byte[]>> batch = sortedBatch(entries);
+		long root = storage.getRoot();
+		storage.beginBatch();
+		boolean completed = false;
+		try {
+			for( Map.Entry<byte[], byte[]> entry : batch )
+				if( updateEntry(entry.getKey(), entry.getValue()) == null )
+					throw new IllegalArgumentException("Entry not in dictionary");
+			completed = true;
+		} finally {
+			endBatch(completed, root);
+		}
+	}
+	
+	/**
+	 * Inserts or updates a batch of entries in a single unit of work, inserting those whose key is not in the tree.
+	 * Each entry takes a single descent, whether it is inserted or updated.
+	 * Entries must be sorted in ascending key order; see insertAll() for the rationale and for what a failed batch changes.
+	 */
+	public void putAll(Iterator<? extends Map.Entry<byte[], byte[]>> entries) throws IOException {
+		ArrayList<Map.Entry<byte[], byte[]>> batch = sortedBatch(entries);
+		long root = storage.getRoot();
+		storage.beginBatch();
+		boolean completed = false;
+		try {
+			for( Map.Entry<byte[], byte[]> entry : batch ) {
+				workKey.set(entry.getKey());
+				workValue.set(entry.getValue());
+				putEntry(workKey, workValue, true, true);
+			}
+			completed = true;
+		} finally {
+			endBatch(completed, root);
+		}
+	}
+	
+	/**
+	 * Records of a batch replayed by SnapshotExtractorFunctions.apply(), read in place from its buffer
+	 */
+	interface BatchRecords {
+		int count();
+		
+		/**
+		 * Points key and value to the i-th record; the records are in strictly ascending key order
+		 * @return true for an append, which is inserted or updated, false for an update, whose key must be in the tree
+		 */
+		boolean get(int i, ByteArrayRegion key, ByteArrayRegion value);
+	}
+	
+	/**
+	 * Applies the appends and updates of a batch in a single unit of work, one descent per record.
+	 * A failed batch changes nothing, as with insertAll()
+	 * @throws IllegalArgumentException if the key of an update is not in the tree
+	 */
+	void applyAll(BatchRecords records) throws IOException {
+		long root = storage.getRoot();
+		storage.beginBatch();
+		boolean completed = false;
+		try {
+			for( int i = 0; i < records.count(); i++ ) {
+				boolean append = records.get(i, workKey, workValue);
+				if( ! putEntry(workKey, workValue, append, true) )
+					throw new IllegalArgumentException("Entry not in dictionary");
+			}
+			completed = true;
+		} finally {
+			endBatch(completed, root);
+		}
+	}
+	
+	/**
+	 * @return the previous value, or null (changing nothing) if the key is not in the tree
+	 */
+	private byte[] updateEntry(byte[] key, byte[] value) throws IOException {
+		TreePath path = workPath;
+		ArrayList<Node> nodes = workNodes;
+		path.reset(rootEdge);
+		byte[] ret = null;
+		long next = rootEdge.follow();
+		while( next != TERMINAL_NODE_ID ) {
+			Node node = fetchNode(next);
+			nodes.add(node);
+			int i = node.compareKey(key);
+			if( i == 0 ) {
+				ret = node.getValue();
+				node.setValue(value, path);
+				break;
+			}
+			TreeEdge edge = i > 0 ? node.getLeftEdge() : node.getRightEdge();
+			path.add(edge);
+			next = edge.follow();
+		}
+		for( int i = nodes.size() - 1; i >= 0; i-- ) {
+			Node node = nodes.get(i);
+			if( ret != null && i < nodes.size() - 1 )
+				node.markModified(node.compareKey(key) > 0); //make sure all the nodes on the path to the root are marked dirty on update of a child
+			node = releaseNode(node);
+		}
+		nodes.clear();
 		return ret;
 	}
 	
@@ -347,14 +741,109 @@ public class Tree implements Closeable {
 		}
 		
 		//long rootNode = storage.getRoot();
-		byte[] rootAuthenticator = produceAuthenticator(new TreePath(new RootEdge(storage)), changesRecorder);
+		byte[] rootAuthenticator = produceAuthenticator(new TreePath(rootEdge), changesRecorder);
 		//at this point, root may have been replaced by a new copy
 		seiEnd.run();
-		storage.closeSnapshot(storage.getRoot(), rootAuthenticator);
-		storage.endWork();
+		long root = storage.getRoot();
+		//all nodes must be written before the snapshot is published to concurrent readers
+		storage.endWorkAndCloseSnapshot(root, rootAuthenticator);
+		storage.pinTopLevels(this, getCurrentSnapshotId() - 1, root);
 		return rootAuthenticator;
 	}
 	
+	/**
+	 * Closes the current snapshot like closeSnapshot(), computing the authenticators of the modified part of the tree on the pool first.
+	 * Authenticators depend only on keys, values and the authenticators of the children, never on node ids,
+	 * so they are calculated in parallel over the unchanged tree. The usual sequential walk then caches them,
+	 * copying nodes and updating the path as before, without hashing anything again.
+	 * Subtrees below a depth derived from the parallelism of the pool are not split further.
+	 */
+	public byte[] closeSnapshot(ForkJoinPool pool) throws IOException, InterruptedException {
+		int splitDepth = 3 + 32 - Integer.numberOfLeadingZeros(pool.getParallelism());
+		ConcurrentHashMap<Long, byte[]> known = new ConcurrentHashMap<>();
+		try {
+			pool.invoke(new AuthenticatorTask(storage.getRoot(), 0, splitDepth, known));
+		} catch (UncheckedIOException ex) {
+			throw ex.getCause();
+		}
+		precomputedAuthenticators = known;
+		try {
+			return closeSnapshot();
+		} finally {
+			precomputedAuthenticators = null;
+		}
+	}
+	
+	/**
+	 * Calculates, without modifying anything, the current authenticator of a subtree and of every modified node in it.
+	 * Nodes are released before forking, as a worker may run other tasks while waiting for a join
+	 */
+	private class AuthenticatorTask extends RecursiveTask<byte[]> {
+		private static final long serialVersionUID = 1L;
+		private final long nodeId;
+		private final int depth;
+		private final int splitDepth;
+		private final ConcurrentHashMap<Long, byte[]> known;
+		
+		AuthenticatorTask(long nodeId, int depth, int splitDepth, ConcurrentHashMap<Long, byte[]> known) {
+			this.nodeId = nodeId;
+			this.depth = depth;
+			this.splitDepth = splitDepth;
+			this.known = known;
+		}
+		
+		@Override
+		protected byte[] compute() {
+			try {
+				return calculate(nodeId, depth);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+		
+		private byte[] calculate(long nodeId, int depth) throws IOException {
+			if( nodeId == TERMINAL_NODE_ID )
+				return Node.AUTHENTICATOR_OF_TERMINAL_NODE;
+			Node node = fetchNode(nodeId);
+			if( ! node.getModified() ) {
+				byte[] ret = acm.getCurrentAuthenticator(node, new TreePath(new FixedEdge(nodeId)));
+				node = releaseNode(node);
+				known.put(nodeId, ret);
+				return ret;
+			}
+			long left = node.getLeft();
+			long right = node.getRight();
+			ByteArrayRegion key = node.getKeyRegion();
+			byte[] payloadDigest = node.getValueDigest(getCurrentSnapshotId());
+			//children the node already knows about need not be visited
+			byte[] leftPart = acm.getCurrentChildAuthenticator(node, true);
+			byte[] rightPart = acm.getCurrentChildAuthenticator(node, false);
+			node = releaseNode(node);
+			if( depth < splitDepth && leftPart == null && rightPart == null ) {
+				AuthenticatorTask leftTask = new AuthenticatorTask(left, depth + 1, splitDepth, known);
+				leftTask.fork();
+				rightPart = calculate(right, depth + 1);
+				leftPart = leftTask.join();
+			} else {
+				if( leftPart == null )
+					leftPart = calculate(left, depth + 1);
+				if( rightPart == null )
+					rightPart = calculate(right, depth + 1);
+			}
+			byte[] ret = Node.calculateAuthenticatorFromDigest(key, payloadDigest, leftPart, rightPart);
+			known.put(nodeId, ret);
+			return ret;
+		}
+	}
+	
+	/**
+	 * Authenticator of the node in the current snapshot, if it was calculated ahead by a parallel close
+	 */
+	protected byte[] getPrecomputedAuthenticator(long nodeId) {
+		ConcurrentHashMap<Long, byte[]> known = precomputedAuthenticators;
+		return known == null ? null : known.get(nodeId);
+	}
+	
 	protected byte[] produceAuthenticator(TreePath path, Consumer<Node> changesRecorder) throws IOException {
 		byte[] ret;
 		long nodeId = path.last().follow();
@@ -373,14 +862,167 @@ public class Tree implements Closeable {
 		return ret;
 	}
 	
+	private static class BulkLoadEntry {
+		byte[] key;
+		byte[] value;
+		byte[] priority;
+		long left = TERMINAL_NODE_ID;
+		byte[] leftAuthenticator = Node.AUTHENTICATOR_OF_TERMINAL_NODE;
+		long right = TERMINAL_NODE_ID;
+		byte[] rightAuthenticator = Node.AUTHENTICATOR_OF_TERMINAL_NODE;
+		long id;
+		byte[] authenticator;
+		
+		BulkLoadEntry(byte[] key, byte[] value) {
+			this.key = key;
+			this.value = value;
+			this.priority = Node.calculatePriority(new ByteArrayRegion(key));
+		}
+	}
+	
+	/**
+	 * Builds the tree bottom-up from key-sorted entries and closes the first snapshot over them.
+	 * As node priorities are derived from the keys alone, the shape of the treap is fully determined by the input,
+	 * so it is built in linear time with a stack holding the current right spine, without rotations or node copies.
+	 * A node is written out as soon as both of its subtrees are complete, so records are appended sequentially
+	 * and its authenticator is computed in the same pass.
+	 * The order and size of all entries are checked before the first node is created, so bad input leaves the tree empty
+	 * and the store without records; the entries are held in memory meanwhile. The extract of the snapshot, if any, is
+	 * waited for by close() only once the tree is built.
+	 * @param entries key/value pairs, sorted by key
+	 * @return the root authenticator of the closed snapshot
+	 */
+	public byte[] bulkLoad(Iterator<? extends Map.Entry<byte[], byte[]>> entries) throws IOException {
+		if( storage.getRoot() != TERMINAL_NODE_ID )
+			throw new RuntimeException("Bulk load is only supported on an empty tree");
+		ArrayList<Map.Entry<byte[], byte[]>> batch = sortedBatch(entries);
+		for( Map.Entry<byte[], byte[]> entry : batch )
+			checkBulkLoadEntry(entry.getKey(), entry.getValue());
+		
+		long snapshotId = getCurrentSnapshotId();
+		ISnapshotExtractorInstance sei = se == null ? null : se.begin(snapshotId);
+		Consumer<Node> changesRecorder = sei == null ? (Node n) -> {} : sei::process;
+		storage.beginWork();
+		boolean completed = false;
+		long root;
+		byte[] rootAuthenticator;
+		try {
+			BulkLoadEntry top = buildBulkLoad(batch, snapshotId, changesRecorder);
+			root = top == null ? TERMINAL_NODE_ID : top.id;
+			rootAuthenticator = top == null ? Node.AUTHENTICATOR_OF_TERMINAL_NODE : top.authenticator;
+			storage.setRoot(root);
+			completed = true;
+		} finally {
+			if( sei != null )
+				sei.end();
+			//all nodes must be written before the snapshot is published to concurrent readers
+			if( completed )
+				storage.endWork();
+			else
+				storage.abortWork();
+		}
+		if( sei != null )
+			pendingSnapshotExtractorInstances.put(snapshotId, sei);
+		storage.closeSnapshot(root, rootAuthenticator);
+		storage.pinTopLevels(this, getCurrentSnapshotId() - 1, root);
+		return rootAuthenticator;
+	}
+	
+	/**
+	 * @return the entry at the root of the built treap, null if there are no entries
+	 */
+	private BulkLoadEntry buildBulkLoad(ArrayList<Map.Entry<byte[], byte[]>> entries, long snapshotId, Consumer<Node> changesRecorder) throws IOException {
+		ArrayDeque<BulkLoadEntry> spine = new ArrayDeque<>();
+		for( int i = 0; i < entries.size(); i++ ) {
+			Map.Entry<byte[], byte[]> entry = entries.set(i, null); //let the entry go once its node is made
+			BulkLoadEntry current = new BulkLoadEntry(entry.getKey(), entry.getValue());
+			//everything on the spine with a lower priority becomes the left subtree of the new entry
+			BulkLoadEntry completed = null;
+			while( ! spine.isEmpty() && MemoryBuffer.compare(spine.peek().priority, 0, Node.PRIORITY_SIZE, current.priority, 0, Node.PRIORITY_SIZE) < 0 ) {
+				BulkLoadEntry top = spine.pop();
+				if( completed != null ) {
+					top.right = completed.id;
+					top.rightAuthenticator = completed.authenticator;
+				}
+				writeBulkLoadEntry(top, snapshotId, changesRecorder);
+				completed = top;
+			}
+			if( completed != null ) {
+				current.left = completed.id;
+				current.leftAuthenticator = completed.authenticator;
+			}
+			spine.push(current);
+		}
+		//and finally complete the spine, bottom to top
+		BulkLoadEntry completed = null;
+		while( ! spine.isEmpty() ) {
+			BulkLoadEntry top = spine.pop();
+			if( completed != null ) {
+				top.right = completed.id;
+				top.rightAuthenticator = completed.authenticator;
+			}
+			writeBulkLoadEntry(top, snapshotId, changesRecorder);
+			completed = top;
+		}
+		return completed;
+	}
+	
+	private void checkBulkLoadEntry(byte[] key, byte[] value) {
+		if( Node.estimateNewNodeSize(new ByteArrayRegion(key), new ByteArrayRegion(value)) + acm.entrySize() > maxNodeSize )
+			throw new IllegalArgumentException(String.format("Entry of %d bytes is too large for bulk loading", key.length + value.length));
+	}
+	
+	private void writeBulkLoadEntry(BulkLoadEntry entry, long snapshotId, Consumer<Node> changesRecorder) throws IOException {
+		ByteArrayRegion key = new ByteArrayRegion(entry.key);
+		ByteArrayRegion value = new ByteArrayRegion(entry.value);
+		Node node = createNode(key, new VersionedValue(snapshotId, value), entry.left, entry.right);
+		entry.id = node.getId();
+		entry.authenticator = node.calculateCurrentAuthenticator(entry.leftAuthenticator, entry.rightAuthenticator);
+		acm.initialAuthenticator(node, snapshotId, entry.authenticator, entry.leftAuthenticator, entry.rightAuthenticator);
+		changesRecorder.accept(node);
+		storage.flush(node);
+		//the subtrees are no longer needed, let them go
+		entry.leftAuthenticator = null;
+		entry.rightAuthenticator = null;
+		entry.value = null;
+	}
+	
 	public long getRoot(long snapshotId) throws IOException {
 		return storage.getRoot(snapshotId);
 	}
 	
+	/**
+	 * Pins a closed snapshot for reading. Closed snapshots are immutable, so the returned handle may be used
+	 * from any thread, concurrently with other readers and with the writer inserting into (or closing) the current snapshot.
+	 * The snapshot root is resolved once, here, so reads through the handle do not consult the snapshot index again.
+	 */
+	public TreeSnapshot openSnapshot(long snapshotId) throws IOException {
+		if( snapshotId < 1L || snapshotId > getLastClosedSnapshotId() )
+			throw new IllegalArgumentException(String.format("Snapshot %d is not closed", snapshotId));
+		return new TreeSnapshot(this, snapshotId, storage.getRoot(snapshotId));
+	}
+	
+	/**
+	 * Pins the most recently closed snapshot for reading, see openSnapshot()
+	 */
+	public TreeSnapshot openLastClosedSnapshot() throws IOException {
+		return openSnapshot(getLastClosedSnapshotId());
+	}
+	
 	public byte[] getRootAuthenticator(long snapshotId) throws IOException {
 		return getAuthenticator(snapshotId, storage.getRoot(snapshotId));
 	}
 	
+	/**
+	 * Authenticator of a child of a loaded node as of snapshotId, read from the node itself when the authenticator manager keeps it there
+	 */
+	private byte[] getChildAuthenticator(long snapshotId, Node node, boolean left) throws IOException {
+		byte[] ret = node.getChildAuthenticator(snapshotId, left);
+		if( ret == null )
+			ret = getAuthenticator(snapshotId, left ? node.getLeft(snapshotId) : node.getRight(snapshotId));
+		return ret;
+	}
+	
 	protected byte[] getAuthenticator(long snapshotId, long nodeId) throws IOException {
 		byte[] ret;
 		if( nodeId == TERMINAL_NODE_ID )
@@ -398,27 +1040,136 @@ public class Tree implements Closeable {
 		return storage.getLargestNodeSize();
 	}
 	
+	/**
+	 * Streams the entries added or changed after fromSnapshot and up to toSnapshot, as of toSnapshot, in no particular order.
+	 * NodeChanges.isAppend tells a key that was not in fromSnapshot from one whose value changed.
+	 * Unchanged subtrees are skipped (see isSubtreeUnchanged()), so the walk visits only the nodes changed in between and their children.
+	 * Like get(snapshotId, key), it may run concurrently with other reads of closed snapshots
+	 */
+	public Iterator<NodeChanges> diff(long fromSnapshot, long toSnapshot) throws IOException {
+		if( fromSnapshot < 1L || fromSnapshot > toSnapshot || toSnapshot > getLastClosedSnapshotId() )
+			throw new IllegalArgumentException(String.format("Cannot diff snapshot %d to %d, both must be closed and in order", fromSnapshot, toSnapshot));
+		return new DiffIterator(fromSnapshot, toSnapshot);
+	}
+	
+	private class DiffIterator implements Iterator<NodeChanges> {
+		private final long fromSnapshot;
+		private final long toSnapshot;
+		private final long fromRoot;
+		private final ArrayDeque<Long> pending = new ArrayDeque<>();
+		private NodeChanges nextChanges;
+		
+		DiffIterator(long fromSnapshot, long toSnapshot) throws IOException {
+			this.fromSnapshot = fromSnapshot;
+			this.toSnapshot = toSnapshot;
+			this.fromRoot = storage.getRoot(fromSnapshot);
+			long root = storage.getRoot(toSnapshot);
+			if( fromSnapshot != toSnapshot && root != TERMINAL_NODE_ID )
+				pending.push(root);
+			advance();
+		}
+		
+		/**
+		 * Walks the pending subtrees until the next changed entry is found, or they run out
+		 */
+		private void advance() throws IOException {
+			nextChanges = null;
+			storage.beginWork();
+			while( nextChanges == null && ! pending.isEmpty() ) {
+				long nodeId = pending.pop();
+				Node node = fetchNode(nodeId);
+				if( isSubtreeUnchanged(node, fromSnapshot, toSnapshot) ) {
+					node = releaseNode(node);
+					continue;
+				}
+				boolean existed = node.getOriginalSnapshot() <= fromSnapshot;
+				byte[] key = node.getKey();
+				byte[] value = node.getValue(toSnapshot);
+				long left = node.getLeft(toSnapshot);
+				long right = node.getRight(toSnapshot);
+				//a node of fromSnapshot holds the old value itself, a newer one (a new key or a copy) has to look it up there
+				byte[] oldValue = existed ? node.getValue(fromSnapshot) : null;
+				node = releaseNode(node);
+				if( ! existed )
+					oldValue = rsearchHistorical(fromSnapshot, key, fromRoot);
+				if( oldValue == null )
+					nextChanges = new NodeChanges(true, key, value);
+				else if( ! Arrays.equals(oldValue, value) )
+					nextChanges = new NodeChanges(false, key, value);
+				if( right != TERMINAL_NODE_ID )
+					pending.push(right);
+				if( left != TERMINAL_NODE_ID )
+					pending.push(left);
+			}
+			storage.endWork();
+		}
+		
+		@Override
+		public boolean hasNext() {
+			return nextChanges != null;
+		}
+		
+		@Override
+		public NodeChanges next() {
+			if( nextChanges == null )
+				throw new NoSuchElementException();
+			NodeChanges ret = nextChanges;
+			try {
+				advance();
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * @return true if the subtree of the node is the same in both snapshots, judged from the version stamps of the node alone:
+	 * the node already existed in fromSnapshot and none of its arrays got a version in between.
+	 * When the authenticator manager does not seal every modified node (e.g. depth based) a change below the node leaves
+	 * no version on it, so the authenticators of the subtree in both snapshots are compared as well
+	 */
+	private boolean isSubtreeUnchanged(Node node, long fromSnapshot, long toSnapshot) throws IOException {
+		if( node.getOriginalSnapshot() > fromSnapshot || ! node.isUnchangedBetween(fromSnapshot, toSnapshot) )
+			return false;
+		return acm.always() || Arrays.equals(node.getAuthenticator(fromSnapshot), node.getAuthenticator(toSnapshot));
+	}
+	
+	/**
+	 * Writes the entries changed in the snapshot to its extract file.
+	 * Only the nodes changed in the snapshot and their children are visited, the subtrees left unchanged since the previous one are skipped.
+	 * Entries are written in key order, which lets the extract front code its keys
+	 */
 	public void extractSnapshot(String extractBaseFileName, long snapshotId) throws IOException {
 		SnapshotExtractorState state = new SnapshotExtractorState(SnapshotExtractorFunctions.fileNameOfExtract(extractBaseFileName, snapshotId));
-		storage.beginWork();
-		rExtractSnapshot(snapshotId, storage.getRoot(snapshotId), state);
-		storage.endWork();
-		state.discard();
+		try {
+			storage.beginWork();
+			rExtractSnapshot(snapshotId, storage.getRoot(snapshotId), state);
+			storage.endWork();
+		} catch (IOException | RuntimeException ex) {
+			state.discard();
+			throw ex;
+		}
+		state.finish();
 	}
 	
 	private void rExtractSnapshot(long snapshotId, long nodeId, SnapshotExtractorState state) throws IOException {
 		Node node = null;
 		if( nodeId != TERMINAL_NODE_ID ) {
 			node = fetchNode(nodeId);
-			NodeChanges nc = node.getNodeChanges(snapshotId);
-			if (nc != null) {
-				SnapshotExtractorFunctions.writeNodeChangesToFile(nc, state);
+			if( isSubtreeUnchanged(node, snapshotId - 1L, snapshotId) ) {
+				node = releaseNode(node);
+				return;
 			}
+			NodeChanges nc = node.getNodeChanges(snapshotId);
 			long left = node.getLeft(snapshotId);
 			long right = node.getRight(snapshotId);
 			node = releaseNode(node);
 			if ( left != TERMINAL_NODE_ID )
 				rExtractSnapshot(snapshotId, left, state);
+			if (nc != null) {
+				SnapshotExtractorFunctions.writeNodeChangesToFile(nc, state);
+			}
 			if ( right != TERMINAL_NODE_ID )
 				rExtractSnapshot(snapshotId, right, state);
 		}
@@ -488,6 +1239,37 @@ public class Tree implements Closeable {
 		return storage.getCurrentSnapshotId() - 1L;
 	}
 	
+	/**
+	 * Start of a path that is only read, used to compute authenticators away from the root
+	 */
+	private static class FixedEdge implements TreeEdge {
+		private final long target;
+		
+		public FixedEdge(long target) {
+			this.target = target;
+		}
+		
+		@Override
+		public long follow() {
+			return target;
+		}
+		
+		@Override
+		public void replace(long other, TreePath path) throws IOException {
+			throw new RuntimeException("Cannot replace the target of a fixed edge");
+		}
+		
+		@Override
+		public Node host() {
+			return null;
+		}
+		
+		@Override
+		public boolean isLeft() {
+			return false;
+		}
+	}
+	
 	private class RootEdge implements TreeEdge {
 		private NodeStorageManager storage;
 		public RootEdge(NodeStorageManager storage) {
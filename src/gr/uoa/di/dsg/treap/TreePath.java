@@ -10,6 +10,14 @@ public class TreePath {
 		edges.add(edge);
 	}
 	
+	/**
+	 * Restarts the path from the given edge, so that a single path can serve many operations
+	 */
+	public void reset(TreeEdge edge) {
+		edges.clear();
+		edges.add(edge);
+	}
+	
 	public TreeEdge last() {
 		return edges.get(edges.size() - 1);
 	}
@@ -27,7 +35,8 @@ public class TreePath {
 	}
 	
 	public void replaceEdgeTarget(long oldId, long newId) throws IOException {
-		for (TreeEdge edge: edges) {
+		for (int i = 0; i < edges.size(); i++) {
+			TreeEdge edge = edges.get(i);
 			if( edge.follow() == oldId ) {
 				edge.replace(newId, this);
 				break;
@@ -0,0 +1,74 @@
+package gr.uoa.di.dsg.treap;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+
+import edu.stanford.identiscape.util.ByteArrayRegion;
+
+/**
+ * Read handle pinned to a closed snapshot of a tree, obtained through Tree.openSnapshot().
+ *
+ * Nodes are fat: the writer only ever adds versions for the current snapshot (or drops those it added itself when copying a node),
+ * so everything reachable from the root of a closed snapshot stays as it was when the snapshot was closed.
+ * A snapshot becomes visible only after all of its nodes have been written, therefore handles may be used from many threads,
+ * while the writer keeps inserting into and closing newer snapshots.
+ */
+public class TreeSnapshot {
+	private final Tree tree;
+	private final long snapshotId;
+	private final long root;
+	private volatile byte[] rootAuthenticator;
+
+	protected TreeSnapshot(Tree tree, long snapshotId, long root) {
+		this.tree = tree;
+		this.snapshotId = snapshotId;
+		this.root = root;
+	}
+
+	public long getSnapshotId() {
+		return snapshotId;
+	}
+
+	public long getRoot() {
+		return root;
+	}
+
+	/**
+	 * @return the root authenticator of the snapshot. It is calculated on first use, as it may need to be rebuilt from the nodes below
+	 */
+	public byte[] getRootAuthenticator() throws IOException {
+		byte[] ret = rootAuthenticator;
+		if( ret == null ) {
+			ret = tree.getAuthenticator(snapshotId, root);
+			rootAuthenticator = ret;
+		}
+		return ret;
+	}
+
+	public byte[] get(byte[] key) throws IOException {
+		return tree.get(snapshotId, root, key);
+	}
+
+	public ExistenceProof isMember(byte[] key) throws IOException {
+		return tree.isMember(snapshotId, root, new ByteArrayRegion(key));
+	}
+
+	public MultiExistenceProof isMemberAll(Collection<byte[]> keys) throws IOException {
+		return tree.isMemberAll(snapshotId, root, keys);
+	}
+
+	public Iterator<Map.Entry<byte[], byte[]>> scan(byte[] fromKey, byte[] toKey) throws IOException {
+		return tree.scan(snapshotId, root, fromKey, toKey);
+	}
+
+	public RangeProof getRangeProof(byte[] fromKey, byte[] toKey) throws IOException {
+		return tree.getRangeProof(snapshotId, root, fromKey, toKey);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("Snapshot %d (root=%d)", snapshotId, root);
+	}
+}
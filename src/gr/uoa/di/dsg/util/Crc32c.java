@@ -0,0 +1,69 @@
+package gr.uoa.di.dsg.util;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli), the checksum of iSCSI and ext4, for Java 8 which lacks java.util.zip.CRC32C.
+ *
+ * Table driven, eight bytes at a time (slicing-by-8); values match those of java.util.zip.CRC32C of later releases.
+ */
+public class Crc32c implements Checksum {
+	private static final int POLYNOMIAL = 0x82F63B78; //reversed 0x1EDC6F41
+	private static final int[][] TABLES = new int[8][256];
+	static {
+		for( int i = 0; i < 256; i++ ) {
+			int crc = i;
+			for( int bit = 0; bit < 8; bit++ )
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			TABLES[0][i] = crc;
+		}
+		for( int i = 0; i < 256; i++ )
+			for( int t = 1; t < 8; t++ )
+				TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xFF];
+	}
+
+	private int crc = 0xFFFFFFFF;
+
+	@Override
+	public void update(int b) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+	}
+
+	@Override
+	public void update(byte[] b, int off, int len) {
+		int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3], t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+		int c = crc;
+		int end = off + len;
+		for( ; off + 8 <= end; off += 8 ) {
+			int low = c ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24);
+			c = t7[low & 0xFF] ^ t6[(low >>> 8) & 0xFF] ^ t5[(low >>> 16) & 0xFF] ^ t4[low >>> 24]
+				^ t3[b[off + 4] & 0xFF] ^ t2[b[off + 5] & 0xFF] ^ t1[b[off + 6] & 0xFF] ^ t0[b[off + 7] & 0xFF];
+		}
+		for( ; off < end; off++ )
+			c = (c >>> 8) ^ t0[(c ^ b[off]) & 0xFF];
+		crc = c;
+	}
+
+	public void update(byte[] b) {
+		update(b, 0, b.length);
+	}
+
+	@Override
+	public long getValue() {
+		return ~crc & 0xFFFFFFFFL;
+	}
+
+	@Override
+	public void reset() {
+		crc = 0xFFFFFFFF;
+	}
+
+	/**
+	 * The checksum of a region on its own
+	 */
+	public static int of(byte[] b, int off, int len) {
+		Crc32c c = new Crc32c();
+		c.update(b, off, len);
+		return (int) c.getValue();
+	}
+}
@@ -0,0 +1,169 @@
+package gr.uoa.di.dsg.util;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Byte-oriented LZ77 compression of independent blocks, in the sequence layout of LZ4 blocks.
+ *
+ * A block is a series of sequences: a token whose high nibble is the literal count and low nibble the match length
+ * minus MIN_MATCH (15 meaning that bytes of 255 and a final smaller byte follow and are added), the literals, then a
+ * two byte little endian offset back into the output and the match. The last sequence has literals only.
+ * Matches are found through a single-entry hash table of 4 byte prefixes, so compression is fast rather than tight;
+ * runs of incompressible input are skipped over with a growing stride.
+ *
+ * Instances hold the hash table and must not be shared between threads; decompression is static and bounds checked,
+ * so corrupt input fails with a DataFormatException rather than an out of bounds access.
+ */
+public class LzBlockCodec {
+	private static final int MIN_MATCH = 4;
+	private static final int MAX_OFFSET = 0xFFFF;
+	/**
+	 * Matches end this many bytes before the end of the input, which always ends with literals
+	 */
+	private static final int LAST_LITERALS = 5;
+	private static final int HASH_LOG = 14;
+	private static final int SKIP_TRIGGER = 6;
+
+	private final int[] table = new int[1 << HASH_LOG];
+
+	/**
+	 * The worst case size of a compressed block of length bytes, with all of them stored as literals
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / 255 + 16;
+	}
+
+	private static int readInt(byte[] b, int pos) {
+		return (b[pos] & 0xFF) | (b[pos + 1] & 0xFF) << 8 | (b[pos + 2] & 0xFF) << 16 | (b[pos + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	/**
+	 * Compresses src[srcOff, srcOff + srcLen) into dst at dstOff, which must have room for maxCompressedLength(srcLen) bytes
+	 * @return the length of the compressed block
+	 */
+	public int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff) {
+		Arrays.fill(table, -1);
+		int end = srcOff + srcLen;
+		int matchLimit = end - LAST_LITERALS;
+		int anchor = srcOff;
+		int ip = srcOff;
+		int op = dstOff;
+		int misses = 0;
+		while( ip + MIN_MATCH <= matchLimit ) {
+			int sequence = readInt(src, ip);
+			int h = hash(sequence);
+			int ref = table[h];
+			table[h] = ip;
+			if( ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence ) {
+				ip += 1 + (misses++ >>> SKIP_TRIGGER);
+				continue;
+			}
+			misses = 0;
+			while( ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1] ) {
+				ip--;
+				ref--;
+			}
+			int matchLength = MIN_MATCH;
+			while( ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength] )
+				matchLength++;
+			op = writeSequence(src, anchor, ip - anchor, dst, op, matchLength - MIN_MATCH);
+			dst[op++] = (byte) (ip - ref);
+			dst[op++] = (byte) ((ip - ref) >>> 8);
+			op = writeLength(dst, op, matchLength - MIN_MATCH);
+			ip += matchLength;
+			anchor = ip;
+		}
+		op = writeSequence(src, anchor, end - anchor, dst, op, 0);
+		return op - dstOff;
+	}
+
+	/**
+	 * Writes the token and the literals of a sequence
+	 */
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, byte[] dst, int op, int matchCode) {
+		dst[op++] = (byte) (Math.min(literalLength, 15) << 4 | Math.min(matchCode, 15));
+		op = writeLength(dst, op, literalLength);
+		System.arraycopy(src, literalStart, dst, op, literalLength);
+		return op + literalLength;
+	}
+
+	/**
+	 * Writes the bytes that extend a length of 15 or more in its token nibble
+	 */
+	private static int writeLength(byte[] dst, int op, int length) {
+		if( length >= 15 ) {
+			length -= 15;
+			for( ; length >= 255; length -= 255 )
+				dst[op++] = (byte) 255;
+			dst[op++] = (byte) length;
+		}
+		return op;
+	}
+
+	/**
+	 * Decompresses a whole block into exactly dstLen bytes at dst[dstOff]
+	 */
+	public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) throws DataFormatException {
+		int ip = srcOff;
+		int end = srcOff + srcLen;
+		int op = dstOff;
+		int dstEnd = dstOff + dstLen;
+		while( true ) {
+			if( ip >= end )
+				throw new DataFormatException("Compressed block ends before its last sequence");
+			int token = src[ip++] & 0xFF;
+			int literalLength = token >>> 4;
+			if( literalLength == 15 ) {
+				int b;
+				do {
+					if( ip >= end )
+						throw new DataFormatException("Compressed block ends inside a literal length");
+					b = src[ip++] & 0xFF;
+					literalLength += b;
+				} while( b == 255 );
+			}
+			if( literalLength < 0 || literalLength > end - ip || literalLength > dstEnd - op )
+				throw new DataFormatException(String.format("Literal run of %d bytes at %d overflows the block", literalLength, ip - srcOff));
+			System.arraycopy(src, ip, dst, op, literalLength);
+			ip += literalLength;
+			op += literalLength;
+			if( ip == end )
+				break;
+			if( end - ip < 2 )
+				throw new DataFormatException("Compressed block ends inside a match offset");
+			int offset = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+			ip += 2;
+			if( offset == 0 || offset > op - dstOff )
+				throw new DataFormatException(String.format("Match offset %d at %d points before the block", offset, ip - srcOff));
+			int matchLength = token & 0x0F;
+			if( matchLength == 15 ) {
+				int b;
+				do {
+					if( ip >= end )
+						throw new DataFormatException("Compressed block ends inside a match length");
+					b = src[ip++] & 0xFF;
+					matchLength += b;
+				} while( b == 255 );
+			}
+			matchLength += MIN_MATCH;
+			if( matchLength < 0 || matchLength > dstEnd - op )
+				throw new DataFormatException(String.format("Match of %d bytes at %d overflows the block", matchLength, ip - srcOff));
+			int ref = op - offset;
+			if( offset >= matchLength ) {
+				System.arraycopy(dst, ref, dst, op, matchLength);
+			} else {
+				//overlapping match, repeating the last offset bytes
+				for( int i = 0; i < matchLength; i++ )
+					dst[op + i] = dst[ref + i];
+			}
+			op += matchLength;
+		}
+		if( op != dstEnd )
+			throw new DataFormatException(String.format("Compressed block holds %d bytes instead of %d", op - dstOff, dstLen));
+	}
+}
@@ -1,111 +1,92 @@
 package gr.uoa.di.dsg.util;
 
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 import edu.stanford.identiscape.util.ByteArrayRegion;
 
+/**
+ * Growable byte buffer over a single contiguous array.
+ *
+ * Absolute gets and puts index the array directly. Insertions and deletions shift the tail of the data in place,
+ * and the array grows geometrically, so a sequence of insertions costs amortised linear time in the bytes moved.
+ * Regions returned by extract() alias the array and are only valid until the next insert, delete or replace.
+ */
 public class MemoryBuffer {
-	protected ArrayList<ByteArrayRegion> regions = new ArrayList<>();
+	private static final int MIN_GROWTH = 64;
+
+	protected byte[] data;
+	protected int size;
 	
+	/**
+	 * Wraps data without copying it; the buffer takes ownership of the array
+	 */
 	public MemoryBuffer(byte[] data) {
-		regions.add(new ByteArrayRegion(data));
+		this.data = data;
+		this.size = data.length;
 	}
 	
-	public void append(byte[] data) {
-		regions.add(new ByteArrayRegion(data));
+	public void append(byte[] appended) {
+		insert(size, appended);
 	}
 
 	public int size() {
-		int ret = 0;
-		for( ByteArrayRegion region : regions ) {
-			ret += region.length;
-		}
-		return ret;
+		return size;
 	}
 	
-	public int regionCount() {
-		return regions.size();
+	public int capacity() {
+		return data.length;
 	}
 	
-	public ByteArrayRegion extract(int pos, int size) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				return new ByteArrayRegion(region.buffer, accessStart, size);
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("extract failed to locate position %s", pos));
+	/**
+	 * Makes sure at least minCapacity bytes fit without reallocating
+	 */
+	public void ensureCapacity(int minCapacity) {
+		if( minCapacity > data.length )
+			data = Arrays.copyOf(data, Math.max(minCapacity, data.length + Math.max(data.length >> 1, MIN_GROWTH)));
+	}
+	
+	private void checkBounds(int pos, int length, String operation) {
+		if( pos < 0 || length < 0 || pos + length > size )
+			throw new RuntimeException(String.format("%s failed to access %d bytes at position %d as current length is %d", operation, length, pos, size));
 	}
 	
+	public ByteArrayRegion extract(int pos, int length) {
+		checkBounds(pos, length, "extract");
+		return new ByteArrayRegion(data, pos, length);
+	}
+	
+	public void delete(int pos, int length) {
+		checkBounds(pos, length, "delete");
+		System.arraycopy(data, pos + length, data, pos, size - pos - length);
+		size -= length;
+	}
+
 	/**
-	 * Assumes pos is within bounds and size is contained in single region
-	 * @param pos
-	 * @param size
+	 * Replaces length bytes at pos with the replacement, shifting the tail of the buffer if their lengths differ
 	 */
-	public void delete(int pos, int size) {
-		int currentStart = 0;
-		int i = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				//left = [region.start, pos - currentStart)
-				//right = [accessStart + size, region.size - size)
-				int leftStart = region.start;
-				int leftSize = pos - currentStart;
-				int rightStart = region.start + pos - currentStart + size;
-				int rightSize = region.length - size - leftSize;
-				regions.remove(i);
-				if( leftSize > 0 ) {
-					regions.add(i, new ByteArrayRegion(region.buffer, leftStart, leftSize));
-					i++;
-				}
-				if( rightSize > 0 )
-					regions.add(i, new ByteArrayRegion(region.buffer, rightStart, rightSize));
-				return;
-			} else {
-				currentStart += region.length;
-				i++;
-			}
+	public void replace(int pos, int length, byte[] replacement) {
+		checkBounds(pos, length, "replace");
+		int diff = replacement.length - length;
+		if( diff > 0 )
+			ensureCapacity(size + diff);
+		if( diff != 0 ) {
+			System.arraycopy(data, pos + length, data, pos + replacement.length, size - pos - length);
+			size += diff;
 		}
-		throw new RuntimeException(String.format("delete failed to locate position %s", pos));
+		System.arraycopy(replacement, 0, data, pos, replacement.length);
 	}
-
+	
 	/**
-	 * Assumes pos falls inside the bounds and size is contained in a single region
-	 * @param pos
-	 * @param size
-	 * @param replacement
+	 * Opens a gap of zeroed bytes at pos. Allows 'append' by defining size() as pos
 	 */
-	public void replace(int pos, int size, byte[] replacement) {
-		int currentStart = 0;
-		int i = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				//left = [region.start, pos - currentStart)
-				//right = [accessStart + size, region.size - size)
-				int leftStart = region.start;
-				int leftSize = pos - currentStart;
-				int rightStart = region.start + pos - currentStart + size;
-				int rightSize = region.length - size - leftSize;
-				regions.remove(i);
-				if( leftSize > 0 ) {
-					regions.add(i, new ByteArrayRegion(region.buffer, leftStart, leftSize));
-					i++;
-				}
-				regions.add(i, new ByteArrayRegion(replacement));
-				i++;
-				if( rightSize > 0 )
-					regions.add(i, new ByteArrayRegion(region.buffer, rightStart, rightSize));
-				return;
-			} else {
-				currentStart += region.length;
-				i++;
-			}
-		}
-		throw new RuntimeException(String.format("delete failed to locate position %s", pos));
+	public void insert(int pos, int length) {
+		if( pos < 0 || pos > size || length < 0 )
+			throw new RuntimeException(String.format("insert failed to locate position %s as current length is %d", pos, size));
+		ensureCapacity(size + length);
+		System.arraycopy(data, pos, data, pos + length, size - pos);
+		Arrays.fill(data, pos, pos + length, (byte) 0);
+		size += length;
 	}
 	
 	/**
@@ -114,221 +95,101 @@ public class MemoryBuffer {
 	 * @param insertedData
 	 */
 	public void insert(int pos, byte[] insertedData) {
-		int currentStart = 0;
-		int i = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				//left = [region.start, pos - currentStart)
-				//right = [accessStart + size, region.size - size)
-				int leftStart = region.start;
-				int leftSize = pos - currentStart;
-				int rightStart = region.start + pos - currentStart;
-				int rightSize = region.length - leftSize;
-				regions.remove(i);
-				if( leftSize > 0 ) {
-					regions.add(i, new ByteArrayRegion(region.buffer, leftStart, leftSize));
-					i++;
-				}
-				regions.add(i, new ByteArrayRegion(insertedData));
-				i++;
-				if( rightSize > 0 )
-					regions.add(i, new ByteArrayRegion(region.buffer, rightStart, rightSize));
-				return;
-			} else {
-				currentStart += region.length;
-				i++;
-			}
-		}
-		if( pos == currentStart ) // in case insertion was requested immediately after the last byte
-			regions.add(i, new ByteArrayRegion(insertedData));
-		else
-			throw new RuntimeException(String.format("insert failed to locate position %s as current length is %d", pos, currentStart));
+		insert(pos, insertedData.length);
+		System.arraycopy(insertedData, 0, data, pos, insertedData.length);
 	}
 	
 	public void write(byte[] output) {
-		int outputPos = 0;
-		for( ByteArrayRegion region : regions ) {
-			System.arraycopy(region.buffer, region.start, output, outputPos, region.length);
-			outputPos += region.length;
-		}
+		System.arraycopy(data, 0, output, 0, size);
 	}
 	
 	public void write(ByteBuffer output) {
-		for( ByteArrayRegion region : regions )
-			output.put(region.buffer, region.start, region.length);
+		output.put(data, 0, size);
+	}
+	
+	/**
+	 * @return a copy of the contents, trimmed to size()
+	 */
+	public byte[] toByteArray() {
+		return Arrays.copyOf(data, size);
 	}
 	
 	public void putUShort(int pos, int value) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				region.buffer[accessStart + 0] = (byte) ((value >> 8) & 0xFF);
-				region.buffer[accessStart + 1] = (byte) (value & 0xFF);
-				return;
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("putUShort failed to locate position %s", pos));
+		checkBounds(pos, 2, "putUShort");
+		data[pos + 0] = (byte) ((value >> 8) & 0xFF);
+		data[pos + 1] = (byte) (value & 0xFF);
 	}
 	
 	public int getUShort(int pos) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				int ret = 	(((int)(region.buffer[accessStart + 0] & 0xFF)) << 8) +
-							((int)(region.buffer[accessStart + 1] & 0xFF));
-				return ret & 0xFFFF;  
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("getUShort failed to locate position %s", pos));
+		checkBounds(pos, 2, "getUShort");
+		int ret = 	((data[pos + 0] & 0xFF) << 8) +
+					(data[pos + 1] & 0xFF);
+		return ret & 0xFFFF;  
 	}
 	
 	public void putInt(int pos, int value) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				region.buffer[accessStart + 0] = (byte) ((value >>> 24) & 0xFF);
-				region.buffer[accessStart + 1] = (byte) ((value >>> 16) & 0xFF);
-				region.buffer[accessStart + 2] = (byte) ((value >>> 8) & 0xFF);
-				region.buffer[accessStart + 3] = (byte) (value & 0xFF);
-				return;
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("putInt failed to locate position %s", pos));
+		checkBounds(pos, 4, "putInt");
+		data[pos + 0] = (byte) ((value >>> 24) & 0xFF);
+		data[pos + 1] = (byte) ((value >>> 16) & 0xFF);
+		data[pos + 2] = (byte) ((value >>> 8) & 0xFF);
+		data[pos + 3] = (byte) (value & 0xFF);
 	}
 	
 	public int getInt(int pos) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				return 	(((int)(region.buffer[accessStart + 0] & 0xFF )) << 24) +
-						(((int)(region.buffer[accessStart + 1] & 0xFF )) << 16) +
-						(((int)(region.buffer[accessStart + 2] & 0xFF )) << 8) +
-						((int)(region.buffer[accessStart + 3] & 0xFF));
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("getInt failed to locate position %s", pos));
+		checkBounds(pos, 4, "getInt");
+		return 	((data[pos + 0] & 0xFF) << 24) +
+				((data[pos + 1] & 0xFF) << 16) +
+				((data[pos + 2] & 0xFF) << 8) +
+				(data[pos + 3] & 0xFF);
 	}
 	
 	public void putLong(int pos, long value) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				region.buffer[accessStart + 0] = (byte) ((value >>> 56) & 0xFF);
-				region.buffer[accessStart + 1] = (byte) ((value >>> 48) & 0xFF);
-				region.buffer[accessStart + 2] = (byte) ((value >>> 40) & 0xFF);
-				region.buffer[accessStart + 3] = (byte) ((value >>> 32) & 0xFF);
-				region.buffer[accessStart + 4] = (byte) ((value >>> 24) & 0xFF);
-				region.buffer[accessStart + 5] = (byte) ((value >>> 16) & 0xFF);
-				region.buffer[accessStart + 6] = (byte) ((value >>> 8) & 0xFF);
-				region.buffer[accessStart + 7] = (byte) (value & 0xFF);
-				return;
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("putLong failed to locate position %s", pos));
+		checkBounds(pos, 8, "putLong");
+		data[pos + 0] = (byte) ((value >>> 56) & 0xFF);
+		data[pos + 1] = (byte) ((value >>> 48) & 0xFF);
+		data[pos + 2] = (byte) ((value >>> 40) & 0xFF);
+		data[pos + 3] = (byte) ((value >>> 32) & 0xFF);
+		data[pos + 4] = (byte) ((value >>> 24) & 0xFF);
+		data[pos + 5] = (byte) ((value >>> 16) & 0xFF);
+		data[pos + 6] = (byte) ((value >>> 8) & 0xFF);
+		data[pos + 7] = (byte) (value & 0xFF);
 	}
 	
 	public long getLong(int pos) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				return 	(((long)(region.buffer[accessStart + 0] & 0xFF )) << 56) +
-						(((long)(region.buffer[accessStart + 1] & 0xFF )) << 48) +
-						(((long)(region.buffer[accessStart + 2] & 0xFF )) << 40) +
-						(((long)(region.buffer[accessStart + 3] & 0xFF )) << 32) +
-						(((long)(region.buffer[accessStart + 4] & 0xFF )) << 24) +
-						(((long)(region.buffer[accessStart + 5] & 0xFF )) << 16) +
-						(((long)(region.buffer[accessStart + 6] & 0xFF )) << 8) +
-						((long)(region.buffer[accessStart + 7] & 0xFF));
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("getLong failed to locate position %s", pos));
+		checkBounds(pos, 8, "getLong");
+		return 	(((long)(data[pos + 0] & 0xFF )) << 56) +
+				(((long)(data[pos + 1] & 0xFF )) << 48) +
+				(((long)(data[pos + 2] & 0xFF )) << 40) +
+				(((long)(data[pos + 3] & 0xFF )) << 32) +
+				(((long)(data[pos + 4] & 0xFF )) << 24) +
+				(((long)(data[pos + 5] & 0xFF )) << 16) +
+				(((long)(data[pos + 6] & 0xFF )) << 8) +
+				((long)(data[pos + 7] & 0xFF));
 	}
 	
 	public void putByte(int pos, byte value) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				region.buffer[accessStart] = value;
-				return;
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("putByte failed to locate position %s", pos));
+		checkBounds(pos, 1, "putByte");
+		data[pos] = value;
 	}
 	
 	public byte getByte(int pos) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				return region.buffer[accessStart];
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("getByte failed to locate position %s", pos));
+		checkBounds(pos, 1, "getByte");
+		return data[pos];
 	}
 	
 	public void put(int pos, ByteArrayRegion values) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				System.arraycopy(values.buffer,  values.start, region.buffer, accessStart, values.length);
-				return;
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("put failed to locate position %s", pos));
+		checkBounds(pos, values.length, "put");
+		System.arraycopy(values.buffer,  values.start, data, pos, values.length);
 	}
 	
 	public void put(int pos, byte[] values) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				System.arraycopy(values,  0, region.buffer, accessStart, values.length);
-				return;
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("put failed to locate position %s", pos));
+		checkBounds(pos, values.length, "put");
+		System.arraycopy(values,  0, data, pos, values.length);
 	}
 	
 	public void get(int pos, byte[] values) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( pos < currentStart + region.length ) {
-				int accessStart = region.start + pos - currentStart;
-				System.arraycopy(region.buffer, accessStart, values,  0, values.length);
-				return;
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("get failed to locate position %s", pos));
+		checkBounds(pos, values.length, "get");
+		System.arraycopy(data, pos, values,  0, values.length);
 	}
 	
 	/*
@@ -342,16 +203,8 @@ public class MemoryBuffer {
 	*/
 
 	public int compare(int firstStart, int firstLength, byte[] secondData, int secondStart, int secondLength) {
-		int currentStart = 0;
-		for( ByteArrayRegion region : regions ) {
-			if ( firstStart < currentStart + region.length ) {
-				int accessStart = region.start + firstStart - currentStart;
-				return compare(region.buffer, accessStart, firstLength, secondData, secondStart, secondLength);
-			} else {
-				currentStart += region.length;
-			}
-		}
-		throw new RuntimeException(String.format("put failed to locate position %s", firstStart));
+		checkBounds(firstStart, firstLength, "compare");
+		return compare(data, firstStart, firstLength, secondData, secondStart, secondLength);
 	}
 	
 	public static int compare(byte[] firstData, int firstStart, int firstLength, byte[] secondData, int secondStart, int secondLength) {
@@ -10,315 +10,377 @@ import gr.uoa.di.dsg.FileManager.FileBlock;
 import gr.uoa.di.dsg.util.MemoryBuffer;
 import gr.uoa.di.dsg.vsrm.dump.DataBlockEntryDump;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
+ * A data page: records are packed upwards from the start of the page, and their slot directory grows downwards
+ * from the trailer at its end.
+ *
+ * Page layout (format version 1):
+ *   [records ... dataEnd][free][slot n-1 ... slot 0][usedBytes][dataEnd][nextFreeBlock][numEntries]
+ * Slots are [recNo, position, length], sorted by recNo, so that records are found by binary search.
+ * usedBytes is the sum of the record lengths, so the free space is known without a walk; the bytes below dataEnd
+ * that are not used are gaps left by deleted or shrunk records. New records go to dataEnd, and the page is compacted,
+ * moving records in bulk, only when the space there does not suffice.
+ * The gaps themselves are not listed: usedBytes and dataEnd are all the free-space state of the page. A gap list would
+ * take trailer room from the records for every gap, and would have to be searched and split on each add, for gaps
+ * that tree nodes, mostly rewritten slightly larger than they were, rarely fit; a compaction reclaims all of them at once.
+ *
+ * Pages of format version 0, with an 8 byte trailer and unsorted slots, are converted by convertFromVersion0()
  *
  * @author nikos
  */
 public class DataBlock extends GenericBlock {
     private static final int NUM_ENTRIES_SIZE = Integer.SIZE / Byte.SIZE;
     private static final int NEXT_FREE_BLOCK_SIZE = Integer.SIZE / Byte.SIZE;
-    protected static final int TRAILER_SIZE = NUM_ENTRIES_SIZE + NEXT_FREE_BLOCK_SIZE;
+    private static final int DATA_END_SIZE = Integer.SIZE / Byte.SIZE;
+    private static final int USED_BYTES_SIZE = Integer.SIZE / Byte.SIZE;
+    protected static final int TRAILER_SIZE = NUM_ENTRIES_SIZE + NEXT_FREE_BLOCK_SIZE + DATA_END_SIZE + USED_BYTES_SIZE;
+    private static final int VERSION_0_TRAILER_SIZE = NUM_ENTRIES_SIZE + NEXT_FREE_BLOCK_SIZE;
 
     private static final int ENTRY_REC_NO_SIZE = Long.SIZE / Byte.SIZE;
     private static final int ENTRY_POSITION_SIZE = Integer.SIZE / Byte.SIZE;
     private static final int ENTRY_LENGTH_SIZE = Integer.SIZE / Byte.SIZE;
 
     protected static final int ENTRY_SIZE = ENTRY_REC_NO_SIZE + ENTRY_POSITION_SIZE + ENTRY_LENGTH_SIZE;
-    
+
     private static final int NUM_ENTRIES_REVERSE_OFFSET = NUM_ENTRIES_SIZE;
     private static final int NEXT_FREE_BLOCK_REVERSE_OFFSET = NUM_ENTRIES_REVERSE_OFFSET + NEXT_FREE_BLOCK_SIZE;
-    
+    private static final int DATA_END_REVERSE_OFFSET = NEXT_FREE_BLOCK_REVERSE_OFFSET + DATA_END_SIZE;
+    private static final int USED_BYTES_REVERSE_OFFSET = DATA_END_REVERSE_OFFSET + USED_BYTES_SIZE;
+
     private static final int FIRST_ENTRY_REVERSE_OFFSET = ENTRY_SIZE + TRAILER_SIZE;
 
     private static final int ENTRY_REC_NO_OFFSET = 0;
     private static final int ENTRY_POSITION_OFFSET = ENTRY_REC_NO_OFFSET + ENTRY_REC_NO_SIZE;
     private static final int ENTRY_LENGTH_OFFSET = ENTRY_POSITION_OFFSET + ENTRY_POSITION_SIZE;
-    
+
+    //slots ordered by position for compaction, as position << 32 | slot index; reused to keep compaction allocation free
+    private static final ThreadLocal<long[]> compactionOrder = ThreadLocal.withInitial(() -> new long[256]);
+
     DataBlock(FileBlock block) {
         super(block);
     }
-    
-    private ArrayList<DataBlockEntry> populateEntries() {
-        int numEntries = getNumEntries();
-        ArrayList<DataBlockEntry> entries = new ArrayList<>(numEntries);
-        ByteBuffer buffer = getBuffer();
-        int blockSize = buffer.capacity();
-        for(int i=0; i<numEntries;i++) {
-            int start = blockSize - FIRST_ENTRY_REVERSE_OFFSET - i * ENTRY_SIZE;
-            entries.add(new DataBlockEntry(
-                    buffer.getLong(start + ENTRY_REC_NO_OFFSET), 
-                    buffer.getInt(start + ENTRY_POSITION_OFFSET), 
-                    buffer.getInt(start + ENTRY_LENGTH_OFFSET), 
-                    i
-            ));
-        }
-        Collections.sort(entries);
-        return entries;
-    }
-    
-    private void persistEntries(ArrayList<DataBlockEntry> entries) {
-        ByteBuffer buffer = getBuffer();
-        int blockSize = buffer.capacity();
-        setNumEntries(entries.size());
-        int i = 0;
-        for( DataBlockEntry entry : entries ) {
-            int start = blockSize - FIRST_ENTRY_REVERSE_OFFSET - i * ENTRY_SIZE;
-            buffer.putLong(start + ENTRY_REC_NO_OFFSET, entry.recNo);
-            buffer.putInt(start + ENTRY_POSITION_OFFSET, entry.position);
-            buffer.putInt(start + ENTRY_LENGTH_OFFSET, entry.length);
-            entry.realIndex = i;
-            i++;
-        }
-    }
-    
+
     public int getNumEntries() {
         return getBuffer().getInt(getBuffer().capacity() - NUM_ENTRIES_REVERSE_OFFSET);
     }
-    
+
     private void setNumEntries(int value) {
         getBuffer().putInt(getBuffer().capacity() - NUM_ENTRIES_REVERSE_OFFSET, value);
     }
-    
+
+    private int getDataEnd() {
+        return getBuffer().getInt(getBuffer().capacity() - DATA_END_REVERSE_OFFSET);
+    }
+
+    private void setDataEnd(int value) {
+        getBuffer().putInt(getBuffer().capacity() - DATA_END_REVERSE_OFFSET, value);
+    }
+
+    private int getUsedBytes() {
+        return getBuffer().getInt(getBuffer().capacity() - USED_BYTES_REVERSE_OFFSET);
+    }
+
+    private void setUsedBytes(int value) {
+        getBuffer().putInt(getBuffer().capacity() - USED_BYTES_REVERSE_OFFSET, value);
+    }
+
+    private int slotStart(int index) {
+        return getBuffer().capacity() - FIRST_ENTRY_REVERSE_OFFSET - index * ENTRY_SIZE;
+    }
+
+    private long getSlotRecNo(int index) {
+        return getBuffer().getLong(slotStart(index) + ENTRY_REC_NO_OFFSET);
+    }
+
+    private int getSlotPosition(int index) {
+        return getBuffer().getInt(slotStart(index) + ENTRY_POSITION_OFFSET);
+    }
+
+    private int getSlotLength(int index) {
+        return getBuffer().getInt(slotStart(index) + ENTRY_LENGTH_OFFSET);
+    }
+
+    private void setSlot(int index, long recNo, int position, int length) {
+        int start = slotStart(index);
+        ByteBuffer buffer = getBuffer();
+        buffer.putLong(start + ENTRY_REC_NO_OFFSET, recNo);
+        buffer.putInt(start + ENTRY_POSITION_OFFSET, position);
+        buffer.putInt(start + ENTRY_LENGTH_OFFSET, length);
+    }
+
     /**
-     * 
-     * @return The gross free space remaining in this block. Gross because it includes entry overhead (position/length) as well 
+     * @return the index of the slot of recNo, or (-(insertion index) - 1) if the page does not hold it
+     */
+    private int findSlot(long recNo) {
+        int low = 0;
+        int high = getNumEntries() - 1;
+        while( low <= high ) {
+            int mid = (low + high) >>> 1;
+            long midRecNo = getSlotRecNo(mid);
+            if( midRecNo < recNo )
+                low = mid + 1;
+            else if( midRecNo > recNo )
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -(low + 1);
+    }
+
+    private int requireSlot(long recNo, String operation) {
+        int index = findSlot(recNo);
+        if( index < 0 )
+            throw new IllegalArgumentException(String.format("DataBlock.%s(%d): record not found in page %d. Index was wrong?", operation, recNo, getBlockNo()));
+        return index;
+    }
+
+    /**
+     * Moves length bytes of the page from one position to another; the ranges may overlap
+     */
+    private void move(int from, int to, int length) {
+        if( length == 0 || from == to )
+            return;
+        ByteBuffer buffer = getBuffer();
+        if( buffer.hasArray() ) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + from, buffer.array(), buffer.arrayOffset() + to, length);
+        } else {
+            //a bulk copy between direct buffers is a memmove, safe for overlapping ranges
+            ByteBuffer source = buffer.duplicate();
+            source.limit(from + length).position(from);
+            ByteBuffer target = buffer.duplicate();
+            target.position(to);
+            target.put(source);
+        }
+    }
+
+    /**
+     *
+     * @return The gross free space remaining in this block. Gross because it includes entry overhead (position/length) as well
      */
     public int getGrossFreeSpace() {
-        final int[] used = new int[1];
-        used[0] = TRAILER_SIZE;
-        walkEntries(new IDataBlockEntryAction() {
-            @Override
-            public boolean process(int index, long recNo, int position, int length) {
-                used[0] += length + ENTRY_SIZE;
-                return true;
-            }
-        });
-        return getBuffer().capacity() - used[0];
+        return getCurrentNetCapacity() - getUsedBytes();
     }
-    
+
     public int getCurrentNetCapacity() {
         return getBuffer().capacity() - TRAILER_SIZE - getNumEntries() * ENTRY_SIZE;
     }
-    
-    private void compactRecord(ArrayList<DataBlockEntry> entries) {
+
+    /**
+     * Packs the records at the start of the page, in their current order, leaving no gaps below dataEnd
+     */
+    private void compact() {
+        int numEntries = getNumEntries();
+        long[] order = compactionOrder.get();
+        if( order.length < numEntries ) {
+            order = new long[Math.max(numEntries, order.length * 2)];
+            compactionOrder.set(order);
+        }
+        for( int i = 0; i < numEntries; i++ )
+            order[i] = (long) getSlotPosition(i) << 32 | i;
+        Arrays.sort(order, 0, numEntries);
         int expectedBeginning = 0;
-        ByteBuffer buffer = getBuffer();
-        for( DataBlockEntry entry: entries ) {
-            int currentOffset = entry.position - expectedBeginning;
-            if( currentOffset > 0 ) {
-                buffer.position(entry.position);
-                buffer.limit(entry.position + entry.length);
-                ByteBuffer sourceSclice = buffer.slice(); //source slice with entry
-                buffer.clear();
-                buffer.position(expectedBeginning);
-                buffer.limit(expectedBeginning + entry.length);
-                ByteBuffer targetSlice = buffer.slice(); //target slice with proper position for entry
-                buffer.clear();
-                targetSlice.put(sourceSclice); //move it
-                entry.position = expectedBeginning; //and fix the cache
+        for( int i = 0; i < numEntries; i++ ) {
+            int index = (int) order[i];
+            int position = (int) (order[i] >>> 32);
+            int length = getSlotLength(index);
+            if( position != expectedBeginning ) {
+                move(position, expectedBeginning, length);
+                getBuffer().putInt(slotStart(index) + ENTRY_POSITION_OFFSET, expectedBeginning);
             }
-            expectedBeginning += entry.length;
+            expectedBeginning += length;
+        }
+        setDataEnd(expectedBeginning);
+    }
+
+    /**
+     * Finds room for dataSize bytes at dataEnd, compacting the page if needed, once a page holds numEntries slots
+     * @return the position of the room
+     */
+    private int reserve(int dataSize, int numEntries) {
+        int directoryStart = getBuffer().capacity() - TRAILER_SIZE - numEntries * ENTRY_SIZE;
+        if( getDataEnd() + dataSize > directoryStart ) {
+            compact();
+            if( getDataEnd() + dataSize > directoryStart )
+                throw new RuntimeException(String.format("DataBlock.addRecord() has no room for %d bytes in page %d, with %d free", dataSize, getBlockNo(), getGrossFreeSpace()));
         }
-        persistEntries(entries);
+        int position = getDataEnd();
+        setDataEnd(position + dataSize);
+        setUsedBytes(getUsedBytes() + dataSize);
+        return position;
     }
-    
+
+    private void writeData(int position, MemoryBuffer data) {
+        getBuffer().position(position);
+        data.write(getBuffer());
+    }
+
     public void addRecord(long recNo, MemoryBuffer data) {
-        /*
-        Alternate implementation:
-            Maintain the list sorted by position in the file
-        Add:
-            for i = 1 to 2
-                Iterate through the list from the end going back.
-                If space is found, 
-                    add it as selected position
-                    move all metadata one place off //in the common case, this will not happen
-                    update entry's metadata
-                    exit loop
-                else
-                    //no big enough gap was found
-                    compact record
-                    //keep looping
-        */
-        /*
-        2nd alternate:
-            Maintain the list soirted by recNo but keep separate parallel linked list with position sort
-            Allows binary search for recNo (fast lookups), while accessing the list allows for fast add
-        */
-        //*DEBUG*/if( getBlockNo() == 40 )
-            //*DEBUG*/System.out.format("add %d l=%d%n", recNo, data.length);
-        ArrayList<DataBlockEntry> entries = populateEntries();
+        int index = findSlot(recNo);
+        if( index >= 0 )
+            throw new IllegalArgumentException(String.format("DataBlock.addRecord(%d): record already in page %d", recNo, getBlockNo()));
+        index = -(index + 1);
+        int numEntries = getNumEntries();
         int dataSize = data.size();
-        int expectedEntryMetadataPosition = getBuffer().capacity() - FIRST_ENTRY_REVERSE_OFFSET; 
-        //if the last entry in this block overlaps with the space for this entry's metadata, we need to compact this record
-        if( ! entries.isEmpty() ) {
-//            DataBlockEntry entry = entries.last();
-            DataBlockEntry entry = entries.get(entries.size()-1);
-            expectedEntryMetadataPosition = getCurrentNetCapacity() - ENTRY_SIZE;
-            if( entry.position + entry.length > expectedEntryMetadataPosition )
-                compactRecord(entries);
-        }
-        
-        DataBlockEntry selectedGap = null;
-        int passes = 0; //passess protects against an infinite loop if this method is called to place a record bigger than its available space
-        do {
-            ArrayList<DataBlockEntry> gaps = new ArrayList<>();
-            //identify all gaps. Algorithm below assumes entries are sorted by position
-            int expectedBeginning = 0;
-            for( DataBlockEntry entry: entries ) {
-                if( entry.position > expectedBeginning ) {
-                    gaps.add(new DataBlockEntry(0, expectedBeginning, entry.position - expectedBeginning, 0));
-                }
-                expectedBeginning = entry.position + entry.length;
-            }
-            // and add the last region
-            int remaining = expectedEntryMetadataPosition - expectedBeginning;
-            //if( remaining > 0) allow this as zero length entries can use this space as long as ENTRY_SIZE metadata space is available
-            gaps.add(new DataBlockEntry(0, expectedBeginning, remaining, 0));
-            Collections.sort(gaps);
-
-            //is there a big enough gap for data.length bytes?
-            for( DataBlockEntry gap: gaps ) {
-                if( gap.length >= dataSize && gap.position + dataSize <= expectedEntryMetadataPosition ) {
-                    selectedGap = gap;
-                    passes--;
-                    break;
-                }
-            }
-            if( selectedGap == null )
-                compactRecord(entries); // and try again
-            passes++;
-        } while( selectedGap == null && passes <= 2 );
-        if( passes > 2 ) {
-            throw new RuntimeException("DataBlock.addRecord() failed to add block twice. What happened here?");
+        //the new slot is taken into account before compaction, so that the records are packed clear of it
+        int position = reserve(dataSize, numEntries + 1);
+        //open the slot: slots from index on move one place down in the page
+        move(slotStart(numEntries - 1), slotStart(numEntries), (numEntries - index) * ENTRY_SIZE);
+        setNumEntries(numEntries + 1);
+        setSlot(index, recNo, position, dataSize);
+        writeData(position, data);
+    }
+
+    /**
+     * Replaces a record in place when the new data is not longer, otherwise moves it within the page
+     */
+    public void replaceRecord(long recNo, MemoryBuffer data) {
+        int index = requireSlot(recNo, "replaceRecord");
+        int position = getSlotPosition(index);
+        int length = getSlotLength(index);
+        int dataSize = data.size();
+        if( dataSize > length ) {
+            delRecord(recNo);
+            addRecord(recNo, data);
+            return;
         }
-        entries.add(new DataBlockEntry(recNo, selectedGap.position, dataSize, -1));
-        persistEntries(entries);
-        getBuffer().position(selectedGap.position);
-        //getBuffer().put(data);
-        data.write(getBuffer());
+        if( position + length == getDataEnd() )
+            setDataEnd(position + dataSize);
+        setUsedBytes(getUsedBytes() - length + dataSize);
+        getBuffer().putInt(slotStart(index) + ENTRY_LENGTH_OFFSET, dataSize);
+        writeData(position, data);
     }
-    
+
     public int delRecord(final long  recNo) {
-        final int ret[] = new int[1];
-        final ByteBuffer buffer = getBuffer();
-        final int blockSize = buffer.capacity();
-        WalkerReturn wret = walkEntries(new IDataBlockEntryAction() {
-            @Override
-            public boolean process(int index, long precNo, int position, int length) {
-                if( precNo == recNo ) {
-                    ret[0] = length;
-                    int numEntries = getNumEntries();
-                    setNumEntries( numEntries - 1); //this is safe here regarding the walker
-                    //and now move everything beyond this point entry by entry (respecting any sorting order)
-                    int first = blockSize - FIRST_ENTRY_REVERSE_OFFSET;
-                    for( int i = index + 1; i < numEntries; i++ ) {
-                        int sourcePosition = first - i * ENTRY_SIZE;
-                        int targetPosition = first - (i - 1) * ENTRY_SIZE;
-                        for( int ic = 0; ic < ENTRY_SIZE; ic++)
-                            buffer.put(targetPosition + ic, buffer.get(sourcePosition + ic));
-                    }
-                    //and update the cache
-                    return false;
-                }
-                return true;
-            }
-        });
-        
-        //*DEBUG*/if( getBlockNo() == 40 )
-            //*DEBUG*/System.out.format("del %d -> %d%n", recNo, ret[0]);
-        if( wret == WalkerReturn.STOPPED )
-            return ret[0];
-        else
-            throw new IllegalArgumentException(String.format("DataBlock.delete(%d): record not found in page. Index was wrong?", recNo));
-        
-    }
-    
+        int index = requireSlot(recNo, "delRecord");
+        int numEntries = getNumEntries();
+        int position = getSlotPosition(index);
+        int length = getSlotLength(index);
+        //close the slot: slots after index move one place up in the page
+        move(slotStart(numEntries - 1), slotStart(numEntries - 2), (numEntries - 1 - index) * ENTRY_SIZE);
+        setNumEntries(numEntries - 1);
+        setUsedBytes(getUsedBytes() - length);
+        if( numEntries == 1 )
+            setDataEnd(0);
+        else if( position + length == getDataEnd() )
+            setDataEnd(position);
+        return length;
+    }
+
     public byte[] getRecord(final long recNo) {
-        final byte[][] ret = new byte[1][];
-        
-        WalkerReturn wret = walkEntries(new IDataBlockEntryAction() {
-            @Override
-            public boolean process(int index, long precNo, int position, int length) {
-                if( precNo == recNo ) {
-                    ret[0] = getData(position, length);
-                    return false;
-                }
-                return true;
-            }
-        });
-        
-        if( wret == WalkerReturn.STOPPED )
-            return ret[0];
-        else
-            throw new IllegalArgumentException(String.format("DataBlock.getRecord(%d): Record not found in page. Index was wrong?", recNo));
+        int index = requireSlot(recNo, "getRecord");
+        return getData(getSlotPosition(index), getSlotLength(index));
     }
-    
+
     private byte[] getData(int position, int length) {
         byte[] ret = new byte[length];
         getBuffer().position(position);
         getBuffer().get(ret);
         return ret;
     }
-    
+
     public int getRecordLength(final long recNo) {
-        final int[] ret = new int[1];
-        WalkerReturn wret = walkEntries(new IDataBlockEntryAction() {
-            @Override
-            public boolean process(int index, long precNo, int position, int length) {
-                if (recNo == precNo ) {
-                    ret[0] = length;
-                    return false;
-                }
-                return true;
-            }
-        });
-        if( wret == WalkerReturn.STOPPED )
-            return ret[0];
-        else
-            throw new RuntimeException(String.format("DataBlock.getRecordLength(%d): Record not found in page. Index was wroing?", recNo));
+        return getSlotLength(requireSlot(recNo, "getRecordLength"));
     }
-    
+
     public int getNextFreeBlock() {
         return getBuffer().getInt(getBuffer().capacity() - NEXT_FREE_BLOCK_REVERSE_OFFSET);
     }
-    
+
     public void setNextFreeBlock(int no) {
         getBuffer().putInt(getBuffer().capacity() - NEXT_FREE_BLOCK_REVERSE_OFFSET, no);
     }
- 
-     private enum WalkerReturn {
-        EMPTY, STOPPED, EXHAUSTED
+
+    /**
+     * @return the length of the largest record of a page of format version 0
+     */
+    int getLargestVersion0Record() {
+        ByteBuffer buffer = getBuffer();
+        int capacity = buffer.capacity();
+        int numEntries = buffer.getInt(capacity - NUM_ENTRIES_REVERSE_OFFSET);
+        int largest = 0;
+        for( int i = 0; i < numEntries; i++ )
+            largest = Math.max(largest, buffer.getInt(capacity - VERSION_0_TRAILER_SIZE - (i + 1) * ENTRY_SIZE + ENTRY_LENGTH_OFFSET));
+        return largest;
+    }
+
+    /**
+     * Rewrites a page of format version 0 (slots after an 8 byte trailer, ordered by position) in the current format.
+     * The trailer grows, so records that no longer fit, the largest first, are removed from the page and added to evicted,
+     * for the caller to store elsewhere
+     */
+    void convertFromVersion0(List<Map.Entry<Long, byte[]>> evicted) {
+        ByteBuffer buffer = getBuffer();
+        int capacity = buffer.capacity();
+        int numEntries = buffer.getInt(capacity - NUM_ENTRIES_REVERSE_OFFSET);
+        long[] recNos = new long[numEntries];
+        int[] positions = new int[numEntries];
+        int[] lengths = new int[numEntries];
+        int usedBytes = 0;
+        for( int i = 0; i < numEntries; i++ ) {
+            int start = capacity - VERSION_0_TRAILER_SIZE - (i + 1) * ENTRY_SIZE;
+            recNos[i] = buffer.getLong(start + ENTRY_REC_NO_OFFSET);
+            positions[i] = buffer.getInt(start + ENTRY_POSITION_OFFSET);
+            lengths[i] = buffer.getInt(start + ENTRY_LENGTH_OFFSET);
+            usedBytes += lengths[i];
+        }
+        boolean[] kept = new boolean[numEntries];
+        Arrays.fill(kept, true);
+        int keptEntries = numEntries;
+        while( TRAILER_SIZE + keptEntries * ENTRY_SIZE + usedBytes > capacity ) {
+            int largest = -1;
+            for( int i = 0; i < numEntries; i++ )
+                if( kept[i] && (largest < 0 || lengths[i] > lengths[largest]) )
+                    largest = i;
+            kept[largest] = false;
+            keptEntries--;
+            usedBytes -= lengths[largest];
+            evicted.add(new AbstractMap.SimpleImmutableEntry<>(recNos[largest], getData(positions[largest], lengths[largest])));
+        }
+        //version 0 keeps slots ordered by position, so packing them in slot order only moves records down
+        Integer[] byPosition = new Integer[numEntries];
+        for( int i = 0; i < numEntries; i++ )
+            byPosition[i] = i;
+        Arrays.sort(byPosition, (a, b) -> positions[a] != positions[b] ? Integer.compare(positions[a], positions[b]) : Integer.compare(lengths[a], lengths[b]));
+        int expectedBeginning = 0;
+        for( int i : byPosition ) {
+            if( ! kept[i] )
+                continue;
+            move(positions[i], expectedBeginning, lengths[i]);
+            positions[i] = expectedBeginning;
+            expectedBeginning += lengths[i];
+        }
+        Integer[] byRecNo = byPosition;
+        Arrays.sort(byRecNo, (a, b) -> Long.compare(recNos[a], recNos[b]));
+        int index = 0;
+        for( int i : byRecNo )
+            if( kept[i] )
+                setSlot(index++, recNos[i], positions[i], lengths[i]);
+        setNumEntries(keptEntries);
+        setDataEnd(expectedBeginning);
+        setUsedBytes(usedBytes);
     }
-    
+
     /**
-     * 
+     *
      * @param action
-     * @return 0 when list is empty, 1 when action instructed walker to stop, 2 when list was exhausted without action signaling to stop
-     * @throws IOException 
+     * @return false if the action instructed the walker to stop
      */
-    private WalkerReturn walkEntries(IDataBlockEntryAction action) {
+    private boolean walkEntries(IDataBlockEntryAction action) {
         int numEntries = getNumEntries();
-        if( numEntries == 0 )
-            return WalkerReturn.EMPTY;
-        
-        ByteBuffer buffer = getBuffer();
-        int first = buffer.capacity() - FIRST_ENTRY_REVERSE_OFFSET;
         for(int i = 0; i < numEntries; i++) {
-            int start = first - i * ENTRY_SIZE;
-            if (! action.process(i,
-                    buffer.getLong(start + ENTRY_REC_NO_OFFSET),
-                    buffer.getInt(start + ENTRY_POSITION_OFFSET), 
-                    buffer.getInt(start + ENTRY_LENGTH_OFFSET)))
-                return WalkerReturn.STOPPED;
+            if (! action.process(i, getSlotRecNo(i), getSlotPosition(i), getSlotLength(i)))
+                return false;
         }
-        return WalkerReturn.EXHAUSTED;
+        return true;
     }
-    
+
     protected ArrayList<DataBlockEntryDump> dumpAll() {
         final ArrayList<DataBlockEntryDump> ret = new ArrayList<>();
         walkEntries(new IDataBlockEntryAction() {
@@ -355,4 +417,3 @@ public class DataBlock extends GenericBlock {
         return metrics;
     }
 }
- 
\ No newline at end of file
@@ -14,6 +14,8 @@ public class FreeListEntry {
     public int blockNo;
     public int freeSpace;
     public int nextInList;
+    public int previousInList; //0 for the head of the list
+    int classSlot; //position among the entries of its size class
     public FreeListEntry(int blockNo, int freeSpace, int nextInList) {
         this.blockNo = blockNo;
         this.freeSpace = freeSpace;
@@ -7,185 +7,189 @@
 package gr.uoa.di.dsg.vsrm;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
 
 /**
+ * The data blocks with at least freeListThreshold bytes free, other than the last one.
+ *
+ * On disk they are a chain from the header through the nextFreeBlock of each block, in no particular order.
+ * In memory each of them has an entry, which also links back to its predecessor in the chain so that it is
+ * unlinked without a walk, and sits in the size class of its free space: classes are SIZE_CLASS_BYTES wide
+ * and a bitmap of the non empty ones finds the smallest class that surely fits a record in one scan.
+ * The entries are built by walking the chain once, on first use after open.
  *
  * @author nikos
  */
 public class FreeListManager {
+    private static final int SIZE_CLASS_SHIFT = 6;
+    private static final int SIZE_CLASS_BYTES = 1 << SIZE_CLASS_SHIFT;
+    /**
+     * Entries of the class just below a request checked for a fit, when no larger class has any
+     */
+    private static final int MAX_PROBES = 16;
+
     private RecordManager host;
-    private ArrayList<FreeListEntry> cachedList = new ArrayList<>();
-    
+    private boolean loaded = false;
+    private final HashMap<Integer, FreeListEntry> entries = new HashMap<>();
+    private FreeListEntry[][] classes;
+    private int[] classSizes;
+    private final BitSet nonEmptyClasses = new BitSet();
+
     public FreeListManager(RecordManager host) {
         this.host = host;
+        int numClasses = (host.blockSize >> SIZE_CLASS_SHIFT) + 1;
+        classes = new FreeListEntry[numClasses][];
+        classSizes = new int[numClasses];
     }
-    
+
+    private int sizeClass(int freeSpace) {
+        return Math.min(freeSpace >> SIZE_CLASS_SHIFT, classes.length - 1);
+    }
+
+    /**
+     * @return a block with more than needed bytes free, the one with the least free space by size class, or 0 if there is none
+     */
     public int findBlock(final int needed) throws IOException {
-        final int ret[] = new int[1]; //darn hack required to pass back something
-
-        walkFreeList(new IFreeListAction() {
-            @Override
-            public boolean process(FreeListEntry entry) {
-                if( entry.freeSpace > needed ) { // first fit policy
-                    ret[0] = entry.blockNo;
-                    return false; //stop walking
-                }
-                return true; //keep walking
-            }
-        });
-        
-        return ret[0];
+        load();
+        int exact = sizeClass(needed);
+        //every block of a higher class has at least (exact + 1) * SIZE_CLASS_BYTES > needed bytes free
+        int c = nonEmptyClasses.nextSetBit(exact + 1);
+        if( c >= 0 )
+            return classes[c][classSizes[c] - 1].blockNo;
+        FreeListEntry[] candidates = classes[exact];
+        for( int i = classSizes[exact] - 1, probes = 0; i >= 0 && probes < MAX_PROBES; i--, probes++ )
+            if( candidates[i].freeSpace > needed )
+                return candidates[i].blockNo;
+        return 0;
     }
-    
+
     public void addBlock(DataBlock block) throws IOException {
         int blockFreeSpace = block.getGrossFreeSpace();
         if( blockFreeSpace < host.freeListThreshold )
             return;
-        
-        int current_head = host.header.getFirstFreeBlock();
+        load();
+        if( entries.containsKey(block.getBlockNo()) ) {
+            resize(entries.get(block.getBlockNo()), blockFreeSpace);
+            return;
+        }
 
-        //update cache
-        cachedList.add(0, new FreeListEntry(block.getBlockNo(), blockFreeSpace, current_head));
-        //*DEBUG*/if( block.getBlockNo() == 40 )
-            //*DEBUG*/System.out.format("ADD %d:%d%n", block.getBlockNo(), blockFreeSpace);
+        int current_head = host.header.getFirstFreeBlock();
+        FreeListEntry entry = new FreeListEntry(block.getBlockNo(), blockFreeSpace, current_head);
+        if( current_head > 0 )
+            entries.get(current_head).previousInList = entry.blockNo;
+        entries.put(entry.blockNo, entry);
+        classify(entry);
         //add it to the head
         //ALWAYS update next free block, to X or 0 (because it may come up again in the list)
-        if( current_head > 0 ) { 
-            block.setNextFreeBlock(current_head);
-            host.writeBlock(block);
-        }
+        block.setNextFreeBlock(current_head);
+        host.writeBlock(block);
         host.header.setFirstFreeBlock(block.getBlockNo());
         //*TRACE*/System.out.format("FL.Add b=%d free=%d next_free=%d header=%d%n", block.getBlockNo(), blockFreeSpace, current_head, host.header.firstFreeBlock);
     }
-    
+
     public void checkUpdatedBlock(final DataBlock block, int previousFreeSpace) throws IOException {
-        /*
-        Parameters:
-            is block already in cache?
-            has block's free space expanded or shrinked?
-            if shrinked, has it fell below threshold?
-            if expanded, was it below threshold before and not over it?
-        */
-        //*DEBUG*/final String[] action = new String[1];
         final int newFreeSpace = block.getGrossFreeSpace();
-        
+
         if( newFreeSpace == previousFreeSpace ) //if no change in free size, bail
         	return;
-        
-        if( previousFreeSpace >= host.freeListThreshold ) {
-            //*DEBUG*/action[0] = "Already in free list:";
-            //should already be in the cache
-            if( newFreeSpace < host.freeListThreshold ) {
-                //remove it from the list
-                //*DEBUG*/action[0] += "Remove-";
-                walkFreeList( new IFreeListAction() {
-                    private FreeListEntry previous = null;
-                    @Override
-                    public boolean process(FreeListEntry entry) throws IOException {
-                        if( entry.blockNo == block.getBlockNo() ) {
-                            if( previous == null ) {
-                                //*DEBUG*/action[0] += "update header";
-                                host.header.setFirstFreeBlock(entry.nextInList);
-                                //*TRACE*/System.out.format("FL.Del block=%d free=%d HEAD=%d%n", block.getBlockNo(), newFreeSpace, entry.nextInList);
-                            } else {
-                                //*DEBUG*/action[0] += "modify previous " + Integer.toString(previous.blockNo);
-                                DataBlock prvBlock = new DataBlock(host.readBlock(previous.blockNo));
-                                prvBlock.setNextFreeBlock(entry.nextInList);
-                                host.writeBlock(prvBlock);
-                                host.release(prvBlock);
-                                //AND ALSO UPDATE CACHE!!!
-                                previous.nextInList = entry.nextInList;
-                                //*TRACE*/System.out.format("FL.Del block=%d free=%d prv_block=%d prv_block.next=%d%n", block.getBlockNo(), newFreeSpace, previous.blockNo, entry.nextInList);
-                            }
-                            //in any case, remove it from the list
-                            cachedList.remove(entry);
-                            return false; //stop walking
-                        } else {
-                            previous = entry;
-                            return true; //keep walking
-                        }
-                    }
-                });
-            } else {
-                //*DEBUG*/action[0] += "UPD Cache-";
-                //update its size in the cache
-                //do it only if it is already in the cache! (no walker here)
-                for(FreeListEntry entry : cachedList )
-                    if( entry.blockNo == block.getBlockNo() ) {
-                        //*DEBUG*/action[0] += String.format("space %d->%d", entry.freeSpace, newFreeSpace);
-                        //*TRACE*/System.out.format("FL.Upd block=%d new_size=%d old_size=%d%n", block.getBlockNo(), newFreeSpace, entry.freeSpace);
-                        entry.freeSpace = newFreeSpace;
-                        break;
-                    }
-            }
-        } else {
-            //*DEBUG*/action[0] = "New in free list:";
-            //should not be in the cache
-            if ( newFreeSpace >= host.freeListThreshold ) {
-                //add it to the list of free blocks;
-                //*DEBUG*/action[0] += "Cache add, space=" + Integer.toString(newFreeSpace);
+
+        load();
+        FreeListEntry entry = entries.get(block.getBlockNo());
+        if( entry == null ) {
+            if ( newFreeSpace >= host.freeListThreshold )
                 addBlock(block);
-            }
+        } else if( newFreeSpace < host.freeListThreshold ) {
+            unlink(entry);
+        } else {
+            resize(entry, newFreeSpace);
         }
-        //*DEBUG*/if( block.getBlockNo() == 40 )
-           //*DEBUG*/System.out.format("CHECK UPDATED(%d, prv=%d, new=%d) %s%n", block.getBlockNo(), previousFreeSpace, newFreeSpace, action[0]);
-    }
-    
-    private enum WalkerReturn {
-        EMPTY, STOPPED, EXHAUSTED
     }
-    
+
     /**
-     * 
-     * @param action
-     * @return 0 when list is empty, 1 when action instructed walker to stop, 2 when free list was exhausted without action signaling to stop
-     * @throws IOException 
+     * Removes a block from the chain, through its predecessor or the header, and from the index
      */
-    private WalkerReturn walkFreeList(IFreeListAction action) throws IOException {
-         FreeListEntry entry;
-        if( cachedList.isEmpty() ) {
-            //try to start over caching
-            int first = host.header.getFirstFreeBlock();
-            if( first == 0 ) //no free blocks
-                return WalkerReturn.EMPTY;
-            else { // fetch the first entry and put it in the cache
-                ByteBuffer buffer;
-                DataBlock block;
-                block = new DataBlock(host.readBlock(first));
-                cachedList.add(new FreeListEntry(block.getBlockNo(), block.getGrossFreeSpace(), block.getNextFreeBlock()));
-                host.release(block);
-            }
+    private void unlink(FreeListEntry entry) throws IOException {
+        if( entry.previousInList == 0 ) {
+            host.header.setFirstFreeBlock(entry.nextInList);
+            //*TRACE*/System.out.format("FL.Del block=%d HEAD=%d%n", entry.blockNo, entry.nextInList);
+        } else {
+            DataBlock prvBlock = new DataBlock(host.readBlock(entry.previousInList));
+            prvBlock.setNextFreeBlock(entry.nextInList);
+            host.writeBlock(prvBlock);
+            host.release(prvBlock);
+            entries.get(entry.previousInList).nextInList = entry.nextInList;
+            //*TRACE*/System.out.format("FL.Del block=%d prv_block=%d prv_block.next=%d%n", entry.blockNo, entry.previousInList, entry.nextInList);
+        }
+        if( entry.nextInList > 0 )
+            entries.get(entry.nextInList).previousInList = entry.previousInList;
+        declassify(entry);
+        entries.remove(entry.blockNo);
+    }
+
+    private void resize(FreeListEntry entry, int freeSpace) {
+        if( sizeClass(freeSpace) == sizeClass(entry.freeSpace) ) {
+            entry.freeSpace = freeSpace;
+            return;
         }
-        
-        int i = 0, next;
-        do {
-            entry = cachedList.get(i);
-            if( ! action.process(entry) ) //false means stop, nothing more
-                return WalkerReturn.STOPPED;
-            
+        declassify(entry);
+        entry.freeSpace = freeSpace;
+        classify(entry);
+    }
+
+    private void classify(FreeListEntry entry) {
+        int c = sizeClass(entry.freeSpace);
+        FreeListEntry[] members = classes[c];
+        if( members == null )
+            members = classes[c] = new FreeListEntry[4];
+        else if( classSizes[c] == members.length )
+            members = classes[c] = Arrays.copyOf(members, members.length * 2);
+        entry.classSlot = classSizes[c];
+        members[classSizes[c]++] = entry;
+        nonEmptyClasses.set(c);
+    }
+
+    private void declassify(FreeListEntry entry) {
+        int c = sizeClass(entry.freeSpace);
+        FreeListEntry[] members = classes[c];
+        //move the last member of the class into the slot of the removed one
+        FreeListEntry last = members[--classSizes[c]];
+        members[entry.classSlot] = last;
+        last.classSlot = entry.classSlot;
+        members[classSizes[c]] = null;
+        if( classSizes[c] == 0 )
+            nonEmptyClasses.clear(c);
+    }
+
+    /**
+     * Builds the entries from the chain on disk, once
+     */
+    private void load() throws IOException {
+        if( loaded )
+            return;
+        int previous = 0;
+        for( int next = host.header.getFirstFreeBlock(); next > 0; ) {
+            if( entries.containsKey(next) )
+                throw new IOException(String.format("Free list loops back to block %d after block %d", next, previous));
+            DataBlock block = new DataBlock(host.readBlock(next));
+            FreeListEntry entry = new FreeListEntry(next, block.getGrossFreeSpace(), block.getNextFreeBlock());
+            host.release(block);
+            entry.previousInList = previous;
+            entries.put(next, entry);
+            classify(entry);
+            previous = next;
             next = entry.nextInList;
-            if( next > 0 && i == cachedList.size() - 1) { //if there are more free pages but we are at the end of the cache
-                //fetch the next block
-                ByteBuffer buffer;
-                DataBlock block;
-                block = new DataBlock(host.readBlock(next));
-                cachedList.add(new FreeListEntry(next, block.getGrossFreeSpace(), block.getNextFreeBlock()));
-                host.release(block);
-            }
-            i++;
-        } while(next > 0);
-        return WalkerReturn.EXHAUSTED;
+        }
+        loaded = true;
     }
-    
+
     protected ArrayList<FreeListEntry> dumpList() throws IOException {
-        walkFreeList(new IFreeListAction() {
-            @Override
-            public boolean process(FreeListEntry entry) {
-                return true; //keep walking
-            }
-        });
-        return cachedList;
+        load();
+        ArrayList<FreeListEntry> list = new ArrayList<>(entries.size());
+        for( int next = host.header.getFirstFreeBlock(); next > 0; next = entries.get(next).nextInList )
+            list.add(entries.get(next));
+        return list;
     }
 }
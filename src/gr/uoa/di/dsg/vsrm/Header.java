@@ -13,10 +13,15 @@ import java.nio.ByteBuffer;
  * @author nikos
  */
 public class Header {
-    public static final int MIN_SIZE = 48;
+    public static final int MIN_SIZE = 60;
+    /**
+     * Version 1 changed the layout of data pages, see DataBlock; version 2 added the index directory, see IndexManager.
+     * Files converted from version 0 have staleBlocks set until the blocks of the old file are recycled, see RecordManager
+     */
+    public static final short FORMAT_VERSION = 2;
     
     public short signature = 0x5652; //VR
-    public short formatVersion = 0;
+    public short formatVersion = FORMAT_VERSION;
     private int numBlocks = 0;
     private int firstFreeBlock = 0;
     private int lastDataBlock = 0;
@@ -26,6 +31,9 @@ public class Header {
     private int maxRecordLength = 0;
     private int numIndexBlocks = 0;
     private int numDataBlocks = 0;
+    private int indexDirectoryBlock = 0;
+    private int indexDirectoryLength = 0;
+    private int staleBlocks = 0;
     
     protected ByteBuffer buffer;
     protected boolean dirty;
@@ -47,6 +55,9 @@ public class Header {
         buffer.putInt(maxRecordLength);
         buffer.putInt(numIndexBlocks);
         buffer.putInt(numDataBlocks);
+        buffer.putInt(indexDirectoryBlock);
+        buffer.putInt(indexDirectoryLength);
+        buffer.putInt(staleBlocks);
     }
     
     public void fromBuffer() {
@@ -62,6 +73,9 @@ public class Header {
         maxRecordLength = buffer.getInt();
         numIndexBlocks = buffer.getInt();
         numDataBlocks = buffer.getInt();
+        indexDirectoryBlock = buffer.getInt();
+        indexDirectoryLength = buffer.getInt();
+        staleBlocks = buffer.getInt();
     }
     
     public void addRecord(int recSize) {
@@ -86,12 +100,14 @@ public class Header {
     @Override
     public String toString() {
         return String.format(
-                "Header: numBlocks=%d, firstFreeBlock=%d, lastDataBlock=%d, numDataBlocks=%d, numIndexBlocks=%d, numRecordsInFile=%d,sumRecordBytes=%d,minRecordLength=%d,maxRecordLength=%d", 
+                "Header: numBlocks=%d, firstFreeBlock=%d, lastDataBlock=%d, numDataBlocks=%d, numIndexBlocks=%d, indexDirectory=%d+%d, numRecordsInFile=%d,sumRecordBytes=%d,minRecordLength=%d,maxRecordLength=%d", 
                 numBlocks,
                 firstFreeBlock,
                 lastDataBlock,
                 numDataBlocks,
                 numIndexBlocks,
+                indexDirectoryBlock,
+                indexDirectoryLength,
                 numRecordsInFile,
                 sumRecordBytes,
                 minRecordLength,
@@ -99,6 +115,11 @@ public class Header {
         );
     }
     
+    void setFormatVersion(short formatVersion) {
+    	this.formatVersion = formatVersion;
+    	dirty = true;
+    }
+    
     protected int getNumBlocks() {
     	return numBlocks;
     }
@@ -151,6 +172,10 @@ public class Header {
 		return maxRecordLength;
 	}
 
+    int getNumIndexBlocks() {
+    	return numIndexBlocks;
+    }
+
     void incrNumIndexBlocks() {
     	numIndexBlocks++;
     	dirty = true;
@@ -161,14 +186,41 @@ public class Header {
     	dirty = true;
     }
     
+    int getIndexDirectoryBlock() {
+    	return indexDirectoryBlock;
+    }
+
+    int getIndexDirectoryLength() {
+    	return indexDirectoryLength;
+    }
+
+    void setIndexDirectory(int firstBlock, int length) {
+    	indexDirectoryBlock = firstBlock;
+    	indexDirectoryLength = length;
+    	dirty = true;
+    }
+
     void incrNumDataBlocks() {
     	numDataBlocks++;
     	dirty = true;
     }
 
+    int getNumDataBlocks() {
+    	return numDataBlocks;
+    }
+
     void setNumDataBlocks(int v) {
     	numDataBlocks = v;
     	dirty = true;
     }
+
+    int getStaleBlocks() {
+    	return staleBlocks;
+    }
+
+    void setStaleBlocks(int v) {
+    	staleBlocks = v;
+    	dirty = true;
+    }
     
 }
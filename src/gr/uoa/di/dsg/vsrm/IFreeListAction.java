@@ -1,17 +0,0 @@
-/*
- * To change this license header, choose License Headers in Project Properties.
- * To change this template file, choose Tools | Templates
- * and open the template in the editor.
- */
-
-package gr.uoa.di.dsg.vsrm;
-
-import java.io.IOException;
-
-/**
- *
- * @author nikos
- */
-public interface IFreeListAction {
-    boolean process(FreeListEntry entry) throws IOException; //should return true if walking should continue
-}
@@ -9,128 +9,287 @@ package gr.uoa.di.dsg.vsrm;
 import gr.uoa.di.dsg.vsrm.dump.RecordManagerStatistics;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
 import java.util.TreeMap;
 
 /**
+ * Maps record numbers to the data blocks holding them, through index pages of recsPerPage block numbers each.
+ *
+ * Index pages are linked in a chain from block 0, or from the first page of the directory in files converted from version 0; since format version 2 their block numbers are also listed, in order,
+ * in the index directory: a contiguous extent of blocks referenced from the header, read at open instead of walking the
+ * chain. When the directory is full it moves to an extent twice as large and its old blocks become index pages.
+ * The contents of each index page are mirrored in memory once read, so lookups do not go through the file manager.
  *
  * @author nikos
  */
 public class IndexManager {
     RecordManager host;
-    private final ArrayList<Integer> cachedList = new ArrayList<>();
     private final int recsPerPage;
-    
+    private int numIndexBlocks = 0;
+    private int[] indexBlocks = new int[16];
+    private int[][] mirror = new int[16][];
+    private final BitSet reservedBlocks = new BitSet(); //index pages and the directory
+    private int directoryBlock = 0;
+    private int directoryLength = 0;
+
     public IndexManager(RecordManager host) throws IOException {
         this.host = host;
         recsPerPage = host.blockSize / (Integer.SIZE / 8) - 1;
-        //always populate the index cache from the beginning
-        int next = 0, i=0;
+        if( host.header.getIndexDirectoryBlock() > 0 )
+            readDirectory();
+        else
+            walkIndexChain();
+    }
+
+    private void readDirectory() throws IOException {
+        directoryBlock = host.header.getIndexDirectoryBlock();
+        directoryLength = host.header.getIndexDirectoryLength();
+        int count = host.header.getNumIndexBlocks();
+        int numBlocks = host.header.getNumBlocks();
+        if( directoryLength <= 0 || directoryBlock + directoryLength > numBlocks || count <= 0 || count > directoryLength * recsPerPage )
+            throw new IOException(String.format("Index directory corrupt: %d blocks at %d for %d index pages", directoryLength, directoryBlock, count));
+        reservedBlocks.set(directoryBlock, directoryBlock + directoryLength);
+        for( int i = 0; i < directoryLength && numIndexBlocks < count; i++ ) {
+            IndexBlock block = new IndexBlock(host.readBlock(directoryBlock + i));
+            for( int j = 0; j < recsPerPage && numIndexBlocks < count; j++ ) {
+                int blockNo = block.get(j);
+                //block 0 can only be the first page; a file converted from version 0 has its first page elsewhere
+                if( blockNo < 0 || blockNo >= numBlocks || (blockNo == 0 && numIndexBlocks > 0) )
+                    throw new IOException(String.format("Index directory corrupt: index page %d is block %d", numIndexBlocks, blockNo));
+                addIndexBlock(blockNo);
+            }
+            host.release(block);
+        }
+    }
+
+    /**
+     * Finds the index pages of a file without a directory, following their chain
+     */
+    private void walkIndexChain() throws IOException {
+        int next = 0;
         do {
             IndexBlock block = new IndexBlock(host.readBlock(next));
-            cachedList.add(next);
+            addIndexBlock(next);
             int current = next;
             next = block.getNextIndexBlock();
             if( next > 0 && next <= current )
                 throw new RuntimeException(String.format("Index linked listed corrupt: Next of %d is %d", current, next));
             host.release(block);
-            i++;
-        } while( next > 0);        
+        } while( next > 0);
+        if( host.header.getNumIndexBlocks() != numIndexBlocks )
+            host.header.setNumIndexBlocks(numIndexBlocks);
+    }
+
+    protected boolean hasDirectory() {
+        return directoryBlock > 0;
+    }
+
+    /**
+     * Writes the directory of a file that has none, in new blocks at the end of the file
+     */
+    protected void createDirectory() throws IOException {
+        moveDirectory(numIndexBlocks / recsPerPage + 1);
+    }
+
+    private void moveDirectory(int newLength) throws IOException {
+        int oldBlock = directoryBlock, oldLength = directoryLength;
+        int first = 0;
+        for( int i = 0; i < newLength; i++ ) {
+            IndexBlock block = new IndexBlock(host.newBlock());
+            if( i == 0 )
+                first = block.getBlockNo();
+            else if( block.getBlockNo() != first + i )
+                throw new IllegalStateException(String.format("Index directory extent at %d is not contiguous: block %d follows", first, block.getBlockNo()));
+            for( int j = 0; j < recsPerPage; j++ ) {
+                int entry = i * recsPerPage + j;
+                if( entry >= numIndexBlocks )
+                    break;
+                block.put(j, indexBlocks[entry]);
+            }
+            host.writeBlock(block);
+            host.release(block);
+        }
+        directoryBlock = first;
+        directoryLength = newLength;
+        reservedBlocks.set(first, first + newLength);
+        host.header.setIndexDirectory(first, newLength);
+        //the blocks of the old directory are reused as the next index pages
+        for( int i = 0; i < oldLength; i++ ) {
+            IndexBlock block = new IndexBlock(host.readBlock(oldBlock + i));
+            ByteBuffer buffer = block.getBuffer();
+            buffer.clear();
+            buffer.put(new byte[buffer.capacity()]);
+            host.writeBlock(block);
+            host.release(block);
+            appendIndexBlock(oldBlock + i);
+        }
+    }
+
+    /**
+     * Writes a copy of the index pages and a directory for them, in that order, to the blocks from firstBlock on. The block
+     * of each record is mapped to blockMap[block], or to moved.get(recNo) for the records in moved. Neither the pages of
+     * this index nor the header are changed
+     * @return the number of blocks of the directory of the copy
+     */
+    protected int writeCopy(int firstBlock, int[] blockMap, Map<Long, Integer> moved) throws IOException {
+        for( int i = 0; i < numIndexBlocks; i++ ) {
+            int[] entries = page(i);
+            IndexBlock block = new IndexBlock(host.emptyBlock(firstBlock + i));
+            for( int j = 0; j < recsPerPage; j++ )
+                if( entries[j] > 0 )
+                    block.put(j, blockMap[entries[j]]);
+            block.setNextIndexBlock(i + 1 < numIndexBlocks ? firstBlock + i + 1 : 0);
+            host.writeBlock(block);
+            host.release(block);
+        }
+        for( Map.Entry<Long, Integer> record : moved.entrySet() ) {
+            IndexBlock block = new IndexBlock(host.readBlock(firstBlock + (int) (record.getKey() / recsPerPage)));
+            block.put((int) (record.getKey() % recsPerPage), record.getValue());
+            host.writeBlock(block);
+            host.release(block);
+        }
+        int length = numIndexBlocks / recsPerPage + 1;
+        for( int i = 0; i < length; i++ ) {
+            IndexBlock block = new IndexBlock(host.emptyBlock(firstBlock + numIndexBlocks + i));
+            for( int j = 0; j < recsPerPage && i * recsPerPage + j < numIndexBlocks; j++ )
+                block.put(j, firstBlock + i * recsPerPage + j);
+            host.writeBlock(block);
+            host.release(block);
+        }
+        return length;
+    }
+
+    private void addIndexBlock(int blockNo) {
+        if( numIndexBlocks == indexBlocks.length ) {
+            indexBlocks = Arrays.copyOf(indexBlocks, numIndexBlocks * 2);
+            mirror = Arrays.copyOf(mirror, numIndexBlocks * 2);
+        }
+        indexBlocks[numIndexBlocks++] = blockNo;
+        reservedBlocks.set(blockNo);
+    }
+
+    /**
+     * Links an empty block at the end of the chain and lists it in the directory
+     */
+    private void appendIndexBlock(int newBlockNo) throws IOException {
+        if( numIndexBlocks >= directoryLength * recsPerPage )
+            moveDirectory(Math.max(directoryLength * 2, numIndexBlocks / recsPerPage + 1));
+        int lastBlockNo = indexBlocks[numIndexBlocks - 1];
+        IndexBlock block = new IndexBlock(host.readBlock(lastBlockNo));
+        block.setNextIndexBlock(newBlockNo);
+        host.writeBlock(block);
+        host.release(block);
+
+        int entry = numIndexBlocks;
+        addIndexBlock(newBlockNo);
+        mirror[entry] = new int[recsPerPage];
+        block = new IndexBlock(host.readBlock(directoryBlock + entry / recsPerPage));
+        block.put(entry % recsPerPage, newBlockNo);
+        host.writeBlock(block);
+        host.release(block);
+
+        host.header.incrNumIndexBlocks();
+    }
+
+    /**
+     * @return the record to block map of an index page, read on first use
+     */
+    private int[] page(int indexInList) throws IOException {
+        int[] entries = mirror[indexInList];
+        if( entries == null ) {
+            entries = new int[recsPerPage];
+            IndexBlock block = new IndexBlock(host.readBlock(indexBlocks[indexInList]));
+            ByteBuffer buffer = block.getBuffer().duplicate();
+            buffer.clear();
+            buffer.asIntBuffer().get(entries);
+            host.release(block);
+            mirror[indexInList] = entries;
+        }
+        return entries;
     }
-    
+
     public void put(long recNo, int blockNo) throws IOException {
         int indexInCache = (int) (recNo / recsPerPage);
         int positionInBlock = (int) (recNo % recsPerPage);
 
         //unfortunately, we need to add blank index pages to get to the right id
-        while(indexInCache >= cachedList.size()) {
-            int lastBlockNo = cachedList.get(cachedList.size() - 1);
+        while(indexInCache >= numIndexBlocks) {
             IndexBlock block = new IndexBlock(host.newBlock());
-            int newBlockNo = block.getBlockNo();
-            cachedList.add(block.getBlockNo());
             host.writeBlock(block);
             host.release(block);
-            //and add it to the linked list
-            block = new IndexBlock(host.readBlock(lastBlockNo));
-            block.setNextIndexBlock(newBlockNo);
-            host.writeBlock(block);
-            host.release(block);
-            
-            host.header.incrNumIndexBlocks();
+            appendIndexBlock(block.getBlockNo());
         }
-        
-        int indexBlockNo = cachedList.get(indexInCache);
-        IndexBlock block = new IndexBlock(host.readBlock(indexBlockNo));
+
+        int[] entries = page(indexInCache);
+        if( entries[positionInBlock] == blockNo )
+            return;
+        entries[positionInBlock] = blockNo;
+        IndexBlock block = new IndexBlock(host.readBlock(indexBlocks[indexInCache]));
         block.put(positionInBlock, blockNo);
         host.writeBlock(block);
         host.release(block);
     }
-    
+
     public int get(long recNo) throws IOException {
-        int ret;
         int indexInCache = (int) (recNo / recsPerPage);
         int positionInBlock = (int) (recNo % recsPerPage);
-        
-        if( indexInCache >= cachedList.size() )
-            ret = 0;
-        else {
-            int indexBlockNo = cachedList.get(indexInCache);
-            IndexBlock block = new IndexBlock(host.readBlock(indexBlockNo));
-            ret = block.get(positionInBlock);
-            host.release(block);
-        }
-        return ret;
+
+        if( recNo < 0 || indexInCache >= numIndexBlocks )
+            return 0;
+        return page(indexInCache)[positionInBlock];
     }
-    
+
     public long getLastRecNo() throws IOException {
-        long ret = -1;
-        int i = cachedList.size() - 1;
-        while( i >= 0 && ret == -1) {
-            int indexBlockNo = cachedList.get(i);
-            IndexBlock block = new IndexBlock(host.readBlock(indexBlockNo));
-            ret = block.getLastRecNo(getIndexBlockFirstRecNo(i));
-            host.release(block);
-            i--;
+        for( int i = numIndexBlocks - 1; i >= 0; i-- ) {
+            int[] entries = page(i);
+            for( int j = recsPerPage - 1; j >= 0; j-- )
+                if( entries[j] > 0 )
+                    return getIndexBlockFirstRecNo(i) + j;
         }
-        return ret;
+        return -1;
     }
-    
+
     /**
-     * 
+     *
      * @param indexInList the zero-based index of this index page in the list of index pages
-     * @return The first record number indexed in this page 
+     * @return The first record number indexed in this page
      */
     private long getIndexBlockFirstRecNo(int indexInList) {
-        return indexInList * recsPerPage;
+        return (long) indexInList * recsPerPage;
     }
-    
+
     protected TreeMap<Long, Integer> dumpAll() throws IOException {
         int i = 0;
         TreeMap<Long, Integer> ret = new TreeMap<>();
-        while( i < cachedList.size() ) {
-            int indexBlockNo = cachedList.get(i);
-            IndexBlock block = new IndexBlock(host.readBlock(indexBlockNo));
+        while( i < numIndexBlocks ) {
+            IndexBlock block = new IndexBlock(host.readBlock(indexBlocks[i]));
             block.dumpAll(ret, getIndexBlockFirstRecNo(i));
             host.release(block);
             i++;
         }
         return ret;
     }
-    
+
     protected void dumpStatistics(RecordManagerStatistics stats) throws IOException {
         int i = 0;
-        while( i < cachedList.size() ) {
+        while( i < numIndexBlocks ) {
         	stats.indexStats.count += 1;
-            int indexBlockNo = cachedList.get(i);
-            IndexBlock block = new IndexBlock(host.readBlock(indexBlockNo));
+            IndexBlock block = new IndexBlock(host.readBlock(indexBlocks[i]));
             block.dumpStatistics(stats);
             host.release(block);
             i++;
         }
+        stats.indexStats.count += directoryLength;
         stats.indexStats.size = stats.indexStats.count * stats.blockSize;
     }
-    
+
+    /**
+     * @return true for index pages and blocks of the index directory, which hold no records
+     */
     protected boolean isIndexBlock(int blockNo) {
-        return cachedList.contains(blockNo);
+        return reservedBlocks.get(blockNo);
     }
 }
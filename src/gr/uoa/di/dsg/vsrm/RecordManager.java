@@ -18,6 +18,11 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  *
@@ -63,11 +68,145 @@ public class RecordManager implements Closeable {
             lastBlock = new DataBlock(block);
         } else {
             readHeader();
-            lastBlock = new DataBlock(readBlock(header.getLastDataBlock()));
+            if( header.formatVersion > Header.FORMAT_VERSION )
+                throw new IOException(String.format("Record file has format version %d, this version supports up to %d", header.formatVersion, Header.FORMAT_VERSION));
+            if( header.formatVersion < 1 || header.getStaleBlocks() > 0 ) {
+                //nothing is written yet; conversion runs in batches of its own, with syncs between them
+                endBatch();
+                if( header.formatVersion < 1 )
+                    convertFromVersion0();
+                recycleStaleBlocks();
+                beginBatch("init");
+            }
         }
         //these should be initialized after the RecordManager is fully initialized
         freeList = new FreeListManager(this);
         index = new IndexManager(this);
+        if( ! index.hasDirectory() )
+            index.createDirectory();
+        if( header.formatVersion < Header.FORMAT_VERSION )
+            header.setFormatVersion(Header.FORMAT_VERSION);
+        if( lastBlock == null )
+            lastBlock = new DataBlock(readBlock(header.getLastDataBlock()));
+        endBatch();
+    }
+    
+    /**
+     * Converts a file of format version 0 to the current format. The data pages are copied to new blocks past the end of
+     * the file and converted there, the records that no longer fit in their page go to further new pages, and the index
+     * is copied, with its directory, after them. The file is still the old one until the header switches to the new
+     * blocks, in a single write after all of them are durable; if conversion is interrupted before that, it starts over
+     * at the next open. The old blocks are marked stale by the new header, see recycleStaleBlocks()
+     */
+    private void convertFromVersion0() throws IOException {
+        beginBatch("convert");
+        IndexManager oldIndex = new IndexManager(this);
+        int oldBlocks = header.getNumBlocks();
+        int oldLastBlock = header.getLastDataBlock();
+        //make sure that every record will fit before writing anything
+        if( header.getMaxRecordLength() > maxRecordLength() ) {
+            for(int blockNo=1; blockNo < oldBlocks; blockNo++) {
+                if( ! oldIndex.isIndexBlock(blockNo) ) {
+                    DataBlock block = new DataBlock(readBlock(blockNo));
+                    int largest = block.getLargestVersion0Record();
+                    release(block);
+                    if( largest > maxRecordLength() )
+                        throw new IOException(String.format("Record file holds a record of %d bytes in block %d, more than the %d of format version %d; it cannot be converted", largest, blockNo, maxRecordLength(), Header.FORMAT_VERSION));
+                }
+            }
+        }
+        int[] newBlockNo = new int[oldBlocks];
+        int nextBlock = oldBlocks;
+        int numDataBlocks = 0;
+        int firstFree = 0;
+        List<Map.Entry<Long, byte[]>> evicted = new ArrayList<>();
+        for(int blockNo=1; blockNo < oldBlocks; blockNo++) {
+            if( ! oldIndex.isIndexBlock(blockNo) ) {
+                FileBlock source = readBlock(blockNo);
+                DataBlock block = new DataBlock(emptyBlock(nextBlock));
+                ByteBuffer buffer = block.getBuffer();
+                buffer.clear();
+                buffer.put((ByteBuffer) source.getBuffer().duplicate().clear());
+                file.releaseBlock(source);
+                block.convertFromVersion0(evicted);
+                newBlockNo[blockNo] = nextBlock++;
+                numDataBlocks++;
+                firstFree = writeConvertedPage(block, blockNo == oldLastBlock, firstFree);
+            }
+        }
+        //the evicted records are packed into new pages, in the order they were evicted
+        Map<Long, Integer> moved = new HashMap<>();
+        DataBlock block = null;
+        for( Map.Entry<Long, byte[]> record : evicted ) {
+            if( block == null || block.getGrossFreeSpace() < record.getValue().length + ENTRY_EXTRA ) {
+                if( block != null )
+                    firstFree = writeConvertedPage(block, false, firstFree);
+                block = new DataBlock(emptyBlock(nextBlock++));
+                numDataBlocks++;
+            }
+            block.addRecord(record.getKey(), new MemoryBuffer(record.getValue()));
+            moved.put(record.getKey(), block.getBlockNo());
+        }
+        if( block != null )
+            firstFree = writeConvertedPage(block, false, firstFree);
+        int firstIndexBlock = nextBlock;
+        int numIndexBlocks = header.getNumIndexBlocks();
+        int directoryLength = oldIndex.writeCopy(firstIndexBlock, newBlockNo, moved);
+        nextBlock += numIndexBlocks + directoryLength;
+        endBatch();
+        sync();
+
+        beginBatch("convert");
+        header.setNumBlocks(nextBlock);
+        header.setFirstFreeBlock(firstFree);
+        header.setLastDataBlock(newBlockNo[oldLastBlock]);
+        header.setNumDataBlocks(numDataBlocks);
+        header.setIndexDirectory(firstIndexBlock + numIndexBlocks, directoryLength);
+        header.setStaleBlocks(oldBlocks);
+        header.setFormatVersion(Header.FORMAT_VERSION);
+        endBatch();
+        sync();
+    }
+    
+    /**
+     * Writes a page converted from format version 0 and releases it
+     * @return the first block of the free list, which is this page if it qualifies and is not the last data page
+     */
+    private int writeConvertedPage(DataBlock block, boolean isLast, int firstFree) throws IOException {
+        if( ! isLast && block.getGrossFreeSpace() >= freeListThreshold ) {
+            block.setNextFreeBlock(firstFree);
+            firstFree = block.getBlockNo();
+        } else {
+            block.setNextFreeBlock(0);
+        }
+        writeBlock(block);
+        release(block);
+        return firstFree;
+    }
+    
+    /**
+     * Turns the blocks of a file before its conversion from format version 0 into empty data pages at the head of the
+     * free list. This is repeated at every open until the header records that it is done, which it does only after the
+     * pages are durable. Block 0 stays unused, as 0 ends the free list
+     */
+    private void recycleStaleBlocks() throws IOException {
+        int staleBlocks = header.getStaleBlocks();
+        int firstFree = header.getFirstFreeBlock();
+        beginBatch("recycle");
+        for(int blockNo=staleBlocks-1; blockNo >= 1; blockNo--) {
+            DataBlock block = new DataBlock(readBlock(blockNo));
+            ByteBuffer buffer = block.getBuffer();
+            buffer.clear();
+            buffer.put(new byte[buffer.capacity()]);
+            firstFree = writeConvertedPage(block, false, firstFree);
+        }
+        endBatch();
+        sync();
+
+        beginBatch("recycle");
+        header.setFirstFreeBlock(firstFree);
+        header.setNumDataBlocks(header.getNumDataBlocks() + staleBlocks - 1);
+        header.setStaleBlocks(0);
         endBatch();
     }
     
@@ -75,6 +214,17 @@ public class RecordManager implements Closeable {
         return file.readBlock(blockNo);
     }
     
+    /**
+     * @return block blockNo, cleared: blocks past the end of the file may hold the writes of an interrupted conversion
+     */
+    protected FileBlock emptyBlock(int blockNo) throws IOException {
+        FileBlock block = file.emptyBlock(blockNo);
+        ByteBuffer buffer = block.getBuffer();
+        buffer.clear();
+        buffer.put(new byte[buffer.capacity()]);
+        return block;
+    }
+    
     protected FileBlock newBlock() throws IOException {
         return file.emptyBlock(header.incrNumBlocks());
     }
@@ -104,8 +254,10 @@ public class RecordManager implements Closeable {
     public byte[] get(long recNo) throws IOException {
     	beginBatch("get");
         int blockNo = index.get(recNo);
-        if( blockNo == 0 )
+        if( blockNo == 0 ) {
+            endBatch();
             return null;
+        }
         DataBlock block = new DataBlock(readBlock(blockNo));
         byte[] ret = block.getRecord(recNo);
         release(block);
@@ -169,8 +321,10 @@ public class RecordManager implements Closeable {
             throw new IllegalArgumentException(String.format("Data length %d exceeds maximum supported length of %d", dataSize, maxRecordLength()));
         beginBatch("update");
         int blockNo = index.get(recNo);
-        if( blockNo == 0 )
+        if( blockNo == 0 ) {
+            endBatch();
             throw new IllegalArgumentException(String.format("Item %d not found for edit", recNo));
+        }
         DataBlock block = new DataBlock(readBlock(blockNo));
         
         int currentLength = block.getRecordLength(recNo);
@@ -178,8 +332,7 @@ public class RecordManager implements Closeable {
         if( currentLength != dataSize )
             header.delRecord(currentLength);
         if ( dataSize <= currentLength || dataSize <= currentFree + currentLength  )  {
-            block.delRecord(recNo);
-            block.addRecord(recNo, data);
+            block.replaceRecord(recNo, data);
             //but leave the index unchanged
             if( block.getBlockNo() != lastBlock.getBlockNo() )
                 freeList.checkUpdatedBlock(block, currentFree);
@@ -224,16 +377,27 @@ public class RecordManager implements Closeable {
         return ret;
     }
     
+    /**
+     * Waits until all changes so far are durable, as far as the file manager provides before close
+     */
+    public void sync() throws IOException {
+        file.sync();
+    }
+    
     @Override
     public void close() throws IOException {
         file.close();
     }
     
-    private final void beginBatch(String id) {
+    /**
+     * Begins a batch of operations, which may nest; each operation is a batch of its own. With
+     * MappedFileManager.WritePolicy.ON_BATCH_END the blocks written and the header are forced only as the outermost batch ends
+     */
+    public final void beginBatch(String id) {
     	file.beginBatch(id);
     }
     
-    private final void endBatch() throws IOException {
+    public final void endBatch() throws IOException {
     	writeHeader();
     	file.endBatch();
     }
@@ -0,0 +1,359 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import gr.uoa.di.dsg.FileManager.IRedoLog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * The redo log of a record file, kept next to it in a file with SUFFIX appended to its name.
+ *
+ * Each group of batches is a record of [MAGIC][sequence][header length][block count][block numbers][header image]
+ * [block images][CRC-32 of all that]. The checksum is CRC-32 rather than the CRC-32C of snapshot extracts, as the
+ * former is an intrinsic of Java 8 and the log checksums every image it writes.
+ * A thread of the log writes the groups appended while it was busy as one write followed by one sync, and keeps the
+ * latest image of every block logged in memory; once the log exceeds CHECKPOINT_BYTES, or when a checkpoint is
+ * requested, it writes those images to the record file, syncs it and empties the log.
+ * Opening a log replays its complete records onto the record file, in order, stopping at the first one that is torn,
+ * corrupt or out of sequence; replaying a record twice is harmless, so a crash during recovery or a checkpoint is too.
+ *
+ * @author nikos
+ */
+public class RedoLog implements IRedoLog {
+    public static final String SUFFIX = ".redo";
+    /**
+     * Bytes of log after which its blocks are written to the record file
+     */
+    public static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    private static final int MAGIC = 0x52444C47; //RDLG
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 4 + 4;
+    private static final int CRC_SIZE = 4;
+
+    private class Group {
+        final long sequence;
+        final byte[] header;
+        final int[] blockNos;
+        final byte[][] images;
+
+        Group(long sequence, byte[] header, int[] blockNos, byte[][] images) {
+            this.sequence = sequence;
+            this.header = header;
+            this.blockNos = blockNos;
+            this.images = images;
+        }
+    }
+
+    private final int headerSize;
+    private final int blockSize;
+    private final RandomAccessFile dataFile;
+    private final RandomAccessFile logFile;
+    private final FileChannel data;
+    private final FileChannel log;
+    private final Thread writer;
+
+    //used by the writer thread only, once started
+    private long logBytes = 0;
+    private byte[] loggedHeader = null;
+    private final TreeMap<Integer, byte[]> loggedBlocks = new TreeMap<>();
+
+    //guarded by this
+    private final ArrayDeque<Group> queue = new ArrayDeque<>();
+    private long appended;
+    private long durable;
+    private long checkpointed;
+    private boolean writing = false;
+    private boolean checkpointRequested = false;
+    private boolean closing = false;
+    private Throwable error = null;
+
+    /**
+     * Opens the log of a record file, creating it if missing, and recovers the record file from it
+     */
+    public RedoLog(String fileName, int headerSize, int blockSize) throws IOException {
+        this.headerSize = headerSize;
+        this.blockSize = blockSize;
+        dataFile = new RandomAccessFile(fileName, "rw");
+        logFile = new RandomAccessFile(fileName + SUFFIX, "rw");
+        data = dataFile.getChannel();
+        log = logFile.getChannel();
+        try {
+            appended = durable = checkpointed = recover();
+        } catch (IOException ex) {
+            dataFile.close();
+            logFile.close();
+            throw ex;
+        }
+        writer = new Thread(this::run, "redo-log " + fileName);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Replays the complete records of the log onto the record file and empties the log
+     * @return the sequence number of the last record replayed, 0 if none
+     */
+    private long recover() throws IOException {
+        long position = 0, size = log.size(), last = 0;
+        ByteBuffer fixed = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while( size - position >= RECORD_HEADER_SIZE ) {
+            fixed.clear();
+            readFully(log, fixed, position);
+            fixed.flip();
+            int magic = fixed.getInt();
+            long sequence = fixed.getLong();
+            int headerLength = fixed.getInt();
+            int count = fixed.getInt();
+            if( magic != MAGIC || (last > 0 && sequence != last + 1) || (headerLength != 0 && headerLength != headerSize) || count < 0 )
+                break;
+            long recordLength = RECORD_HEADER_SIZE + headerLength + (long) count * (4 + blockSize) + CRC_SIZE;
+            if( recordLength > size - position || recordLength > Integer.MAX_VALUE )
+                break;
+            ByteBuffer record = ByteBuffer.allocate((int) recordLength);
+            readFully(log, record, position);
+            int crcOffset = (int) recordLength - CRC_SIZE;
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), 0, crcOffset);
+            if( (int) crc.getValue() != record.getInt(crcOffset) )
+                break;
+            int header = RECORD_HEADER_SIZE + count * 4;
+            if( headerLength > 0 )
+                writeFully(data, ByteBuffer.wrap(record.array(), header, headerLength), 0);
+            int images = header + headerLength;
+            for( int i = 0; i < count; i++ ) {
+                int blockNo = record.getInt(RECORD_HEADER_SIZE + i * 4);
+                writeFully(data, ByteBuffer.wrap(record.array(), images + i * blockSize, blockSize), blockOffset(blockNo));
+            }
+            last = sequence;
+            position += recordLength;
+        }
+        if( size > 0 ) {
+            data.force(true);
+            log.truncate(0);
+            log.force(true);
+        }
+        return last;
+    }
+
+    private long blockOffset(int blockNo) {
+        return headerSize + (long) blockNo * blockSize;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while( buffer.hasRemaining() ) {
+            int read = channel.read(buffer, position);
+            if( read < 0 )
+                throw new IOException("Unexpected end of redo log");
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while( buffer.hasRemaining() )
+            position += channel.write(buffer, position);
+    }
+
+    @Override
+    public synchronized void append(byte[] header, int[] blockNos, byte[][] images) throws IOException {
+        check();
+        if( closing )
+            throw new IOException("Redo log is closed");
+        queue.addLast(new Group(++appended, header, blockNos, images));
+        notifyAll();
+    }
+
+    @Override
+    public synchronized boolean isIdle() {
+        return queue.isEmpty() && ! writing;
+    }
+
+    @Override
+    public synchronized void sync() throws IOException {
+        long target = appended;
+        while( durable < target && error == null )
+            await();
+        check();
+    }
+
+    @Override
+    public synchronized void checkpoint() throws IOException {
+        long target = appended;
+        requestCheckpoint();
+        while( checkpointed < target && error == null )
+            await();
+        check();
+    }
+
+    @Override
+    public synchronized long requestCheckpoint() throws IOException {
+        check();
+        if( checkpointed < appended ) {
+            checkpointRequested = true;
+            notifyAll();
+        }
+        return appended;
+    }
+
+    @Override
+    public synchronized boolean isCheckpointed(long sequence) {
+        return checkpointed >= sequence;
+    }
+
+    private void check() throws IOException {
+        if( error != null )
+            throw new IOException("Redo log failed", error);
+    }
+
+    private void await() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the redo log", ex);
+        }
+    }
+
+    /**
+     * The writer thread: writes and syncs what was appended, checkpointing when due, until closed
+     */
+    private void run() {
+        while( true ) {
+            ArrayList<Group> groups;
+            boolean checkpointNow;
+            synchronized( this ) {
+                while( queue.isEmpty() && ! checkpointRequested && ! closing ) {
+                    try {
+                        wait();
+                    } catch (InterruptedException ex) {
+                        //only close() stops the writer
+                    }
+                }
+                if( queue.isEmpty() && ! checkpointRequested )
+                    return;
+                groups = new ArrayList<>(queue);
+                queue.clear();
+                writing = true;
+                checkpointNow = checkpointRequested;
+            }
+            try {
+                if( ! groups.isEmpty() ) {
+                    for( Group group : groups )
+                        write(group);
+                    log.force(false);
+                    synchronized( this ) {
+                        durable = groups.get(groups.size() - 1).sequence;
+                        notifyAll();
+                    }
+                    for( Group group : groups ) {
+                        if( group.header != null )
+                            loggedHeader = group.header;
+                        for( int i = 0; i < group.blockNos.length; i++ )
+                            loggedBlocks.put(group.blockNos[i], group.images[i]);
+                    }
+                }
+                if( checkpointNow || logBytes >= CHECKPOINT_BYTES ) {
+                    long covered;
+                    synchronized( this ) {
+                        covered = durable;
+                    }
+                    writeCheckpoint();
+                    synchronized( this ) {
+                        checkpointed = covered;
+                        if( checkpointed == appended )
+                            checkpointRequested = false;
+                        notifyAll();
+                    }
+                }
+            } catch (Throwable ex) {
+                //whatever stops the writer fails every wait for it, rather than leaving it unanswered
+                synchronized( this ) {
+                    error = ex;
+                    writing = false;
+                    notifyAll();
+                }
+                return;
+            }
+            synchronized( this ) {
+                writing = false;
+                notifyAll();
+            }
+        }
+    }
+
+    private void write(Group group) throws IOException {
+        int headerLength = group.header == null ? 0 : headerSize;
+        int count = group.blockNos.length;
+        ByteBuffer fixed = ByteBuffer.allocate(RECORD_HEADER_SIZE + count * 4);
+        fixed.putInt(MAGIC).putLong(group.sequence).putInt(headerLength).putInt(count);
+        for( int blockNo : group.blockNos )
+            fixed.putInt(blockNo);
+        CRC32 crc = new CRC32();
+        crc.update(fixed.array(), 0, fixed.capacity());
+        ByteBuffer[] parts = new ByteBuffer[count + 3];
+        fixed.flip();
+        parts[0] = fixed;
+        parts[1] = ByteBuffer.wrap(headerLength > 0 ? group.header : new byte[0]);
+        if( headerLength > 0 )
+            crc.update(group.header, 0, headerLength);
+        for( int i = 0; i < count; i++ ) {
+            parts[i + 2] = ByteBuffer.wrap(group.images[i]);
+            crc.update(group.images[i], 0, blockSize);
+        }
+        parts[count + 2] = (ByteBuffer) ByteBuffer.allocate(CRC_SIZE).putInt((int) crc.getValue()).flip();
+        long length = RECORD_HEADER_SIZE + count * 4L + headerLength + (long) count * blockSize + CRC_SIZE;
+        log.position(logBytes);
+        for( long written = 0; written < length; )
+            written += log.write(parts);
+        logBytes += length;
+    }
+
+    /**
+     * Writes the latest image of every block logged to the record file, syncs it and empties the log
+     */
+    private void writeCheckpoint() throws IOException {
+        if( loggedHeader != null )
+            writeFully(data, ByteBuffer.wrap(loggedHeader), 0);
+        for( Map.Entry<Integer, byte[]> block : loggedBlocks.entrySet() )
+            writeFully(data, ByteBuffer.wrap(block.getValue()), blockOffset(block.getKey()));
+        data.force(true);
+        log.truncate(0);
+        log.force(true);
+        logBytes = 0;
+        loggedHeader = null;
+        loggedBlocks.clear();
+    }
+
+    /**
+     * Checkpoints and stops the log; the record file then holds everything appended
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            synchronized( this ) {
+                closing = true;
+                notifyAll();
+            }
+            try {
+                writer.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            dataFile.close();
+            logFile.close();
+        }
+    }
+}
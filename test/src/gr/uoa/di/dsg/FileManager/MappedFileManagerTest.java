@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.FileManager;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import gr.uoa.di.dsg.vsrm.RecordManager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * With WritePolicy.ON_BATCH_END a batch forces the runs of blocks written in it and the header, once, as the outermost
+ * batch ends
+ */
+public class MappedFileManagerTest {
+    private static final int HEADER_SIZE = 64;
+    private static final int BLOCK_SIZE = 128;
+    private static final String HEADER = "header";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+    private ForceRecorder file;
+
+    /**
+     * Records the runs of blocks, as "first-end", and the header it forces
+     */
+    private static class ForceRecorder extends MappedFileManager {
+        final List<String> forced = new ArrayList<>();
+
+        ForceRecorder(String fileName) throws IOException {
+            super(fileName, HEADER_SIZE, BLOCK_SIZE, 64 * BLOCK_SIZE, WritePolicy.ON_BATCH_END);
+        }
+
+        @Override
+        int forceBlocks(int first, int end, int lastForcedBuffer) throws IOException {
+            forced.add(first + "-" + end);
+            return super.forceBlocks(first, end, lastForcedBuffer);
+        }
+
+        @Override
+        void forceHeader() {
+            forced.add(HEADER);
+            super.forceHeader();
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        file = new ForceRecorder(folder.newFile("records.dat").getPath());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        file.close();
+    }
+
+    private void write(int... blockNos) throws IOException {
+        for( int blockNo : blockNos ) {
+            FileBlock block = file.emptyBlock(blockNo);
+            block.getBuffer().put(0, (byte) blockNo);
+            file.writeBlock(block);
+            file.releaseBlock(block);
+        }
+    }
+
+    @Test
+    public void batchForcesItsRunsAndHeader() throws IOException {
+        write(9);
+        file.forced.clear();
+        file.beginBatch("test");
+        write(3, 1, 2, 7);
+        file.writeHeader();
+        write(1);
+        assertEquals(Collections.emptyList(), file.forced);
+        file.endBatch();
+        assertEquals(Arrays.asList("1-4", "7-8", HEADER), file.forced);
+    }
+
+    @Test
+    public void nestedBatchesForceAtOutermostEnd() throws IOException {
+        file.beginBatch("outer");
+        write(2);
+        file.beginBatch("inner");
+        write(5);
+        file.writeHeader();
+        file.endBatch();
+        write(6);
+        assertEquals(Collections.emptyList(), file.forced);
+        file.endBatch();
+        assertEquals(Arrays.asList("2-3", "5-7", HEADER), file.forced);
+    }
+
+    @Test
+    public void recordBatchForcesHeaderOnce() throws IOException {
+        RecordManager rm = new RecordManager(file, 16);
+        file.forced.clear();
+        rm.beginBatch("test");
+        for( long recNo = 0; recNo < 40; recNo++ )
+            rm.add(recNo, new byte[50]);
+        rm.update(3, new byte[60]);
+        assertEquals(Collections.emptyList(), file.forced);
+        rm.endBatch();
+        assertEquals(HEADER, file.forced.get(file.forced.size() - 1));
+        assertEquals(1, Collections.frequency(file.forced, HEADER));
+        //each block is forced once, in ascending order
+        int previousEnd = 0;
+        for( String run : file.forced.subList(0, file.forced.size() - 1) ) {
+            String[] bounds = run.split("-");
+            int first = Integer.parseInt(bounds[0]);
+            assertTrue(run, first >= previousEnd);
+            previousEnd = Integer.parseInt(bounds[1]);
+        }
+    }
+}
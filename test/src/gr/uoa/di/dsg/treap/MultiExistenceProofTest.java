@@ -0,0 +1,120 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A multi existence proof verifies only as it was produced and only for the keys it was produced for: any tampering,
+ * or a requested key left out of it, fails it
+ */
+public class MultiExistenceProofTest {
+	private static final int KEYS = 200;
+	private static final List<byte[]> REQUESTED = keys(0, 17, 40, 42, 120, 198, 500);
+	private Tree tree;
+	private byte[] root;
+
+	@Before
+	public void setUp() throws Exception {
+		tree = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways());
+		for( int i = 0; i < KEYS; i += 2 )
+			tree.insert(key(i), value(i));
+		root = tree.closeSnapshot();
+	}
+
+	private static byte[] key(int i) {
+		return String.format("key%05d", i).getBytes();
+	}
+
+	private static byte[] value(int i) {
+		return String.format("value%05d", i).getBytes();
+	}
+
+	/**
+	 * @return members and non members (odd keys, and keys past the last) alike
+	 */
+	private static List<byte[]> keys(int... keys) {
+		List<byte[]> ret = new ArrayList<>();
+		for( int i : keys )
+			ret.add(key(i));
+		return ret;
+	}
+
+	@Test
+	public void validProofVerifies() throws Exception {
+		MultiExistenceProof proof = tree.isMemberAll(1, REQUESTED);
+		assertTrue(proof.validate(root, REQUESTED));
+		for( int i : new int[] {0, 40, 42, 120, 198} ) {
+			assertTrue(proof.isMember(key(i)));
+			assertArrayEquals(value(i), proof.getPayloadOfKey(key(i)).value);
+		}
+		assertFalse(proof.isMember(key(17)));
+		assertFalse(proof.isMember(key(500)));
+		assertNull(proof.getPayloadOfKey(key(17)));
+	}
+
+	@Test
+	public void subsetOfKeysVerifies() throws Exception {
+		MultiExistenceProof proof = tree.isMemberAll(1, REQUESTED);
+		assertTrue(proof.validate(root, keys(17, 120)));
+	}
+
+	@Test
+	public void flippedShapeBitFails() throws Exception {
+		MultiExistenceProof proof = tree.isMemberAll(1, REQUESTED);
+		Proofs tampering = new Proofs(proof);
+		for( int i = 0; i < tampering.size(); i++ ) {
+			tampering.flipShape(i);
+			assertFalse("element " + i, proof.validate(root, REQUESTED));
+			tampering.flipShape(i);
+		}
+		assertTrue(proof.validate(root, REQUESTED));
+	}
+
+	@Test
+	public void swappedAuthenticatorFails() throws Exception {
+		MultiExistenceProof proof = tree.isMemberAll(1, REQUESTED);
+		assertTrue(new Proofs(proof).swapAuthenticators());
+		assertFalse(proof.validate(root, REQUESTED));
+	}
+
+	@Test
+	public void omittedKeyFails() throws Exception {
+		//the search of a member ends at its node, whose children are pruned unless other searches go on below it
+		int[] members = {0, 40, 42, 120, 198};
+		int pruned = 0;
+		for( int i : members ) {
+			MultiExistenceProof proof = tree.isMemberAll(1, REQUESTED);
+			if( ! new Proofs(proof).pruneNode(key(i)) )
+				continue;
+			pruned++;
+			assertFalse("key " + i, proof.validate(root, REQUESTED));
+			//the proof still leads to the root, so it holds for the other members, none of which is below the key
+			List<byte[]> others = new ArrayList<>();
+			for( int j : members )
+				if( j != i )
+					others.add(key(j));
+			assertTrue("key " + i, proof.validate(root, others));
+		}
+		assertTrue(pruned > 0);
+	}
+
+	@Test
+	public void keyOutsideProofFails() throws Exception {
+		MultiExistenceProof proof = tree.isMemberAll(1, keys(40, 120));
+		for( int i : new int[] {0, 17, 80, 198, 500} ) {
+			List<byte[]> requested = new ArrayList<>(keys(40, 120));
+			requested.add(key(i));
+			assertFalse("key " + i, proof.validate(root, requested));
+		}
+		assertTrue(proof.validate(root, Arrays.asList(key(120), key(40))));
+	}
+}
@@ -0,0 +1,96 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.stanford.identiscape.mappedMemory.MappedMemory;
+import edu.stanford.identiscape.util.DigestProvider;
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+import gr.uoa.di.dsg.vsrm.RecordManager;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * A store reopens with the snapshots it was closed with, and only under the digest algorithm its record file and its
+ * snapshot list were both built with
+ */
+public class NodeStorageManagerVSRMTest {
+	private static final int KEYS = 1000;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private Tree open() throws IOException {
+		String dir = folder.getRoot().getPath();
+		RecordManager rm = new RecordManager(new MappedFileManager(dir + "/tree.dat", 1024, 64 * 1024, 64 * 64 * 1024, MappedFileManager.WritePolicy.ON_CLOSE), 100);
+		return new Tree(new NodeStorageManagerVSRM(rm, new MappedMemory(dir + "/snapshots.dat", 10)), new AuthenticatorCacheManagerAlways());
+	}
+
+	/**
+	 * @return the root of the snapshot
+	 */
+	private byte[] build() throws Exception {
+		Tree tree = open();
+		for( int i = 0; i < KEYS; i++ )
+			tree.insert(String.format("key%05d", i).getBytes(), String.format("value%05d", i).getBytes());
+		byte[] root = tree.closeSnapshot();
+		tree.close();
+		return root;
+	}
+
+	/**
+	 * Overwrites the digest identifier the snapshot list keeps in the top byte of its first field
+	 */
+	private void setSnapshotListDigest(int id) throws IOException {
+		try( RandomAccessFile file = new RandomAccessFile(folder.getRoot().getPath() + "/snapshots.dat", "rw") ) {
+			file.seek(0);
+			file.write(id);
+		}
+	}
+
+	private void assertRefused(String what) throws Exception {
+		try {
+			open().close();
+			fail("store opened under the wrong digest");
+		} catch (IOException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().startsWith(what + " was built with"));
+		}
+	}
+
+	@Test
+	public void storeReopens() throws Exception {
+		byte[] root = build();
+		Tree tree = open();
+		assertArrayEquals(root, tree.getRootAuthenticator(1));
+		tree.close();
+	}
+
+	@Test
+	public void snapshotListOfOtherDigestIsRefused() throws Exception {
+		build();
+		for( DigestProvider other : DigestProvider.values() )
+			if( other != Node.DIGEST ) {
+				setSnapshotListDigest(other.getId());
+				assertRefused("Snapshot list");
+			}
+	}
+
+	@Test
+	public void snapshotListWithoutDigestIsSha1() throws Exception {
+		byte[] root = build();
+		setSnapshotListDigest(0);
+		if( Node.DIGEST != DigestProvider.SHA1 ) {
+			assertRefused("Snapshot list");
+			return;
+		}
+		Tree tree = open();
+		assertArrayEquals(root, tree.getRootAuthenticator(1));
+		tree.close();
+	}
+}
@@ -0,0 +1,114 @@
+package gr.uoa.di.dsg.treap;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+
+import edu.stanford.identiscape.util.ByteArrayRegion;
+import edu.stanford.identiscape.util.Bytes;
+
+/**
+ * Tampers with the elements of a proof, as a dishonest prover would, keeping everything else about it as it was
+ */
+public class Proofs {
+	private final PartialTreeProof proof;
+
+	public Proofs(PartialTreeProof proof) {
+		this.proof = proof;
+	}
+
+	private Object get(String name) {
+		try {
+			Field field = PartialTreeProof.class.getDeclaredField(name);
+			field.setAccessible(true);
+			return field.get(proof);
+		} catch (ReflectiveOperationException ex) {
+			throw new AssertionError(ex);
+		}
+	}
+
+	private void set(String name, Object value) {
+		try {
+			Field field = PartialTreeProof.class.getDeclaredField(name);
+			field.setAccessible(true);
+			field.set(proof, value);
+		} catch (ReflectiveOperationException ex) {
+			throw new AssertionError(ex);
+		}
+	}
+
+	private BitSet shape() {
+		return (BitSet) get("shape");
+	}
+
+	@SuppressWarnings("unchecked")
+	private ArrayList<byte[]> list(String name) {
+		return (ArrayList<byte[]>) get(name);
+	}
+
+	/**
+	 * @return the number of elements, nodes and pruned subtrees, of the proof
+	 */
+	public int size() {
+		return (Integer) get("shapeSize");
+	}
+
+	public void flipShape(int element) {
+		shape().flip(element);
+	}
+
+	/**
+	 * Swaps the first two different authenticators of pruned subtrees, so that each stands in place of the other
+	 * @return false if they are all the same
+	 */
+	public boolean swapAuthenticators() {
+		ArrayList<byte[]> authenticators = list("authenticators");
+		for( int i = 1; i < authenticators.size(); i++ )
+			if( ! Bytes.areEqual(authenticators.get(0), authenticators.get(i)) ) {
+				Collections.swap(authenticators, 0, i);
+				return true;
+			}
+		return false;
+	}
+
+	/**
+	 * Replaces the node of the key, whose children must both be pruned, with its authenticator, so that the proof still
+	 * leads to the same root but no longer holds the key
+	 * @return false if the key is not in the proof with pruned children
+	 */
+	public boolean pruneNode(byte[] key) {
+		BitSet shape = shape();
+		ArrayList<byte[]> keys = list("keys");
+		ArrayList<byte[]> payloads = list("payloads");
+		ArrayList<byte[]> authenticators = list("authenticators");
+		int node = 0, authenticator = 0;
+		for( int i = 0; i < size(); i++ ) {
+			if( ! shape.get(i) ) {
+				authenticator++;
+				continue;
+			}
+			if( ! Bytes.areEqual(keys.get(node), key) ) {
+				node++;
+				continue;
+			}
+			if( i + 2 >= size() || shape.get(i + 1) || shape.get(i + 2) )
+				return false;
+			byte[] pruned = Node.calculateAuthenticator(new ByteArrayRegion(keys.get(node)), new ByteArrayRegion(payloads.get(node)),
+					authenticators.get(authenticator), authenticators.get(authenticator + 1));
+			keys.remove(node);
+			payloads.remove(node);
+			authenticators.remove(authenticator + 1);
+			authenticators.set(authenticator, pruned);
+			BitSet tampered = new BitSet();
+			for( int j = 0; j < i; j++ )
+				tampered.set(j, shape.get(j));
+			for( int j = i + 3; j < size(); j++ )
+				tampered.set(j - 2, shape.get(j));
+			set("shape", tampered);
+			set("shapeSize", size() - 2);
+			return true;
+		}
+		return false;
+	}
+}
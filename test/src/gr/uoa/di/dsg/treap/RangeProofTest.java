@@ -0,0 +1,113 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A range proof verifies only as it was produced: any tampering, or a key of the range left out of it, fails it
+ */
+public class RangeProofTest {
+	private static final int KEYS = 200;
+	private Tree tree;
+	private byte[] root;
+
+	@Before
+	public void setUp() throws Exception {
+		tree = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways());
+		for( int i = 0; i < KEYS; i++ )
+			tree.insert(key(i), value(i));
+		root = tree.closeSnapshot();
+	}
+
+	private static byte[] key(int i) {
+		return String.format("key%05d", i).getBytes();
+	}
+
+	private static byte[] value(int i) {
+		return String.format("value%05d", i).getBytes();
+	}
+
+	private RangeProof proof(int from, int to) throws Exception {
+		return tree.getRangeProof(1, key(from), key(to));
+	}
+
+	@Test
+	public void validProofVerifies() throws Exception {
+		RangeProof proof = proof(40, 90);
+		assertTrue(proof.validate(root, key(40), key(90)));
+		List<Map.Entry<byte[], NodePayload>> entries = proof.getEntries();
+		//boundary nodes outside the range are part of the proof, but not of its entries
+		assertTrue(proof.getNodeCount() > entries.size());
+		assertEquals(50, entries.size());
+		for( int i = 0; i < entries.size(); i++ ) {
+			assertArrayEquals(key(40 + i), entries.get(i).getKey());
+			assertArrayEquals(value(40 + i), entries.get(i).getValue().value);
+		}
+	}
+
+	@Test
+	public void unboundedProofVerifies() throws Exception {
+		RangeProof proof = tree.getRangeProof(1, null, null);
+		assertTrue(proof.validate(root, null, null));
+		assertEquals(KEYS, proof.getEntries().size());
+	}
+
+	@Test
+	public void proofOfOtherSnapshotFails() throws Exception {
+		tree.insert(key(KEYS), value(KEYS));
+		tree.closeSnapshot();
+		assertFalse(tree.getRangeProof(2, key(40), key(90)).validate(root, key(40), key(90)));
+	}
+
+	@Test
+	public void flippedShapeBitFails() throws Exception {
+		RangeProof proof = proof(40, 90);
+		Proofs tampering = new Proofs(proof);
+		for( int i = 0; i < tampering.size(); i++ ) {
+			tampering.flipShape(i);
+			assertFalse("element " + i, proof.validate(root, key(40), key(90)));
+			assertNull(proof.getEntries());
+			tampering.flipShape(i);
+		}
+		assertTrue(proof.validate(root, key(40), key(90)));
+	}
+
+	@Test
+	public void swappedAuthenticatorFails() throws Exception {
+		RangeProof proof = proof(40, 90);
+		assertTrue(new Proofs(proof).swapAuthenticators());
+		assertFalse(proof.validate(root, key(40), key(90)));
+	}
+
+	@Test
+	public void omittedKeyFails() throws Exception {
+		//the leaves of the range are pruned one at a time, leaving the root authenticator as it was
+		int pruned = 0;
+		for( int i = 40; i < 90; i++ ) {
+			RangeProof proof = proof(40, 90);
+			if( ! new Proofs(proof).pruneNode(key(i)) )
+				continue;
+			pruned++;
+			assertFalse("key " + i, proof.validate(root, key(40), key(90)));
+		}
+		assertTrue(pruned > 0);
+	}
+
+	@Test
+	public void boundaryOutsideProofFails() throws Exception {
+		RangeProof proof = proof(40, 90);
+		assertFalse(proof.validate(root, key(30), key(90)));
+		assertFalse(proof.validate(root, key(40), key(100)));
+		assertFalse(proof.validate(root, null, key(90)));
+		assertFalse(proof.validate(root, key(40), null));
+	}
+}
@@ -0,0 +1,177 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.stanford.identiscape.util.Bytes;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Extracts are read back as written, in either version, and one that is cut or corrupted fails rather than being
+ * applied in part
+ */
+public class SnapshotExtractFormatTest {
+	private static final int RECORDS = 20000;
+	private static final int FRAME_HEADER_SIZE = 1 + 4 + 4 + 4;
+
+	private static byte[] key(int i) {
+		return String.format("key%07d", i).getBytes();
+	}
+
+	private static byte[] value(int i) {
+		//every third value is incompressible, so that stored and compressed blocks alike are written
+		byte[] value = new byte[i % 50];
+		if( i % 3 == 0 )
+			new Random(i).nextBytes(value);
+		else
+			Arrays.fill(value, (byte) i);
+		return value;
+	}
+
+	private static void write(ByteArrayOutputStream out, ByteBuffer bytes) {
+		out.write(bytes.array(), bytes.position(), bytes.remaining());
+	}
+
+	private static byte[] extract(int records) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		write(out, SnapshotExtractFormat.header());
+		SnapshotExtractFormat.Block block = new SnapshotExtractFormat.Block();
+		SnapshotExtractFormat.BlockFramer framer = new SnapshotExtractFormat.BlockFramer();
+		for( int i = 0; i < records; i++ ) {
+			block.add(i % 2 == 0, key(i), value(i));
+			if( block.isFull() ) {
+				write(out, framer.frame(block));
+				block.clear();
+			}
+		}
+		if( ! block.isEmpty() )
+			write(out, framer.frame(block));
+		write(out, framer.end());
+		return out.toByteArray();
+	}
+
+	/**
+	 * Version 0: bare [action 1][key length 4][key][value length 4][value] records
+	 */
+	private static byte[] extractVersion0(int records) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] length = new byte[4];
+		for( int i = 0; i < records; i++ ) {
+			out.write(i % 2 == 0 ? 1 : 0);
+			Bytes.intToBytes(key(i).length, length, 0);
+			out.write(length, 0, 4);
+			out.write(key(i), 0, key(i).length);
+			Bytes.intToBytes(value(i).length, length, 0);
+			out.write(length, 0, 4);
+			out.write(value(i), 0, value(i).length);
+		}
+		return out.toByteArray();
+	}
+
+	private static SnapshotExtractFormat.Reader reader(byte[] extract) throws IOException {
+		return new SnapshotExtractFormat.Reader(new ByteArrayInputStream(extract), "test");
+	}
+
+	private static void assertReadsBack(byte[] extract, int records, int version) throws IOException {
+		try( SnapshotExtractFormat.Reader in = reader(extract) ) {
+			assertEquals(version, in.getVersion());
+			for( int i = 0; i < records; i++ ) {
+				assertTrue("record " + i, in.next());
+				assertEquals(i % 2 == 0, in.isAppend());
+				assertArrayEquals(key(i), Arrays.copyOf(in.key(), in.keyLength()));
+				assertArrayEquals(value(i), Arrays.copyOfRange(in.value(), in.valueOffset(), in.valueOffset() + in.valueLength()));
+			}
+			assertFalse(in.next());
+		}
+	}
+
+	/**
+	 * @return the message of the failure to read the whole extract
+	 */
+	private static String assertRejected(byte[] extract) {
+		try( SnapshotExtractFormat.Reader in = reader(extract) ) {
+			while( in.next() )
+				;
+			fail("bad extract read to its end");
+			return null;
+		} catch (IOException expected) {
+			return expected.getMessage();
+		}
+	}
+
+	@Test
+	public void extractReadsBack() throws IOException {
+		byte[] extract = extract(RECORDS);
+		assertTrue(extract.length > 2 * SnapshotExtractFormat.BLOCK_SIZE);
+		assertReadsBack(extract, RECORDS, SnapshotExtractFormat.VERSION);
+	}
+
+	@Test
+	public void emptyExtractReadsBack() throws IOException {
+		assertReadsBack(extract(0), 0, SnapshotExtractFormat.VERSION);
+	}
+
+	@Test
+	public void version0ExtractReadsBack() throws IOException {
+		assertReadsBack(extractVersion0(RECORDS), RECORDS, 0);
+		assertReadsBack(new byte[0], 0, 0);
+	}
+
+	@Test
+	public void missingEndMarkerIsRejected() {
+		byte[] extract = extract(RECORDS);
+		String message = assertRejected(Arrays.copyOf(extract, extract.length - FRAME_HEADER_SIZE));
+		assertTrue(message, message.contains("end marker"));
+	}
+
+	@Test
+	public void truncatedExtractIsRejected() {
+		byte[] extract = extract(RECORDS);
+		for( int length = SnapshotExtractFormat.MAGIC.length + 1; length < extract.length; length += extract.length / 151 )
+			assertRejected(Arrays.copyOf(extract, length));
+		byte[] version0 = extractVersion0(RECORDS);
+		assertRejected(Arrays.copyOf(version0, version0.length - 1));
+	}
+
+	@Test
+	public void flippedBitIsRejected() throws IOException {
+		byte[] extract = extract(RECORDS);
+		int flips = 0, rejected = 0;
+		for( int pos = SnapshotExtractFormat.MAGIC.length + 1; pos < extract.length; pos += extract.length / 151 ) {
+			for( int bit : new int[] {0, 5} ) {
+				byte[] corrupt = extract.clone();
+				corrupt[pos] ^= 1 << bit;
+				flips++;
+				try( SnapshotExtractFormat.Reader in = reader(corrupt) ) {
+					while( in.next() )
+						;
+				} catch (IOException expected) {
+					rejected++;
+					continue;
+				}
+				//a flip that does not change what a block decompresses to, such as the offset of a match within a run, is harmless
+				assertReadsBack(corrupt, RECORDS, SnapshotExtractFormat.VERSION);
+			}
+		}
+		assertTrue(rejected + " of " + flips, rejected > flips * 9 / 10);
+	}
+
+	@Test
+	public void unknownVersionIsRejected() {
+		byte[] extract = extract(10);
+		extract[SnapshotExtractFormat.MAGIC.length] = (byte) (SnapshotExtractFormat.VERSION + 1);
+		assertTrue(assertRejected(extract).contains("version"));
+		assertTrue(assertRejected("not an extract".getBytes()).contains("not a snapshot extract"));
+	}
+}
@@ -0,0 +1,108 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.util.Arrays;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The extract of each snapshot is written in the background, and whatever stops it is reported when the tree is closed
+ * rather than leaving the close waiting
+ */
+public class SnapshotExtractorToDiskAsyncTest {
+	private static final int KEYS = 5000;
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	private static byte[] key(int i) {
+		return String.format("key%05d", i).getBytes();
+	}
+
+	private static byte[] value(int i) {
+		return String.format("value%05d", i).getBytes();
+	}
+
+	private static void sealSnapshot(ISnapshotExtractor extractor) throws Exception {
+		Tree tree = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways(), extractor);
+		for( int i = 0; i < KEYS; i++ )
+			tree.insert(key(i), value(i));
+		tree.closeSnapshot();
+		tree.close();
+	}
+
+	@Test(timeout = 10000)
+	public void extractIsWritten() throws Exception {
+		String base = folder.getRoot().getPath() + "/extract";
+		sealSnapshot(new SnapshotExtractorToDiskAsync(base));
+		String filename = SnapshotExtractorFunctions.fileNameOfExtract(base, 1);
+		boolean[] seen = new boolean[KEYS];
+		try( SnapshotExtractFormat.Reader in = new SnapshotExtractFormat.Reader(new FileInputStream(filename), filename) ) {
+			while( in.next() ) {
+				assertTrue(in.isAppend());
+				int i = Integer.parseInt(new String(in.key(), 0, in.keyLength()).trim().substring(3));
+				assertArrayEquals(value(i), Arrays.copyOfRange(in.value(), in.valueOffset(), in.valueOffset() + in.valueLength()));
+				seen[i] = true;
+			}
+		}
+		for( int i = 0; i < KEYS; i++ )
+			assertTrue("key " + i, seen[i]);
+	}
+
+	@Test(timeout = 20000)
+	public void extractsAreAppliedToReplica() throws Exception {
+		String base = folder.getRoot().getPath() + "/extract";
+		Tree tree = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways(), new SnapshotExtractorToDiskAsync(base));
+		for( int i = 0; i < KEYS; i += 2 )
+			tree.insert(key(i), value(i));
+		tree.closeSnapshot();
+		//the second snapshot both updates keys of the first and appends new ones
+		for( int i = 0; i < KEYS; i++ )
+			if( i % 2 == 1 )
+				tree.insert(key(i), value(i));
+			else if( i % 3 == 0 )
+				tree.update(key(i), value(i + KEYS));
+		byte[] root = tree.closeSnapshot();
+		tree.close();
+		Tree replica = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways());
+		for( long snapshotId = 1; snapshotId <= 2; snapshotId++ ) {
+			SnapshotExtractorFunctions.apply(replica, SnapshotExtractorFunctions.fileNameOfExtract(base, snapshotId));
+			replica.closeSnapshot();
+		}
+		assertArrayEquals(root, replica.getRootAuthenticator(2));
+		for( int i = 0; i < KEYS; i++ )
+			assertArrayEquals("key " + i, i % 2 == 0 && i % 3 == 0 ? value(i + KEYS) : value(i), replica.get(key(i)));
+	}
+
+	private static void assertReported(ISnapshotExtractor extractor, Class<? extends Throwable> cause) throws Exception {
+		try {
+			sealSnapshot(extractor);
+			fail("failure of the extract not reported");
+		} catch (IOException expected) {
+			assertEquals(cause, expected.getCause().getClass());
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void failureOtherThanIOIsReported() throws Exception {
+		//the extract file cannot even be named
+		assertReported(new SnapshotExtractorToDiskAsync(folder.getRoot().getPath() + "/extract\0"), InvalidPathException.class);
+	}
+
+	@Test(timeout = 10000)
+	public void rejectedWriteIsReported() throws Exception {
+		assertReported(new SnapshotExtractorToDiskAsync(folder.getRoot().getPath() + "/extract", task -> {
+			throw new RejectedExecutionException("no writers");
+		}), RejectedExecutionException.class);
+	}
+}
@@ -0,0 +1,140 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A batch that is rejected must leave the tree as it was, including for the units of work that follow it
+ */
+public class TreeBatchTest {
+	private Tree tree;
+	private Tree reference;
+
+	@Before
+	public void setUp() throws Exception {
+		tree = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways());
+		reference = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways());
+		for( int i = 0; i < 200; i += 2 ) {
+			tree.insert(key(i), value(i, 0));
+			reference.insert(key(i), value(i, 0));
+		}
+		tree.closeSnapshot();
+		reference.closeSnapshot();
+	}
+
+	private static byte[] key(int i) {
+		return String.format("key%05d", i).getBytes();
+	}
+
+	private static byte[] value(int i, int version) {
+		return String.format("value%05d-%d", i, version).getBytes();
+	}
+
+	private static List<Map.Entry<byte[], byte[]>> entries(int version, int... keys) {
+		List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+		for( int i : keys )
+			entries.add(new AbstractMap.SimpleImmutableEntry<>(key(i), value(i, version)));
+		return entries;
+	}
+
+	/**
+	 * Runs an unrelated insert on both trees and checks that they still agree, key by key and by root authenticator
+	 */
+	private void assertUnchanged() throws Exception {
+		tree.insert(key(1001), value(1001, 0));
+		reference.insert(key(1001), value(1001, 0));
+		tree.closeSnapshot();
+		reference.closeSnapshot();
+		for( int i = 0; i < 200; i++ )
+			assertArrayEquals("key " + i, reference.get(key(i)), tree.get(key(i)));
+		long snapshotId = reference.getLastClosedSnapshotId();
+		assertEquals(snapshotId, tree.getLastClosedSnapshotId());
+		assertArrayEquals(reference.getRootAuthenticator(snapshotId), tree.getRootAuthenticator(snapshotId));
+	}
+
+	@Test
+	public void insertAllRejectsUnsortedBatchWithoutChanges() throws Exception {
+		try {
+			tree.insertAll(entries(0, 1, 3, 7, 5, 9).iterator());
+			fail("unsorted batch accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+		assertNull(tree.get(key(1)));
+		assertUnchanged();
+	}
+
+	@Test
+	public void insertAllRejectsExistingKeyWithoutChanges() throws Exception {
+		try {
+			tree.insertAll(entries(0, 1, 3, 4, 5).iterator());
+			fail("existing key inserted");
+		} catch (IllegalArgumentException expected) {
+		}
+		assertNull(tree.get(key(1)));
+		assertUnchanged();
+	}
+
+	@Test
+	public void failedBatchKeepsNodesOfOpenSnapshot() throws Exception {
+		//nodes created in the open snapshot are changed in place by the batch, not copied
+		for( Map.Entry<byte[], byte[]> entry : entries(0, 11, 13, 15) ) {
+			tree.insert(entry.getKey(), entry.getValue());
+			reference.insert(entry.getKey(), entry.getValue());
+		}
+		try {
+			tree.putAll(entries(1, 11, 12, 13, 14).iterator());
+			tree.updateAll(entries(2, 11, 12, 13, 17).iterator());
+			fail("missing key updated");
+		} catch (IllegalArgumentException expected) {
+		}
+		reference.putAll(entries(1, 11, 12, 13, 14).iterator());
+		assertArrayEquals(value(11, 1), tree.get(key(11)));
+		assertUnchanged();
+	}
+
+	@Test
+	public void updateAllRejectsMissingKeyWithoutChanges() throws Exception {
+		try {
+			tree.updateAll(entries(1, 2, 4, 5, 6).iterator());
+			fail("missing key updated");
+		} catch (IllegalArgumentException expected) {
+		}
+		assertArrayEquals(value(2, 0), tree.get(key(2)));
+		assertUnchanged();
+	}
+
+	@Test
+	public void putAllRejectsUnsortedBatchWithoutChanges() throws Exception {
+		try {
+			tree.putAll(entries(1, 2, 3, 6, 4).iterator());
+			fail("unsorted batch accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+		assertArrayEquals(value(2, 0), tree.get(key(2)));
+		assertNull(tree.get(key(3)));
+		assertUnchanged();
+	}
+
+	@Test
+	public void batchesMatchSingleOperations() throws Exception {
+		tree.putAll(entries(1, 1, 2, 3, 4).iterator());
+		tree.updateAll(entries(2, 6, 8).iterator());
+		for( Map.Entry<byte[], byte[]> entry : entries(1, 1, 3) )
+			reference.insert(entry.getKey(), entry.getValue());
+		for( Map.Entry<byte[], byte[]> entry : entries(1, 2, 4) )
+			reference.update(entry.getKey(), entry.getValue());
+		for( Map.Entry<byte[], byte[]> entry : entries(2, 6, 8) )
+			reference.update(entry.getKey(), entry.getValue());
+		assertUnchanged();
+	}
+}
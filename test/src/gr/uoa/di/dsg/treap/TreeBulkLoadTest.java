@@ -0,0 +1,106 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import gr.uoa.di.dsg.util.MemoryBuffer;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Bad input to a bulk load must be refused before anything is written, without leaving an extract for close() to wait for
+ */
+public class TreeBulkLoadTest {
+	private static final int MAX_NODE_SIZE = 300;
+
+	private static class CountingStorage extends NodeStorageManagerMemory {
+		int writes = 0;
+
+		CountingStorage() {
+			super(MAX_NODE_SIZE);
+		}
+
+		@Override
+		protected synchronized void update(long id, MemoryBuffer buffer, boolean isNew) {
+			writes++;
+			super.update(id, buffer, isNew);
+		}
+	}
+
+	private File dir;
+	private CountingStorage storage;
+	private Tree tree;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Files.createTempDirectory("bulkload").toFile();
+		storage = new CountingStorage();
+		tree = new Tree(storage, new AuthenticatorCacheManagerAlways(), new SnapshotExtractorToDiskAsync(new File(dir, "tree").getPath()));
+	}
+
+	@After
+	public void tearDown() {
+		for( File f : dir.listFiles() )
+			f.delete();
+		dir.delete();
+	}
+
+	private static List<Map.Entry<byte[], byte[]>> entries(int count) {
+		List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>();
+		for( int i = 0; i < count; i++ )
+			entries.add(new AbstractMap.SimpleImmutableEntry<>(String.format("key%05d", i).getBytes(), String.format("value%05d", i).getBytes()));
+		return entries;
+	}
+
+	private void assertRefused(List<Map.Entry<byte[], byte[]>> entries) throws Exception {
+		try {
+			tree.bulkLoad(entries.iterator());
+			fail("bad input loaded");
+		} catch (IllegalArgumentException expected) {
+		}
+		assertEquals(0, storage.writes);
+		assertEquals(Tree.TERMINAL_NODE_ID, storage.getRoot());
+		assertNull(tree.get("key00000".getBytes()));
+	}
+
+	@Test(timeout = 10000)
+	public void unsortedInputIsRefused() throws Exception {
+		List<Map.Entry<byte[], byte[]>> entries = entries(1000);
+		entries.add(entries.remove(500));
+		assertRefused(entries);
+		tree.close();
+	}
+
+	@Test(timeout = 10000)
+	public void oversizedEntryIsRefused() throws Exception {
+		List<Map.Entry<byte[], byte[]>> entries = entries(1000);
+		entries.set(900, new AbstractMap.SimpleImmutableEntry<>(entries.get(900).getKey(), new byte[MAX_NODE_SIZE]));
+		assertRefused(entries);
+		tree.close();
+	}
+
+	@Test(timeout = 10000)
+	public void loadsAfterRefusal() throws Exception {
+		List<Map.Entry<byte[], byte[]>> entries = entries(1000);
+		entries.add(0, entries.get(999));
+		assertRefused(entries);
+		entries.remove(0);
+		byte[] rootAuthenticator = tree.bulkLoad(entries.iterator());
+		assertArrayEquals(rootAuthenticator, tree.getRootAuthenticator(tree.getLastClosedSnapshotId()));
+		for( Map.Entry<byte[], byte[]> entry : entries )
+			assertArrayEquals(entry.getValue(), tree.get(entry.getKey()));
+		tree.close();
+		assertEquals(1, dir.listFiles().length);
+	}
+}
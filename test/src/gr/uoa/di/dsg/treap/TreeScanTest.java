@@ -0,0 +1,74 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * A scan returns the keys of its range in order, as of its snapshot, and only closed snapshots can be scanned
+ */
+public class TreeScanTest {
+	private Tree tree;
+
+	@Before
+	public void setUp() throws Exception {
+		tree = new Tree(new NodeStorageManagerMemory(), new AuthenticatorCacheManagerAlways());
+		for( int i = 0; i < 100; i += 2 )
+			tree.insert(key(i), value(i, 1));
+		tree.closeSnapshot();
+		for( int i = 1; i < 100; i += 2 )
+			tree.insert(key(i), value(i, 2));
+		tree.update(key(10), value(10, 2));
+		tree.closeSnapshot();
+	}
+
+	private static byte[] key(int i) {
+		return String.format("key%05d", i).getBytes();
+	}
+
+	private static byte[] value(int i, int version) {
+		return String.format("value%05d-%d", i, version).getBytes();
+	}
+
+	@Test
+	public void rangeIsScannedInOrderAsOfItsSnapshot() throws Exception {
+		Iterator<Map.Entry<byte[], byte[]>> entries = tree.scan(1, key(9), key(15));
+		for( int i = 10; i < 15; i += 2 ) {
+			Map.Entry<byte[], byte[]> entry = entries.next();
+			assertArrayEquals(key(i), entry.getKey());
+			assertArrayEquals(value(i, 1), entry.getValue());
+		}
+		assertFalse(entries.hasNext());
+
+		entries = tree.scan(2, key(10), null);
+		int count = 0;
+		for( int i = 10; entries.hasNext(); i++, count++ ) {
+			Map.Entry<byte[], byte[]> entry = entries.next();
+			assertArrayEquals(key(i), entry.getKey());
+			assertArrayEquals(value(i, i % 2 == 0 && i != 10 ? 1 : 2), entry.getValue());
+		}
+		assertEquals(90, count);
+	}
+
+	private void assertRejected(long snapshotId) throws Exception {
+		try {
+			tree.scan(snapshotId, null, null);
+			fail("scan of snapshot " + snapshotId + " accepted");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void onlyClosedSnapshotsAreScanned() throws Exception {
+		assertRejected(0);
+		assertRejected(-1);
+		assertRejected(3);
+	}
+}
@@ -0,0 +1,84 @@
+package gr.uoa.di.dsg.treap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Closing a snapshot yields the root that the stored nodes prove, sequentially or on a pool, also when nodes too small
+ * to hold another version are copied while their subtrees are authenticated
+ */
+public class TreeSealTest {
+	private static final int SNAPSHOTS = 5;
+	private static final int OPERATIONS = 3000;
+	//small enough that thousands of nodes are copied as their versions pile up
+	private static final int MAX_NODE_SIZE = 250;
+
+	/**
+	 * Inserts and updates random keys, some with long values, closing a snapshot after each round
+	 * @return the root of each snapshot, as returned when it was closed
+	 */
+	private static byte[][] seal(Tree tree, ForkJoinPool pool, TreeMap<String, String> contents) throws Exception {
+		Random random = new Random(11);
+		byte[][] roots = new byte[SNAPSHOTS + 1][];
+		for( int s = 1; s <= SNAPSHOTS; s++ ) {
+			for( int i = 0; i < OPERATIONS; i++ ) {
+				String key = "k" + random.nextInt(OPERATIONS * 10);
+				String value = "v" + s + "-" + i + (random.nextInt(10) == 0 ? "yyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyyy" : "");
+				if( contents.put(key, value) == null )
+					tree.insert(key.getBytes(), value.getBytes());
+				else
+					tree.update(key.getBytes(), value.getBytes());
+			}
+			roots[s] = pool == null ? tree.closeSnapshot() : tree.closeSnapshot(pool);
+		}
+		return roots;
+	}
+
+	private static void assertProven(Tree tree, byte[] root, TreeMap<String, String> contents) throws Exception {
+		Random random = new Random(13);
+		for( int i = 0; i < 500; i++ ) {
+			String key = "k" + random.nextInt(OPERATIONS * 10);
+			ExistenceProof proof = tree.isMember(SNAPSHOTS, key.getBytes());
+			assertTrue(key, proof.validate(root, key.getBytes()));
+			assertEquals(key, contents.containsKey(key), proof.isMember());
+		}
+		RangeProof proof = tree.getRangeProof(SNAPSHOTS, null, null);
+		assertTrue(proof.validate(root, null, null));
+		assertEquals(contents.size(), proof.getEntries().size());
+	}
+
+	@Test
+	public void copiedNodesKeepRootConsistent() throws Exception {
+		Tree tree = new Tree(new NodeStorageManagerMemory(MAX_NODE_SIZE), new AuthenticatorCacheManagerAlways());
+		TreeMap<String, String> contents = new TreeMap<>();
+		byte[][] roots = seal(tree, null, contents);
+		assertTrue(tree.getNodeCopies() > 1000);
+		for( int s = 1; s <= SNAPSHOTS; s++ )
+			assertArrayEquals("snapshot " + s, roots[s], tree.getRootAuthenticator(s));
+		assertProven(tree, roots[SNAPSHOTS], contents);
+	}
+
+	@Test
+	public void parallelSealMatchesSequential() throws Exception {
+		Tree sequential = new Tree(new NodeStorageManagerMemory(MAX_NODE_SIZE), new AuthenticatorCacheManagerAlways());
+		byte[][] expected = seal(sequential, null, new TreeMap<>());
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			Tree parallel = new Tree(new NodeStorageManagerMemory(MAX_NODE_SIZE), new AuthenticatorCacheManagerAlways());
+			TreeMap<String, String> contents = new TreeMap<>();
+			byte[][] roots = seal(parallel, pool, contents);
+			for( int s = 1; s <= SNAPSHOTS; s++ )
+				assertArrayEquals("snapshot " + s, expected[s], roots[s]);
+			assertProven(parallel, roots[SNAPSHOTS], contents);
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package gr.uoa.di.dsg.util;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Check values of CRC-32C, as given for it by the iSCSI specification (RFC 3720), and the same value however the bytes are fed
+ */
+public class Crc32cTest {
+	private static long crc(byte[] b) {
+		Crc32c crc = new Crc32c();
+		crc.update(b);
+		return crc.getValue();
+	}
+
+	@Test
+	public void checkValues() {
+		assertEquals(0xE3069283L, crc("123456789".getBytes()));
+		assertEquals(0x8A9136AAL, crc(new byte[32]));
+		byte[] ones = new byte[32];
+		Arrays.fill(ones, (byte) 0xFF);
+		assertEquals(0x62A8AB43L, crc(ones));
+		byte[] ascending = new byte[32];
+		for( int i = 0; i < ascending.length; i++ )
+			ascending[i] = (byte) i;
+		assertEquals(0x46DD794EL, crc(ascending));
+		assertEquals(0L, crc(new byte[0]));
+	}
+
+	@Test
+	public void valueDoesNotDependOnHowBytesAreFed() {
+		byte[] data = new byte[1000];
+		new Random(3).nextBytes(data);
+		long whole = crc(data);
+		Crc32c crc = new Crc32c();
+		for( int off = 0, len = 1; off < data.length; off += len, len = len % 13 + 1 )
+			crc.update(data, off, Math.min(len, data.length - off));
+		assertEquals(whole, crc.getValue());
+		crc.reset();
+		for( byte b : data )
+			crc.update(b);
+		assertEquals(whole, crc.getValue());
+		assertEquals((int) whole, Crc32c.of(Arrays.copyOf(data, data.length + 7), 0, data.length));
+	}
+}
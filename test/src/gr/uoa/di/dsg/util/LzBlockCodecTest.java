@@ -0,0 +1,90 @@
+package gr.uoa.di.dsg.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.Test;
+
+/**
+ * Every block decompresses to what was compressed, within maxCompressedLength() whatever its contents
+ */
+public class LzBlockCodecTest {
+	private final LzBlockCodec codec = new LzBlockCodec();
+	private final Random random = new Random(5);
+
+	/**
+	 * Compresses the data, at an offset on both sides, and checks that it decompresses to the same bytes
+	 * @return the length of the compressed block
+	 */
+	private int roundTrip(byte[] data) throws DataFormatException {
+		byte[] src = new byte[data.length + 10];
+		System.arraycopy(data, 0, src, 3, data.length);
+		byte[] compressed = new byte[7 + LzBlockCodec.maxCompressedLength(data.length)];
+		int length = codec.compress(src, 3, data.length, compressed, 7);
+		assertTrue(length <= LzBlockCodec.maxCompressedLength(data.length));
+		byte[] decompressed = new byte[data.length + 4];
+		LzBlockCodec.decompress(compressed, 7, length, decompressed, 2, data.length);
+		assertArrayEquals(data, Arrays.copyOfRange(decompressed, 2, 2 + data.length));
+		return length;
+	}
+
+	private byte[] random(int length) {
+		byte[] data = new byte[length];
+		random.nextBytes(data);
+		return data;
+	}
+
+	@Test
+	public void shortBlocksRoundTrip() throws DataFormatException {
+		for( int length = 0; length < 40; length++ )
+			roundTrip(random(length));
+	}
+
+	@Test
+	public void incompressibleBlockRoundTrips() throws DataFormatException {
+		roundTrip(random(64 * 1024));
+	}
+
+	@Test
+	public void repetitiveBlockRoundTrips() throws DataFormatException {
+		assertTrue(roundTrip(new byte[64 * 1024]) < 1024);
+		byte[] pattern = new byte[64 * 1024];
+		for( int i = 0; i < pattern.length; i++ )
+			pattern[i] = (byte) (i % 7);
+		assertTrue(roundTrip(pattern) < 1024);
+	}
+
+	@Test
+	public void recordLikeBlockRoundTrips() throws DataFormatException {
+		StringBuilder records = new StringBuilder();
+		for( int i = 0; records.length() < 64 * 1024; i++ )
+			records.append(String.format("key%08d=value-%d-%s;", i, i % 97, Long.toHexString(random.nextLong())));
+		byte[] data = records.toString().getBytes();
+		assertTrue(roundTrip(data) < data.length);
+	}
+
+	private static void assertCorrupt(byte[] compressed, int length, int dstLen) {
+		try {
+			LzBlockCodec.decompress(compressed, 0, length, new byte[dstLen], 0, dstLen);
+			fail("corrupt block decompressed");
+		} catch (DataFormatException expected) {
+		}
+	}
+
+	@Test
+	public void corruptBlockIsRejected() {
+		byte[] data = new byte[4096];
+		for( int i = 0; i < data.length; i++ )
+			data[i] = (byte) (i % 31);
+		byte[] compressed = new byte[LzBlockCodec.maxCompressedLength(data.length)];
+		int length = codec.compress(data, 0, data.length, compressed, 0);
+		assertCorrupt(compressed, length - 1, data.length);
+		assertCorrupt(compressed, length, data.length - 1);
+		assertCorrupt(compressed, length, data.length + 1);
+	}
+}
@@ -0,0 +1,195 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gr.uoa.di.dsg.vsrm.dump.DataBlockDump;
+import gr.uoa.di.dsg.vsrm.dump.RecordManagerDump;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * The entries of the free list in memory must follow the chain on disk, under any mix of adds, updates and deletes
+ */
+public class FreeListManagerTest {
+    private static final int HEADER_SIZE = 128;
+    private static final int BLOCK_SIZE = 512;
+    private static final int THRESHOLD = 64;
+
+    @Rule
+    public final RecordFiles files = new RecordFiles(HEADER_SIZE, BLOCK_SIZE, THRESHOLD, 11);
+    private RecordManager rm;
+    private final Map<Long, byte[]> records = new HashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        rm = files.open();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        rm.close();
+    }
+
+    private void add(long recNo, int length) throws IOException {
+        byte[] data = files.data(length);
+        rm.add(recNo, data);
+        records.put(recNo, data);
+    }
+
+    private void update(long recNo, int length) throws IOException {
+        byte[] data = files.data(length);
+        rm.update(recNo, data);
+        records.put(recNo, data);
+    }
+
+    private void delete(long recNo) throws IOException {
+        rm.delete(recNo);
+        records.remove(recNo);
+    }
+
+    private int blockOf(long recNo) throws IOException {
+        return rm.getCompleteDump().indexEntries.get(recNo);
+    }
+
+    /**
+     * Checks that the chain on disk and the entries in memory list the same blocks in the same order, with the free
+     * space of each page, and that every page with enough free space other than the last one is listed
+     */
+    private List<Integer> assertConsistent() throws IOException {
+        RecordManagerDump dump = rm.getCompleteDump();
+        List<Integer> onDisk = new ArrayList<>();
+        Set<Integer> seen = new HashSet<>();
+        for( int blockNo = rm.header.getFirstFreeBlock(); blockNo > 0; blockNo = dump.dataBlocks.get(blockNo).nextFree ) {
+            assertTrue("chain loops back to block " + blockNo, seen.add(blockNo));
+            onDisk.add(blockNo);
+        }
+        List<Integer> inMemory = new ArrayList<>();
+        int previous = 0;
+        for( FreeListEntry entry : dump.freeList ) {
+            inMemory.add(entry.blockNo);
+            assertEquals("predecessor of block " + entry.blockNo, previous, entry.previousInList);
+            assertEquals("free space of block " + entry.blockNo, dump.dataBlocks.get(entry.blockNo).freeSpace, entry.freeSpace);
+            previous = entry.blockNo;
+        }
+        assertEquals(onDisk, inMemory);
+        for( DataBlockDump block : dump.dataBlocks.values() )
+            if( block.blockNo != rm.header.getLastDataBlock() && block.freeSpace >= THRESHOLD )
+                assertTrue("block " + block.blockNo + " with " + block.freeSpace + " bytes free is not listed", seen.contains(block.blockNo));
+        for( Map.Entry<Long, byte[]> record : records.entrySet() )
+            assertArrayEquals("record " + record.getKey(), record.getValue(), rm.get(record.getKey()));
+        return onDisk;
+    }
+
+    @Test
+    public void chainFollowsRandomChanges() throws IOException {
+        long nextRecNo = 0;
+        for( int round = 0; round < 20; round++ ) {
+            for( int i = 0; i < 200; i++ ) {
+                int op = records.isEmpty() ? 0 : files.random.nextInt(10);
+                if( op < 4 ) {
+                    add(nextRecNo++, 10 + files.random.nextInt(200));
+                } else {
+                    List<Long> keys = new ArrayList<>(records.keySet());
+                    long recNo = keys.get(files.random.nextInt(keys.size()));
+                    if( op < 8 )
+                        update(recNo, 10 + files.random.nextInt(300));
+                    else
+                        delete(recNo);
+                }
+            }
+            List<Integer> before = assertConsistent();
+            if( round % 5 == 4 ) {
+                //the entries are rebuilt from the chain
+                rm = files.reopen(rm);
+                assertEquals(before, assertConsistent());
+            }
+        }
+    }
+
+    /**
+     * Fills three pages with two records each and frees one record of each, so the chain is the third, second and first
+     * @return the blocks of the pages, in order
+     */
+    private int[] threeFreeBlocks() throws IOException {
+        for( long recNo = 0; recNo < 8; recNo++ )
+            add(recNo, 200);
+        for( long recNo = 0; recNo < 6; recNo += 2 )
+            delete(recNo);
+        int[] blocks = {blockOf(1), blockOf(3), blockOf(5)};
+        assertEquals(Arrays.asList(blocks[2], blocks[1], blocks[0]), assertConsistent());
+        return blocks;
+    }
+
+    @Test
+    public void blockInMiddleIsUnlinkedThroughPredecessor() throws IOException {
+        int[] blocks = threeFreeBlocks();
+        //the second drops below the threshold: the third on disk must now point to the first
+        update(3, 200 + 300 - THRESHOLD);
+        assertEquals(blocks[1], blockOf(3));
+        assertEquals(Arrays.asList(blocks[2], blocks[0]), assertConsistent());
+        rm = files.reopen(rm);
+        assertEquals(Arrays.asList(blocks[2], blocks[0]), assertConsistent());
+        //and the header, when it is the head that drops
+        update(5, 200 + 300 - THRESHOLD);
+        assertEquals(Arrays.asList(blocks[0]), assertConsistent());
+    }
+
+    @Test
+    public void resizedBlockMovesToItsNewClass() throws IOException {
+        int[] blocks = threeFreeBlocks();
+        //the second grows by 216 bytes, several classes up, and is the only one with room for 400 bytes
+        delete(3);
+        assertConsistent();
+        add(100, 400);
+        assertEquals(blocks[1], blockOf(100));
+        //it shrinks to well below the others, and becomes the tightest fit of a small record
+        update(100, 350);
+        assertEquals(blocks[1], blockOf(100));
+        add(101, 100);
+        assertEquals(blocks[1], blockOf(101));
+        add(102, 250);
+        assertNotEquals(blocks[1], blockOf(102));
+        assertConsistent();
+    }
+
+    @Test
+    public void loopInChainIsReported() throws IOException {
+        int[] blocks = threeFreeBlocks();
+        rm.close();
+        //the first, the end of the chain, points back to the second
+        try( RandomAccessFile raf = new RandomAccessFile(files.file(), "rw") ) {
+            raf.seek(HEADER_SIZE + (blocks[0] + 1L) * BLOCK_SIZE - 8);
+            raf.writeInt(blocks[1]);
+        }
+        rm = files.open();
+        try {
+            rm.add(100, new byte[10]);
+            fail("loop in the free list not detected");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("loops back to block " + blocks[1]));
+        }
+    }
+}
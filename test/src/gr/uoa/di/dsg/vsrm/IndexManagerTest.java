@@ -0,0 +1,91 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+import gr.uoa.di.dsg.vsrm.dump.DataBlockDump;
+import gr.uoa.di.dsg.vsrm.dump.DataBlockEntryDump;
+import gr.uoa.di.dsg.vsrm.dump.RecordManagerDump;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Sparse records in small blocks, so that the index directory fills up and moves several times, must all be found,
+ * before and after reopening the file from its directory
+ */
+public class IndexManagerTest {
+    private static final int HEADER_SIZE = 128;
+    private static final int BLOCK_SIZE = 64;
+    private static final int RECS_PER_PAGE = BLOCK_SIZE / 4 - 1;
+
+    @Rule
+    public final RecordFiles files = new RecordFiles(HEADER_SIZE, BLOCK_SIZE, 8, 7);
+    private final TreeMap<Long, byte[]> records = new TreeMap<>();
+
+    private RecordManager open(boolean mapped) throws IOException {
+        return files.open(mapped ? files.mappedFileManager(MappedFileManager.WritePolicy.ON_CLOSE) : files.fileManager());
+    }
+
+    private void assertIndex(RecordManager rm) throws IOException {
+        for( Map.Entry<Long, byte[]> record : records.entrySet() )
+            assertArrayEquals("record " + record.getKey(), record.getValue(), rm.get(record.getKey()));
+        long last = records.lastKey();
+        assertEquals(last, rm.getLastRecNo());
+        assertNull(rm.get(last + 1));
+        assertNull(rm.get(last * 50));
+        assertNull(rm.get(-1));
+
+        RecordManagerDump dump = rm.getCompleteDump();
+        TreeMap<Long, Integer> inPages = new TreeMap<>();
+        for( DataBlockDump block : dump.dataBlocks.values() )
+            for( DataBlockEntryDump entry : block.entries )
+                inPages.put(entry.recNo, block.blockNo);
+        assertEquals(inPages, dump.indexEntries);
+        //directory and index pages are never taken for data pages
+        assertEquals(records.keySet(), inPages.keySet());
+    }
+
+    private void addAndReopen(boolean mapped) throws IOException {
+        RecordManager rm = open(mapped);
+        int maxLength = rm.maxRecordLength();
+        for( int i = 0; i < 3000; i++ ) {
+            long recNo = i * 3L + files.random.nextInt(3);
+            byte[] data = files.data(1 + files.random.nextInt(maxLength));
+            rm.add(recNo, data);
+            records.put(recNo, data);
+        }
+        int indexPages = rm.header.getNumIndexBlocks();
+        assertTrue("directory did not move", rm.header.getIndexDirectoryLength() > 4);
+        assertEquals(records.lastKey() / RECS_PER_PAGE + 1, indexPages);
+        assertIndex(rm);
+        rm.close();
+        rm = open(mapped);
+        assertEquals(indexPages, rm.header.getNumIndexBlocks());
+        assertIndex(rm);
+        rm.close();
+    }
+
+    @Test
+    public void directoryMovesAndIsReadBack() throws IOException {
+        addAndReopen(false);
+    }
+
+    @Test
+    public void directoryMovesAndIsReadBackInMappedFile() throws IOException {
+        addAndReopen(true);
+    }
+}
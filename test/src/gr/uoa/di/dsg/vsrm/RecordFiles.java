@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import gr.uoa.di.dsg.FileManager.FileManager;
+import gr.uoa.di.dsg.FileManager.IFileManager;
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * The record files of a test, in a directory of their own that is removed after it, with their header and block size
+ */
+public class RecordFiles extends ExternalResource {
+    public final int headerSize;
+    public final int blockSize;
+    private final int freeListThreshold;
+    public final Random random;
+    private File dir;
+
+    public RecordFiles(int headerSize, int blockSize, int freeListThreshold, long seed) {
+        this.headerSize = headerSize;
+        this.blockSize = blockSize;
+        this.freeListThreshold = freeListThreshold;
+        this.random = new Random(seed);
+    }
+
+    @Override
+    protected void before() throws IOException {
+        dir = Files.createTempDirectory("vsrm").toFile();
+    }
+
+    @Override
+    protected void after() {
+        for( File f : dir.listFiles() )
+            f.delete();
+        dir.delete();
+    }
+
+    public File file(String name) {
+        return new File(dir, name);
+    }
+
+    /**
+     * @return the record file most tests need only
+     */
+    public File file() {
+        return file("records.dat");
+    }
+
+    public IFileManager fileManager() throws IOException {
+        return new FileManager(file().getPath(), headerSize, blockSize, false);
+    }
+
+    public IFileManager mappedFileManager(MappedFileManager.WritePolicy writePolicy) throws IOException {
+        if( writePolicy == MappedFileManager.WritePolicy.REDO_LOG )
+            return new MappedFileManager(file().getPath(), headerSize, blockSize, 64 * blockSize, new RedoLog(file().getPath(), headerSize, blockSize));
+        return new MappedFileManager(file().getPath(), headerSize, blockSize, 64 * blockSize, writePolicy);
+    }
+
+    public RecordManager open(IFileManager fm) throws IOException {
+        return new RecordManager(fm, freeListThreshold);
+    }
+
+    /**
+     * Opens the record file through a FileManager
+     */
+    public RecordManager open() throws IOException {
+        return open(fileManager());
+    }
+
+    /**
+     * Closes a record manager and opens its file again the same way
+     */
+    public RecordManager reopen(RecordManager rm) throws IOException {
+        rm.close();
+        return open();
+    }
+
+    public byte[] data(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+}
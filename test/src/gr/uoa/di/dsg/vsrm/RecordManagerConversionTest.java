@@ -0,0 +1,284 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gr.uoa.di.dsg.FileManager.FileBlock;
+import gr.uoa.di.dsg.FileManager.FileManager;
+import gr.uoa.di.dsg.FileManager.IFileManager;
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+import gr.uoa.di.dsg.vsrm.dump.DataBlockDump;
+import gr.uoa.di.dsg.vsrm.dump.DataBlockEntryDump;
+import gr.uoa.di.dsg.vsrm.dump.RecordManagerDump;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * Files of format versions 0 and 1, written here byte by byte, must open with every record in place, including the
+ * records a version 0 page has no room for after conversion, and also after a conversion that was interrupted
+ */
+public class RecordManagerConversionTest {
+    private static final int HEADER_SIZE = 128;
+    private static final int BLOCK_SIZE = 512;
+    private static final int THRESHOLD = 32;
+    private static final int RECS_PER_PAGE = BLOCK_SIZE / 4 - 1;
+
+    @Rule
+    public final RecordFiles files = new RecordFiles(HEADER_SIZE, BLOCK_SIZE, THRESHOLD, 0);
+    private final TreeMap<Long, byte[]> records = new TreeMap<>();
+    private final TreeMap<Long, Integer> blocks = new TreeMap<>(); //of the records written by writeFile()
+
+    private byte[] record(long recNo, int length) {
+        byte[] data = new byte[length];
+        new Random(recNo).nextBytes(data);
+        records.put(recNo, data);
+        return data;
+    }
+
+    /**
+     * Writes a file of the given version: index pages at blocks 0 and 4, chained, with a data page at each of 1, 2, 3 and 5.
+     * In version 0 page 1 is full to the last byte, so that its largest record has no room after conversion
+     */
+    private void writeFile(int version) throws IOException {
+        try( RandomAccessFile raf = new RandomAccessFile(files.file(), "rw") ) {
+            int[] firstIndex = new int[RECS_PER_PAGE + 1], secondIndex = new int[RECS_PER_PAGE + 1];
+            int position = writePage(raf, version, 1, new long[] {0, 1, 2, 3}, new int[] {60, version == 0 ? 150 : 142, 110, 120});
+            if( version == 0 )
+                assertEquals(BLOCK_SIZE - 8 - 4 * 16, position);
+            writePage(raf, version, 2, new long[] {4, 5, RECS_PER_PAGE + 1}, new int[] {40, 300, 20});
+            writePage(raf, version, 3, new long[] {6}, new int[] {10});
+            writePage(raf, version, 5, new long[] {RECS_PER_PAGE + 2, RECS_PER_PAGE + 3}, new int[] {100, 200});
+            for( Map.Entry<Long, Integer> entry : blocks.entrySet() ) {
+                long recNo = entry.getKey();
+                if( recNo < RECS_PER_PAGE )
+                    firstIndex[(int) recNo] = entry.getValue();
+                else
+                    secondIndex[(int) recNo - RECS_PER_PAGE] = entry.getValue();
+            }
+            firstIndex[RECS_PER_PAGE] = 4;
+            writeBlock(raf, 0, index(firstIndex));
+            writeBlock(raf, 4, index(secondIndex));
+            writeHeader(raf, version);
+        }
+    }
+
+    /**
+     * Writes a data page of the given version with records of the given lengths, on the free list if it is block 3
+     * @return the end of its records
+     */
+    private int writePage(RandomAccessFile raf, int version, int blockNo, long[] recNos, int[] lengths) throws IOException {
+        int trailer = version == 0 ? 8 : 16;
+        ByteBuffer page = ByteBuffer.allocate(BLOCK_SIZE);
+        int position = 0;
+        for( int i = 0; i < recNos.length; i++ ) {
+            byte[] data = record(recNos[i], lengths[i]);
+            blocks.put(recNos[i], blockNo);
+            page.position(position);
+            page.put(data);
+            int slot = BLOCK_SIZE - trailer - (i + 1) * 16;
+            page.putLong(slot, recNos[i]);
+            page.putInt(slot + 8, position);
+            page.putInt(slot + 12, data.length);
+            position += data.length;
+        }
+        if( version > 0 ) {
+            page.putInt(BLOCK_SIZE - 16, position); //usedBytes
+            page.putInt(BLOCK_SIZE - 12, position); //dataEnd
+        }
+        page.putInt(BLOCK_SIZE - 4, recNos.length);
+        writeBlock(raf, blockNo, page);
+        return position;
+    }
+
+    private void writeHeader(RandomAccessFile raf, int version) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putShort((short) 0x5652);
+        header.putShort((short) version);
+        header.putInt(6); //numBlocks
+        header.putInt(3); //firstFreeBlock
+        header.putInt(5); //lastDataBlock
+        header.putLong(records.size());
+        long sum = 0;
+        int min = Integer.MAX_VALUE, max = 0;
+        for( byte[] data : records.values() ) {
+            sum += data.length;
+            min = Math.min(min, data.length);
+            max = Math.max(max, data.length);
+        }
+        header.putLong(sum);
+        header.putInt(min);
+        header.putInt(max);
+        header.putInt(2); //numIndexBlocks
+        header.putInt(4); //numDataBlocks
+        header.rewind();
+        raf.getChannel().write(header, 0);
+    }
+
+    private static ByteBuffer index(int[] entries) {
+        ByteBuffer page = ByteBuffer.allocate(BLOCK_SIZE);
+        page.asIntBuffer().put(entries);
+        return page;
+    }
+
+    private static void writeBlock(RandomAccessFile raf, int blockNo, ByteBuffer block) throws IOException {
+        block.rewind();
+        raf.getChannel().write(block, HEADER_SIZE + (long) blockNo * BLOCK_SIZE);
+    }
+
+    /**
+     * Checks every record, and that the pages, the index and the free list of a file agree with each other
+     */
+    private void assertContents(RecordManager rm) throws IOException {
+        assertEquals(Header.FORMAT_VERSION, rm.header.formatVersion);
+        assertEquals(0, rm.header.getStaleBlocks());
+        for( Map.Entry<Long, byte[]> record : records.entrySet() )
+            assertArrayEquals("record " + record.getKey(), record.getValue(), rm.get(record.getKey()));
+        assertEquals(records.lastKey().longValue(), rm.getLastRecNo());
+
+        RecordManagerDump dump = rm.getCompleteDump();
+        TreeMap<Long, Integer> inPages = new TreeMap<>();
+        for( DataBlockDump block : dump.dataBlocks.values() )
+            for( DataBlockEntryDump entry : block.entries )
+                assertNull("record " + entry.recNo + " in two pages", inPages.put(entry.recNo, block.blockNo));
+        assertEquals(records.keySet(), inPages.keySet());
+        for( Map.Entry<Long, Integer> entry : dump.indexEntries.entrySet() )
+            if( entry.getValue() > 0 )
+                assertEquals("index of record " + entry.getKey(), inPages.get(entry.getKey()), entry.getValue());
+        Set<Integer> free = new HashSet<>();
+        for( FreeListEntry entry : dump.freeList ) {
+            assertTrue("free list entry " + entry.blockNo + " is not a data page", dump.dataBlocks.containsKey(entry.blockNo));
+            assertTrue(free.add(entry.blockNo));
+            assertEquals(dump.dataBlocks.get(entry.blockNo).freeSpace, entry.freeSpace);
+        }
+        assertEquals(rm.header.getNumDataBlocks(), dump.dataBlocks.size());
+    }
+
+    /**
+     * Adds records to a file that was opened before, and checks all of them once more after reopening it
+     */
+    private void assertUsable(IFileManager fm) throws IOException {
+        RecordManager rm = files.open(fm);
+        assertContents(rm);
+        for( long recNo = 300; recNo < 340; recNo++ )
+            rm.add(recNo, record(recNo, (int) (recNo % 7) * 40));
+        rm.close();
+        rm = files.open();
+        assertContents(rm);
+        rm.close();
+    }
+
+    @Test
+    public void version0IsConverted() throws IOException {
+        writeFile(0);
+        RecordManager rm = files.open();
+        //the largest record of the full page had to move, the others stay together
+        TreeMap<Long, Integer> index = rm.getCompleteDump().indexEntries;
+        assertNotEquals(index.get(0L), index.get(1L));
+        assertEquals(index.get(0L), index.get(2L));
+        assertEquals(index.get(0L), index.get(3L));
+        rm.close();
+        assertUsable(files.fileManager());
+    }
+
+    @Test
+    public void version0IsConvertedInMappedFile() throws IOException {
+        writeFile(0);
+        assertUsable(files.mappedFileManager(MappedFileManager.WritePolicy.ON_BATCH_END));
+    }
+
+    @Test
+    public void version1GetsDirectory() throws IOException {
+        writeFile(1);
+        assertUsable(files.fileManager());
+    }
+
+    @Test
+    public void version0RecordTooLongIsRefused() throws IOException {
+        writeFile(0);
+        //fits in a page of version 0, but not of version 1
+        try( RandomAccessFile raf = new RandomAccessFile(files.file(), "rw") ) {
+            writePage(raf, 0, 3, new long[] {6}, new int[] {BLOCK_SIZE - 8 - 16});
+            writeHeader(raf, 0);
+        }
+        byte[] before = Files.readAllBytes(files.file().toPath());
+        try {
+            files.open();
+            fail("record longer than a page converted");
+        } catch (IOException expected) {
+        }
+        assertArrayEquals(before, Files.readAllBytes(files.file().toPath()));
+    }
+
+    /**
+     * Stops writing after the first failAfter writes of blocks and the header, as if the process had died there
+     */
+    private static class FailingFileManager extends FileManager {
+        private int failAfter;
+
+        FailingFileManager(String fileName, int failAfter) throws IOException {
+            super(fileName, HEADER_SIZE, BLOCK_SIZE, false);
+            this.failAfter = failAfter;
+        }
+
+        private void write() throws IOException {
+            if( failAfter-- == 0 )
+                throw new IOException("interrupted");
+        }
+
+        @Override
+        public void writeBlock(FileBlock block) throws IOException {
+            write();
+            super.writeBlock(block);
+        }
+
+        @Override
+        public void writeHeader() throws IOException {
+            write();
+            super.writeHeader();
+        }
+    }
+
+    @Test
+    public void interruptedConversionIsRedone() throws IOException {
+        writeFile(0);
+        File original = files.file("original.dat");
+        Files.copy(files.file().toPath(), original.toPath());
+        TreeMap<Long, byte[]> written = new TreeMap<>(records);
+        boolean completed = false;
+        for( int failAfter = 0; ! completed; failAfter++ ) {
+            Files.copy(original.toPath(), files.file().toPath(), StandardCopyOption.REPLACE_EXISTING);
+            records.clear();
+            records.putAll(written);
+            try {
+                files.open(new FailingFileManager(files.file().getPath(), failAfter)).close();
+                completed = true;
+            } catch (IOException interrupted) {
+                assertEquals("interrupted", interrupted.getMessage());
+            }
+            assertUsable(files.fileManager());
+        }
+    }
+}
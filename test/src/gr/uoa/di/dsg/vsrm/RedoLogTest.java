@@ -0,0 +1,221 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package gr.uoa.di.dsg.vsrm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import gr.uoa.di.dsg.FileManager.MappedFileManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+/**
+ * A record file is recovered from a copy of it and of its log taken while the log was open, as after a crash, with the
+ * log cut or corrupted: every record before the first bad one is replayed, and none after it
+ */
+public class RedoLogTest {
+    private static final int HEADER_SIZE = 64;
+    private static final int BLOCK_SIZE = 128;
+    private static final int GROUPS = 5;
+    //group 1 holds the header and two blocks, the others two blocks
+    private static final int FIRST_RECORD = 20 + HEADER_SIZE + 2 * (4 + BLOCK_SIZE) + 4;
+    private static final int RECORD = 20 + 2 * (4 + BLOCK_SIZE) + 4;
+
+    @Rule
+    public final RecordFiles files = new RecordFiles(HEADER_SIZE, BLOCK_SIZE, 16, 0);
+    private File crashed;
+
+    @Before
+    public void setUp() {
+        crashed = files.file("crashed.dat");
+    }
+
+    private static byte[] image(int size, int value) {
+        byte[] image = new byte[size];
+        Arrays.fill(image, (byte) value);
+        return image;
+    }
+
+    /**
+     * Appends group g, writing block g with g and block 0 with 10 * g, for g from first to last, then syncs
+     */
+    private static void append(RedoLog log, int first, int last) throws IOException {
+        for( int g = first; g <= last; g++ ) {
+            byte[] header = g == 1 ? image(HEADER_SIZE, 0x11) : null;
+            log.append(header, new int[] {0, g}, new byte[][] {image(BLOCK_SIZE, 10 * g), image(BLOCK_SIZE, g)});
+        }
+        log.sync();
+    }
+
+    /**
+     * Copies the record file and its log, as a crash would leave them
+     */
+    private void crash(File from) throws IOException {
+        Files.copy(from.toPath(), crashed.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(new File(from + RedoLog.SUFFIX).toPath(), new File(crashed + RedoLog.SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void crashAfterGroups() throws IOException {
+        RedoLog log = new RedoLog(files.file().getPath(), HEADER_SIZE, BLOCK_SIZE);
+        append(log, 1, GROUPS);
+        crash(files.file());
+        log.close();
+        assertEquals(FIRST_RECORD + (GROUPS - 1) * RECORD, new File(crashed + RedoLog.SUFFIX).length());
+    }
+
+    private byte[] read(long position, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try( RandomAccessFile raf = new RandomAccessFile(crashed, "r") ) {
+            if( position < raf.length() ) {
+                raf.seek(position);
+                raf.read(bytes);
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Recovers the crashed copy and checks that it holds groups 1 to last, and no later one
+     */
+    private void assertRecovered(int last) throws IOException {
+        new RedoLog(crashed.getPath(), HEADER_SIZE, BLOCK_SIZE).close();
+        assertEquals(0, new File(crashed + RedoLog.SUFFIX).length());
+        assertArrayEquals("header", image(HEADER_SIZE, last > 0 ? 0x11 : 0), read(0, HEADER_SIZE));
+        assertArrayEquals("block 0", image(BLOCK_SIZE, 10 * last), read(HEADER_SIZE, BLOCK_SIZE));
+        for( int g = 1; g <= GROUPS + 1; g++ )
+            assertArrayEquals("block " + g, image(BLOCK_SIZE, g <= last ? g : 0), read(HEADER_SIZE + (long) g * BLOCK_SIZE, BLOCK_SIZE));
+    }
+
+    private void cutLog(long length) throws IOException {
+        try( RandomAccessFile raf = new RandomAccessFile(crashed + RedoLog.SUFFIX, "rw") ) {
+            raf.setLength(length);
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        try( RandomAccessFile raf = new RandomAccessFile(crashed + RedoLog.SUFFIX, "rw") ) {
+            raf.seek(position);
+            int b = raf.read();
+            raf.seek(position);
+            raf.write(b ^ 0x40);
+        }
+    }
+
+    @Test
+    public void completeLogIsReplayed() throws IOException {
+        crashAfterGroups();
+        assertRecovered(GROUPS);
+    }
+
+    @Test
+    public void tornTailIsDropped() throws IOException {
+        crashAfterGroups();
+        //group 5 lacks its checksum
+        cutLog(FIRST_RECORD + 4L * RECORD - 2);
+        assertRecovered(4);
+    }
+
+    @Test
+    public void tornRecordHeaderIsDropped() throws IOException {
+        crashAfterGroups();
+        //group 4 ends within its fixed fields
+        cutLog(FIRST_RECORD + 2L * RECORD + 10);
+        assertRecovered(3);
+    }
+
+    @Test
+    public void replayStopsAtBadChecksum() throws IOException {
+        crashAfterGroups();
+        //an image of group 3; groups 4 and 5 are intact but must not be replayed either
+        flipByte(FIRST_RECORD + RECORD + 20 + 8 + 50);
+        assertRecovered(2);
+    }
+
+    @Test
+    public void replayStopsOutOfSequence() throws IOException {
+        crashAfterGroups();
+        //a valid record of group 2 again after group 5
+        byte[] log = Files.readAllBytes(new File(crashed + RedoLog.SUFFIX).toPath());
+        try( RandomAccessFile raf = new RandomAccessFile(crashed + RedoLog.SUFFIX, "rw") ) {
+            raf.seek(log.length);
+            raf.write(log, FIRST_RECORD, RECORD);
+        }
+        assertRecovered(GROUPS);
+    }
+
+    @Test
+    public void logContinuesAfterRecovery() throws IOException {
+        crashAfterGroups();
+        cutLog(FIRST_RECORD + 2L * RECORD);
+        RedoLog log = new RedoLog(crashed.getPath(), HEADER_SIZE, BLOCK_SIZE);
+        //groups 4 and 5 again, in sequence after the 3 recovered
+        append(log, 4, GROUPS + 1);
+        File copy = files.file("copy.dat");
+        Files.move(crashed.toPath(), copy.toPath());
+        Files.move(new File(crashed + RedoLog.SUFFIX).toPath(), new File(copy + RedoLog.SUFFIX).toPath());
+        crash(copy);
+        log.close();
+        assertRecovered(GROUPS + 1);
+    }
+
+    /**
+     * A writer stopped by other than an IOException, here by a missing image, fails the waits for it as well
+     */
+    @Test(timeout = 10000)
+    public void writerFailureIsReported() throws IOException {
+        RedoLog log = new RedoLog(files.file().getPath(), HEADER_SIZE, BLOCK_SIZE);
+        log.append(null, new int[] {1}, new byte[][] {null});
+        try {
+            log.sync();
+            fail("failure of the writer not reported");
+        } catch (IOException expected) {
+            assertTrue(expected.getCause() instanceof NullPointerException);
+        }
+        try {
+            log.close();
+            fail("failure of the writer not reported on close");
+        } catch (IOException expected) {
+        }
+    }
+
+    private RecordManager openRecords() throws IOException {
+        return files.open(files.mappedFileManager(MappedFileManager.WritePolicy.REDO_LOG));
+    }
+
+    /**
+     * Reads and updates of missing records end their batch, or nothing after them would reach the log
+     */
+    @Test
+    public void recordFileKeepsChangesAfterMissingRecords() throws IOException {
+        RecordManager rm = openRecords();
+        rm.add(0, image(20, 1));
+        assertNull(rm.get(1));
+        try {
+            rm.update(1, image(20, 2));
+            fail("update of a missing record accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+        rm.add(1, image(20, 3));
+        rm.close();
+        rm = openRecords();
+        assertArrayEquals(image(20, 1), rm.get(0));
+        assertArrayEquals(image(20, 3), rm.get(1));
+        rm.close();
+    }
+}